@@ -6,8 +6,13 @@ import java.util.Arrays;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
 import com.daveeberhart.bareos_util.secure_s3_storage.job.BackupJob;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.DaemonClient;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.DaemonJob;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.DrainJob;
 import com.daveeberhart.bareos_util.secure_s3_storage.job.Job;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.QueueStatusJob;
 import com.daveeberhart.bareos_util.secure_s3_storage.job.RestoreJobs;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.RestoreRange;
 import com.daveeberhart.bareos_util.secure_s3_storage.job.RestoreVolumes;
 
 /**
@@ -23,6 +28,11 @@ public class Launcher {
   }
 
   public void run(String[] args) {
+    if (args.length > 0 && "client".equalsIgnoreCase(args[0])) {
+      runClient(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+
     System.err.println("Amazon S3 Storage for Bareos backups v." + VERSION);
     System.err.println();
 
@@ -88,27 +98,74 @@ public class Launcher {
     case "restore-jobs":
       job = new RestoreJobs();
       break;
+    case "restore-range":
+      job = new RestoreRange();
+      break;
+    case "daemon":
+      job = new DaemonJob();
+      break;
+    case "drain":
+      job = new DrainJob();
+      break;
+    case "queue-status":
+      job = new QueueStatusJob();
+      break;
     default:
       throw new BadArgsException("Unrecognized action: " + args[0]);
     }
     return job;
   }
 
+  /**
+   * Hand the job to the daemon, if there's one running; otherwise, run it here.
+   */
+  private void runClient(String[] args) {
+    Integer exitCode;
+    try {
+      exitCode = new DaemonClient().send(args);
+    } catch (JobFailedException e) {
+      System.err.println(e.getMessage());
+      exit(66);
+      return;
+    }
+
+    if (exitCode == null) {
+      System.err.println("Warning: no daemon running, or it's busy; running the job in this process instead.");
+      run(args);
+    } else if (exitCode != 0) {
+      exit(exitCode);
+    }
+  }
+
   private void showUsageAndQuit() {
     System.err.println("Move Bareos file-backup volumes into the Amazon S3 storage cloud, or copy them from S3 back to local disk.");
     System.err.println();
     System.err.println("Usage:");
     System.err.println("  Backup:  `java -jar BareosS3-all.jar backup /path/to/scratch/dir 123 volume1 [volume2 [volume3 [...]]]`");
     System.err.println("    -or-");
-    System.err.println("  Restore: `java -jar BareosS3-all.jar restore-volumes /path/to/scratch/dir 234-volume1 [345-volume2 [456-volume3 [...]]]`");
+    System.err.println("  Restore: `java -jar BareosS3-all.jar restore-volumes /path/to/scratch/dir [--wait] 234-volume1 [345-volume2 [456-volume3 [...]]]`");
+    System.err.println("    -or-");
+    System.err.println("  Restore: `java -jar BareosS3-all.jar restore-jobs /path/to/scratch/dir [--wait] 234 [345 [456 [...]]]`");
+    System.err.println("    -or-");
+    System.err.println("  Restore: `java -jar BareosS3-all.jar restore-range /path/to/scratch/dir 234-volume1 offset length`");
+    System.err.println("    -or-");
+    System.err.println("  Daemon:  `java -jar BareosS3-all.jar daemon /path/to/scratch/dir`");
+    System.err.println("    -or-");
+    System.err.println("  Drain:   `java -jar BareosS3-all.jar drain /path/to/scratch/dir [--once]`");
+    System.err.println("    -or-");
+    System.err.println("  Status:  `java -jar BareosS3-all.jar queue-status /path/to/scratch/dir`");
     System.err.println("    -or-");
-    System.err.println("  Restore: `java -jar BareosS3-all.jar restore-jobs /path/to/scratch/dir 234 [345 [456 [...]]]`");
+    System.err.println("  Client:  `java -jar BareosS3-all.jar client <any of the above, except daemon>`");
     System.err.println("Where:");
     System.err.println("  backup/restore is the action to take");
     System.err.println("  /path/to/scratch/dir is the path you specified in the Bareos sd config");
     System.err.println("  123 is the ID of the Bareos backup job");
     System.err.println("  volume1 (etc) are the name(s) of the Bareos disk volume file(s)");
     System.err.println("  234 (etc) are the ID(s) of the Bareos job(s) to restore disk volumes for");
+    System.err.println("  offset and length are the byte range of the volume to restore (restore-range only)");
+    System.err.println("  --wait waits for volumes to come back from Amazon Glacier, downloading the rest meanwhile, rather than failing");
+    System.err.println("  daemon stays running, and runs jobs passed to it by client (much faster than starting afresh for each job)");
+    System.err.println("  drain uploads backups queued with backup.enqueue=true (stopping once the queue is empty, with --once)");
     System.err.println("");
     exit(1);
   }
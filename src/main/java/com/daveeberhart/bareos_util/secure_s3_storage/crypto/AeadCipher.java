@@ -0,0 +1,99 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.crypto;
+
+import java.nio.ByteBuffer;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * An initialized AES-GCM cipher, for encrypting or decrypting a single message.
+ * <p>
+ * This mirrors the parts of BouncyCastle's {@code AEADBlockCipher} that we use, so that
+ * the different {@link CipherEngine}s can be swapped freely.  All engines produce identical output.
+ *
+ * @author deberhar
+ */
+public interface AeadCipher {
+
+  /**
+   * Add associated data, which is authenticated but not encrypted.
+   * Must be called before any calls to {@link #processBytes(byte[], int, int, byte[], int)}.
+   */
+  void processAADBytes(byte[] in, int inOff, int len);
+
+  /**
+   * Encrypt or decrypt some data.
+   * <p>
+   * Some engines hold back output until {@link #doFinal(byte[], int)} (particularly when decrypting),
+   * so make sure {@code out} has room for {@link #getOutputSize(int)} bytes.
+   *
+   * @return Number of bytes written to {@code out}
+   */
+  int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff);
+
+  /**
+   * Finish the message, writing out any remaining data.  When encrypting, this includes the auth tag.
+   *
+   * @return Number of bytes written to {@code out}
+   * @throws InvalidCipherTextException When decrypting, if the auth tag doesn't match
+   */
+  int doFinal(byte[] out, int outOff) throws InvalidCipherTextException;
+
+  /**
+   * @return The max number of bytes the next {@link #processBytes(byte[], int, int, byte[], int)} and
+   *   {@link #doFinal(byte[], int)} could write, combined, if given {@code len} more bytes of input.
+   */
+  int getOutputSize(int len);
+
+  /**
+   * Encrypt or decrypt the remaining bytes of {@code in} into {@code out}, advancing both buffers.
+   * <p>
+   * Buffers that aren't backed by an array (i.e. direct buffers) are copied through temporary arrays,
+   * unless the engine can read them natively.
+   *
+   * @return Number of bytes written to {@code out}
+   * @see #processBytes(byte[], int, int, byte[], int)
+   */
+  default int processBytes(ByteBuffer in, ByteBuffer out) {
+    int len = in.remaining();
+    byte[] inArray;
+    int inOff;
+    if (in.hasArray()) {
+      inArray = in.array();
+      inOff = in.arrayOffset() + in.position();
+      in.position(in.limit());
+    } else {
+      inArray = new byte[len];
+      inOff = 0;
+      in.get(inArray);
+    }
+
+    if (out.hasArray()) {
+      int n = processBytes(inArray, inOff, len, out.array(), out.arrayOffset() + out.position());
+      out.position(out.position() + n);
+      return n;
+    }
+    byte[] outArray = new byte[getOutputSize(len)];
+    int n = processBytes(inArray, inOff, len, outArray, 0);
+    out.put(outArray, 0, n);
+    return n;
+  }
+
+  /**
+   * Finish the message into {@code out}, advancing its position.
+   *
+   * @return Number of bytes written to {@code out}
+   * @see #doFinal(byte[], int)
+   */
+  default int doFinal(ByteBuffer out) throws InvalidCipherTextException {
+    if (out.hasArray()) {
+      int n = doFinal(out.array(), out.arrayOffset() + out.position());
+      out.position(out.position() + n);
+      return n;
+    }
+    byte[] outArray = new byte[getOutputSize(0)];
+    int n = doFinal(outArray, 0);
+    out.put(outArray, 0, n);
+    return n;
+  }
+
+}
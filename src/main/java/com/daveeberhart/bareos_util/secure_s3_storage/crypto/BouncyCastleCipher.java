@@ -0,0 +1,38 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.crypto;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+
+/**
+ * {@link AeadCipher} backed by BouncyCastle's pure-Java GCM implementation.
+ *
+ * @author deberhar
+ */
+class BouncyCastleCipher implements AeadCipher {
+  private final GCMBlockCipher cipher;
+
+  BouncyCastleCipher(GCMBlockCipher p_cipher) {
+    cipher = p_cipher;
+  }
+
+  @Override
+  public void processAADBytes(byte[] in, int inOff, int len) {
+    cipher.processAADBytes(in, inOff, len);
+  }
+
+  @Override
+  public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) {
+    return cipher.processBytes(in, inOff, len, out, outOff);
+  }
+
+  @Override
+  public int doFinal(byte[] out, int outOff) throws InvalidCipherTextException {
+    return cipher.doFinal(out, outOff);
+  }
+
+  @Override
+  public int getOutputSize(int len) {
+    return cipher.getOutputSize(len);
+  }
+
+}
@@ -0,0 +1,209 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.modes.gcm.Tables64kGCMMultiplier;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
+
+/**
+ * The available AES-GCM implementations.
+ * <p>
+ * Every engine produces byte-for-byte identical output, so files encrypted with one can be decrypted with any other.
+ * Pick one with the {@code encryption.engine} property; the default ({@code auto}) runs a short benchmark the
+ * first time a cipher is needed, and uses whichever engine is fastest on this machine.
+ *
+ * @author deberhar
+ */
+public enum CipherEngine {
+  /** BouncyCastle, with its default 4KB GCM multiplication table.  This is what older versions of this tool always used. */
+  BC("bc") {
+    @Override
+    public AeadCipher newCipher(boolean forEncryption, byte[] key, byte[] nonce) {
+      GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+      cipher.init(forEncryption, new AEADParameters(new KeyParameter(key), TAG_SIZE_BITS, nonce));
+      return new BouncyCastleCipher(cipher);
+    }
+  },
+
+  /** BouncyCastle, with a 64KB GCM multiplication table: faster GHASH, at the cost of a bigger per-key setup. */
+  BC_64K("bc-64k") {
+    @Override
+    public AeadCipher newCipher(boolean forEncryption, byte[] key, byte[] nonce) {
+      GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine(), new Tables64kGCMMultiplier());
+      cipher.init(forEncryption, new AEADParameters(new KeyParameter(key), TAG_SIZE_BITS, nonce));
+      return new BouncyCastleCipher(cipher);
+    }
+  },
+
+  /** The JDK's built-in AES/GCM, which uses AES-NI where available.  Buffers the whole message when decrypting. */
+  JCA("jca") {
+    @Override
+    public AeadCipher newCipher(boolean forEncryption, byte[] key, byte[] nonce) {
+      try {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(forEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(TAG_SIZE_BITS, nonce));
+        return new JcaCipher(cipher);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("AES/GCM is not available from the JDK", e);
+      }
+    }
+
+    @Override
+    public boolean isStreamingDecrypt() {
+      return false;
+    }
+  };
+
+  /** Size of the auth tag in bits. */
+  private static final int TAG_SIZE_BITS = 128;
+  /** The benchmark takes about {@code BENCHMARK_ROUNDS * BENCHMARK_ROUND_MILLIS} ms per engine. */
+  private static final int BENCHMARK_ROUNDS = 6;
+  private static final long BENCHMARK_ROUND_MILLIS = 30;
+  private static final int BENCHMARK_MESSAGE_SIZE = 1024 * 1024;
+
+  private static CipherEngine configured;
+
+  private final String configName;
+
+  private CipherEngine(String p_configName) {
+    configName = p_configName;
+  }
+
+  /**
+   * Create a cipher for a single message.
+   *
+   * @param forEncryption true to encrypt, false to decrypt
+   * @param key AES key
+   * @param nonce GCM nonce.  DO NOT RE-USE with the same key!
+   */
+  public abstract AeadCipher newCipher(boolean forEncryption, byte[] key, byte[] nonce);
+
+  /**
+   * @return true if decrypting releases plaintext as it goes; false if the engine holds the entire
+   *   message in memory until the auth tag is checked.
+   */
+  public boolean isStreamingDecrypt() {
+    return true;
+  }
+
+  /**
+   * @return The name of this engine in the {@code encryption.engine} property.
+   */
+  public String getConfigName() {
+    return configName;
+  }
+
+  /**
+   * @return The engine chosen by the {@code encryption.engine} property, benchmarking the engines if
+   *   it's {@code auto} (the default).  The choice is made once, and kept for the life of the JVM.
+   */
+  public static synchronized CipherEngine getConfigured() {
+    if (configured == null) {
+      String name = System.getProperty("encryption.engine", "auto").trim();
+      if ("auto".equalsIgnoreCase(name)) {
+        configured = selectFastest();
+      } else {
+        configured = forConfigName(name);
+      }
+    }
+    return configured;
+  }
+
+  /**
+   * @param p_name Name of an engine, as used in the {@code encryption.engine} property
+   * @return The engine
+   */
+  public static CipherEngine forConfigName(String p_name) {
+    for (CipherEngine engine : values()) {
+      if (engine.configName.equalsIgnoreCase(p_name)) {
+        return engine;
+      }
+    }
+    throw new BadArgsException("Unrecognized encryption.engine: " + p_name + " (expected auto, bc, bc-64k or jca)");
+  }
+
+  /**
+   * Benchmark every engine on this machine, and return the fastest.
+   */
+  static CipherEngine selectFastest() {
+    // Take turns, and keep each engine's best round: the JIT is still warming up during
+    // the first rounds, and we don't want to penalize whichever engine happens to go first.
+    Map<CipherEngine, Double> mbPerSec = new EnumMap<>(CipherEngine.class);
+    Set<CipherEngine> unusable = EnumSet.noneOf(CipherEngine.class);
+    for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+      for (CipherEngine engine : values()) {
+        if (unusable.contains(engine)) {
+          continue;
+        }
+        try {
+          mbPerSec.merge(engine, engine.benchmark(BENCHMARK_ROUND_MILLIS), Math::max);
+        } catch (RuntimeException e) {
+          System.err.println("Warning: cipher engine " + engine.configName + " is not usable here: " + e);
+          unusable.add(engine);
+          mbPerSec.remove(engine);
+        }
+      }
+    }
+
+    CipherEngine fastest = mbPerSec.entrySet().stream()
+        .max(Map.Entry.comparingByValue())
+        .map(Map.Entry::getKey)
+        .orElse(BC);
+    System.out.println("Using cipher engine " + fastest.configName + " (" +
+        mbPerSec.entrySet().stream()
+          .map(e -> e.getKey().configName + ": " + Math.round(e.getValue()) + " MB/s")
+          .collect(Collectors.joining(", ")) + ")");
+    return fastest;
+  }
+
+  /**
+   * Encrypt and decrypt a segment-sized message repeatedly for a moment.
+   * @param p_millis How long to run for
+   * @return Throughput, in MB/s
+   */
+  double benchmark(long p_millis) {
+    byte[] key = new byte[16];
+    byte[] nonce = new byte[12];
+    byte[] plaintext = new byte[BENCHMARK_MESSAGE_SIZE];
+    byte[] ciphertext = new byte[BENCHMARK_MESSAGE_SIZE + TAG_SIZE_BITS / Byte.SIZE];
+    byte[] decrypted = new byte[BENCHMARK_MESSAGE_SIZE + TAG_SIZE_BITS / Byte.SIZE];
+
+    long bytes = 0;
+    long start = System.nanoTime();
+    long deadline = start + p_millis * 1_000_000L;
+    try {
+      for (int i = 0; i == 0 || System.nanoTime() < deadline; i++) {
+        nonce[0] = (byte) i;
+        AeadCipher enc = newCipher(true, key, nonce);
+        int len = enc.processBytes(plaintext, 0, plaintext.length, ciphertext, 0);
+        len += enc.doFinal(ciphertext, len);
+
+        AeadCipher dec = newCipher(false, key, nonce);
+        int declen = dec.processBytes(ciphertext, 0, len, decrypted, 0);
+        dec.doFinal(decrypted, declen);
+        bytes += 2L * plaintext.length;
+      }
+    } catch (InvalidCipherTextException e) {
+      throw new IllegalStateException("Cipher engine " + configName + " failed its self-test", e);
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    return bytes / (1024d * 1024d) / seconds;
+  }
+
+}
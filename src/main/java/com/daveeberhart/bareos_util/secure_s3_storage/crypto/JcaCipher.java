@@ -0,0 +1,78 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+/**
+ * {@link AeadCipher} backed by the JDK's own AES/GCM ({@code javax.crypto}).
+ * <p>
+ * On modern JVMs this uses the CPU's AES-NI and carry-less multiply instructions, and is usually
+ * many times faster than BouncyCastle.  However, the JDK buffers <em>all</em> of the ciphertext
+ * when decrypting, and releases nothing until the auth tag checks out, so it's only suitable for
+ * decrypting messages that fit comfortably in memory (i.e. file version 2 segments).
+ *
+ * @author deberhar
+ */
+class JcaCipher implements AeadCipher {
+  private final Cipher cipher;
+
+  JcaCipher(Cipher p_cipher) {
+    cipher = p_cipher;
+  }
+
+  @Override
+  public void processAADBytes(byte[] in, int inOff, int len) {
+    cipher.updateAAD(in, inOff, len);
+  }
+
+  @Override
+  public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) {
+    try {
+      return cipher.update(in, inOff, len, out, outOff);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int doFinal(byte[] out, int outOff) throws InvalidCipherTextException {
+    try {
+      return cipher.doFinal(out, outOff);
+    } catch (AEADBadTagException e) {
+      throw new InvalidCipherTextException("mac check in GCM failed", e);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int processBytes(ByteBuffer in, ByteBuffer out) {
+    try {
+      return cipher.update(in, out);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int doFinal(ByteBuffer out) throws InvalidCipherTextException {
+    try {
+      return cipher.doFinal(ByteBuffer.allocate(0), out);
+    } catch (AEADBadTagException e) {
+      throw new InvalidCipherTextException("mac check in GCM failed", e);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int getOutputSize(int len) {
+    return cipher.getOutputSize(len);
+  }
+
+}
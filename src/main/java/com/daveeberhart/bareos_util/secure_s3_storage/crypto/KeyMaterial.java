@@ -0,0 +1,156 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bouncycastle.crypto.digests.SHA512Digest;
+import org.bouncycastle.crypto.prng.EntropySource;
+import org.bouncycastle.crypto.prng.EntropySourceProvider;
+import org.bouncycastle.crypto.prng.SP800SecureRandomBuilder;
+
+/**
+ * Random session keys, nonces and the like.
+ * <p>
+ * Each thread gets its own NIST SP 800-90A Hash_DRBG (SHA-512), so volumes encrypted in parallel don't queue up
+ * on a single shared {@link SecureRandom}.  The DRBGs are seeded from the OS's non-blocking source
+ * ({@code /dev/urandom}, via {@code NativePRNGNonBlocking} where available), so a freshly booted, headless VM
+ * doesn't stall waiting for {@code /dev/random} the way {@link SecureRandom#getInstanceStrong()} can.
+ * <p>
+ * Time spent seeding and generating is counted; see {@link #getStats()}.
+ *
+ * @author deberhar
+ */
+public final class KeyMaterial {
+  /** Bits of security we ask of each DRBG. */
+  private static final int SECURITY_STRENGTH_BITS = 256;
+
+  private static final SecureRandom seedSource = createSeedSource();
+  private static final ThreadLocal<SecureRandom> drbg = ThreadLocal.withInitial(KeyMaterial::newDrbg);
+  private static final LongAdder instances = new LongAdder();
+  private static final LongAdder seedNanos = new LongAdder();
+  private static final LongAdder requests = new LongAdder();
+  private static final LongAdder bytes = new LongAdder();
+  private static final LongAdder generateNanos = new LongAdder();
+
+  private KeyMaterial() {
+  }
+
+  /**
+   * Fill the array with random bytes, from this thread's DRBG.
+   */
+  public static void nextBytes(byte[] p_out) {
+    SecureRandom random = drbg.get();
+    long start = System.nanoTime();
+    random.nextBytes(p_out);
+    generateNanos.add(System.nanoTime() - start);
+    requests.increment();
+    bytes.add(p_out.length);
+  }
+
+  /**
+   * @return Counts and timings so far; subtract an earlier snapshot with {@link Stats#since(Stats)} to time one job.
+   */
+  public static Stats getStats() {
+    return new Stats(instances.sum(), seedNanos.sum(), requests.sum(), bytes.sum(), generateNanos.sum());
+  }
+
+  private static SecureRandom createSeedSource() {
+    try {
+      return SecureRandom.getInstance("NativePRNGNonBlocking");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom(); // Not Linux/Unix; the platform default doesn't block.
+    }
+  }
+
+  private static SecureRandom newDrbg() {
+    long start = System.nanoTime();
+    EntropySourceProvider entropy = bits -> new EntropySource() {
+      @Override
+      public boolean isPredictionResistant() {
+        return false;
+      }
+
+      @Override
+      public byte[] getEntropy() {
+        byte[] seed = new byte[(bits + 7) / 8];
+        seedSource.nextBytes(seed); // NOT generateSeed(), which may read /dev/random
+        return seed;
+      }
+
+      @Override
+      public int entropySize() {
+        return bits;
+      }
+    };
+
+    byte[] nonce = new byte[SECURITY_STRENGTH_BITS / 16];
+    seedSource.nextBytes(nonce);
+    byte[] personalization = ByteBuffer.allocate(2 * Long.BYTES)
+        .putLong(Thread.currentThread().getId())
+        .putLong(System.nanoTime())
+        .array();
+    SecureRandom random = new SP800SecureRandomBuilder(entropy)
+        .setEntropyBitsRequired(SECURITY_STRENGTH_BITS)
+        .setPersonalizationString(personalization)
+        .buildHash(new SHA512Digest(), nonce, false);
+    random.nextBytes(new byte[1]); // The DRBG is only seeded on first use; get that out of the way now.
+
+    instances.increment();
+    seedNanos.add(System.nanoTime() - start);
+    return random;
+  }
+
+  /**
+   * A snapshot of the counts and timings.
+   */
+  public static final class Stats {
+    private final long instances;
+    private final long seedNanos;
+    private final long requests;
+    private final long bytes;
+    private final long generateNanos;
+
+    Stats(long p_instances, long p_seedNanos, long p_requests, long p_bytes, long p_generateNanos) {
+      instances = p_instances;
+      seedNanos = p_seedNanos;
+      requests = p_requests;
+      bytes = p_bytes;
+      generateNanos = p_generateNanos;
+    }
+
+    /** @return What's happened since the earlier snapshot */
+    public Stats since(Stats p_earlier) {
+      return new Stats(instances - p_earlier.instances, seedNanos - p_earlier.seedNanos, requests - p_earlier.requests,
+          bytes - p_earlier.bytes, generateNanos - p_earlier.generateNanos);
+    }
+
+    /** @return Number of DRBGs seeded (one per thread that's needed one) */
+    public long getInstances() {
+      return instances;
+    }
+
+    /** @return Number of {@link KeyMaterial#nextBytes(byte[])} calls */
+    public long getRequests() {
+      return requests;
+    }
+
+    /** @return Time spent seeding, in nanoseconds */
+    public long getSeedNanos() {
+      return seedNanos;
+    }
+
+    /** @return Time spent generating, in nanoseconds */
+    public long getGenerateNanos() {
+      return generateNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Key material: %d requests (%d bytes) in %.1f ms; seeded %d DRBGs in %.1f ms",
+          requests, bytes, generateNanos / 1e6, instances, seedNanos / 1e6);
+    }
+  }
+
+}
@@ -38,4 +38,10 @@ public class JobFailedException extends RuntimeException {
     }
   }
 
+  public static class InsufficientSpaceException extends JobFailedException {
+    public InsufficientSpaceException(String p_mesg) {
+      super(p_mesg);
+    }
+  }
+
 }
@@ -0,0 +1,81 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * A free-list of same-sized {@link ByteBuffer}s, so that the crypto loops don't allocate (and the GC
+ * doesn't have to reclaim) a fresh buffer for every block of every volume.
+ * <p>
+ * The pool never blocks: {@link #acquire()} allocates a new buffer if none are free.  Back-pressure
+ * comes from the bounded queues in {@link ReadAheadReader} and {@link WriteBehindWriter}; the pool
+ * only decides how many released buffers are worth keeping around for next time.
+ *
+ * @author deberhar
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final boolean direct;
+  private final int maxIdle;
+  private final Deque<ByteBuffer> idle = new ArrayDeque<>();
+
+  /**
+   * @param p_bufferSize Capacity of every buffer in the pool
+   * @param p_direct true to allocate direct (off-heap) buffers
+   * @param p_maxIdle Max number of released buffers to keep for re-use
+   */
+  public BufferPool(int p_bufferSize, boolean p_direct, int p_maxIdle) {
+    bufferSize = p_bufferSize;
+    direct = p_direct;
+    maxIdle = p_maxIdle;
+  }
+
+  /**
+   * @return A cleared buffer, ready to be filled.
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buf;
+    synchronized (idle) {
+      buf = idle.poll();
+    }
+    if (buf == null) {
+      buf = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+    }
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Hand a buffer back for re-use.  The caller must not touch it afterwards.
+   * Buffers that didn't come from this pool are ignored.
+   */
+  public void release(ByteBuffer p_buf) {
+    if (p_buf == null || p_buf.capacity() != bufferSize || p_buf.isDirect() != direct) {
+      return;
+    }
+    synchronized (idle) {
+      if (idle.size() < maxIdle) {
+        idle.push(p_buf);
+      }
+    }
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  /**
+   * @return Number of free buffers currently held by the pool.
+   */
+  int getIdleCount() {
+    synchronized (idle) {
+      return idle.size();
+    }
+  }
+
+}
@@ -0,0 +1,113 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Split a stream into content-defined chunks, for deduplication.
+ * <p>
+ * Chunk boundaries are picked by a rolling "gear" hash of the last 64 bytes, rather than at fixed offsets,
+ * so inserting or removing a few bytes near the start of a volume only changes the chunks around the edit;
+ * the chunks after it still line up with the ones from the last backup.
+ * <p>
+ * Chunks are between a quarter of, and four times, the target size (rounded down to a power of two).
+ * The boundaries depend only on the data and the target size, and must never change between versions of
+ * this tool: otherwise nothing would deduplicate against older backups.
+ *
+ * @author deberhar
+ */
+public class ContentChunker {
+  /** Random values for each byte, for the rolling hash.  The seed (and so the table) is fixed forever. */
+  private static final long[] GEAR = new long[256];
+  static {
+    Random random = new Random(0x6A09E667F3BCC908L);
+    for (int i = 0; i < GEAR.length; i++) {
+      GEAR[i] = random.nextLong();
+    }
+  }
+
+  private final InputStream in;
+  private final int minSize;
+  private final int maxSize;
+  private final long mask;
+  private final byte[] buff;
+  private int start;
+  private int end;
+  private boolean eof;
+
+  /**
+   * @param p_in Stream to chunk.  Not closed by this class.
+   * @param p_targetSize Target chunk size; rounded down to a power of two.  Chunks average a little over this.
+   */
+  public ContentChunker(InputStream p_in, int p_targetSize) {
+    if (p_targetSize < 64) {
+      throw new IllegalArgumentException("Chunk size must be at least 64 bytes; was " + p_targetSize);
+    }
+    int bits = 31 - Integer.numberOfLeadingZeros(p_targetSize);
+    in = p_in;
+    minSize = (1 << bits) / 4;
+    maxSize = (1 << bits) * 4;
+    mask = -1L << (64 - bits); // Uses the high bits, which depend on all of the last 64 bytes.
+    buff = new byte[2 * maxSize];
+  }
+
+  /**
+   * @return The next chunk; or null at the end of the stream.
+   */
+  public byte[] next() throws IOException {
+    fill();
+    if (start == end) {
+      return null;
+    }
+
+    int cut = findBoundary();
+    byte[] chunk = Arrays.copyOfRange(buff, start, cut);
+    start = cut;
+    return chunk;
+  }
+
+  /**
+   * Make sure there's at least a max-sized chunk in the buffer, unless the stream ends first.
+   */
+  private void fill() throws IOException {
+    if (end - start >= maxSize || eof) {
+      return;
+    }
+
+    if (start + maxSize > buff.length) {
+      System.arraycopy(buff, start, buff, 0, end - start);
+      end -= start;
+      start = 0;
+    }
+    while (end - start < maxSize) {
+      int n = in.read(buff, end, buff.length - end);
+      if (n < 0) {
+        eof = true;
+        return;
+      }
+      end += n;
+    }
+  }
+
+  /**
+   * @return Offset in the buffer of the end of the next chunk
+   */
+  private int findBoundary() {
+    int limit = Math.min(end, start + maxSize);
+    if (limit - start <= minSize) {
+      return limit;
+    }
+
+    long hash = 0;
+    for (int i = start + minSize; i < limit; i++) {
+      hash = (hash << 1) + GEAR[buff[i] & 0xFF];
+      if ((hash & mask) == 0) {
+        return i + 1;
+      }
+    }
+    return limit;
+  }
+
+}
@@ -0,0 +1,158 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.ToLongFunction;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.InsufficientSpaceException;
+
+/**
+ * Admission control for temp files and restored volumes: before writing a file, reserve the space it'll need;
+ * wait while that would leave less than the minimum free; and release the space once the file's gone.
+ * <p>
+ * Reservations are counted per filesystem, so the scratch and staging dirs share one budget if they're on the
+ * same disk.  Reserved bytes count against free space until released, even once (some of) the file's been
+ * written, so the check errs on the safe side.  Free space is checked again every second while waiting, since
+ * other processes use the disk too.
+ *
+ * @author deberhar
+ */
+public class DiskSpace {
+  private static final long RECHECK_MILLIS = 1000;
+
+  private final long minFree;
+  private final ToLongFunction<File> usableSpace;
+  private final Map<Object, Long> reserved = new HashMap<>();
+
+  /**
+   * @param p_minFree Bytes to leave free on each filesystem
+   */
+  public DiskSpace(long p_minFree) {
+    this(p_minFree, File::getUsableSpace);
+  }
+
+  /**
+   * @param p_minFree Bytes to leave free on each filesystem
+   * @param p_usableSpace Tells how many bytes are free on the filesystem holding a directory
+   */
+  DiskSpace(long p_minFree, ToLongFunction<File> p_usableSpace) {
+    minFree = p_minFree;
+    usableSpace = p_usableSpace;
+  }
+
+  /**
+   * Reserve space in one directory; see {@link #reserve(String, Map)}.
+   */
+  public Reservation reserve(String p_caption, File p_dir, long p_bytes) throws InterruptedIOException {
+    Map<File, Long> bytes = new HashMap<>();
+    bytes.put(p_dir, p_bytes);
+    return reserve(p_caption, bytes);
+  }
+
+  /**
+   * Reserve space in several directories at once, waiting until all of it's free, so that no one holds some
+   * while waiting for the rest.
+   *
+   * @param p_caption What the space is for, for messages
+   * @param p_bytes Bytes to reserve, by directory
+   * @throws InsufficientSpaceException if the space isn't free, and there are no other reservations on that
+   *   filesystem to wait for
+   */
+  public Reservation reserve(String p_caption, Map<File, Long> p_bytes) throws InterruptedIOException {
+    Map<Object, Long> needed = new LinkedHashMap<>();
+    Map<Object, File> dirs = new HashMap<>();
+    for (Entry<File, Long> entry : p_bytes.entrySet()) {
+      if (entry.getValue() > 0) {
+        Object store = getStore(entry.getKey());
+        needed.merge(store, entry.getValue(), Long::sum);
+        dirs.putIfAbsent(store, entry.getKey());
+      }
+    }
+
+    boolean announced = false;
+    synchronized (this) {
+      while (true) {
+        boolean fits = true;
+        for (Entry<Object, Long> entry : needed.entrySet()) {
+          long held = reserved.getOrDefault(entry.getKey(), 0L);
+          long free = usableSpace.applyAsLong(dirs.get(entry.getKey())) - held - minFree;
+          if (entry.getValue() > free) {
+            if (held == 0) {
+              throw new InsufficientSpaceException("Not enough free space in " + dirs.get(entry.getKey()) + " for " + p_caption + ": need "
+                  + entry.getValue() + " bytes, leaving " + minFree + " free, but only " + (free + minFree) + " are free");
+            }
+            fits = false;
+          }
+        }
+        if (fits) {
+          needed.forEach((store, bytes) -> reserved.merge(store, bytes, Long::sum));
+          return new Reservation(needed);
+        }
+
+        if (!announced) {
+          System.out.println("Waiting for disk space for " + p_caption + " (" + needed.values().stream().mapToLong(Long::longValue).sum()
+              + " bytes), until other transfers finish");
+          announced = true;
+        }
+        try {
+          wait(RECHECK_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for disk space");
+        }
+      }
+    }
+  }
+
+  /** @return Bytes reserved on the filesystem holding the directory */
+  public synchronized long getReserved(File p_dir) {
+    return reserved.getOrDefault(getStore(p_dir), 0L);
+  }
+
+  private synchronized void release(Map<Object, Long> p_bytes) {
+    p_bytes.forEach((store, bytes) -> reserved.merge(store, -bytes, (a, b) -> a + b == 0 ? null : a + b));
+    notifyAll();
+  }
+
+  /**
+   * @return Something that identifies the filesystem holding the directory
+   */
+  private static Object getStore(File p_dir) {
+    try {
+      return Files.getFileStore(p_dir.toPath());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not tell which filesystem holds " + p_dir, e);
+    }
+  }
+
+  /**
+   * Space held for a transfer; close it once the files it was for are deleted (or complete, and not temporary).
+   */
+  public final class Reservation implements AutoCloseable {
+    private Map<Object, Long> bytes;
+
+    private Reservation(Map<Object, Long> p_bytes) {
+      bytes = p_bytes;
+    }
+
+    @Override
+    public void close() {
+      Map<Object, Long> held;
+      synchronized (this) {
+        held = bytes;
+        bytes = null;
+      }
+      if (held != null) {
+        release(held);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,73 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read part of a file as a channel: {@code length} bytes, starting at {@code offset}.
+ * <p>
+ * Anything appended to the file past the end of the range (say, by Bareos, while we're reading) is ignored.
+ * A file that's shorter than the range is an error, rather than a silently short read.
+ *
+ * @author deberhar
+ */
+public class FileRangeChannel implements ReadableByteChannel {
+  private final FileChannel channel;
+  private long remaining;
+
+  /**
+   * @param p_file File to read
+   * @param p_offset Where to start reading
+   * @param p_length Number of bytes to read
+   */
+  public FileRangeChannel(File p_file, long p_offset, long p_length) throws IOException {
+    channel = FileChannel.open(p_file.toPath(), StandardOpenOption.READ);
+    try {
+      channel.position(p_offset);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    remaining = p_length;
+  }
+
+  @Override
+  public int read(ByteBuffer p_dst) throws IOException {
+    if (remaining <= 0) {
+      return -1;
+    }
+
+    int limit = p_dst.limit();
+    if (p_dst.remaining() > remaining) {
+      p_dst.limit(p_dst.position() + (int) remaining);
+    }
+    int n;
+    try {
+      n = channel.read(p_dst);
+    } finally {
+      p_dst.limit(limit);
+    }
+
+    if (n < 0) {
+      throw new EOFException("File ended " + remaining + " bytes short of the expected length");
+    }
+    remaining -= n;
+    return n;
+  }
+
+  @Override
+  public boolean isOpen() {
+    return channel.isOpen();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+}
@@ -0,0 +1,176 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Read a channel on a background thread, into buffers from a {@link BufferPool}.
+ * <p>
+ * Up to {@code depth} filled buffers are queued ahead of the consumer, so the consumer (i.e. the cipher)
+ * finds the next block already in memory instead of waiting on the disk or network.
+ * <p>
+ * Every buffer returned by {@link #next()} is <em>full</em>, except for the last one before the end of the
+ * channel, so a pool sized to a segment yields exactly one segment per buffer.  Hand each buffer back to the
+ * pool when done with it.
+ * <p>
+ * Alternatively, the channel can hold a series of records, each preceded by a 32-bit big-endian length.
+ * Then each buffer holds exactly one record, without its length.  A record whose length is cut short or
+ * is bigger than the pool's buffers comes back as an empty buffer (and ends the channel), for the consumer's
+ * integrity check to reject.
+ *
+ * @author deberhar
+ */
+public class ReadAheadReader implements Closeable {
+  /** Marks the end of the channel (or a failure) in the queue. */
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+  private final ReadableByteChannel channel;
+  private final BufferPool pool;
+  private final boolean lengthPrefixed;
+  private final BlockingQueue<ByteBuffer> filled;
+  private final Thread thread;
+  private volatile IOException failure;
+  private boolean ended;
+
+  /**
+   * Start reading.
+   *
+   * @param p_channel Channel to read.  Not closed by this class.
+   * @param p_pool Pool to take buffers from
+   * @param p_depth Max number of filled buffers to queue ahead of the consumer
+   * @param p_name Name for the reader thread
+   */
+  public ReadAheadReader(ReadableByteChannel p_channel, BufferPool p_pool, int p_depth, String p_name) {
+    this(p_channel, p_pool, p_depth, p_name, false);
+  }
+
+  /**
+   * Start reading.
+   *
+   * @param p_channel Channel to read.  Not closed by this class.
+   * @param p_pool Pool to take buffers from
+   * @param p_depth Max number of filled buffers to queue ahead of the consumer
+   * @param p_name Name for the reader thread
+   * @param p_lengthPrefixed true to read length-prefixed records, one per buffer
+   */
+  public ReadAheadReader(ReadableByteChannel p_channel, BufferPool p_pool, int p_depth, String p_name, boolean p_lengthPrefixed) {
+    channel = p_channel;
+    pool = p_pool;
+    lengthPrefixed = p_lengthPrefixed;
+    filled = new ArrayBlockingQueue<>(Math.max(1, p_depth) + 1);
+
+    thread = new Thread(this::readLoop, "read-ahead: " + p_name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return The next buffer, flipped and ready to read; or null at the end of the channel.
+   * @throws IOException if reading the channel failed
+   */
+  public ByteBuffer next() throws IOException {
+    if (ended) {
+      return null;
+    }
+
+    ByteBuffer buf;
+    try {
+      buf = filled.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for read-ahead");
+    }
+
+    if (buf == END) {
+      ended = true;
+      if (failure != null) {
+        throw new IOException("Read failed", failure);
+      }
+      return null;
+    }
+    return buf;
+  }
+
+  /**
+   * Stop reading, and return any unread buffers to the pool.
+   */
+  @Override
+  public void close() {
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    ByteBuffer buf;
+    while ((buf = filled.poll()) != null) {
+      pool.release(buf);
+    }
+  }
+
+  private void readLoop() {
+    try {
+      boolean more = true;
+      ByteBuffer prefix = ByteBuffer.allocate(Integer.BYTES);
+      while (more) {
+        ByteBuffer buf = pool.acquire();
+        if (lengthPrefixed) {
+          prefix.clear();
+          more = fill(prefix);
+          if (!more && prefix.position() == 0) {
+            pool.release(buf);
+            break; // Clean end, between records.
+          }
+
+          int len = prefix.getInt(0);
+          if (prefix.hasRemaining() || len < 0 || len > buf.capacity()) {
+            buf.limit(0); // Corrupt; let the consumer find out.
+            filled.put(buf);
+            break;
+          }
+          buf.limit(len);
+        }
+        more = fill(buf) && more;
+        buf.flip();
+
+        if (buf.hasRemaining() || lengthPrefixed) {
+          filled.put(buf);
+        } else {
+          pool.release(buf);
+        }
+      }
+    } catch (InterruptedException e) {
+      return; // Closed by the consumer; nobody is waiting for the end marker.
+    } catch (IOException e) {
+      if (Thread.currentThread().isInterrupted()) {
+        return; // Likely a ClosedByInterruptException, from close().
+      }
+      failure = e;
+    }
+
+    try {
+      filled.put(END);
+    } catch (InterruptedException e) {
+      // Closed by the consumer.
+    }
+  }
+
+  /**
+   * Read until the buffer is full, or the channel ends.
+   * @return false at the end of the channel
+   */
+  private boolean fill(ByteBuffer p_buf) throws IOException {
+    while (p_buf.hasRemaining()) {
+      if (channel.read(p_buf) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
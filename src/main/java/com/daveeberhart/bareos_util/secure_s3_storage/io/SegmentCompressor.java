@@ -0,0 +1,149 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compress segments of a volume one at a time, before they're encrypted.
+ * <p>
+ * Each compressed segment starts with a one-byte marker: {@link #DEFLATED} if the rest is zlib-compressed,
+ * or {@link #STORED} if the segment didn't shrink and is kept as-is.  So a volume that's mostly compressible
+ * doesn't pay for the odd incompressible segment (e.g. a backed-up JPEG).
+ * <p>
+ * Segments are compressed independently, so they can still be restored (and decompressed) one at a time.
+ * Deflaters and Inflaters are kept per thread, since they're expensive to create.
+ *
+ * @author deberhar
+ */
+public class SegmentCompressor {
+  /** Marker byte: the segment is stored as-is. */
+  static final byte STORED = 0;
+  /** Marker byte: the segment is zlib-compressed. */
+  static final byte DEFLATED = 1;
+
+  private static final Map<Integer, SegmentCompressor> compressors = new HashMap<>();
+  private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
+
+  private final int level;
+  private final ThreadLocal<Deflater> deflater;
+
+  private SegmentCompressor(int p_level) {
+    level = p_level;
+    deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+  }
+
+  /**
+   * @param p_level zlib compression level, 1 (fastest) to 9 (smallest)
+   * @return The shared compressor for that level
+   */
+  public static synchronized SegmentCompressor forLevel(int p_level) {
+    if (p_level < Deflater.BEST_SPEED || p_level > Deflater.BEST_COMPRESSION) {
+      throw new IllegalArgumentException("Compression level must be between 1 and 9; was " + p_level);
+    }
+    return compressors.computeIfAbsent(p_level, SegmentCompressor::new);
+  }
+
+  /**
+   * Compress one segment.
+   *
+   * @param in The segment, from its position to its limit.  Must be a heap buffer.
+   * @param out Receives the marker byte and compressed segment; flipped, ready to read.  Must be a heap buffer
+   *   with room for at least one more byte than the segment.
+   */
+  public void compress(ByteBuffer in, ByteBuffer out) {
+    int len = in.remaining();
+    Deflater d = deflater.get();
+    d.reset();
+    d.setInput(in.array(), in.arrayOffset() + in.position(), len);
+    d.finish();
+
+    // Only keep the compressed copy if it's actually smaller:
+    int outOff = out.arrayOffset() + out.position() + 1;
+    int room = Math.min(len, out.remaining() - 1);
+    int n = 0;
+    while (!d.finished() && n < room) {
+      n += d.deflate(out.array(), outOff + n, room - n);
+    }
+
+    if (d.finished() && n < len) {
+      out.put(DEFLATED);
+      out.position(out.position() + n);
+      in.position(in.limit());
+    } else {
+      out.put(STORED);
+      out.put(in);
+    }
+    out.flip();
+  }
+
+  /**
+   * Reverse {@link #compress(ByteBuffer, ByteBuffer)}.
+   *
+   * @param in The marker byte and compressed segment, from its position to its limit.  Must be a heap buffer.
+   * @param out Receives the segment; flipped, ready to read.  Must be a heap buffer.
+   * @throws DataFormatException if the data is corrupt, or doesn't fit in {@code out}
+   */
+  public static void decompress(ByteBuffer in, ByteBuffer out) throws DataFormatException {
+    if (!in.hasRemaining()) {
+      throw new DataFormatException("Segment is empty");
+    }
+
+    byte marker = in.get();
+    if (marker == STORED) {
+      if (in.remaining() > out.remaining()) {
+        throw new DataFormatException("Segment is " + in.remaining() + " bytes; expected at most " + out.remaining());
+      }
+      out.put(in);
+    } else if (marker == DEFLATED) {
+      Inflater inf = inflater.get();
+      inf.reset();
+      inf.setInput(in.array(), in.arrayOffset() + in.position(), in.remaining());
+      in.position(in.limit());
+
+      int outOff = out.arrayOffset() + out.position();
+      int room = out.remaining();
+      int n = 0;
+      while (!inf.finished()) {
+        if (n == room) {
+          throw new DataFormatException("Segment decompresses to more than " + room + " bytes");
+        }
+        int k = inf.inflate(out.array(), outOff + n, room - n);
+        if (k == 0 && (inf.needsInput() || inf.needsDictionary())) {
+          throw new DataFormatException("Compressed segment is truncated");
+        }
+        n += k;
+      }
+      out.position(out.position() + n);
+    } else {
+      throw new DataFormatException("Unknown segment compression " + marker);
+    }
+    out.flip();
+  }
+
+  /**
+   * @param p_sample Some data to try compressing
+   * @param p_len Bytes of the sample to use
+   * @return Compressed size, as a fraction of the original size.
+   */
+  public double getRatio(byte[] p_sample, int p_len) {
+    if (p_len == 0) {
+      return 1;
+    }
+
+    Deflater d = deflater.get();
+    d.reset();
+    d.setInput(p_sample, 0, p_len);
+    d.finish();
+    byte[] scratch = new byte[64 * 1024];
+    long total = 0;
+    while (!d.finished()) {
+      total += d.deflate(scratch);
+    }
+    return (double) total / p_len;
+  }
+
+}
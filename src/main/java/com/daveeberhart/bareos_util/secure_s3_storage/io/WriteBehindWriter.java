@@ -0,0 +1,123 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Write buffers to a channel on a background thread.
+ * <p>
+ * Up to {@code depth} buffers are queued behind the producer (i.e. the cipher), so it can carry on with the
+ * next block while the last one is still being written.  Once a buffer is written, it goes back to the
+ * {@link BufferPool} it was queued with.
+ * <p>
+ * {@link #close()} waits for everything queued to be written, and reports any failure.
+ *
+ * @author deberhar
+ */
+public class WriteBehindWriter implements Closeable {
+  private static final Pending END = new Pending(null, null);
+
+  private final WritableByteChannel channel;
+  private final BlockingQueue<Pending> queue;
+  private final Thread thread;
+  private volatile IOException failure;
+  private boolean closed;
+
+  /**
+   * Start the writer thread.
+   *
+   * @param p_channel Channel to write.  Not closed by this class.
+   * @param p_depth Max number of buffers to queue behind the producer
+   * @param p_name Name for the writer thread
+   */
+  public WriteBehindWriter(WritableByteChannel p_channel, int p_depth, String p_name) {
+    channel = p_channel;
+    queue = new ArrayBlockingQueue<>(Math.max(1, p_depth) + 1);
+
+    thread = new Thread(this::writeLoop, "write-behind: " + p_name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Queue a buffer to be written.  Blocks if the queue is full.
+   *
+   * @param p_buf Buffer to write, from its position to its limit.  The caller must not touch it afterwards.
+   * @param p_owner Pool to release the buffer to once it's written; or null if it didn't come from a pool
+   * @throws IOException if an earlier write failed
+   */
+  public void write(ByteBuffer p_buf, BufferPool p_owner) throws IOException {
+    failFast();
+    if (closed) {
+      throw new IOException("Writer closed");
+    }
+    try {
+      queue.put(new Pending(p_buf, p_owner));
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for write-behind");
+    }
+  }
+
+  /**
+   * Wait for all queued buffers to be written.
+   *
+   * @throws IOException if any write failed
+   */
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      closed = true;
+      try {
+        queue.put(END);
+        thread.join();
+      } catch (InterruptedException e) {
+        thread.interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for write-behind");
+      }
+    }
+    failFast();
+  }
+
+  private void failFast() throws IOException {
+    if (failure != null) {
+      throw new IOException("Write failed", failure);
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      Pending next;
+      while ((next = queue.take()) != END) {
+        try {
+          // After a failure, keep draining the queue so the producer doesn't block forever:
+          while (failure == null && next.buf.hasRemaining()) {
+            channel.write(next.buf);
+          }
+        } catch (IOException e) {
+          failure = e;
+        }
+        if (next.owner != null) {
+          next.owner.release(next.buf);
+        }
+      }
+    } catch (InterruptedException e) {
+      failure = new InterruptedIOException("Write-behind interrupted");
+    }
+  }
+
+  private static final class Pending {
+    private final ByteBuffer buf;
+    private final BufferPool owner;
+
+    private Pending(ByteBuffer p_buf, BufferPool p_owner) {
+      buf = p_buf;
+      owner = p_owner;
+    }
+  }
+
+}
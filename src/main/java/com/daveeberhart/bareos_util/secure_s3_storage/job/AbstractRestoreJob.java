@@ -1,25 +1,62 @@
 package com.daveeberhart.bareos_util.secure_s3_storage.job;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.GlacierJobParameters;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.RestoreObjectRequest;
-import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.Tier;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.GlacierRestoreInProgressException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.VolumeMissingException;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.DiskSpace;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.ChunkRecipe.Chunk;
 import com.daveeberhart.bareos_util.secure_s3_storage.progress.AwsProgressListener;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.ParallelDownload;
 
 /**
  * Base class for the restore jobs.
@@ -29,55 +66,181 @@ import com.daveeberhart.bareos_util.secure_s3_storage.progress.AwsProgressListen
  * @author deberhar
  */
 public abstract class AbstractRestoreJob extends Job {
-  private static final Pattern KEY_PATTERN = Pattern.compile("bb-([0-9]+)-(.+)\\.enc");
+  private static final Pattern KEY_PATTERN = Pattern.compile("bb-([0-9]+)-(.+)\\.(enc|rcp)");
+  static final String PACK_SUFFIX = ".pak";
+  private static final Pattern PACK_KEY_PATTERN = Pattern.compile("bb-([0-9]+)-pack-.+\\.pak");
+
+  /** With {@code --wait}: wait for objects to come back from Amazon Glacier, rather than failing. */
+  private boolean waitForGlacier;
+
+  /**
+   * Pick out the options the restore jobs share.
+   *
+   * @return The rest of the args
+   */
+  protected List<String> parseOptions(List<String> p_args) {
+    List<String> rest = new ArrayList<>();
+    for (String arg : p_args) {
+      if ("--wait".equals(arg)) {
+        waitForGlacier = true;
+      } else {
+        rest.add(arg);
+      }
+    }
+    return rest;
+  }
 
-  protected void restore(Map<String,ObjectMetadata> p_objects) {
+  protected void restore(Map<String,S3ObjectSummary> p_objects) {
+    restore(p_objects, null);
+  }
+
+  /**
+   * @param p_objects The objects to restore, as listed.  Packs (from {@code backup.pack}) are restored one
+   *   volume at a time.
+   * @param p_packMembers Which volumes ({@code jobId-VOLNAME}) to restore out of the packs; or null for all of them
+   */
+  protected void restore(Map<String,S3ObjectSummary> p_objects, Set<String> p_packMembers) {
     Tier restoreTier = Tier.fromValue(System.getProperty("aws.glacier.restoreTier", "Standard"));
     int retentionDays = Integer.getInteger("aws.glacier.restoreRetentionDays", 3);
 
-    List<String> ongoingRestores = new ArrayList<>();
+    // The listing has each object's size and storage class, which is all most volumes need up front.  Only
+    // archived objects (for their restore status), packs (for their table) and volumes already on local disk
+    // (for their digest) need a HEAD; everything else's metadata comes with its download.
+    Map<File, RestoreVolume> volumes = new LinkedHashMap<>();
+    List<String> packKeys = new ArrayList<>();
+    List<String> needMetadata = new ArrayList<>();
+    for (S3ObjectSummary summary : p_objects.values()) {
+      if (summary.getKey().endsWith(PACK_SUFFIX)) {
+        packKeys.add(summary.getKey());
+        needMetadata.add(summary.getKey());
+      } else {
+        RestoreVolume volume = new RestoreVolume(summary);
+        volumes.put(volume.output, volume);
+        if (isArchived(summary.getStorageClass()) || volume.output.exists()) {
+          needMetadata.add(summary.getKey());
+        }
+      }
+    }
+    if (!needMetadata.isEmpty()) {
+      System.out.println("Checking statuses of " + needMetadata.size() + " objects...");
+    }
+    Map<String, ObjectMetadata> metadata = inParallel(needMetadata, key -> s3.getObjectMetadata(bucket, key));
+    for (RestoreVolume volume : volumes.values()) {
+      if (metadata.containsKey(volume.key)) {
+        volume.setMetadata(metadata.get(volume.key));
+      }
+    }
+
+    // Objects still in Glacier, and which volumes are waiting on each:
+    Map<String, ObjectMetadata> thawing = new LinkedHashMap<>();
+    Map<RestoreVolume, Set<String>> waitingOn = new LinkedHashMap<>();
+
+    packKeys.sort(Comparator.reverseOrder()); // Newest first, in case a volume was packed more than once.
+    Set<String> notPacked = p_packMembers == null ? new HashSet<>() : new HashSet<>(p_packMembers);
+    for (String packKey : packKeys) {
+      ObjectMetadata mdata = metadata.get(packKey);
+      if (isFrozen(mdata.getStorageClass(), mdata)) {
+        thawing.put(packKey, mdata); // Can't even read its table until it's back.
+      } else {
+        addPackMembers(packKey, mdata, p_packMembers, notPacked, volumes);
+      }
+    }
+    if (thawing.isEmpty() && !notPacked.isEmpty()) {
+      throw new VolumeMissingException("Could not find the following volumes in any pack:\n" + notPacked.stream().sorted().collect(Collectors.joining("\n  ", "  ", "")));
+    }
+
     List<File> alreadyOnDisk = new ArrayList<>();
     List<RestoreVolume> toRestore = new ArrayList<>();
-    for (Entry<String, ObjectMetadata> entry : p_objects.entrySet()) {
-      RestoreVolume volume = new RestoreVolume(entry.getKey(), entry.getValue());
-      ObjectMetadata mdata = entry.getValue();
-
-      if (volume.output.exists()) {
-        System.err.println("[" + volume + "] Skipping download; file already present on local disk.");
-        alreadyOnDisk.add(volume.output);
+    for (RestoreVolume volume : volumes.values()) {
+      if (isOnDiskAlready(volume, alreadyOnDisk)) {
         continue;
       }
-
-      if (mdata.getStorageClass() != null && StorageClass.Glacier.toString().equals(mdata.getStorageClass())) {
-        if (mdata.getOngoingRestore() != null && mdata.getOngoingRestore()) {
-          System.out.println("Restore of object " + entry.getKey() + " from Amazon Glacier is already underway, but not yet complete.");
-          ongoingRestores.add(entry.getKey());
-        } else {
-          RestoreObjectRequest rreq = new RestoreObjectRequest(bucket, entry.getKey());
-          rreq.setExpirationInDays(retentionDays);
-          rreq.setGlacierJobParameters(new GlacierJobParameters().withTier(restoreTier));
-          s3.restoreObjectV2(rreq);
-          System.out.println("Started restore of object " + entry.getKey() + " from Amazon Glacier to S3 (eta: " + getRestoreTime(restoreTier) + ")");
-          ongoingRestores.add(entry.getKey());
+      for (RestoreVolume piece : resolveChain(volume)) {
+        if (isFrozen(piece.storageClass, piece.metadata)) {
+          thawing.put(piece.key, piece.metadata);
+          waitingOn.computeIfAbsent(volume, v -> new HashSet<>()).add(piece.key);
         }
-      } else {
+      }
+      if (!waitingOn.containsKey(volume)) {
         toRestore.add(volume);
       }
     }
 
-    if (!ongoingRestores.isEmpty()) {
+    startThaws(thawing, restoreTier, retentionDays);
+    if (!thawing.isEmpty() && !waitForGlacier) {
       throw new GlacierRestoreInProgressException(
           "Your restore job cannot be completed right now because some of the requested volumes were migrated to Amazon Glacier.\n" +
           "Restores from Glacier were started (or already running) for the following volumes:\n" +
-           ongoingRestores + "\n" +
+           new ArrayList<>(thawing.keySet()) + "\n" +
           "\n" +
-          "Please try re-running the restore command job after " + getRestoreTime(restoreTier) + ". (but don't wait more than " + retentionDays + " days!)"
+          "Please try re-running the restore command job after " + getRestoreTime(restoreTier) + ". (but don't wait more than " + retentionDays + " days!)\n" +
+          "Or re-run it with --wait, to download the rest now and each of these as soon as it's back."
       );
     }
 
     System.out.println("Restoring " + p_objects.size() + " objects from AWS S3 to local disk...");
 
-    List<File> restored = toRestore.parallelStream().map(this::restore).collect(Collectors.toList());
+    ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+      Thread t = new Thread(r, "volume-restore");
+      t.setDaemon(true);
+      return t;
+    });
+    List<CompletableFuture<File>> restores = new ArrayList<>();
+    RuntimeException failure = null;
+    try {
+      toRestore.forEach(volume -> restores.add(CompletableFuture.supplyAsync(() -> restore(volume), executor)));
+
+      if (!thawing.isEmpty()) {
+        // Download each volume as soon as everything it needs is back, while the rest are still thawing:
+        System.out.println("Downloading what's in S3 now, while waiting for " + thawing.size() + " objects to come back from Amazon Glacier");
+        awaitThawed(thawing.keySet(), restoreTier, retentionDays, (key, mdata) -> {
+          List<RestoreVolume> ready = new ArrayList<>();
+          if (key.endsWith(PACK_SUFFIX)) {
+            Map<File, RestoreVolume> members = new LinkedHashMap<>();
+            addPackMembers(key, mdata, p_packMembers, notPacked, members);
+            for (RestoreVolume member : members.values()) {
+              if (volumes.putIfAbsent(member.output, member) == null && !isOnDiskAlready(member, alreadyOnDisk)) {
+                ready.add(member);
+              }
+            }
+          }
+          for (Iterator<Entry<RestoreVolume, Set<String>>> it = waitingOn.entrySet().iterator(); it.hasNext(); ) {
+            Entry<RestoreVolume, Set<String>> entry = it.next();
+            if (!entry.getValue().remove(key)) {
+              continue;
+            }
+            resolveChain(entry.getKey()).stream().filter(piece -> piece.key.equals(key)).forEach(piece -> piece.metadata = mdata);
+            if (entry.getValue().isEmpty()) {
+              ready.add(entry.getKey());
+              it.remove();
+            }
+          }
+          ready.forEach(volume -> restores.add(CompletableFuture.supplyAsync(() -> restore(volume), executor)));
+        });
+        if (!notPacked.isEmpty()) {
+          failure = new VolumeMissingException("Could not find the following volumes in any pack:\n" + notPacked.stream().sorted().collect(Collectors.joining("\n  ", "  ", "")));
+        }
+      }
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+
+    // Let every download finish (or fail) before reporting, so that a re-run has as little left to do as possible:
+    List<File> restored = new ArrayList<>();
+    for (CompletableFuture<File> future : restores) {
+      try {
+        restored.add(future.join());
+      } catch (CompletionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+      }
+    }
+    executor.shutdownNow();
+    if (failure != null) {
+      throw failure;
+    }
+
     System.out.println();
     System.out.println("Restore operation has completed successfully!");
     if (!alreadyOnDisk.isEmpty()) {
@@ -95,29 +258,588 @@ public abstract class AbstractRestoreJob extends Job {
     System.out.println();
   }
 
+  /**
+   * Read a pack's table, and add the volumes in it that are to be restored (unless already found in a newer pack).
+   */
+  private void addPackMembers(String packKey, ObjectMetadata mdata, Set<String> p_packMembers, Set<String> notPacked,
+      Map<File, RestoreVolume> volumes) {
+    for (RestoreVolume member : readPack(packKey, mdata)) {
+      if (p_packMembers == null || p_packMembers.contains(member.jobId + "-" + member.volumeName)) {
+        volumes.putIfAbsent(member.output, member);
+        notPacked.remove(member.jobId + "-" + member.volumeName);
+      }
+    }
+  }
+
+  /**
+   * @return Every object uploaded for the job (i.e. whose key starts {@code bb-jobId-}), as listed
+   */
+  protected List<S3ObjectSummary> listJob(String p_jobId) {
+    List<S3ObjectSummary> summaries = new ArrayList<>();
+    ObjectListing listing = s3.listObjects(bucket, "bb-" + p_jobId + "-");
+    summaries.addAll(listing.getObjectSummaries());
+    while (listing.isTruncated()) {
+      listing = s3.listNextBatchOfObjects(listing);
+      summaries.addAll(listing.getObjectSummaries());
+    }
+    return summaries;
+  }
+
+  /**
+   * Make a request to S3 for each item, up to {@code restore.requestThreads} at once; rather than one after
+   * another, each waiting out a round trip.
+   *
+   * @return Each item's result, in the same order as the items
+   */
+  protected <T, R> Map<T, R> inParallel(Collection<T> p_items, Function<T, R> p_request) {
+    Map<T, R> results = new LinkedHashMap<>();
+    if (p_items.isEmpty()) {
+      return results;
+    }
+    int threads = Math.min(p_items.size(), Math.max(1, Integer.getInteger("restore.requestThreads", 16)));
+    ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "s3-request");
+      t.setDaemon(true);
+      return t;
+    });
+    try {
+      Map<T, Future<R>> pending = new LinkedHashMap<>();
+      for (T item : p_items) {
+        pending.put(item, executor.submit(() -> p_request.apply(item)));
+      }
+      for (Entry<T, Future<R>> entry : pending.entrySet()) {
+        results.put(entry.getKey(), entry.getValue().get());
+      }
+      return results;
+    } catch (InterruptedException e) {
+      throw new JobFailedException("Thread interrupted while waiting for S3", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new JobFailedException(e.getCause().getMessage(), e);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Skip downloading a volume that's on local disk already, if it matches the backup (or the backup has no
+   * digest to check it against).
+   *
+   * @param alreadyOnDisk Gets the volume's file added to it, if it's skipped
+   * @return true if it's skipped
+   */
+  private boolean isOnDiskAlready(RestoreVolume volume, List<File> alreadyOnDisk) {
+    if (!volume.output.exists()) {
+      return false;
+    } else if (volume.volumeDigest == null) {
+      System.err.println("[" + volume + "] Skipping download; file already present on local disk.");
+    } else if (isOnDiskAlready(volume)) {
+      System.err.println("[" + volume + "] Skipping download; file on local disk matches the backup.");
+    } else {
+      System.err.println("[" + volume + "] File on local disk does not match the backup; downloading it again.");
+      return false;
+    }
+    alreadyOnDisk.add(volume.output);
+    return true;
+  }
+
+  /**
+   * Check a volume that's on local disk already against the keyed digest stored with the backup, without
+   * downloading anything.  Only read if it's the right length.
+   *
+   * @return true if the local file is the volume that was backed up
+   */
+  private boolean isOnDiskAlready(RestoreVolume vol) {
+    if (vol.output.length() != vol.volumeLength) {
+      return false;
+    }
+    try {
+      return digestVolume(vol.output).equals(vol.volumeDigest);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @param mdata The object's metadata; only needed if it's archived
+   * @return true if the object is in Amazon Glacier, and hasn't been restored to S3 (yet)
+   */
+  private static boolean isFrozen(String storageClass, ObjectMetadata mdata) {
+    return isArchived(storageClass) && !isThawed(mdata);
+  }
+
+  /**
+   * @return true if a restore from Amazon Glacier has completed, and the object's readable until it expires
+   */
+  private static boolean isThawed(ObjectMetadata mdata) {
+    return Boolean.FALSE.equals(mdata.getOngoingRestore()) && mdata.getRestoreExpirationTime() != null;
+  }
+
+  /**
+   * Start restores from Amazon Glacier to S3 for any of the objects that don't have one underway already; all at
+   * once, rather than one request after another.
+   *
+   * @param p_objects The objects, with their current metadata
+   */
+  private void startThaws(Map<String, ObjectMetadata> p_objects, Tier restoreTier, int retentionDays) {
+    List<String> toStart = new ArrayList<>();
+    p_objects.forEach((key, mdata) -> {
+      if (Boolean.TRUE.equals(mdata.getOngoingRestore())) {
+        System.out.println("Restore of object " + key + " from Amazon Glacier is already underway, but not yet complete.");
+      } else {
+        toStart.add(key);
+      }
+    });
+    inParallel(toStart, key -> {
+      RestoreObjectRequest rreq = new RestoreObjectRequest(bucket, key);
+      rreq.setExpirationInDays(retentionDays);
+      rreq.setGlacierJobParameters(new GlacierJobParameters().withTier(restoreTier));
+      s3.restoreObjectV2(rreq);
+      System.out.println("Started restore of object " + key + " from Amazon Glacier to S3 (eta: " + getRestoreTime(restoreTier) + ")");
+      return key;
+    });
+  }
+
+  /**
+   * Poll objects being restored from Amazon Glacier until they're all back in S3: every
+   * {@code restore.wait.pollSeconds} at first, backing off to every {@code restore.wait.maxPollSeconds}, for up
+   * to {@code restore.wait.maxHours}.  A restore that's gone missing (e.g. expired already) is started again.
+   *
+   * @param p_onThawed Called with each object's key and metadata, as soon as it's back
+   */
+  private void awaitThawed(Collection<String> p_keys, Tier restoreTier, int retentionDays, BiConsumer<String, ObjectMetadata> p_onThawed) {
+    long pollMillis = TimeUnit.SECONDS.toMillis(Math.max(0, Integer.getInteger("restore.wait.pollSeconds", 60)));
+    long maxPollMillis = TimeUnit.SECONDS.toMillis(Math.max(0, Integer.getInteger("restore.wait.maxPollSeconds", 900)));
+    long giveUpAt = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(Integer.getInteger("restore.wait.maxHours", 48));
+
+    Set<String> waiting = new LinkedHashSet<>(p_keys);
+    while (!waiting.isEmpty()) {
+      if (System.currentTimeMillis() + pollMillis > giveUpAt) {
+        throw new GlacierRestoreInProgressException("Gave up waiting for the following objects to come back from Amazon Glacier:\n"
+            + waiting + "\n\nTheir restores are still underway; re-run the restore command job once they're done (but don't wait more than "
+            + retentionDays + " days!)");
+      }
+      System.out.println("Waiting " + TimeUnit.MILLISECONDS.toSeconds(pollMillis) + "s for " + waiting.size() + " objects to come back from Amazon Glacier...");
+      try {
+        Thread.sleep(pollMillis);
+      } catch (InterruptedException e) {
+        throw new JobFailedException("Thread interrupted while waiting for Amazon Glacier", e);
+      }
+      pollMillis = Math.min(Math.max(pollMillis * 2, 1), maxPollMillis);
+
+      Map<String, ObjectMetadata> statuses = inParallel(new ArrayList<>(waiting), key -> s3.getObjectMetadata(bucket, key));
+      Map<String, ObjectMetadata> lost = new LinkedHashMap<>();
+      statuses.forEach((key, mdata) -> {
+        if (isThawed(mdata)) {
+          System.out.println("Object " + key + " is back from Amazon Glacier");
+          waiting.remove(key);
+          p_onThawed.accept(key, mdata);
+        } else if (!Boolean.TRUE.equals(mdata.getOngoingRestore())) {
+          lost.put(key, mdata);
+        }
+      });
+      startThaws(lost, restoreTier, retentionDays);
+    }
+  }
+
+  /**
+   * Download and decrypt a pack's table, with a ranged GET of the end of the object.
+   *
+   * @return The volumes in the pack
+   */
+  private List<RestoreVolume> readPack(String packKey, ObjectMetadata mdata) {
+    long tableOffset;
+    try {
+      tableOffset = Long.parseLong(mdata.getUserMetaDataOf(PackTable.META_TABLE_OFFSET));
+    } catch (NumberFormatException e) {
+      throw new JobFailedException("Object " + packKey + " has a missing or corrupt " + PackTable.META_TABLE_OFFSET + " in its metadata");
+    }
+    long length = mdata.getInstanceLength();
+    if (tableOffset < 0 || tableOffset >= length) {
+      throw new JobFailedException("Object " + packKey + " has a corrupt " + PackTable.META_TABLE_OFFSET + " in its metadata");
+    }
+
+    Matcher keyMatcher = PACK_KEY_PATTERN.matcher(packKey);
+    if (!keyMatcher.matches()) {
+      throw new JobFailedException("Object " + packKey + " does not match the pattern bb-jobId-pack-TIME-N.pak?!");
+    }
+    File fTable = new File(getStagingDir(), packKey + ".table");
+    try (S3Object obj = s3.getObject(new GetObjectRequest(bucket, packKey).withRange(tableOffset, length - 1));
+         InputStream in = obj.getObjectContent()) {
+      decryptFromStream(packKey, length - tableOffset, in, fTable);
+      PackTable table = PackTable.fromBytes(packKey, Files.readAllBytes(fTable.toPath()), tableOffset);
+      return table.getMembers().stream()
+          .map(member -> new RestoreVolume(packKey, mdata, keyMatcher.group(1), member))
+          .collect(Collectors.toList());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      fTable.delete();
+    }
+  }
+
+  /**
+   * Find all the objects that make up a volume uploaded with {@code backup.appendable}, by following each
+   * object's {@value AppendState#META_APPEND_TO} metadata back to the start of the volume.
+   * <p>
+   * Only appended volumes need any extra requests to S3.
+   *
+   * @return The objects, in volume order; just the volume itself, if it was uploaded whole.
+   */
+  protected List<RestoreVolume> resolveChain(RestoreVolume vol) {
+    if (vol.chain != null) {
+      return vol.chain;
+    }
+
+    Deque<RestoreVolume> chain = new ArrayDeque<>();
+    chain.addFirst(vol);
+    RestoreVolume piece = vol;
+    while (piece.appendTo != null) {
+      if (chain.size() > AppendState.MAX_CHAIN) {
+        throw new JobFailedException("Volume " + vol.volumeName + " is appended to itself in a loop (at " + piece.key + ")?!");
+      }
+
+      ObjectMetadata mdata;
+      try {
+        mdata = s3.getObjectMetadata(bucket, piece.appendTo);
+      } catch (AmazonS3Exception e) {
+        if (e.getMessage() != null && e.getMessage().startsWith("Not Found")) {
+          throw new VolumeMissingException("Could not find S3 object " + piece.appendTo + ", holding the start of " + piece.key
+              + "; check that your lifecycle rules keep volumes at least backup.appendable.maxBaseAgeDays.");
+        }
+        throw e;
+      }
+      piece = new RestoreVolume(piece.appendTo, mdata);
+      if (!piece.volumeName.equals(vol.volumeName) || piece.deduplicated) {
+        throw new IntegrityCheckFailedException(vol.key + " claims to be appended to " + piece.key + ", which is not the same volume!", null);
+      }
+      chain.addFirst(piece);
+    }
+
+    vol.chain = new ArrayList<>(chain);
+    return vol.chain;
+  }
+
+  /**
+   * Restore one volume, once there's room on disk for it and its temp files (see {@link DiskSpace}).
+   */
   protected File restore(RestoreVolume vol) {
     System.out.println("Retrieving: " + vol);
+    boolean restored = true;
+    DiskSpace.Reservation reservation = reserveSpace(vol);
+    try {
+      if (vol.deduplicated) {
+        restoreDeduplicated(vol);
+      } else if (vol.packOffset >= 0) {
+        restorePackMember(vol);
+      } else if (vol.appendTo != null) {
+        restoreAppended(vol);
+      } else {
+        restored = fetchAndDecrypt(vol, vol.output);
+      }
+    } finally {
+      reservation.close();
+    }
+
+    if (!restored) {
+      // The first response said it's only what was appended to the volume, and nothing was downloaded.  Now that
+      // the whole chain's known, reserve space for all of it:
+      reservation = reserveSpace(vol);
+      try {
+        restoreAppended(vol);
+      } finally {
+        reservation.close();
+      }
+    }
+
+    System.out.println("[OK] Retrieved " + vol);
+    return vol.output;
+  }
+
+  private DiskSpace.Reservation reserveSpace(RestoreVolume vol) {
+    Map<File, Long> space = new HashMap<>();
+    space.put(getStagingDir(), getStagedLength(vol));
+    space.merge(scratchDir, getOutputLength(vol), Long::sum);
+    try {
+      return getDiskSpace().reserve(vol.toString(), space);
+    } catch (InterruptedIOException e) {
+      throw new JobFailedException("Thread interrupted while waiting for disk space", e);
+    }
+  }
+
+  /**
+   * @return How much of the staging dir the volume's temp files take up at once: for each object, the encrypted
+   *   download and (if appended) its decrypted piece; nothing, if streamed.
+   */
+  private long getStagedLength(RestoreVolume vol) {
+    if (vol.deduplicated || vol.packOffset >= 0) {
+      return 0;
+    }
+    boolean streaming = Boolean.getBoolean("restore.streaming");
+    long max = 0;
+    for (RestoreVolume piece : resolveChain(vol)) {
+      long length = (streaming ? 0 : piece.length) + (vol.appendTo != null ? piece.length : 0);
+      max = Math.max(max, length);
+    }
+    return max;
+  }
+
+  /**
+   * @return How big the restored volume will be; or (for older backups) the most it could be.  Nothing for
+   *   older deduplicated volumes, whose length isn't known until their recipe's read.
+   */
+  private long getOutputLength(RestoreVolume vol) {
+    if (vol.volumeLength >= 0) {
+      return vol.volumeLength;
+    }
+    if (vol.deduplicated) {
+      return 0;
+    }
+    return resolveChain(vol).stream().mapToLong(piece -> piece.length).sum();
+  }
+
+  /**
+   * Download and decrypt a single object; either streaming, or via a temp file.  Objects bigger than
+   * {@code restore.download.rangeSizeMB} are downloaded over {@code restore.download.threads} connections at
+   * once (see {@link ParallelDownload}); if the download fails part-way, the temp file's kept, and the next
+   * attempt resumes it.
+   *
+   * @return false if the metadata that came with the first response shows that the object only holds what was
+   *   appended to a volume (see {@link #restoreAppended(RestoreVolume)}); nothing's downloaded then
+   */
+  private boolean fetchAndDecrypt(RestoreVolume vol, File output) {
+    if (Boolean.getBoolean("restore.streaming")) {
+      return restoreStreaming(vol, output);
+    }
 
     // Okay, download from AWS to a temp file:
-    File fTmp = new File(scratchDir, vol.volumeName + ".enc");
+    File fTmp = new File(getStagingDir(), vol.key + ".part");
+    long rangeSize = Integer.getInteger("restore.download.rangeSizeMB", 16) * 1024L * 1024;
+    int threads = Integer.getInteger("restore.download.threads", 8);
+    boolean resumable = true;
     try {
-      System.out.println("Downloading " + vol.key);
-      GetObjectRequest req = new GetObjectRequest(bucket, vol.key);
       AwsProgressListener progress = new AwsProgressListener(vol.volumeName, vol.length);
-      tm.download(req, fTmp, progress).waitForCompletion();
+      if (vol.length > rangeSize) {
+        System.out.println("Downloading " + vol.key + " in " + ((vol.length - 1) / rangeSize + 1) + " ranges, " + threads + " at a time");
+      } else {
+        System.out.println("Downloading " + vol.key);
+      }
+      ParallelDownload download = new ParallelDownload(s3, bucket, vol.key, vol.length, rangeSize, threads, progress);
+      download.setRetrier(getRetrier());
+      if (vol.metadata == null) {
+        download.setMetadataCheck(vol::learnMetadata); // Listed, so it might yet turn out to be appended to something.
+      }
+      boolean downloaded = download.downloadTo(fTmp);
+      resumable = false; // Complete (or not wanted); nothing left to resume.
+      if (!downloaded) {
+        return false;
+      }
 
       System.out.println("Decrypting " + vol.volumeName);
-      decrypt(fTmp, vol.output);
+      decrypt(fTmp, output);
+      return true;
     } catch (IOException e) {
       throw new UncheckedIOException(e);
-    } catch (InterruptedException e) {
-      throw new JobFailedException("Thread interrupted while waiting for download", e);
     } finally {
-      fTmp.delete();
+      if (resumable) {
+        System.err.println("Warning: kept the partial download of " + vol.key + " in " + fTmp + ", to resume next time");
+      } else {
+        fTmp.delete();
+        ParallelDownload.getProgressFile(fTmp).delete();
+      }
     }
+  }
 
-    System.out.println("[OK] Retrieved " + vol);
-    return vol.output;
+  /**
+   * Decrypt the object while it downloads, without writing the ciphertext to a temp file.
+   * <p>
+   * If the download or decryption fails part-way, the partial output is deleted, so that it
+   * isn't mistaken for a complete volume on the next run.
+   *
+   * @return false if the object only holds what was appended to a volume; see
+   *   {@link #fetchAndDecrypt(RestoreVolume, File)}
+   */
+  private boolean restoreStreaming(RestoreVolume vol, File output) {
+    System.out.println("Downloading and decrypting " + vol.key);
+    GetObjectRequest req = new GetObjectRequest(bucket, vol.key);
+    if (vol.packOffset >= 0) {
+      req.setRange(vol.packOffset, vol.packOffset + vol.length - 1);
+    }
+    try (S3Object obj = s3.getObject(req);
+         InputStream in = obj.getObjectContent()) {
+      if (!vol.learnMetadata(obj.getObjectMetadata())) {
+        obj.getObjectContent().abort(); // Don't bother reading the rest.
+        return false;
+      }
+      decryptFromStream(vol.volumeName, vol.length, in, output);
+      return true;
+    } catch (IOException e) {
+      output.delete();
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      output.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Fetch one volume out of a pack, with a ranged GET of just its encrypted copy, decrypting it as it downloads.
+   * <p>
+   * The volume's own auth tags only show that it's a volume we encrypted; so it's checked against the digest in
+   * the (equally authenticated) pack table too, in case it's been swapped for another.
+   */
+  private void restorePackMember(RestoreVolume vol) {
+    restoreStreaming(vol, vol.output);
+    if (!isOnDiskAlready(vol)) {
+      vol.output.delete(); // <-- IMPORTANT: Not the volume that was packed; DON'T leave it lying about!
+      throw new IntegrityCheckFailedException(vol.output.getName() + " does not match the digest in " + vol.key + "!", null);
+    }
+  }
+
+  /**
+   * Stitch a volume uploaded with {@code backup.appendable} back together, from its first object and each
+   * appended tail.
+   * <p>
+   * Each tail records a keyed digest of everything before it, so a tail appended to the wrong object (or
+   * objects swapped around in the bucket) fails the integrity check, just like a tampered object would.
+   */
+  private void restoreAppended(RestoreVolume vol) {
+    List<RestoreVolume> chain = resolveChain(vol);
+    System.out.println("Volume " + vol.volumeName + " was uploaded in " + chain.size() + " pieces");
+
+    // Only checked up front if the volume's metadata was, i.e. if it's archived itself, or on local disk:
+    Tier restoreTier = Tier.fromValue(System.getProperty("aws.glacier.restoreTier", "Standard"));
+    int retentionDays = Integer.getInteger("aws.glacier.restoreRetentionDays", 3);
+    Map<String, ObjectMetadata> archived = new LinkedHashMap<>();
+    chain.stream()
+        .filter(piece -> isFrozen(piece.storageClass, piece.metadata))
+        .forEach(piece -> archived.put(piece.key, piece.metadata));
+    startThaws(archived, restoreTier, retentionDays);
+    if (!archived.isEmpty() && waitForGlacier) {
+      awaitThawed(archived.keySet(), restoreTier, retentionDays, (key, mdata) -> { });
+    } else if (!archived.isEmpty()) {
+      throw new GlacierRestoreInProgressException("Volume " + vol.volumeName + " is appended to objects that were migrated to Amazon Glacier.\n"
+          + "Restores from Glacier were started (or already running) for them:\n" + archived.keySet() + "\n\n"
+          + "Please try re-running the restore command job after " + getRestoreTime(restoreTier) + ". (but don't wait more than " + retentionDays + " days!)");
+    }
+
+    SHA256Digest sha = new SHA256Digest();
+    byte[] buff = new byte[64 * 1024];
+    long written = 0;
+    try (FileOutputStream fout = new FileOutputStream(vol.output, false)) {
+      for (int i = 0; i < chain.size(); i++) {
+        RestoreVolume piece = chain.get(i);
+        if (piece.appendOffset != written) {
+          throw new IntegrityCheckFailedException(piece.key + " should be appended at offset " + piece.appendOffset + ", but the volume is "
+              + written + " bytes long", null);
+        }
+        if (i > 0) {
+          byte[] digest = new byte[sha.getDigestSize()];
+          new SHA256Digest(sha).doFinal(digest, 0);
+          if (!macVolumeDigest(digest).equals(piece.prefixDigest)) {
+            throw new IntegrityCheckFailedException(piece.key + " was not appended to the volume in " + chain.get(i - 1).key, null);
+          }
+        }
+
+        File fPiece = new File(getStagingDir(), vol.volumeName + ".piece" + i);
+        try {
+          fetchAndDecrypt(piece, fPiece);
+          try (FileInputStream fin = new FileInputStream(fPiece)) {
+            int n;
+            while ((n = fin.read(buff)) > 0) {
+              sha.update(buff, 0, n);
+              fout.write(buff, 0, n);
+              written += n;
+            }
+          }
+        } finally {
+          fPiece.delete();
+        }
+      }
+    } catch (IntegrityCheckFailedException e) {
+      vol.output.delete(); // <-- IMPORTANT: Decrypted contents fail auth check; DON'T leave them lying about!
+      throw e;
+    } catch (IOException e) {
+      vol.output.delete();
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      vol.output.delete();
+      throw e;
+    }
+  }
+
+  /**
+   * Reassemble a deduplicated volume from its recipe, fetching and decrypting several chunks at once.
+   * <p>
+   * As with any other restore, the output is deleted if any chunk fails its integrity check.
+   */
+  private void restoreDeduplicated(RestoreVolume vol) {
+    ChunkRecipe recipe = fetchRecipe(vol);
+    ChunkStore store = getChunkStore();
+    int threads = Integer.getInteger("restore.chunkThreads", 8);
+
+    System.out.println("Downloading " + recipe.getChunks().size() + " chunks of " + vol.volumeName);
+    ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "chunk-download");
+      t.setDaemon(true);
+      return t;
+    });
+    Deque<CompletableFuture<byte[]>> pending = new ArrayDeque<>();
+    AwsProgressListener progress = new AwsProgressListener(vol.volumeName, recipe.getPlaintextLength());
+    try (FileOutputStream fout = new FileOutputStream(vol.output, false)) {
+      for (Chunk chunk : recipe.getChunks()) {
+        pending.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return store.fetch(chunk);
+          } catch (InvalidCipherTextException e) {
+            throw new CompletionException(e);
+          }
+        }, executor));
+
+        while (pending.size() >= threads * 2) {
+          writeChunk(fout, progress, joinSegment(pending.poll()));
+        }
+      }
+      while (!pending.isEmpty()) {
+        writeChunk(fout, progress, joinSegment(pending.poll()));
+      }
+    } catch (InvalidCipherTextException e) {
+      vol.output.delete(); // <-- IMPORTANT: Decrypted contents fail auth check; DON'T leave them lying about!
+      throw new IntegrityCheckFailedException(vol.output.getName() + " failed integrity check!", e);
+    } catch (IOException e) {
+      vol.output.delete();
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      vol.output.delete();
+      throw e;
+    } finally {
+      pending.forEach(f -> f.cancel(true));
+      executor.shutdownNow();
+    }
+    progress.done();
+  }
+
+  private static void writeChunk(FileOutputStream fout, AwsProgressListener progress, byte[] chunk) throws IOException {
+    fout.write(chunk);
+    progress.progressChanged(new ProgressEvent(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT, chunk.length));
+  }
+
+  /**
+   * Download and decrypt a deduplicated volume's recipe.
+   */
+  private ChunkRecipe fetchRecipe(RestoreVolume vol) {
+    File fRecipe = new File(getStagingDir(), vol.volumeName + ".rcp");
+    try (S3Object obj = s3.getObject(new GetObjectRequest(bucket, vol.key));
+         InputStream in = obj.getObjectContent()) {
+      decryptFromStream(vol.key, vol.length, in, fRecipe);
+      return ChunkRecipe.fromBytes(vol.key, Files.readAllBytes(fRecipe.toPath()));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      fRecipe.delete();
+    }
   }
 
   private String getRestoreTime(Tier restoreTier) {
@@ -137,19 +859,98 @@ public abstract class AbstractRestoreJob extends Job {
     private final String volumeName;
     private final File output;
     private final long length;
+    private final boolean deduplicated;
+    private final String storageClass;
+    /** The object's metadata; or null, if it was only listed, until it comes with the download. */
+    private ObjectMetadata metadata;
+    private String appendTo;
+    private long appendOffset;
+    private String prefixDigest;
+    private String volumeDigest;
+    private long volumeLength = -1;
+    /** Where the volume starts in its pack; or -1 if it was uploaded on its own. */
+    private final long packOffset;
+    private List<RestoreVolume> chain;
+
+    /**
+     * An object from a listing, whose metadata isn't known yet.
+     */
+    public RestoreVolume(S3ObjectSummary p_summary) {
+      this(p_summary.getKey(), p_summary.getSize(), p_summary.getStorageClass());
+    }
 
     public RestoreVolume(String key, ObjectMetadata p_metadata) {
+      this(key, p_metadata.getInstanceLength(), p_metadata.getStorageClass());
+      setMetadata(p_metadata);
+    }
+
+    private RestoreVolume(String key, long p_length, String p_storageClass) {
       this.key = key;
 
       Matcher keyMatcher = KEY_PATTERN.matcher(key);
       if (!keyMatcher.matches()) {
-        throw new JobFailedException("Object " + key + " does not match the pattern bb-jobId-VOLUMENAME.enc?!");
+        throw new JobFailedException("Object " + key + " does not match the pattern bb-jobId-VOLUMENAME.enc (or .rcp)?!");
       }
 
       jobId  = keyMatcher.group(1);
       volumeName = keyMatcher.group(2);
       output = new File(scratchDir, volumeName);
-      length = p_metadata.getInstanceLength();
+      length = p_length;
+      deduplicated = "rcp".equals(keyMatcher.group(3));
+      storageClass = p_storageClass;
+      packOffset = -1;
+    }
+
+    private void setMetadata(ObjectMetadata p_metadata) {
+      metadata = p_metadata;
+      chain = null; // Resolved without knowing what it's appended to, if anything.
+
+      appendTo = p_metadata.getUserMetaDataOf(AppendState.META_APPEND_TO);
+      prefixDigest = p_metadata.getUserMetaDataOf(AppendState.META_PREFIX_DIGEST);
+      try {
+        appendOffset = appendTo == null ? 0 : Long.parseLong(p_metadata.getUserMetaDataOf(AppendState.META_APPEND_OFFSET));
+      } catch (NumberFormatException e) {
+        throw new JobFailedException("Object " + key + " has a corrupt " + AppendState.META_APPEND_OFFSET + " in its metadata");
+      }
+
+      // Older backups have no digest; and one without a usable length can't be checked either:
+      String volumeLengthMeta = p_metadata.getUserMetaDataOf(META_VOLUME_LENGTH);
+      volumeLength = volumeLengthMeta != null && volumeLengthMeta.matches("[0-9]+") ? Long.parseLong(volumeLengthMeta) : -1;
+      volumeDigest = volumeLength < 0 ? null : p_metadata.getUserMetaDataOf(META_VOLUME_DIGEST);
+    }
+
+    /**
+     * Fill in what the listing didn't say, from the metadata that came with the object's download.
+     *
+     * @param p_metadata The metadata; may be null, if the download didn't say
+     * @return false if it turns out the object only holds what was appended to the volume
+     */
+    private boolean learnMetadata(ObjectMetadata p_metadata) {
+      if (metadata != null || p_metadata == null) {
+        return true;
+      }
+      setMetadata(p_metadata);
+      return appendTo == null;
+    }
+
+    /**
+     * A volume in a pack.
+     */
+    RestoreVolume(String packKey, ObjectMetadata p_packMetadata, String p_jobId, PackTable.Member p_member) {
+      key = packKey;
+      jobId = p_jobId;
+      volumeName = p_member.getVolumeName();
+      output = new File(scratchDir, volumeName);
+      length = p_member.getLength();
+      deduplicated = false;
+      storageClass = p_packMetadata.getStorageClass();
+      metadata = p_packMetadata;
+      appendTo = null;
+      appendOffset = 0;
+      prefixDigest = null;
+      volumeDigest = p_member.getVolumeDigest();
+      volumeLength = p_member.getVolumeLength();
+      packOffset = p_member.getOffset();
     }
 
     @Override
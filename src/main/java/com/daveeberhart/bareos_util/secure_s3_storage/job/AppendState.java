@@ -0,0 +1,160 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.io.FileRangeChannel;
+
+/**
+ * What was last uploaded of a volume that's kept on disk for Bareos to append to ({@code backup.appendable}).
+ * <p>
+ * Kept in {@code <scratchDir>/.s3-append/<volume>.properties}: how long the volume was, a keyed digest of its
+ * content, the key it was uploaded as, and how many objects the volume is now spread across.  The next
+ * backup of the volume uploads only what was appended since, as long as the old content is unchanged.
+ * <p>
+ * The tail's object points back at the previous object with user metadata ({@link #META_APPEND_TO} and
+ * friends), so that restores can stitch the volume back together without this file.
+ *
+ * @author deberhar
+ */
+class AppendState {
+  /** User metadata: key of the object holding the start of the volume. */
+  static final String META_APPEND_TO = "append-to";
+  /** User metadata: offset into the volume where this object's content starts. */
+  static final String META_APPEND_OFFSET = "append-offset";
+  /** User metadata: keyed digest of the start of the volume, up to {@link #META_APPEND_OFFSET}. */
+  static final String META_PREFIX_DIGEST = "append-prefix-digest";
+  /** Longest chain of appended objects for a restore to follow; anything longer must be a loop. */
+  static final int MAX_CHAIN = 1000;
+  private static final String STATE_DIR = ".s3-append";
+
+  private final File file;
+  private long length;
+  private String digest;
+  private String key;
+  private int pieces;
+  private long baseTime;
+
+  private AppendState(File p_file) {
+    file = p_file;
+  }
+
+  /**
+   * @return The state of the volume; empty (with a length of 0) if it was never uploaded in appendable mode.
+   */
+  static AppendState load(File p_scratchDir, String p_volume) throws IOException {
+    AppendState state = new AppendState(new File(new File(p_scratchDir, STATE_DIR), p_volume + ".properties"));
+    if (state.file.exists()) {
+      Properties props = new Properties();
+      try (InputStream in = new FileInputStream(state.file)) {
+        props.load(in);
+      }
+      try {
+        state.length = Long.parseLong(props.getProperty("length", "0"));
+        state.pieces = Integer.parseInt(props.getProperty("pieces", "0"));
+        state.baseTime = Long.parseLong(props.getProperty("baseTime", "0"));
+      } catch (NumberFormatException e) {
+        System.err.println("Warning: ignoring corrupt " + state.file + "; uploading the whole volume.");
+        state.length = 0;
+      }
+      state.digest = props.getProperty("digest");
+      state.key = props.getProperty("key");
+    }
+    return state;
+  }
+
+  /**
+   * Record a successful upload.  Written to a temp file first, so a crash never leaves a half-written state.
+   */
+  void save(long p_length, String p_digest, String p_key, int p_pieces, long p_baseTime) throws IOException {
+    Properties props = new Properties();
+    props.setProperty("length", Long.toString(p_length));
+    props.setProperty("digest", p_digest);
+    props.setProperty("key", p_key);
+    props.setProperty("pieces", Integer.toString(p_pieces));
+    props.setProperty("baseTime", Long.toString(p_baseTime));
+
+    file.getParentFile().mkdirs();
+    File fTmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(fTmp, false)) {
+      props.store(out, "Last upload of an appendable volume");
+    }
+    Files.move(fTmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    length = p_length;
+    digest = p_digest;
+    key = p_key;
+    pieces = p_pieces;
+    baseTime = p_baseTime;
+  }
+
+  /** @return Length of the volume when it was last uploaded */
+  long getLength() {
+    return length;
+  }
+
+  /** @return Keyed digest of the volume when it was last uploaded */
+  String getDigest() {
+    return digest;
+  }
+
+  /** @return Key the volume (or its tail) was last uploaded as */
+  String getKey() {
+    return key;
+  }
+
+  /** @return Number of objects the volume is spread across */
+  int getPieces() {
+    return pieces;
+  }
+
+  /** @return When the first of those objects was uploaded (millis since the epoch) */
+  long getBaseTime() {
+    return baseTime;
+  }
+
+  /**
+   * SHA-256 the start of a file, in one pass.
+   *
+   * @param p_prefixLength Length of the shorter prefix
+   * @param p_length Length of the longer prefix; at least {@code p_prefixLength}
+   * @return Digests of the first {@code p_prefixLength} and the first {@code p_length} bytes
+   */
+  static byte[][] digest(File p_file, long p_prefixLength, long p_length) throws IOException {
+    SHA256Digest sha = new SHA256Digest();
+    byte[] buff = new byte[64 * 1024];
+    byte[] prefix = null;
+    long pos = 0;
+    try (InputStream in = Channels.newInputStream(new FileRangeChannel(p_file, 0, p_length))) {
+      while (pos < p_length) {
+        if (pos == p_prefixLength) {
+          prefix = finish(new SHA256Digest(sha));
+        }
+        int n = in.read(buff, 0, (int) Math.min(buff.length, (pos < p_prefixLength ? p_prefixLength : p_length) - pos));
+        if (n < 0) {
+          break; // FileRangeChannel throws if the file is short, so this can't really happen.
+        }
+        sha.update(buff, 0, n);
+        pos += n;
+      }
+    }
+    byte[] full = finish(sha);
+    return new byte[][] { prefix != null ? prefix : full, full };
+  }
+
+  private static byte[] finish(SHA256Digest p_sha) {
+    byte[] out = new byte[p_sha.getDigestSize()];
+    p_sha.doFinal(out, 0);
+    return out;
+  }
+
+}
@@ -1,19 +1,62 @@
 package com.daveeberhart.bareos_util.secure_s3_storage.job;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.util.encoders.Hex;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
 import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.daveeberhart.bareos_util.secure_s3_storage.crypto.KeyMaterial;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.VolumeMissingException;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.ContentChunker;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.DiskSpace;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.ChunkRecipe.Chunk;
 import com.daveeberhart.bareos_util.secure_s3_storage.progress.AwsProgressListener;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.ETagOutputStream;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.MultipartUploadOutputStream;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.TransferTuner;
 
 /**
  * Move backup volumes into Amazon S3, deleting them off disk in the case of a successful upload.
@@ -33,9 +76,18 @@ import com.daveeberhart.bareos_util.secure_s3_storage.progress.AwsProgressListen
  * @author deberhar
  */
 public class BackupJob extends Job {
+  private static final long VOLUME_RETRY_BASE_MILLIS = 500;
+  private static final long MB = 1024 * 1024;
+  /** Most parts S3 allows in a multipart upload. */
+  private static final long MAX_PARTS = 10000;
+
   private String jobId;
   protected List<String> volumeNames;
   private volatile Exception lastFailure;
+  private final Set<String> failedVolumes = ConcurrentHashMap.newKeySet();
+  private ExecutorService partUploadExecutor;
+  private TransferTuner tuner;
+  private final AtomicInteger packCounter = new AtomicInteger();
 
   /* (non-Javadoc)
    * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#setRemainingArgs(java.util.List)
@@ -62,14 +114,37 @@ public class BackupJob extends Job {
         .collect(Collectors.toList());
   }
 
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#prepare()
+   */
+  @Override
+  public void prepare() {
+    if (!isEnqueueing()) {
+      super.prepare(); // No need for S3 clients (or the key) just to queue the backup.
+    }
+  }
+
   /* (non-Javadoc)
    * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#run()
    */
   @Override
   public void run() {
+    if (isEnqueueing()) {
+      enqueue();
+      return;
+    }
+
+    lastFailure = null;
+    failedVolumes.clear();
     System.out.println("Now uploading volumes " + volumeNames);
-    volumeNames.parallelStream().forEach(this::uploadAndRemoveWithRetry);
+    KeyMaterial.Stats keyStats = KeyMaterial.getStats();
+    runPipeline();
     System.out.println("Done uploading " + volumeNames.size() + " volumes...");
+    System.out.println(KeyMaterial.getStats().since(keyStats));
+    if (tuner != null) {
+      tuner.save();
+      System.out.println("Uploading with " + tuner.current() + (tuner.getBestRate() > 0 ? String.format(" (best so far: %.1f MB/s)", tuner.getBestRate() / 1e6) : ""));
+    }
     
     if (lastFailure == null) {
     	System.err.println("Success!");
@@ -77,62 +152,971 @@ public class BackupJob extends Job {
     	throw new JobFailedException("Operation did not complete successfully", lastFailure);
     }
   }
-  
-  private void uploadAndRemoveWithRetry(String volume) {
+
+  /**
+   * @return true to queue the volumes for {@code drain} to upload ({@code backup.enqueue}), rather than uploading
+   *   them now
+   */
+  protected boolean isEnqueueing() {
+    return Boolean.getBoolean("backup.enqueue");
+  }
+
+  /**
+   * Record the volumes in the spool queue and return straight away, leaving them for {@link DrainJob} to upload.
+   */
+  private void enqueue() {
+    for (String volume : volumeNames) {
+      if (!new File(scratchDir, volume).exists()) {
+        throw new VolumeMissingException("Could not find volume " + volume + " in " + scratchDir);
+      }
+    }
+    try {
+      new SpoolQueue(scratchDir).enqueue(jobId, volumeNames);
+    } catch (IOException e) {
+      throw new JobFailedException("Could not queue volumes " + volumeNames + " for upload: " + e.getMessage(), e);
+    }
+    System.out.println("Queued volumes " + volumeNames + " of job " + jobId + " for upload; run the drain action to upload them");
+    System.err.println("Success!");
+  }
+
+  /**
+   * Encrypt volumes on one pool of threads, and upload them on another, so that the next volume is encrypting
+   * while the last one uploads.  Each pool takes the smallest volume waiting first.
+   * <p>
+   * Encrypted copies wait in the staging dir for an upload thread; at most
+   * {@code backup.encryptThreads + backup.uploadThreads} of them exist at once, and a volume only starts
+   * encrypting once there's room on disk for its copy (see {@link DiskSpace}).  With {@code backup.pack}, a pack
+   * of small volumes goes through the pipeline as if it were one volume.
+   */
+  private void runPipeline() {
+    int encryptThreads = Math.max(1, Integer.getInteger("backup.encryptThreads", 2));
+    int uploadThreads = getUploadThreads();
+    StagePool encryptPool = new StagePool("encrypt", encryptThreads);
+    StagePool uploadPool = new StagePool("upload", uploadThreads);
+    Semaphore staged = new Semaphore(encryptThreads + uploadThreads);
+
+    // Sorted too, since the first few volumes go straight to a thread without waiting in the queue:
+    Map<String, Long> sizes = volumeNames.stream().distinct().collect(Collectors.toMap(v -> v, v -> new File(scratchDir, v).length()));
+    List<List<String>> units = groupForPacking(volumeNames.stream().distinct().sorted(Comparator.comparing(sizes::get)).collect(Collectors.toList()));
+    units.sort(Comparator.comparing(unit -> unit.stream().mapToLong(sizes::get).sum()));
+    CountDownLatch remaining = new CountDownLatch(units.size());
+
+    try {
+      for (List<String> unit : units) {
+        String volume = unit.size() == 1 ? unit.get(0) : unit.toString();
+        long size = unit.stream().mapToLong(sizes::get).sum();
+        encryptPool.submit(size, () -> {
+          UploadStage upload;
+          try {
+            staged.acquire();
+          } catch (InterruptedException e) {
+            fail(unit, new JobFailedException("Thread interrupted while waiting to encrypt", e));
+            remaining.countDown();
+            return;
+          }
+          DiskSpace.Reservation reservation;
+          try {
+            reservation = getDiskSpace().reserve(volume, getStagingDir(), getStagedLength(unit, sizes));
+          } catch (Exception e) {
+            staged.release();
+            fail(unit, e);
+            remaining.countDown();
+            return;
+          }
+          try {
+            upload = withRetry(() -> unit.size() == 1 ? encryptStage(volume) : packStage(unit));
+          } catch (Exception e) {
+            reservation.close();
+            staged.release();
+            fail(unit, e);
+            remaining.countDown();
+            return;
+          }
+
+          uploadPool.submit(size, () -> {
+            try {
+              withRetry(() -> {
+                upload.upload();
+                return null;
+              });
+            } catch (Exception e) {
+              fail(unit, e);
+            } finally {
+              // Only count the volume as done once its encrypted copy is gone, so run() never returns before then:
+              upload.discard();
+              reservation.close();
+              staged.release();
+              remaining.countDown();
+            }
+          });
+        });
+      }
+
+      remaining.await();
+    } catch (InterruptedException e) {
+      throw new JobFailedException("Thread interrupted while waiting for uploads", e);
+    } finally {
+      encryptPool.shutdownNow();
+      uploadPool.shutdownNow();
+    }
+  }
+
+  /**
+   * With {@code backup.pack}, gather volumes smaller than {@code backup.pack.maxVolumeMB} into packs of up to
+   * {@code backup.pack.maxPackMB}, each to be uploaded as a single object (see {@link PackTable}); so that
+   * lots of tiny volumes don't each cost a request (and S3's minimum billable object size) of their own.
+   * <p>
+   * Volumes that are appended to, or deduplicated, are never packed.
+   *
+   * @param p_volumes Volume names, smallest first
+   * @return What to upload: single volumes, and packs
+   */
+  private List<List<String>> groupForPacking(List<String> p_volumes) {
+    List<List<String>> units = new ArrayList<>();
+    if (!Boolean.getBoolean("backup.pack") || Boolean.getBoolean("backup.dedup") || Boolean.getBoolean("backup.appendable")) {
+      p_volumes.forEach(v -> units.add(Collections.singletonList(v)));
+      return units;
+    }
+
+    long maxVolume = Integer.getInteger("backup.pack.maxVolumeMB", 16) * MB;
+    long maxPack = Integer.getInteger("backup.pack.maxPackMB", 256) * MB;
+    List<List<String>> packs = new ArrayList<>();
+    long packSize = 0;
+    for (String volume : p_volumes) {
+      File fSrc = new File(scratchDir, volume);
+      if (!fSrc.isFile() || fSrc.length() >= maxVolume) {
+        units.add(Collections.singletonList(volume)); // Missing volumes fail as usual, on their own.
+        continue;
+      }
+      if (packs.isEmpty() || packSize + fSrc.length() > maxPack) {
+        packs.add(new ArrayList<>());
+        packSize = 0;
+      }
+      packs.get(packs.size() - 1).add(volume);
+      packSize += fSrc.length();
+    }
+    units.addAll(packs); // A pack of one is just uploaded on its own.
+    return units;
+  }
+
+  /**
+   * @return How much of the staging dir the unit's encrypted copy will take up; nothing, if it's streamed or
+   *   deduplicated.  Appended volumes are counted in full, though usually only their tail is encrypted.
+   */
+  private long getStagedLength(List<String> p_unit, Map<String, Long> p_sizes) {
+    if (Boolean.getBoolean("backup.streaming") || Boolean.getBoolean("backup.dedup")) {
+      return 0;
+    }
+    return p_unit.stream().mapToLong(v -> getEncryptedLength(p_sizes.get(v))).sum();
+  }
+
+  private void fail(List<String> unit, Exception e) {
+    System.err.println("Error uploading " + (unit.size() == 1 ? unit.get(0) : unit.toString()));
+    e.printStackTrace();
+    failedVolumes.addAll(unit);
+    lastFailure = e;
+  }
+
+  /**
+   * @return The volumes the last {@link #run()} failed to upload
+   */
+  protected List<String> getFailedVolumes() {
+    return volumeNames.stream().filter(failedVolumes::contains).collect(Collectors.toList());
+  }
+
+  /**
+   * Retry a whole stage of a volume.  Failed requests are already retried one part (or chunk) at a time, so
+   * this is a last resort; it waits a random time, up to twice as long after each failure, before trying again.
+   */
+  private <T> T withRetry(Callable<T> p_stage) throws Exception {
   	for (int attempt = 1; attempt < 5; attempt++) {
   		try {
-  			uploadAndRemove(volume);
-  			return;
+  			return p_stage.call();
   		} catch (Exception e) {
-  			System.out.println("Got " + e.getClass().getSimpleName() + (e.getMessage() != null ? " (" + e.getMessage() + ")" : "") + "; retrying...");
+  			long delay = ThreadLocalRandom.current().nextLong(VOLUME_RETRY_BASE_MILLIS << (attempt - 1)) + 1;
+  			System.out.println("Got " + e.getClass().getSimpleName() + (e.getMessage() != null ? " (" + e.getMessage() + ")" : "") + "; retrying in " + delay + "ms...");
   			try {
-					Thread.sleep(1000);
+					Thread.sleep(delay);
 				} catch (InterruptedException e1) {
 					break; // Interrupted; skip to final attempt immediately.
 				}
   		}
   	}
   	
-  	try {
-  		uploadAndRemove(volume);
-  	} catch (Exception e) {
-			System.err.println("Error uploading " + volume);
-			e.printStackTrace();
-			lastFailure = e;
-		}
+  	return p_stage.call();
   }
 
-  private void uploadAndRemove(String volume) {
+  /**
+   * The first stage for a volume: everything that can be done before uploading, i.e. encrypting it into the
+   * scratch dir.  Streaming and deduplicated uploads encrypt as they upload, so do everything in the upload stage.
+   */
+  private UploadStage encryptStage(String volume) {
     File fSrc = new File(scratchDir, volume);
     if (!fSrc.exists()) {
       throw new VolumeMissingException("Could not find volume " + volume + " in " + scratchDir);
     }
 
     String bucketKey = "bb-" + jobId + "-" + volume + ".enc";
-    File fEncrypted = new File(scratchDir, bucketKey);
+    if (Boolean.getBoolean("backup.dedup")) {
+      String recipeKey = "bb-" + jobId + "-" + volume + ".rcp";
+      if (isUploadedAlready(fSrc, recipeKey)) {
+        return fSrc::delete;
+      }
+      return () -> {
+        uploadDeduplicated(fSrc, recipeKey);
+        fSrc.delete();
+      };
+    } else if (Boolean.getBoolean("backup.appendable")) {
+      return appendStage(fSrc, bucketKey).andThen(() ->
+          System.out.println("Keeping volume " + volume + " on disk, for Bareos to append to"));
+    } else if (isUploadedAlready(fSrc, bucketKey)) {
+      return fSrc::delete;
+    } else {
+      return rangeStage(fSrc, 0, fSrc.length(), bucketKey, null).andThen(fSrc::delete); // OK, successful upload, delete source file
+    }
+  }
+
+  /**
+   * With {@code backup.skipUnchanged}, check whether the bucket already holds this very volume under the key,
+   * e.g. because the backup is being run again after a failure part-way through.  Costs one HEAD request; the
+   * volume is only read (to digest it) if the object's {@value Job#META_VOLUME_LENGTH} matches.
+   *
+   * @return true if the object's keyed digest matches the volume's, so there's no need to upload it again
+   */
+  private boolean isUploadedAlready(File fSrc, String p_key) {
+    if (!Boolean.getBoolean("backup.skipUnchanged")) {
+      return false;
+    }
+    ObjectMetadata mdata;
     try {
+      mdata = s3.getObjectMetadata(bucket, p_key);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        return false;
+      }
+      throw e;
+    }
+    if (!Long.toString(fSrc.length()).equals(mdata.getUserMetaDataOf(META_VOLUME_LENGTH)) || mdata.getUserMetaDataOf(META_VOLUME_DIGEST) == null) {
+      return false;
+    }
+    try {
+      if (digestVolume(fSrc).equals(mdata.getUserMetaDataOf(META_VOLUME_DIGEST))) {
+        System.out.println("Volume " + fSrc.getName() + " is already in the bucket as " + p_key + ", unchanged; not uploading it again");
+        return true;
+      }
+      return false;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Upload only what's been appended to the volume since it was last uploaded, if the rest of it is unchanged;
+   * otherwise, the whole volume.
+   * <p>
+   * The tail is an ordinary encrypted object, whose metadata points back at the object holding the start of
+   * the volume (see {@link AppendState}).  Chains are cut short (with a full upload) once they get too long,
+   * or their first object gets old enough that bucket lifecycle rules might expire it.
+   */
+  private UploadStage appendStage(File fSrc, String bucketKey) {
+    String volume = fSrc.getName();
+    int maxPieces = Integer.getInteger("backup.appendable.maxPieces", 10);
+    long maxBaseAge = TimeUnit.DAYS.toMillis(Integer.getInteger("backup.appendable.maxBaseAgeDays", 30));
+    long now = System.currentTimeMillis();
+    try {
+      AppendState state = AppendState.load(scratchDir, volume);
+      long length = fSrc.length();
+      long prevLength = state.getLength() <= length ? state.getLength() : length;
+      byte[][] digests = AppendState.digest(fSrc, prevLength, length);
+      String prefixDigest = macVolumeDigest(digests[0]);
+      String digest = macVolumeDigest(digests[1]);
+
+      if (state.getLength() > 0 && state.getLength() == length && digest.equals(state.getDigest())) {
+        System.out.println("Volume " + volume + " hasn't changed since it was uploaded as " + state.getKey() + "; nothing to upload");
+        return () -> { };
+      }
+
+      boolean append = state.getLength() > 0 && state.getLength() == prevLength && prefixDigest.equals(state.getDigest())
+          && state.getPieces() < maxPieces && state.getBaseTime() > now - maxBaseAge;
+      if (append) {
+        System.out.println("Volume " + volume + " has grown by " + (length - prevLength) + " bytes since it was uploaded as " + state.getKey());
+        ObjectMetadata mdata = withVolumeDigest(null, digest, length);
+        mdata.addUserMetadata(AppendState.META_APPEND_TO, state.getKey());
+        mdata.addUserMetadata(AppendState.META_APPEND_OFFSET, Long.toString(prevLength));
+        mdata.addUserMetadata(AppendState.META_PREFIX_DIGEST, prefixDigest);
+        return rangeStage(fSrc, prevLength, length - prevLength, bucketKey, mdata)
+            .andThen(() -> saveAppendState(state, length, digest, bucketKey, state.getPieces() + 1, state.getBaseTime()));
+      } else {
+        if (state.getLength() > 0) {
+          System.out.println("Uploading all of volume " + volume + "; it was recycled, or has been appended to too often");
+        }
+        return rangeStage(fSrc, 0, length, bucketKey, withVolumeDigest(null, digest, length))
+            .andThen(() -> saveAppendState(state, length, digest, bucketKey, 1, now));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return The metadata, or new metadata, with the volume's keyed digest and length, for later backups and
+   *   restores to check volumes against
+   */
+  private static ObjectMetadata withVolumeDigest(ObjectMetadata p_metadata, String p_digest, long p_length) {
+    ObjectMetadata mdata = p_metadata != null ? p_metadata : new ObjectMetadata();
+    mdata.addUserMetadata(META_VOLUME_DIGEST, p_digest);
+    mdata.addUserMetadata(META_VOLUME_LENGTH, Long.toString(p_length));
+    return mdata;
+  }
+
+  private void saveAppendState(AppendState state, long length, String digest, String bucketKey, int pieces, long baseTime) {
+    try {
+      state.save(length, digest, bucketKey, pieces, baseTime);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Upload {@code p_length} bytes of the volume, starting at {@code p_offset}; either streaming, or via a
+   * scratch file.
+   *
+   * @param p_metadata Metadata for the new object; or null to upload the whole volume, with its keyed digest
+   *   worked out on the way
+   */
+  private UploadStage rangeStage(File fSrc, long p_offset, long p_length, String bucketKey, ObjectMetadata p_metadata) {
+    if (Boolean.getBoolean("backup.streaming")) {
+      return () -> uploadStreaming(fSrc, p_offset, p_length, bucketKey, p_metadata);
+    } else {
+      return encryptToScratchFile(fSrc, p_offset, p_length, bucketKey, p_metadata);
+    }
+  }
+
+  /**
+   * Encrypt the volume into a temp file in the staging dir, to be uploaded by the returned stage.  The ETag S3
+   * should give it is worked out on the way, so the upload can be checked without reading the copy again.
+   * <p>
+   * With {@code backup.resumable}, an encrypted copy left by an earlier attempt is used instead, if the volume
+   * hasn't changed since; and the copy is kept if the upload fails.
+   */
+  private UploadStage encryptToScratchFile(File fSrc, long p_offset, long p_length, String bucketKey, ObjectMetadata p_metadata) {
+    String volume = fSrc.getName();
+    File fEncrypted = new File(getStagingDir(), bucketKey);
+    UploadState state = loadUploadState(bucketKey);
+    boolean reuse = state != null && state.matches(fSrc, p_offset, p_length) && fEncrypted.length() == state.getEncryptedLength()
+        && state.getETag() != null && plaintextUnchanged(fSrc, p_offset, state);
+    TransferTuner tuner = reuse ? null : getTransferTuner();
+    TransferTuner.Settings settings = tuner != null ? tuner.current() : null;
+    SegmentIndex index;
+    String etag;
+    long partSize;
+    String volumeDigest = null;
+    String plaintextDigest = null;
+    if (reuse) {
+      System.out.println("Using the encrypted copy of volume " + volume + " left by an earlier attempt");
+      index = state.getIndex();
+      etag = state.getETag();
+      partSize = state.getPartSize();
+      volumeDigest = state.getVolumeDigest();
+    } else {
       System.out.println("Encrypting volume " + volume);
-      encrypt(fSrc, fEncrypted);
+      // Big enough that the TransferManager won't need more than 10,000 parts (with room for compression overhead):
+      long minPartSize = settings != null ? settings.getPartSize() : getUploadPartSize();
+      partSize = Math.max(minPartSize, (getEncryptedLength(p_length) / MAX_PARTS / MB + 1) * MB);
+      try {
+        try (FileOutputStream fout = new FileOutputStream(fEncrypted, false)) {
+          ETagOutputStream out = new ETagOutputStream(fout, partSize);
+          SHA256Digest sha = p_metadata == null || state != null ? new SHA256Digest() : null;
+          index = encryptRangeToStream(fSrc, p_offset, p_length, newHeader(fSrc, p_offset, p_length), out, sha);
+          etag = out.getETag();
+          if (sha != null) {
+            byte[] digest = new byte[sha.getDigestSize()];
+            sha.doFinal(digest, 0);
+            plaintextDigest = macVolumeDigest(digest);
+            if (p_metadata == null) {
+              volumeDigest = plaintextDigest;
+            }
+          }
+        }
+        if (state != null) {
+          state.reset(fSrc, p_offset, p_length);
+          state.setEncrypted(fEncrypted.length(), index, etag, partSize);
+          state.setPlaintext(p_length, plaintextDigest);
+          if (volumeDigest != null) {
+            state.setVolumeDigest(volumeDigest);
+          }
+          state.save();
+        }
+      } catch (IOException e) {
+        fEncrypted.delete();
+        throw new UncheckedIOException(e);
+      } catch (RuntimeException e) {
+        fEncrypted.delete();
+        throw e;
+      }
+    }
+
+    ObjectMetadata mdata = volumeDigest != null ? withVolumeDigest(p_metadata, volumeDigest, p_length) : p_metadata;
+    return new UploadStage() {
+      private boolean uploaded;
 
+      @Override
+      public void upload() {
+        uploadScratchFile(volume, fEncrypted, bucketKey, mdata, index, etag, partSize, settings, state);
+        uploaded = true;
+      }
+
+      @Override
+      public void discard() {
+        if (state == null || uploaded) {
+          fEncrypted.delete();
+        } else {
+          System.out.println("Keeping " + fEncrypted + ", to resume uploading it next time");
+        }
+      }
+    };
+  }
+
+  /**
+   * Encrypt a pack of small volumes into one temp file in the staging dir, each just as it would be encrypted on
+   * its own, followed by the (encrypted) {@link PackTable}; to be uploaded by the returned stage, which deletes
+   * the volumes once the pack is safely in S3.
+   * <p>
+   * Each attempt gets a new key, so packing the same volume again (e.g. after a failure part-way through) never
+   * overwrites a pack holding others; restores take a volume from the newest pack holding it.
+   */
+  private UploadStage packStage(List<String> volumes) {
+    String packKey = "bb-" + jobId + "-pack-" + System.currentTimeMillis() + "-" + packCounter.incrementAndGet() + ".pak";
+    File fEncrypted = new File(getStagingDir(), packKey);
+    File fTable = new File(getStagingDir(), packKey + ".tmp");
+    List<File> sources = volumes.stream().map(v -> new File(scratchDir, v)).collect(Collectors.toList());
+    long encryptedLength = sources.stream().mapToLong(f -> getEncryptedLength(f.length())).sum();
+    long partSize = Math.max(getUploadPartSize(), (encryptedLength / MAX_PARTS / MB + 1) * MB);
+    PackTable table = new PackTable();
+    long tableOffset;
+    String etag;
+    System.out.println("Packing volumes " + volumes + " into " + packKey);
+    try {
+      try (FileOutputStream fout = new FileOutputStream(fEncrypted, false)) {
+        ETagOutputStream out = new ETagOutputStream(fout, partSize);
+        for (File fSrc : sources) {
+          if (!fSrc.exists()) {
+            throw new VolumeMissingException("Could not find volume " + fSrc.getName() + " in " + scratchDir);
+          }
+          long offset = out.getLength();
+          long length = fSrc.length();
+          SHA256Digest sha = new SHA256Digest();
+          encryptRangeToStream(fSrc, 0, length, newHeader(fSrc, 0, length), out, sha);
+          byte[] digest = new byte[sha.getDigestSize()];
+          sha.doFinal(digest, 0);
+          table.add(new PackTable.Member(fSrc.getName(), offset, out.getLength() - offset, length, macVolumeDigest(digest)));
+        }
+        tableOffset = out.getLength();
+        Files.write(fTable.toPath(), table.toBytes());
+        encryptToStream(fTable, out);
+        etag = out.getETag();
+      }
+    } catch (IOException e) {
+      fEncrypted.delete();
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      fEncrypted.delete();
+      throw e;
+    } finally {
+      fTable.delete();
+    }
+
+    ObjectMetadata mdata = new ObjectMetadata();
+    mdata.addUserMetadata(PackTable.META_TABLE_OFFSET, Long.toString(tableOffset));
+    return new UploadStage() {
+      @Override
+      public void upload() {
+        uploadScratchFile(volumes.toString(), fEncrypted, packKey, mdata, null, etag, partSize, null, null);
+        sources.forEach(File::delete); // OK, successful upload, delete source files
+      }
+
+      @Override
+      public void discard() {
+        fEncrypted.delete();
+      }
+    };
+  }
+
+  /**
+   * Upload the encrypted copy; or with {@code backup.resumable}, carry on uploading it, if an earlier attempt
+   * got as far as starting a multipart upload.  Then check S3 has what was encrypted, before anything's deleted.
+   *
+   * @param p_etag The ETag S3 should give the copy, if uploaded in parts of {@code p_partSize}
+   * @param p_settings The settings being tried, with {@code transfer.autotune}; or null
+   * @param state Where to record the upload's progress; null unless {@code backup.resumable}
+   */
+  private void uploadScratchFile(String volume, File fEncrypted, String bucketKey, ObjectMetadata p_metadata, SegmentIndex index,
+      String p_etag, long p_partSize, TransferTuner.Settings p_settings, UploadState state) {
+    AwsProgressListener progress = new AwsProgressListener(bucketKey, fEncrypted.length(),
+        state == null ? null : transfer -> saveUploadState(state, () -> state.setPersistableUpload(transfer.serialize())));
+    String persisted = state == null ? null : state.getPersistableUpload();
+    TransferTuner tuner = persisted == null && p_settings != null ? getTransferTuner() : null;
+    if (tuner != null) {
+      applyToTransferManager(p_settings);
+    }
+    TransferManager partSizeTm = getTransferManager(p_partSize);
+    long start = System.nanoTime();
+    Upload upload;
+    if (persisted != null) {
+      System.out.println("Resuming the upload of volume " + volume + " as " + bucketKey);
+      upload = partSizeTm.resumeUpload(PersistableTransfer.deserializeFrom(persisted));
+      upload.addProgressListener(progress);
+    } else {
       System.out.println("Uploading volume " + volume + " as " + bucketKey);
       PutObjectRequest req = new PutObjectRequest(bucket, bucketKey, fEncrypted);
       req.setStorageClass(StorageClass.OneZoneInfrequentAccess);
+      if (fEncrypted.length() <= p_partSize) {
+        // Goes up in one piece; have S3 check it arrived intact, too:
+        ObjectMetadata mdata = p_metadata != null ? p_metadata : new ObjectMetadata();
+        mdata.setContentMD5(Base64.getEncoder().encodeToString(Hex.decode(p_etag)));
+        req.setMetadata(mdata);
+      } else if (p_metadata != null) {
+        req.setMetadata(p_metadata);
+      }
+      upload = partSizeTm.upload(req, progress);
+    }
 
-      AwsProgressListener progress = new AwsProgressListener(bucketKey, fEncrypted.length());
-      UploadResult res = tm.upload(req, progress).waitForUploadResult();
-      progress.done();
-      System.out.println("[OK] Uploaded " + volume + " as " + res.getETag());
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
+    UploadResult res;
+    try {
+      res = upload.waitForUploadResult();
     } catch (InterruptedException e) {
       throw new JobFailedException("Thread interrupted while waiting for upload", e);
+    } catch (AmazonServiceException e) {
+      if (persisted != null && e.getStatusCode() == 404) {
+        // The multipart upload was completed or aborted after all; start a new one next time.
+        saveUploadState(state, () -> state.setPersistableUpload(null));
+      }
+      throw e;
+    }
+    progress.done();
+    if (tuner != null) {
+      tuner.recordUpload(p_settings, fEncrypted.length(), start);
+    }
+    try {
+      verifyETag(bucketKey, p_etag, res.getETag());
+    } catch (IntegrityCheckFailedException e) {
+      if (state != null) {
+        state.delete(); // The copy itself may be what's damaged; encrypt the volume again next time.
+      }
+      throw e;
+    }
+    System.out.println("[OK] Uploaded " + volume + " as " + res.getETag());
+    uploadIndex(bucketKey, index);
+    if (state != null) {
+      state.delete();
+    }
+  }
+
+  /**
+   * Encrypt the volume straight into a multipart upload; no ciphertext is written to local disk.
+   * <p>
+   * Encryption runs on the calling thread, while completed parts upload in the background.
+   * <p>
+   * With {@code backup.resumable}, a failed upload is left in S3 rather than aborted, and the next attempt
+   * encrypts the volume again under the same header, skipping the parts that were uploaded already.
+   */
+  private void uploadStreaming(File fSrc, long p_offset, long p_length, String bucketKey, ObjectMetadata p_metadata) {
+    String volume = fSrc.getName();
+    TransferTuner tuner = getTransferTuner();
+    TransferTuner.Settings settings = tuner != null ? tuner.current() : getStreamingSettings();
+    int partSize = settings.getPartSize();
+    int partsInFlight = settings.getPartsInFlight();
+
+    UploadState state = loadUploadState(bucketKey);
+    AwsProgressListener progress = new AwsProgressListener(bucketKey, getEncryptedLength(p_length));
+    MultipartUploadOutputStream out = null;
+    byte[] header = null;
+    if (state != null && state.getUploadId() != null) {
+      if (state.matches(fSrc, p_offset, p_length) && (state.getPartSize() == partSize || tuner != null)
+          && plaintextUnchanged(fSrc, p_offset, state)) {
+        try {
+          // Parts must line up with the ones already uploaded:
+          MultipartUploadOutputStream resumed = new MultipartUploadOutputStream(s3, bucket, bucketKey, state.getUploadId(), state.getParts(),
+              state.getPartSize(), partsInFlight, getPartUploadExecutor(), progress);
+          if (resumed.getUnrecordedParts().isEmpty()) {
+            out = resumed;
+            partSize = state.getPartSize();
+            header = state.getHeader();
+            System.out.println("Resuming the upload of volume " + volume + " as " + bucketKey);
+          } else {
+            // Encrypted under the same header, from plaintext the recorded digest doesn't cover; so it's a new key or nothing:
+            System.out.println("The earlier upload of " + bucketKey + " has parts " + resumed.getUnrecordedParts()
+                + " that weren't recorded; starting over");
+            abortEarlierUpload(bucketKey, state.getUploadId());
+          }
+        } catch (AmazonS3Exception e) {
+          if (e.getStatusCode() != 404) {
+            throw e;
+          }
+          System.out.println("The earlier upload of " + bucketKey + " was completed or aborted; starting over");
+        }
+      } else {
+        System.out.println("Volume " + volume + " has changed since its upload was interrupted; starting over");
+        abortEarlierUpload(bucketKey, state.getUploadId());
+      }
+    }
+
+    UploadState.PlaintextDigest plaintext = state != null ? new UploadState.PlaintextDigest() : null;
+    SegmentIndex index;
+    try {
+      if (out == null) {
+        if (p_metadata == null) {
+          // The metadata goes up first, so the volume has to be digested before it's encrypted:
+          p_metadata = withVolumeDigest(null, digestVolume(fSrc), p_length);
+        }
+        header = newHeader(fSrc, p_offset, p_length);
+        System.out.println("Encrypting and uploading volume " + volume + " as " + bucketKey);
+        out = new MultipartUploadOutputStream(s3, bucket, bucketKey, StorageClass.OneZoneInfrequentAccess,
+            p_metadata, partSize, partsInFlight, getPartUploadExecutor(), progress);
+        if (state != null) {
+          state.reset(fSrc, p_offset, p_length);
+          state.setMultipartUpload(header, out.getUploadId(), partSize);
+          state.save();
+        }
+      }
+      if (state != null) {
+        out.setPartListener(part -> saveUploadState(state, () -> {
+          state.addPart(part);
+          recordPlaintext(state, plaintext);
+        }));
+      }
+      out.setRetrier(getRetrier());
+      out.setTuner(tuner);
+
+      index = encryptRangeToStream(fSrc, p_offset, p_length, header, out, plaintext);
+      out.close();
+    } catch (IOException e) {
+      stopStreaming(out, state, plaintext);
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      stopStreaming(out, state, plaintext);
+      throw e;
+    }
+    progress.done();
+    try {
+      verifyETag(bucketKey, out.getExpectedETag(), out.getResult().getETag());
+    } catch (IntegrityCheckFailedException e) {
+      if (state != null) {
+        state.delete(); // Start a new upload next time, rather than trusting the parts of this one.
+      }
+      throw e;
+    }
+    if (out.getPartsSkipped() > 0) {
+      System.out.println("Skipped " + out.getPartsSkipped() + " parts of " + volume + " that were uploaded by an earlier attempt");
+    }
+    System.out.println("[OK] Uploaded " + volume + " as " + out.getResult().getETag());
+    uploadIndex(bucketKey, index);
+    if (state != null) {
+      state.delete();
+    }
+  }
+
+  /**
+   * @return Part size and parts in flight for streaming uploads, as configured
+   */
+  private static TransferTuner.Settings getStreamingSettings() {
+    return new TransferTuner.Settings(Integer.getInteger("backup.streaming.partSizeMB", 16) * 1024 * 1024,
+        Integer.getInteger("backup.streaming.partsInFlight", 4));
+  }
+
+  private static int getUploadThreads() {
+    return Math.max(1, Integer.getInteger("backup.uploadThreads", 4));
+  }
+
+  /**
+   * @return What's been learned about the fastest upload settings, with {@code transfer.autotune}; or null.
+   *   Starting from the streaming settings, and given half the heap to buffer parts in, split between the upload
+   *   threads.
+   */
+  private synchronized TransferTuner getTransferTuner() {
+    if (tuner == null && Boolean.getBoolean("transfer.autotune")) {
+      String history = System.getProperty("transfer.autotune.historyFile");
+      tuner = new TransferTuner(history != null ? new File(history) : new File(scratchDir, ".s3-transfer-tuning.properties"),
+          getStreamingSettings(), Runtime.getRuntime().maxMemory() / 2 / getUploadThreads());
+    }
+    return tuner;
+  }
+
+  /**
+   * Give the TransferManagers the threads the settings call for.  The threads are shared between the volumes
+   * being uploaded at once, so there are {@code partsInFlight} of them per upload thread.  (The part size was
+   * picked when the volume was encrypted; see {@link #getTransferManager(long)}.)
+   */
+  private void applyToTransferManager(TransferTuner.Settings p_settings) {
+    if (tmExecutor != null) {
+      synchronized (tmExecutor) {
+        int threads = p_settings.getPartsInFlight() * getUploadThreads();
+        if (threads > tmExecutor.getMaximumPoolSize()) {
+          tmExecutor.setMaximumPoolSize(threads);
+          tmExecutor.setCorePoolSize(threads);
+        } else {
+          tmExecutor.setCorePoolSize(threads);
+          tmExecutor.setMaximumPoolSize(threads);
+        }
+      }
+    }
+  }
+
+  /**
+   * Check S3 stored what we meant to upload, before the volume is deleted: an object's ETag is the MD5 of its
+   * content, or for a multipart upload, the MD5 of its parts' MD5s.  This catches anything that changed the
+   * encrypted copy after it was written, or a part that went missing or out of order, which the per-request
+   * checks can't.
+   * <p>
+   * Objects encrypted with SSE-KMS or SSE-C get other ETags; set {@code backup.verifyETag=false} for buckets
+   * that use them.
+   *
+   * @param p_expected The ETag worked out while encrypting; or null if there's nothing to check against
+   */
+  private void verifyETag(String bucketKey, String p_expected, String p_actual) {
+    if (p_expected == null || !Boolean.parseBoolean(System.getProperty("backup.verifyETag", "true"))) {
+      return;
+    }
+    String actual = p_actual == null ? null : p_actual.replace("\"", "");
+    if (!p_expected.equals(actual)) {
+      throw new IntegrityCheckFailedException("S3 has " + bucketKey + " with ETag " + actual + "; expected " + p_expected
+          + ".  Keeping the volume to upload again.  (Set backup.verifyETag=false if the bucket uses SSE-KMS or SSE-C.)", null);
+    }
+  }
+
+  /**
+   * A streaming upload failed: abort it, or with {@code backup.resumable}, leave it to carry on with next time.
+   */
+  private void stopStreaming(MultipartUploadOutputStream out, UploadState state, UploadState.PlaintextDigest p_plaintext) {
+    if (out == null) {
+      return;
+    } else if (state != null) {
+      out.cancel();
+      saveUploadState(state, () -> recordPlaintext(state, p_plaintext));
+    } else {
+      out.abort();
+    }
+  }
+
+  /**
+   * Abort an earlier attempt's streaming upload, rather than carry on with it.  A failure here is only a warning;
+   * the bucket's lifecycle rule cleans up incomplete uploads in the end.
+   */
+  private void abortEarlierUpload(String bucketKey, String p_uploadId) {
+    try {
+      s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, bucketKey, p_uploadId));
+    } catch (SdkClientException e) {
+      System.err.println("Warning: could not abort the earlier upload of " + bucketKey + " (" + e.getMessage() + ")");
+    }
+  }
+
+  /**
+   * Record how much of the volume has been encrypted under the upload's header, so that the next attempt only
+   * reuses the header (and so the session key and nonce) if that much of the volume is unchanged.
+   */
+  private void recordPlaintext(UploadState state, UploadState.PlaintextDigest p_plaintext) {
+    long length;
+    byte[] digest;
+    synchronized (p_plaintext) {
+      length = p_plaintext.getLength();
+      digest = p_plaintext.snapshot();
+    }
+    // A resumed attempt starts digesting from scratch; until it catches up, the earlier (checked) digest covers more.
+    if (length >= state.getPlaintextLength()) {
+      state.setPlaintext(length, macVolumeDigest(digest));
+    }
+  }
+
+  /**
+   * Check the volume before carrying on with an earlier attempt's upload: its length and modification time can
+   * match even though it's been rewritten, and encrypting different plaintext under the same session key and
+   * nonce would break AES-GCM.
+   *
+   * @return true if the range still starts with what the earlier attempt encrypted
+   */
+  private boolean plaintextUnchanged(File fSrc, long p_offset, UploadState state) {
+    long length = state.getPlaintextLength();
+    String digest = state.getPlaintextDigest();
+    if (length < 0 || digest == null) {
+      return false;
+    }
+    try {
+      return digest.equals(macVolumeDigest(UploadState.digest(fSrc, p_offset, length)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return The state of an earlier attempt to upload the key; or null unless {@code backup.resumable}
+   */
+  private UploadState loadUploadState(String bucketKey) {
+    if (!Boolean.getBoolean("backup.resumable")) {
+      return null;
+    }
+    try {
+      return UploadState.load(scratchDir, bucketKey);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Update the state and save it.  The upload carries on regardless, so a failure here is only a warning.
+   */
+  private static void saveUploadState(UploadState state, Runnable p_update) {
+    synchronized (state) {
+      p_update.run();
+      try {
+        state.save();
+      } catch (IOException e) {
+        System.err.println("Warning: could not record the upload's progress (" + e.getMessage() + "); it won't be resumable.");
+      }
+    }
+  }
+
+  /**
+   * Split the volume into content-defined chunks, and upload only the chunks that aren't in the bucket already;
+   * then upload the (encrypted) recipe for putting the volume back together.
+   * <p>
+   * Chunks are hashed, encrypted and uploaded in parallel, while the calling thread reads ahead and chunks the volume.
+   */
+  private void uploadDeduplicated(File fSrc, String recipeKey) {
+    String volume = fSrc.getName();
+    int chunkSize = Integer.getInteger("backup.dedup.chunkSizeKB", 1024) * 1024;
+    int chunksInFlight = Integer.getInteger("backup.dedup.chunksInFlight", 8);
+    long maxChunkAge = TimeUnit.DAYS.toMillis(Integer.getInteger("backup.dedup.maxChunkAgeDays", 30));
+    ChunkStore store = getChunkStore();
+
+    System.out.println("Deduplicating and uploading volume " + volume);
+    ChunkRecipe recipe = new ChunkRecipe();
+    AtomicInteger chunksUploaded = new AtomicInteger();
+    AtomicLong bytesUploaded = new AtomicLong();
+    Deque<CompletableFuture<Chunk>> pending = new ArrayDeque<>();
+    SHA256Digest sha = new SHA256Digest();
+    try (FileInputStream fin = new FileInputStream(fSrc)) {
+      ContentChunker chunker = new ContentChunker(fin, chunkSize);
+      byte[] data;
+      while ((data = chunker.next()) != null) {
+        final byte[] plaintext = data;
+        sha.update(plaintext, 0, plaintext.length);
+        pending.add(CompletableFuture.supplyAsync(() -> {
+          Chunk chunk = store.identify(plaintext);
+          if (store.store(chunk, plaintext, maxChunkAge)) {
+            chunksUploaded.incrementAndGet();
+            bytesUploaded.addAndGet(plaintext.length);
+          }
+          return chunk;
+        }, getPartUploadExecutor()));
+
+        while (pending.size() >= chunksInFlight) {
+          recipe.add(joinSegment(pending.poll()));
+        }
+      }
+      while (!pending.isEmpty()) {
+        recipe.add(joinSegment(pending.poll()));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (InvalidCipherTextException e) {
+      throw new IllegalStateException("InvalidCipherTextException is not expected while encrypting!", e);
     } finally {
+      pending.forEach(f -> f.cancel(true));
+    }
+    System.out.println("Uploaded " + chunksUploaded + " new chunks (" + bytesUploaded + " bytes) of " + recipe.getChunks().size()
+        + " in volume " + volume);
+
+    File fRecipe = new File(getStagingDir(), recipeKey + ".tmp");
+    File fEncrypted = new File(getStagingDir(), recipeKey);
+    try {
+      Files.write(fRecipe.toPath(), recipe.toBytes());
+      encrypt(fRecipe, fEncrypted);
+      byte[] digest = new byte[sha.getDigestSize()];
+      sha.doFinal(digest, 0);
+      PutObjectRequest req = new PutObjectRequest(bucket, recipeKey, fEncrypted);
+      req.setStorageClass(StorageClass.OneZoneInfrequentAccess);
+      req.setMetadata(withVolumeDigest(null, macVolumeDigest(digest), recipe.getPlaintextLength()));
+      getRetrier().call("recipe " + recipeKey, () -> s3.putObject(req));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      fRecipe.delete();
       fEncrypted.delete();
     }
+    System.out.println("[OK] Uploaded " + volume + " as " + recipeKey);
+  }
+
+  /**
+   * Upload the volume's segment index next to it, so that {@code restore-range} can find the segments it needs.
+   * <p>
+   * The volume itself is already safely stored by now, so a failure here is only a warning.
+   */
+  private void uploadIndex(String bucketKey, SegmentIndex index) {
+    if (index == null) {
+      return; // Version 1 files can't be restored piecemeal anyway.
+    }
 
-    // OK, successful upload, delete source file:
-    fSrc.delete();
+    byte[] bytes = index.toBytes();
+    ObjectMetadata mdata = new ObjectMetadata();
+    mdata.setContentLength(bytes.length);
+    try {
+      s3.putObject(new PutObjectRequest(bucket, SegmentIndex.getIndexKey(bucketKey), new ByteArrayInputStream(bytes), mdata));
+    } catch (SdkClientException e) {
+      System.err.println("Warning: could not upload the segment index for " + bucketKey + " (" + e.getMessage() + "); range restores will work it out from the volume's length instead.");
+    }
+  }
 
+  private synchronized ExecutorService getPartUploadExecutor() {
+    if (partUploadExecutor == null) {
+      partUploadExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "part-upload");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return partUploadExecutor;
+  }
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#cleanup()
+   */
+  @Override
+  public void cleanup() {
+    synchronized (this) {
+      if (partUploadExecutor != null) {
+        partUploadExecutor.shutdownNow();
+      }
+    }
+    super.cleanup();
+  }
+
+  /**
+   * The second stage for a volume, run on an upload thread; retried if it fails.
+   */
+  @FunctionalInterface
+  private interface UploadStage {
+    void upload();
+
+    /** Delete any temp files, once the upload has succeeded or been given up on. */
+    default void discard() {
+    }
+
+    /** @return This stage, followed by {@code p_next} once the upload succeeds */
+    default UploadStage andThen(Runnable p_next) {
+      UploadStage first = this;
+      return new UploadStage() {
+        @Override
+        public void upload() {
+          first.upload();
+          p_next.run();
+        }
+
+        @Override
+        public void discard() {
+          first.discard();
+        }
+      };
+    }
   }
 
 }
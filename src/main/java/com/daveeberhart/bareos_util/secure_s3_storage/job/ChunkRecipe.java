@@ -0,0 +1,163 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * The list of chunks that make up a deduplicated volume, in order.
+ * <p>
+ * The recipe holds the key of every chunk, so it's uploaded encrypted, just like a volume (as
+ * {@code bb-<jobId>-<volume>.rcp}); see {@link ChunkStore}.
+ * <p>
+ * Serialized format (before encryption):
+ * <ul>
+ * <li>{@link #MAGIC}</li>
+ * <li>A 16-bit integer (recipe format version number)</li>
+ * <li>A 64-bit integer: the volume's length</li>
+ * <li>A 32-bit integer: the number of chunks</li>
+ * <li>For each chunk: its {@value #CHUNK_ID_SIZE}-byte ID, {@value #CHUNK_KEY_SIZE}-byte key, and a 32-bit length</li>
+ * </ul>
+ *
+ * @author deberhar
+ */
+public class ChunkRecipe {
+  /** The magic bytes "{@code BAREOS-S3-RCP}".  Used to ID our recipe files. */
+  private static final byte[] MAGIC = "BAREOS-S3-RCP".getBytes(Charset.forName("ASCII"));
+  private static final short RECIPE_VERSION = 1;
+  static final int CHUNK_ID_SIZE = 32;
+  static final int CHUNK_KEY_SIZE = 16;
+  private static final int CHUNK_ENTRY_SIZE = CHUNK_ID_SIZE + CHUNK_KEY_SIZE + Integer.BYTES;
+
+  private final List<Chunk> chunks = new ArrayList<>();
+  private long plaintextLength;
+
+  /**
+   * Append the next chunk of the volume.
+   */
+  void add(Chunk p_chunk) {
+    chunks.add(p_chunk);
+    plaintextLength += p_chunk.getLength();
+  }
+
+  public List<Chunk> getChunks() {
+    return Collections.unmodifiableList(chunks);
+  }
+
+  public long getPlaintextLength() {
+    return plaintextLength;
+  }
+
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + CHUNK_ENTRY_SIZE * chunks.size());
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.write(MAGIC);
+      out.writeShort(RECIPE_VERSION);
+      out.writeLong(plaintextLength);
+      out.writeInt(chunks.size());
+      for (Chunk chunk : chunks) {
+        out.write(chunk.id);
+        out.write(chunk.chunkKey);
+        out.writeInt(chunk.length);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Parse a recipe written by {@link #toBytes()}.
+   * @param p_caption Name of the recipe, for error messages
+   * @param p_bytes The serialized (decrypted) recipe
+   */
+  static ChunkRecipe fromBytes(String p_caption, byte[] p_bytes) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(p_bytes))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new JobFailedException(p_caption + " doesn't appear to be a chunk recipe (wrong magic at file start)");
+      }
+      short version = in.readShort();
+      if (version != RECIPE_VERSION) {
+        throw new JobFailedException(p_caption + " uses unsupported recipe format version " + version);
+      }
+
+      long length = in.readLong();
+      int count = in.readInt();
+      if (count < 0 || count > p_bytes.length / CHUNK_ENTRY_SIZE) {
+        throw new JobFailedException(p_caption + " is corrupt (chunk count " + count + ")");
+      }
+
+      ChunkRecipe recipe = new ChunkRecipe();
+      for (int i = 0; i < count; i++) {
+        byte[] id = new byte[CHUNK_ID_SIZE];
+        byte[] key = new byte[CHUNK_KEY_SIZE];
+        in.readFully(id);
+        in.readFully(key);
+        int chunkLength = in.readInt();
+        if (chunkLength <= 0) {
+          throw new JobFailedException(p_caption + " is corrupt (chunk length " + chunkLength + ")");
+        }
+        recipe.add(new Chunk(id, key, chunkLength));
+      }
+      if (recipe.getPlaintextLength() != length) {
+        throw new JobFailedException(p_caption + " is corrupt (chunk lengths don't add up to the volume length)");
+      }
+      return recipe;
+    } catch (IOException e) {
+      throw new JobFailedException(p_caption + " is truncated", e);
+    }
+  }
+
+  /**
+   * One chunk of a volume: where to find it, and how to decrypt it.
+   */
+  public static final class Chunk {
+    private final byte[] id;
+    private final byte[] chunkKey;
+    private final int length;
+
+    Chunk(byte[] p_id, byte[] p_chunkKey, int p_length) {
+      id = p_id;
+      chunkKey = p_chunkKey;
+      length = p_length;
+    }
+
+    byte[] getId() {
+      return id;
+    }
+
+    byte[] getChunkKey() {
+      return chunkKey;
+    }
+
+    /** @return Bytes of plaintext in the chunk */
+    public int getLength() {
+      return length;
+    }
+
+    /** @return Key of the chunk's object in S3 */
+    public String getObjectKey() {
+      return ChunkStore.KEY_PREFIX + Hex.toHexString(id);
+    }
+
+    @Override
+    public String toString() {
+      return getObjectKey();
+    }
+  }
+
+}
@@ -0,0 +1,192 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.util.IOUtils;
+import com.daveeberhart.bareos_util.secure_s3_storage.crypto.AeadCipher;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.job.ChunkRecipe.Chunk;
+
+/**
+ * Deduplicated storage for volumes, as content-defined chunks under {@value #KEY_PREFIX} in the bucket.
+ * <p>
+ * Chunks use convergent encryption: each chunk's ID and AES-GCM key are derived from its content (and the
+ * key-encryption key), so the same data always encrypts to the same object, and is only uploaded once,
+ * however many volumes it turns up in.  The chunk's key is kept in the (encrypted) {@link ChunkRecipe} of
+ * each volume using it.  The downside: anyone who can read the bucket can tell which volumes share chunks,
+ * though not what's in them.
+ * <p>
+ * Chunk format:
+ * <ul>
+ * <li>{@link #MAGIC}</li>
+ * <li>A 16-bit integer (chunk format version number)</li>
+ * <li>The chunk, encrypted with AES-GCM, followed by its auth tag.  The magic, version and chunk ID are
+ *   authenticated as associated data.</li>
+ * </ul>
+ *
+ * @author deberhar
+ */
+class ChunkStore {
+  /** The magic bytes "{@code BAREOS-S3-CHK}".  Used to ID our chunk files. */
+  private static final byte[] MAGIC = "BAREOS-S3-CHK".getBytes(Charset.forName("ASCII"));
+  private static final short CHUNK_VERSION = 1;
+  private static final int CHUNK_HEADER_SIZE = MAGIC.length + Short.BYTES;
+  /** Each chunk key only ever encrypts the one plaintext, so a fixed nonce is safe. */
+  private static final byte[] CHUNK_NONCE = new byte[Job.AES_GCM_NONCE_SIZE_BYTES];
+  static final String KEY_PREFIX = "chunks/";
+
+  private final Job job;
+  private final AmazonS3 s3;
+  private final String bucket;
+  private final byte[] digestKey;
+  private final byte[] idKey;
+  private final byte[] chunkKeyKey;
+
+  /**
+   * @param p_job Job whose S3 client, bucket and ciphers to use
+   * @param p_kek Key-encryption key, which all the chunk keys are derived from
+   */
+  ChunkStore(Job p_job, byte[] p_kek) {
+    job = p_job;
+    s3 = p_job.s3;
+    bucket = p_job.bucket;
+    digestKey = Job.hmac(p_kek, "chunk-digest".getBytes(Charset.forName("ASCII")));
+    idKey = Job.hmac(p_kek, "chunk-id".getBytes(Charset.forName("ASCII")));
+    chunkKeyKey = Job.hmac(p_kek, "chunk-key".getBytes(Charset.forName("ASCII")));
+  }
+
+  /**
+   * Work out a chunk's ID and key, from its content.
+   * <p>
+   * The content is only hashed once; the ID and key are both derived from that keyed digest.
+   */
+  Chunk identify(byte[] p_plaintext) {
+    byte[] digest = Job.hmac(digestKey, p_plaintext);
+    byte[] id = Job.hmac(idKey, digest);
+    byte[] chunkKey = Arrays.copyOf(Job.hmac(chunkKeyKey, digest), ChunkRecipe.CHUNK_KEY_SIZE);
+    return new Chunk(id, chunkKey, p_plaintext.length);
+  }
+
+  /**
+   * Upload a chunk, unless it's already in the bucket.
+   * <p>
+   * Bucket lifecycle rules expire each object a fixed time after it was last written, so a chunk uploaded long
+   * ago could be deleted while a new volume still needs it.  Chunks older than {@code p_maxAgeMillis} (or that
+   * have moved to Glacier or Deep Archive, where restores can't get at them) are uploaded again, which restarts
+   * their lifecycle clock.
+   *
+   * @return true if the chunk was uploaded; false if it was already there
+   */
+  boolean store(Chunk p_chunk, byte[] p_plaintext, long p_maxAgeMillis) {
+    String key = p_chunk.getObjectKey();
+    try {
+      ObjectMetadata existing = job.getRetrier().call("chunk " + key, () -> s3.getObjectMetadata(bucket, key));
+      boolean fresh = existing.getLastModified() != null
+          && existing.getLastModified().getTime() > System.currentTimeMillis() - p_maxAgeMillis;
+      if (fresh && !Job.isArchived(existing.getStorageClass())) {
+        return false;
+      }
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+    }
+
+    byte[] encrypted = encrypt(p_chunk, p_plaintext);
+    ObjectMetadata mdata = new ObjectMetadata();
+    mdata.setContentLength(encrypted.length);
+    job.getRetrier().call("chunk " + key, () -> {
+      PutObjectRequest req = new PutObjectRequest(bucket, key, new ByteArrayInputStream(encrypted), mdata);
+      req.setStorageClass(StorageClass.OneZoneInfrequentAccess);
+      return s3.putObject(req);
+    });
+    return true;
+  }
+
+  /**
+   * Download and decrypt a chunk.
+   * @throws InvalidCipherTextException if the chunk fails its integrity check
+   */
+  byte[] fetch(Chunk p_chunk) throws InvalidCipherTextException {
+    String key = p_chunk.getObjectKey();
+    byte[] encrypted;
+    try {
+      encrypted = job.getRetrier().call("chunk " + key, () -> {
+        try (S3Object obj = s3.getObject(bucket, key);
+             InputStream in = obj.getObjectContent()) {
+          return IOUtils.toByteArray(in);
+        }
+      });
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        throw new JobFailedException("Chunk " + key + " is missing from the bucket; check that your lifecycle rules keep chunks at least "
+            + "backup.dedup.maxChunkAgeDays longer than your volumes.", e);
+      }
+      throw e;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    return decrypt(p_chunk, encrypted);
+  }
+
+  byte[] encrypt(Chunk p_chunk, byte[] p_plaintext) {
+    byte[] encrypted = new byte[CHUNK_HEADER_SIZE + p_plaintext.length + Job.AEAD_MAC_TAG_SIZE_BYTES];
+    writeHeader(encrypted);
+
+    AeadCipher cipher = createCipher(p_chunk, encrypted, true);
+    int len = cipher.processBytes(p_plaintext, 0, p_plaintext.length, encrypted, CHUNK_HEADER_SIZE);
+    try {
+      cipher.doFinal(encrypted, CHUNK_HEADER_SIZE + len);
+    } catch (InvalidCipherTextException e) {
+      throw new IllegalStateException("InvalidCipherTextException is not expected while encrypting!", e);
+    }
+    return encrypted;
+  }
+
+  byte[] decrypt(Chunk p_chunk, byte[] p_encrypted) throws InvalidCipherTextException {
+    if (p_encrypted.length != CHUNK_HEADER_SIZE + p_chunk.getLength() + Job.AEAD_MAC_TAG_SIZE_BYTES) {
+      throw new InvalidCipherTextException("Chunk " + p_chunk + " is " + p_encrypted.length + " bytes; expected "
+          + (CHUNK_HEADER_SIZE + p_chunk.getLength() + Job.AEAD_MAC_TAG_SIZE_BYTES));
+    }
+    byte[] header = new byte[CHUNK_HEADER_SIZE];
+    writeHeader(header);
+    if (!Arrays.equals(header, Arrays.copyOf(p_encrypted, CHUNK_HEADER_SIZE))) {
+      throw new InvalidCipherTextException("Chunk " + p_chunk + " has the wrong magic, or an unsupported version");
+    }
+
+    byte[] plaintext = new byte[p_chunk.getLength() + Job.AEAD_MAC_TAG_SIZE_BYTES];
+    AeadCipher cipher = createCipher(p_chunk, p_encrypted, false);
+    int len = cipher.processBytes(p_encrypted, CHUNK_HEADER_SIZE, p_encrypted.length - CHUNK_HEADER_SIZE, plaintext, 0);
+    len += cipher.doFinal(plaintext, len); // <-- checks the auth tag -- VERY IMPORTANT!
+    return Arrays.copyOf(plaintext, len);
+  }
+
+  private static void writeHeader(byte[] p_buff) {
+    System.arraycopy(MAGIC, 0, p_buff, 0, MAGIC.length);
+    p_buff[MAGIC.length] = (byte) (CHUNK_VERSION >>> 8);
+    p_buff[MAGIC.length + 1] = (byte) CHUNK_VERSION;
+  }
+
+  private AeadCipher createCipher(Chunk p_chunk, byte[] p_header, boolean p_forEncryption) {
+    AeadCipher cipher = job.createSessionDataCipher(new KeyParameter(p_chunk.getChunkKey()), CHUNK_NONCE, p_forEncryption);
+    cipher.processAADBytes(p_header, 0, CHUNK_HEADER_SIZE);
+    cipher.processAADBytes(p_chunk.getId(), 0, ChunkRecipe.CHUNK_ID_SIZE);
+    return cipher;
+  }
+
+}
@@ -0,0 +1,129 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * Hand a job to a running {@link DaemonJob}, and relay its output and exit code.  This is what the
+ * {@code client} action runs; it needs neither the S3 clients nor the encryption key.
+ *
+ * @author deberhar
+ */
+public class DaemonClient {
+  private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+
+  private final PrintStream out;
+  private final PrintStream err;
+
+  public DaemonClient() {
+    this(System.out, System.err);
+  }
+
+  /**
+   * @param p_out Where to copy the job's stdout
+   * @param p_err Where to copy the job's stderr
+   */
+  public DaemonClient(PrintStream p_out, PrintStream p_err) {
+    out = p_out;
+    err = p_err;
+  }
+
+  /**
+   * Send the job to the daemon, and wait for it to finish.
+   *
+   * @param p_args The job's commandline arguments: the action, the scratch dir, and the rest
+   * @return The job's exit code; or null if there's no daemon running (no token file, or nothing listening), or it's
+   *   busy with another job
+   */
+  public Integer send(String[] p_args) {
+    if (p_args.length < 2) {
+      return null;
+    }
+    File tokenFile = DaemonJob.getTokenFile(new File(p_args[1]));
+    if (!tokenFile.exists()) {
+      return null;
+    }
+
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(tokenFile)) {
+      props.load(in);
+    } catch (IOException e) {
+      throw new JobFailedException("Could not read the daemon's token file " + tokenFile + ": " + e.getMessage(), e);
+    }
+    int port;
+    try {
+      port = Integer.parseInt(props.getProperty("port", ""));
+    } catch (NumberFormatException e) {
+      throw new JobFailedException("The daemon's token file " + tokenFile + " is corrupt");
+    }
+
+    try (Socket socket = new Socket()) {
+      try {
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+      } catch (ConnectException e) {
+        return null; // Stale token file; the daemon's gone.
+      }
+
+      DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      request.writeUTF(props.getProperty("token", ""));
+      request.writeInt(p_args.length);
+      for (String arg : p_args) {
+        request.writeUTF(arg);
+      }
+      request.flush();
+
+      return relay(new DataInputStream(new BufferedInputStream(socket.getInputStream())));
+    } catch (IOException e) {
+      throw new JobFailedException("Lost contact with the daemon: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Copy the daemon's output frames to our stdout/stderr, until the exit code arrives.
+   * @return The exit code; or null if the daemon is busy
+   */
+  private Integer relay(DataInputStream p_in) throws IOException {
+    byte[] buff = new byte[8192];
+    while (true) {
+      byte type;
+      try {
+        type = p_in.readByte();
+      } catch (EOFException e) {
+        throw new JobFailedException("The daemon hung up without finishing the job (wrong token?)");
+      }
+
+      if (type == DaemonJob.FRAME_EXIT) {
+        return p_in.readInt();
+      } else if (type == DaemonJob.FRAME_BUSY) {
+        return null;
+      }
+      PrintStream dest = type == DaemonJob.FRAME_ERR ? err : out;
+      int len = p_in.readInt();
+      while (len > 0) {
+        int n = p_in.read(buff, 0, Math.min(buff.length, len));
+        if (n < 0) {
+          throw new EOFException();
+        }
+        dest.write(buff, 0, n);
+        len -= n;
+      }
+      dest.flush();
+    }
+  }
+
+}
@@ -0,0 +1,287 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.Launcher;
+import com.daveeberhart.bareos_util.secure_s3_storage.crypto.KeyMaterial;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * Stay running, and run jobs sent by {@link DaemonClient} (the {@code client} action), so that Bareos hook
+ * scripts don't pay for a cold JVM, new S3 clients and key derivation on every call.
+ * <p>
+ * Listens on the loopback interface only, on {@code daemon.port} (by default, any free port).  The port and a
+ * random token are written to the token file ({@code daemon.tokenFile}, by default {@value #TOKEN_FILE_NAME} in
+ * the scratch dir), readable only by the daemon's user; a client must send the token before anything else.
+ * <p>
+ * Jobs run one at a time, with their output sent back to the client.  The output goes through {@link System#out} and
+ * {@link System#err}, which every thread shares, so a request that arrives while a job is running isn't queued: the
+ * daemon answers {@link #FRAME_BUSY}, and the client runs the job itself.
+ * <p>
+ * Protocol (all big-endian, strings in {@link DataOutputStream#writeUTF(String) modified UTF-8}):
+ * <ul>
+ * <li>Client: the token, the number of arguments, then each argument (as for the commandline)</li>
+ * <li>Daemon: {@link #FRAME_BUSY} if it's already running a job; otherwise any number of output frames ({@link #FRAME_OUT} or {@link #FRAME_ERR}, a 32-bit length, then
+ *   that many bytes), then {@link #FRAME_EXIT} and the job's 32-bit exit code</li>
+ * </ul>
+ *
+ * @author deberhar
+ */
+public class DaemonJob extends Job {
+  static final String TOKEN_FILE_NAME = ".s3-daemon";
+  static final byte FRAME_EXIT = 0;
+  static final byte FRAME_OUT = 1;
+  static final byte FRAME_ERR = 2;
+  static final byte FRAME_BUSY = 3;
+  /** How long a client gets to send its request, once connected. */
+  private static final int REQUEST_TIMEOUT_MILLIS = 30_000;
+  private static final int MAX_ARGS = 10_000;
+
+  /** Held while a job runs; see {@link #handle(Socket)}. */
+  private final ReentrantLock jobLock = new ReentrantLock();
+  private File tokenFile;
+  private byte[] token;
+  private ServerSocket server;
+  private ExecutorService requestExecutor;
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#setRemainingArgs(java.util.List)
+   */
+  @Override
+  public void setRemainingArgs(List<String> p_args) {
+    if (!p_args.isEmpty()) {
+      throw new BadArgsException("The daemon takes no arguments besides the scratch dir");
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#run()
+   */
+  @Override
+  public void run() {
+    keepWarm();
+
+    token = new byte[32];
+    KeyMaterial.nextBytes(token);
+    tokenFile = getTokenFile(scratchDir);
+    requestExecutor = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, "daemon-request");
+      t.setDaemon(true);
+      return t;
+    });
+
+    try {
+      server = new ServerSocket(Integer.getInteger("daemon.port", 0), 50, InetAddress.getLoopbackAddress());
+      writeTokenFile();
+      System.out.println("Daemon listening on " + server.getLocalSocketAddress() + "; token in " + tokenFile);
+
+      while (!server.isClosed()) {
+        Socket socket;
+        try {
+          socket = server.accept();
+        } catch (IOException e) {
+          if (server.isClosed()) {
+            break; // Shut down by cleanup()
+          }
+          throw e;
+        }
+        requestExecutor.execute(() -> handle(socket));
+      }
+    } catch (IOException e) {
+      throw new JobFailedException("Daemon failed: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return Where the daemon writes its port and token; the property {@code daemon.tokenFile} if set.
+   */
+  static File getTokenFile(File p_scratchDir) {
+    String path = System.getProperty("daemon.tokenFile");
+    return path != null ? new File(path) : new File(p_scratchDir, TOKEN_FILE_NAME);
+  }
+
+  private void writeTokenFile() throws IOException {
+    Properties props = new Properties();
+    props.setProperty("port", Integer.toString(server.getLocalPort()));
+    props.setProperty("token", Hex.toHexString(token));
+
+    File fTmp = new File(tokenFile.getParentFile(), tokenFile.getName() + ".tmp");
+    fTmp.delete();
+    try {
+      Files.createFile(fTmp.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX filesystem; rely on the directory's permissions.
+    }
+    try (FileOutputStream out = new FileOutputStream(fTmp, false)) {
+      props.store(out, "Secure S3 storage daemon");
+    }
+    Files.move(fTmp.toPath(), tokenFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Check the client's token, then run its job, with the job's output going back to the client; or, if another job is
+   * running, tell the client so.
+   */
+  private void handle(Socket p_socket) {
+    try (Socket socket = p_socket;
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+      socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+      byte[] clientToken = in.readUTF().getBytes(Charset.forName("ASCII"));
+      if (!MessageDigest.isEqual(Hex.toHexString(token).getBytes(Charset.forName("ASCII")), clientToken)) {
+        System.err.println("Rejected a request from " + socket.getRemoteSocketAddress() + " with the wrong token");
+        return;
+      }
+
+      int argc = in.readInt();
+      if (argc < 0 || argc > MAX_ARGS) {
+        return;
+      }
+      String[] args = new String[argc];
+      for (int i = 0; i < argc; i++) {
+        args[i] = in.readUTF();
+      }
+      socket.setSoTimeout(0);
+
+      if (!jobLock.tryLock()) {
+        out.writeByte(FRAME_BUSY);
+        out.flush();
+        return;
+      }
+      int exitCode;
+      try {
+        exitCode = runJob(args, out);
+      } finally {
+        jobLock.unlock();
+      }
+      synchronized (out) {
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(exitCode);
+        out.flush();
+      }
+    } catch (IOException e) {
+      System.err.println("Daemon request failed: " + e);
+    }
+  }
+
+  /**
+   * Run a job just as the commandline would.  The caller must hold {@link #jobLock}.
+   * @return The job's exit code
+   */
+  private int runJob(String[] p_args, DataOutputStream p_out) {
+    PrintStream stdout = System.out;
+    PrintStream stderr = System.err;
+    stdout.println("Running job " + String.join(" ", p_args));
+
+    int[] exitCode = new int[1];
+    try (PrintStream jobOut = new PrintStream(new FrameOutputStream(p_out, FRAME_OUT), true);
+         PrintStream jobErr = new PrintStream(new FrameOutputStream(p_out, FRAME_ERR), true)) {
+      System.setOut(jobOut);
+      System.setErr(jobErr);
+      if (p_args.length > 0 && ("daemon".equalsIgnoreCase(p_args[0]) || "client".equalsIgnoreCase(p_args[0]))) {
+        System.err.println("The daemon can't run the " + p_args[0] + " action");
+        exitCode[0] = 1;
+      } else {
+        new Launcher() {
+          @Override
+          protected void exit(int p_returnCode) {
+            exitCode[0] = p_returnCode;
+          }
+        }.run(p_args);
+      }
+    } finally {
+      System.setOut(stdout);
+      System.setErr(stderr);
+    }
+
+    stdout.println("Finished job " + String.join(" ", p_args) + " with exit code " + exitCode[0]);
+    return exitCode[0];
+  }
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#cleanup()
+   */
+  @Override
+  public void cleanup() {
+    if (tokenFile != null) {
+      tokenFile.delete();
+    }
+    try {
+      if (server != null) {
+        server.close();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (requestExecutor != null) {
+        requestExecutor.shutdownNow();
+      }
+      super.cleanup();
+    }
+  }
+
+  /**
+   * Send everything written to it to the client, as output frames of one type.
+   */
+  private static final class FrameOutputStream extends OutputStream {
+    private final DataOutputStream out;
+    private final byte type;
+
+    FrameOutputStream(DataOutputStream p_out, byte p_type) {
+      out = p_out;
+      type = p_type;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      synchronized (out) {
+        out.writeByte(type);
+        out.writeInt(len);
+        out.write(b, off, len);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (out) {
+        out.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush(); // The socket is closed by the request handler.
+    }
+  }
+
+}
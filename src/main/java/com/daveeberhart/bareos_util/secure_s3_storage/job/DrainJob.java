@@ -0,0 +1,132 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * Upload the backups queued with {@code backup.enqueue} (see {@link SpoolQueue}), oldest first, each just as the
+ * {@code backup} action would have; then take them off the queue.
+ * <p>
+ * By default, keeps running, checking the queue every {@code spool.pollSeconds}; with {@code --once}, stops once
+ * every backup that's due has been tried (e.g. to run from cron).  A backup that fails is kept on the queue,
+ * with just the volumes that weren't uploaded, and tried again after {@code spool.retrySeconds}, twice as long
+ * after each failure.  Only one drain runs on a scratch dir at a time.
+ *
+ * @author deberhar
+ */
+public class DrainJob extends BackupJob {
+  private boolean once;
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#setRemainingArgs(java.util.List)
+   */
+  @Override
+  public void setRemainingArgs(List<String> p_args) {
+    for (String arg : p_args) {
+      if ("--once".equals(arg)) {
+        once = true;
+      } else {
+        throw new BadArgsException("Unrecognized argument to drain: " + arg);
+      }
+    }
+  }
+
+  @Override
+  protected boolean isEnqueueing() {
+    return false;
+  }
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.BackupJob#run()
+   */
+  @Override
+  public void run() {
+    SpoolQueue queue = new SpoolQueue(scratchDir);
+    long pollMillis = TimeUnit.SECONDS.toMillis(Math.max(1, Integer.getInteger("spool.pollSeconds", 30)));
+    FileLock lock;
+    try {
+      lock = queue.tryLock();
+    } catch (IOException e) {
+      throw new JobFailedException("Could not lock the spool queue in " + queue.getDir() + ": " + e.getMessage(), e);
+    }
+    if (lock == null) {
+      System.out.println("Another drain is already uploading the spool queue in " + queue.getDir() + "; nothing to do");
+      return;
+    }
+
+    try {
+      System.out.println("Draining the spool queue in " + queue.getDir());
+      while (true) {
+        int failed = drainOnce(queue);
+        if (once) {
+          if (failed > 0) {
+            throw new JobFailedException(failed + " queued backups could not be uploaded; they're still on the queue, to try again later");
+          }
+          return;
+        }
+        Thread.sleep(pollMillis);
+      }
+    } catch (InterruptedException e) {
+      throw new JobFailedException("Thread interrupted while draining the spool queue", e);
+    } finally {
+      try {
+        lock.acquiredBy().close();
+      } catch (IOException e) {
+        System.err.println("Warning: could not release the lock on " + queue.getDir() + " (" + e.getMessage() + ")");
+      }
+    }
+  }
+
+  /**
+   * Try every queued backup that's due.
+   * @return How many failed
+   */
+  private int drainOnce(SpoolQueue p_queue) {
+    long retryMillis = TimeUnit.SECONDS.toMillis(Integer.getInteger("spool.retrySeconds", 300));
+    int failed = 0;
+    for (SpoolQueue.Entry entry : p_queue.list()) {
+      if (entry.getNextAttemptTime() > System.currentTimeMillis()) {
+        continue;
+      }
+
+      // Volumes can be queued twice (e.g. if Bareos runs the hook again); the first upload deletes them:
+      List<String> volumes = new ArrayList<>();
+      for (String volume : entry.getVolumes()) {
+        if (new File(scratchDir, volume).exists()) {
+          volumes.add(volume);
+        } else {
+          System.err.println("Warning: volume " + volume + " of job " + entry.getJobId() + " is no longer in " + scratchDir + "; skipping it");
+        }
+      }
+
+      System.out.println("Uploading queued " + entry);
+      List<String> args = new ArrayList<>();
+      args.add(entry.getJobId());
+      args.addAll(volumes);
+      super.setRemainingArgs(args);
+      try {
+        super.run();
+        entry.done();
+      } catch (JobFailedException e) {
+        failed++;
+        System.err.println("Failed to upload queued " + entry + " (" + e.getMessage() + "); will try again later");
+        try {
+          entry.failed(getFailedVolumes(), e.getCause() instanceof Exception ? (Exception) e.getCause() : e, retryMillis);
+        } catch (IOException e1) {
+          throw new JobFailedException("Could not update the spool queue entry for " + entry + ": " + e1.getMessage(), e1);
+        }
+      } catch (IOException e) {
+        throw new JobFailedException("Could not take " + entry + " off the spool queue: " + e.getMessage(), e);
+      }
+    }
+    return failed;
+  }
+
+}
@@ -5,35 +5,64 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.Charset;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
+import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.PBEParametersGenerator;
-import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.engines.AESWrapEngine;
 import org.bouncycastle.crypto.generators.PKCS5S2ParametersGenerator;
-import org.bouncycastle.crypto.modes.GCMBlockCipher;
-import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.util.encoders.Hex;
 
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.StorageClass;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import com.daveeberhart.bareos_util.secure_s3_storage.crypto.AeadCipher;
+import com.daveeberhart.bareos_util.secure_s3_storage.crypto.CipherEngine;
+import com.daveeberhart.bareos_util.secure_s3_storage.crypto.KeyMaterial;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.BufferPool;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.DiskSpace;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.FileRangeChannel;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.ReadAheadReader;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.SegmentCompressor;
+import com.daveeberhart.bareos_util.secure_s3_storage.io.WriteBehindWriter;
 import com.daveeberhart.bareos_util.secure_s3_storage.progress.CryptoProgressListener;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.AimdLimiter;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.BandwidthLimiter;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.MultipartUploadOutputStream;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.Retrier;
 
 /**
  * Base class for all jobs.
@@ -55,10 +84,24 @@ import com.daveeberhart.bareos_util.secure_s3_storage.progress.CryptoProgressLis
 public abstract class Job {
   private static final String PROP_ENCRYPTION_KEY = "encryption.key";
 
-  private static final int HEADER_SIZE = 512;
+  static final int HEADER_SIZE = 512;
   /** The magic bytes "{@code BAREOS-S3-ENC}".  Used to ID our files. */
   private static final byte[] MAGIC = "BAREOS-S3-ENC".getBytes(Charset.forName("ASCII"));
-  private static final short FILE_VERSION = 1;
+  private static final short FILE_VERSION = 2;
+  /** Default bytes of plaintext per segment, for file version 2. */
+  private static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+  /** Largest segment size we'll write or read; keeps a corrupt header from exhausting the heap. */
+  private static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+  /** Header flag (version 2): segments are compressed, see {@link SegmentCompressor}. */
+  private static final short FLAG_DEFLATE = 1;
+  /** Every header flag this version understands. */
+  private static final short KNOWN_FLAGS = FLAG_DEFLATE;
+  /** Bytes of each volume to trial-compress, when deciding whether compressing it is worthwhile. */
+  private static final int COMPRESSION_SAMPLE_SIZE = 1024 * 1024;
+  /** Don't compress volumes whose sample doesn't shrink to at least this fraction of its size. */
+  private static final double COMPRESSION_MAX_RATIO = 0.9;
+  /** Segment indexes are 32-bit unsigned ints, see {@link #deriveSegmentNonce(byte[], long, boolean)}. */
+  private static final long MAX_SEGMENT_INDEX = 0xFFFFFFFFL;
 
   private static final long GIGABYTE = 1024L * 1024L * 1024L;
   private static final int AES_KEY_SIZE_BITS = 128;
@@ -67,66 +110,128 @@ public abstract class Job {
   static final int WRAPPED_AES_KEY_SIZE_BYTES = WRAPPED_AES_KEY_SIZE_BITS / Byte.SIZE;
   /** Size of the auth tag in bits.  This is the max length allowed (strongest anti-forgery). */
   private static final int AEAD_MAC_TAG_SIZE_BITS = 128;
+  static final int AEAD_MAC_TAG_SIZE_BYTES = AEAD_MAC_TAG_SIZE_BITS / Byte.SIZE;
   /** Recommended AES-GCM nonce size, per NIST Special Publication 800-38D p8, 5.2.1.1 */
   private static final int AES_GCM_NONCE_SIZE_BITS = 96;
-  private static final int AES_GCM_NONCE_SIZE_BYTES = AES_GCM_NONCE_SIZE_BITS / Byte.SIZE;
+  static final int AES_GCM_NONCE_SIZE_BYTES = AES_GCM_NONCE_SIZE_BITS / Byte.SIZE;
+
+  /** User metadata: keyed digest of the volume's plaintext, from its start to the end of the object; see {@link #macVolumeDigest(byte[])}. */
+  static final String META_VOLUME_DIGEST = "volume-digest";
+  /** User metadata: length of the volume's plaintext, from its start to the end of the object. */
+  static final String META_VOLUME_LENGTH = "volume-length";
+
+  /** Not in {@link StorageClass} in this version of the SDK. */
+  private static final String STORAGE_CLASS_DEEP_ARCHIVE = "DEEP_ARCHIVE";
 
   private static final byte[] SALT = Base64.getDecoder().decode("6YEuJ+6T8Wzc3PV6uqRTHu9AM8m9cWDFXF7dQk2QwLo=");
   private static final File configFile = new File(System.getProperty("config.file.location", "/etc/bareos/s3-storage.properties"));
 
-  private static final SecureRandom random;
-  static {
-    try {
-      random = SecureRandom.getInstanceStrong();
-    } catch (NoSuchAlgorithmException e) {
-      throw new RuntimeException(e);
-    }
-  }
+  private static ForkJoinPool cryptoPool;
+  /** Shared by every job in the JVM, since they all share the bucket's request rate. */
+  private static AimdLimiter requestLimiter;
+  /** Shared by every job in the JVM, so that the cap holds however many are running; null if there's no cap. */
+  private static BandwidthLimiter bandwidthLimiter;
+  private static boolean bandwidthLimiterLoaded;
+  /** Shared by every job in the JVM, so that concurrent jobs don't each count on the same free space. */
+  private static DiskSpace diskSpace;
+  private static Boolean configFileLoaded;
+  /** Prepared job whose clients and key every other job shares; see {@link #keepWarm()}. */
+  private static Job warmJob;
+  private static final Map<Integer, BufferPool> bufferPools = new HashMap<>();
 
   protected AmazonS3 s3;
   protected TransferManager tm;
+  /** The TransferManager's threads; with {@code transfer.autotune}, resized as better settings are learned. */
+  protected ThreadPoolExecutor tmExecutor;
+  /** TransferManagers for part sizes other than {@link #tm}'s, sharing its client and threads; see {@link #getTransferManager(long)}. */
+  private final Map<Long, TransferManager> partSizeTms = new HashMap<>();
   protected String bucket;
   protected String encryptionKey;
   protected File scratchDir;
   private  byte[] kek;
+  private ChunkStore chunkStore;
   private boolean configFileNotLoaded;
+  private boolean borrowedClients;
 
   public Job() {
-    if (configFile.exists()) {
-      Properties etcProps = new Properties();
-      try (FileInputStream fs = new FileInputStream(configFile)) {
-        etcProps.load(fs);
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
-      }
+    configFileNotLoaded = !loadConfigFile();
+  }
+
+  /**
+   * Load the config file into the system properties, once per JVM.  Properties set on the commandline win.
+   * @return false if there's no config file
+   */
+  private static synchronized boolean loadConfigFile() {
+    if (configFileLoaded == null) {
+      configFileLoaded = configFile.exists();
+      if (configFileLoaded) {
+        Properties etcProps = new Properties();
+        try (FileInputStream fs = new FileInputStream(configFile)) {
+          etcProps.load(fs);
+        } catch (IOException e) {
+          configFileLoaded = null;
+          throw new UncheckedIOException(e);
+        }
 
-      for (Entry<Object,Object> entry : etcProps.entrySet()) {
-        System.getProperties().putIfAbsent(entry.getKey(), entry.getValue());
+        for (Entry<Object,Object> entry : etcProps.entrySet()) {
+          System.getProperties().putIfAbsent(entry.getKey(), entry.getValue());
+        }
       }
-    } else {
-      configFileNotLoaded = true;
     }
+    return configFileLoaded;
   }
 
   /**
    * Verify the config for the job, and set up Amazon webservices client.
+   * <p>
+   * Once a job has called {@link #keepWarm()}, later jobs borrow its clients instead.
    */
   public void prepare() {
     if (configFileNotLoaded) {
       System.err.println("Warning: Config file not found at " + configFile.getAbsolutePath());
     }
 
-    s3 = AmazonS3ClientBuilder.standard()
+    Job warm = getWarmJob();
+    if (warm != null) {
+      s3 = warm.s3;
+      tm = warm.tm;
+      tmExecutor = warm.tmExecutor;
+      encryptionKey = warm.encryptionKey;
+      bucket = warm.bucket;
+      kek = warm.getKeyEncryptionKey();
+      borrowedClients = true;
+      return;
+    }
+
+    AmazonS3ClientBuilder s3Builder = AmazonS3ClientBuilder.standard()
         .withRegion(getRequiredProperty("aws.region"))
-        .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(getRequiredProperty("aws.accessKeyId"), getRequiredProperty("aws.secretKeyId"))))
-        .build();
+        .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials(getRequiredProperty("aws.accessKeyId"), getRequiredProperty("aws.secretKeyId"))));
+    BandwidthLimiter bandwidth = getBandwidthLimiter();
+    if (bandwidth != null) {
+      // Throttles every request and response body, including the TransferManager's:
+      s3Builder.withRequestHandlers(bandwidth.asRequestHandler());
+    }
+    s3 = s3Builder.build();
 
+    // Same size as the default pool to start with; with transfer.autotune, each upload sets the threads it's tuned to.
+    tmExecutor = new ThreadPoolExecutor(10, 10, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, "s3-transfer");
+      t.setDaemon(true);
+      return t;
+    });
+    long partSize = getUploadPartSize();
     tm = TransferManagerBuilder.standard()
         .withS3Client(s3)
+        .withExecutorFactory(() -> tmExecutor)
+        .withMinimumUploadPartSize(partSize)
+        .withMultipartUploadThreshold(partSize)
         .build();
 
     encryptionKey = getRequiredProperty(PROP_ENCRYPTION_KEY);
     bucket        = getRequiredProperty("aws.bucket");
+
+    // Pick (and if need be, benchmark) the cipher engine now, rather than in the middle of the first volume:
+    CipherEngine.getConfigured();
   }
 
   /**
@@ -159,6 +264,23 @@ public abstract class Job {
     scratchDir = p_scratchDir;
   }
 
+  /**
+   * @return Directory for temp files (encrypted copies, and the like), from {@code staging.dir}; or the scratch
+   *   dir, if that's not set.  Best on a different disk to the scratch dir, so that encrypted copies of big
+   *   volumes don't fill up the Bareos storage pool.
+   */
+  protected File getStagingDir() {
+    String dir = System.getProperty("staging.dir");
+    if (dir == null || dir.trim().isEmpty()) {
+      return scratchDir;
+    }
+    File fStaging = new File(dir.trim());
+    if (!fStaging.isDirectory() && !fStaging.mkdirs()) {
+      throw new JobFailedException("Could not create staging.dir " + fStaging);
+    }
+    return fStaging;
+  }
+
   /**
    * Set remaining job-specific commandline arguments
    * @param p_args remaining commandline arguments
@@ -174,6 +296,21 @@ public abstract class Job {
    * Shutdown the job and release all resources.
    */
   public void cleanup() {
+    synchronized (this) {
+      for (TransferManager partSizeTm : partSizeTms.values()) {
+        partSizeTm.shutdownNow(false);
+      }
+      partSizeTms.clear();
+    }
+    if (borrowedClients) {
+      return; // Still in use by the warm job.
+    }
+    synchronized (Job.class) {
+      if (warmJob == this) {
+        warmJob = null;
+      }
+    }
+
     if (tm != null) {
       tm.shutdownNow();
     }
@@ -183,12 +320,60 @@ public abstract class Job {
     }
   }
 
+  /**
+   * @return Size of the parts the TransferManager uploads in ({@code backup.partSizeMB}), and the size above
+   *   which it uploads in parts at all
+   */
+  protected static long getUploadPartSize() {
+    return Math.max(MultipartUploadOutputStream.MIN_PART_SIZE, Integer.getInteger("backup.partSizeMB", 16) * 1024L * 1024L);
+  }
+
+  /**
+   * The part size decides a multipart upload's ETag, so uploads that are to be checked against one worked out
+   * beforehand need a TransferManager that's sure to use the same part size.  Files no bigger than a part go up
+   * in one piece; bigger ones in parts of exactly that size, as long as that makes no more than 10,000 of them.
+   *
+   * @return A TransferManager that uploads in parts of the given size
+   */
+  protected synchronized TransferManager getTransferManager(long p_partSize) {
+    if (p_partSize == getUploadPartSize()) {
+      return tm;
+    }
+    return partSizeTms.computeIfAbsent(p_partSize, size -> {
+      TransferManagerBuilder builder = TransferManagerBuilder.standard()
+          .withS3Client(s3)
+          .withMinimumUploadPartSize(size)
+          .withMultipartUploadThreshold(size);
+      if (tmExecutor != null) {
+        builder.withExecutorFactory(() -> tmExecutor).withShutDownThreadPools(false); // Shut down along with tm.
+      }
+      return builder.build();
+    });
+  }
+
+  /**
+   * Share this job's S3 clients and key-encryption key with every job prepared after it, for long-running
+   * processes (the {@code daemon} action): saves building new clients, and re-deriving the key, for every job.
+   * <p>
+   * Call after {@link #prepare()}.  This job's {@link #cleanup()} shuts the shared clients down for good.
+   */
+  public void keepWarm() {
+    getKeyEncryptionKey();
+    synchronized (Job.class) {
+      warmJob = this;
+    }
+  }
+
+  private static synchronized Job getWarmJob() {
+    return warmJob;
+  }
+
   /**
    * @return A new, random AES key for encrypting the file's actual data.
    */
   protected KeyParameter newSessionKey() {
     byte[] key = new byte[AES_KEY_SIZE_BITS / Byte.SIZE];
-    random.nextBytes(key);
+    KeyMaterial.nextBytes(key);
     return new KeyParameter(key);
   }
 
@@ -197,7 +382,7 @@ public abstract class Job {
    */
   protected byte[] newNonce() {
     byte[] nonce = new byte[AES_GCM_NONCE_SIZE_BYTES];
-    random.nextBytes(nonce);
+    KeyMaterial.nextBytes(nonce);
     return nonce;
   }
 
@@ -224,7 +409,8 @@ public abstract class Job {
   }
 
   /**
-   * Create the cipher user to encrypt/decrypt the actual file content.
+   * Create the cipher user to encrypt/decrypt the actual file content, using the
+   * configured {@link CipherEngine}.
    *
    * @param nonce
    *          Nonce generated using {@link #newNonce()}. Not secret, but DO NOT
@@ -232,31 +418,146 @@ public abstract class Job {
    * @param key
    *          Session key generated using {@link #newSessionKey()}
    */
-  protected GCMBlockCipher createSessionDataCipher(KeyParameter key, byte[] nonce, boolean forEncryption) {
-    GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
-    cipher.init(forEncryption, new AEADParameters(key, AEAD_MAC_TAG_SIZE_BITS, nonce));
-    return cipher;
+  protected AeadCipher createSessionDataCipher(KeyParameter key, byte[] nonce, boolean forEncryption) {
+    return createSessionDataCipher(CipherEngine.getConfigured(), key, nonce, forEncryption);
+  }
+
+  /**
+   * Create the cipher user to encrypt/decrypt the actual file content, using a specific {@link CipherEngine}.
+   *
+   * @see #createSessionDataCipher(KeyParameter, byte[], boolean)
+   */
+  protected AeadCipher createSessionDataCipher(CipherEngine engine, KeyParameter key, byte[] nonce, boolean forEncryption) {
+    if (nonce.length != AES_GCM_NONCE_SIZE_BYTES) {
+      throw new IllegalStateException("Nonce length was " + nonce.length + "; expected " + AES_GCM_NONCE_SIZE_BYTES);
+    }
+    return engine.newCipher(forEncryption, key.getKey(), nonce);
+  }
+
+  /**
+   * @return The configured {@link CipherEngine}, unless it needs to buffer whole messages to decrypt them,
+   *   in which case BouncyCastle.  Version 1 files are a single message of up to 64GB!
+   */
+  private static CipherEngine getStreamingEngine() {
+    CipherEngine engine = CipherEngine.getConfigured();
+    return engine.isStreamingDecrypt() ? engine : CipherEngine.BC;
   }
 
   /**
    * Encrypt a file in the current file-format version.
    * <p>
-   * The file format is:
+   * The current file format (version 2) is:
    * <ul>
    * <li>A {@value #HEADER_SIZE}-byte header, containing:<ul>
    *   <li>{@link #MAGIC}</li>
    *   <li>A 16-bit integer (file format version number)</li>
-   *   <li>{@value #AES_GCM_NONCE_SIZE_BYTES} bytes of Nonce (see {@link #newNonce()})</li>
    *   <li>{@value #WRAPPED_AES_KEY_SIZE_BYTES} bytes of encrypted session key, wrapped using AESWrap (see {@link #newSessionKey()} and {@link #wrapKey(KeyParameter)})</li>
+   *   <li>{@value #AES_GCM_NONCE_SIZE_BYTES} bytes of Nonce (see {@link #newNonce()})</li>
+   *   <li>A 32-bit integer: the segment size (bytes of plaintext per segment)</li>
+   *   <li>A 16-bit integer: flags; either zero, or {@link #FLAG_DEFLATE} if the segments are compressed</li>
    *   <li>Zero-padding to fill out the remainder of the file header</li>
- *   </ul></li>
-   * <li>The actual file content, encrypted with AES-GCM (see {@link #createSessionDataCipher(KeyParameter, byte[], boolean)}).</li>
-   * <li>{@value #AEAD_MAC_TAG_SIZE_BITS} bits of AEAD auth tag</li>
+   *   </ul></li>
+   * <li>One or more segments.  Each segment is a full segment's worth of the file content
+   *   (except for the final segment, which may be shorter, or even empty), encrypted separately with AES-GCM,
+   *   and followed by its own {@value #AEAD_MAC_TAG_SIZE_BITS}-bit auth tag.</li>
    * </ul>
+   * Each segment uses a nonce derived from the file's nonce, its position in the file, and whether it's the
+   * final segment (see {@link #deriveSegmentNonce(byte[], long, boolean)}), and authenticates the whole file
+   * header as associated data.  Any segment that is reordered, dropped, duplicated or moved to another file
+   * fails its auth check, as does a file that has been truncated at a segment boundary.
+   * <p>
+   * If {@code compression=deflate} is set (and a sample of the file compresses well enough; see
+   * {@link #getCompressor(File)}), each segment's plaintext is compressed with {@link SegmentCompressor} before
+   * it's encrypted.  Compressed segments vary in length, so each one is preceded by a 32-bit integer: the number
+   * of bytes of ciphertext (including the auth tag) that follow.
+   * <p>
+   * Since every segment stands on its own, segments are encrypted and decrypted in parallel.
+   * <p>
+   * Version 1 files (still written when {@code encryption.fileVersion=1}) have the same header, without the
+   * segment size or flags, followed by the whole file content as a single AES-GCM message and auth tag.
+   *
+   * @return Where each segment landed in the output, for random-access restores; null for version 1 files.
+   */
+  protected SegmentIndex encrypt(File p_in, File p_out) throws FileNotFoundException, IOException {
+    try (FileOutputStream fout = new FileOutputStream(p_out, false)) {
+      return encryptToStream(p_in, fout);
+    }
+  }
+
+  /**
+   * Encrypt a file in the current file-format version, writing the result to a stream.
+   * <p>
+   * The stream is not closed.
+   *
+   * @return Where each segment landed in the output, for random-access restores; null for version 1 files.
+   * @see #encrypt(File, File)
+   */
+  protected SegmentIndex encryptToStream(File p_in, OutputStream p_out) throws FileNotFoundException, IOException {
+    return encryptRangeToStream(p_in, 0, p_in.length(), p_out);
+  }
+
+  /**
+   * Encrypt part of a file in the current file-format version, writing the result to a stream.
+   * <p>
+   * The result is an ordinary encrypted file, holding just {@code p_length} bytes of the input, starting at
+   * {@code p_offset}.  The stream is not closed.
+   *
+   * @return Where each segment landed in the output, for random-access restores; null for version 1 files.
+   * @see #encrypt(File, File)
+   */
+  protected SegmentIndex encryptRangeToStream(File p_in, long p_offset, long p_length, OutputStream p_out) throws FileNotFoundException, IOException {
+    return encryptRangeToStream(p_in, p_offset, p_length, newHeader(p_in, p_offset, p_length), p_out);
+  }
+
+  /**
+   * Encrypt part of a file under a header from {@link #newHeader(File, long, long)}, i.e. with its session key,
+   * nonce, segment size and flags.  The same header and data always give the same ciphertext, which is what lets
+   * an interrupted upload carry on where it left off.  The stream is not closed.
+   *
+   * @return Where each segment landed in the output, for random-access restores; null for version 1 files.
+   * @see #encrypt(File, File)
+   */
+  protected SegmentIndex encryptRangeToStream(File p_in, long p_offset, long p_length, byte[] p_header, OutputStream p_out) throws FileNotFoundException, IOException {
+    return encryptRangeToStream(p_in, p_offset, p_length, p_header, p_out, null);
+  }
+
+  /**
+   * As {@link #encryptRangeToStream(File, long, long, byte[], OutputStream)}, digesting the plaintext on the way
+   * through, so that it needn't be read again to work out its digest.
+   *
+   * @param p_plaintextDigest Updated with every byte of the range, in order; may be null
+   */
+  protected SegmentIndex encryptRangeToStream(File p_in, long p_offset, long p_length, byte[] p_header, OutputStream p_out,
+      Digest p_plaintextDigest) throws FileNotFoundException, IOException {
+    ByteBuffer bbHeader = ByteBuffer.wrap(p_header);
+    byte[] magic = new byte[MAGIC.length];
+    bbHeader.get(magic);
+    if (p_header.length != HEADER_SIZE || !Arrays.equals(magic, MAGIC)) {
+      throw new IllegalArgumentException("Not a file header");
+    }
+
+    if (bbHeader.getShort() == 1) {
+      KeyParameter sessionKey = unwrapSessionKey(bbHeader);
+      byte[] nonce = new byte[AES_GCM_NONCE_SIZE_BYTES];
+      bbHeader.get(nonce);
+      encryptV1(p_in, p_offset, p_length, p_out, sessionKey, nonce, p_header, p_plaintextDigest);
+      return null;
+    } else {
+      SegmentedHeader header = readSegmentedHeader(p_in.getName(), bbHeader);
+      SegmentCompressor compressor = header.isCompressed() ? SegmentCompressor.forLevel(Integer.getInteger("compression.level", 1)) : null;
+      return encryptV2(p_in, p_offset, p_length, p_out, header, compressor, p_plaintextDigest);
+    }
+  }
+
+  /**
+   * Pick a new session key and nonce for encrypting part of a file, and decide how to encrypt it (file version,
+   * segment size, and whether to compress).
+   *
+   * @return The file header, holding all of that (with the session key wrapped)
    */
-  protected void encrypt(File p_in, File p_out) throws FileNotFoundException, IOException {
-    if (p_in.length() > 64 * GIGABYTE) {
-      throw new JobFailedException("Current AES-GCM implementation can't handle files >64GB, sorry!  Consider setting a max volume size on your file device in Bareos.");
+  protected byte[] newHeader(File p_in, long p_offset, long p_length) throws IOException {
+    if (getFileVersionToWrite() == 1 && p_length > 64 * GIGABYTE) {
+      throw new JobFailedException("Version 1 files can't hold more than 64GB, sorry!  Consider setting a max volume size on your file device in Bareos, or use the default encryption.fileVersion.");
     }
 
     KeyParameter sessionKey = newSessionKey();
@@ -269,40 +570,397 @@ public abstract class Job {
       throw new IllegalStateException("Wrapped session key length was " + wrappedSessionKey.length + "; expected " + WRAPPED_AES_KEY_SIZE_BYTES);
     }
 
-    try (FileOutputStream fout = new FileOutputStream(p_out, false)) {
-      fout.write(createHeader(nonce, wrappedSessionKey));
-
-      final byte[] inbuff  = new byte[64 * 1024];
-      final byte[] outbuff = new byte[64 * 1024];
-      CryptoProgressListener listener = new CryptoProgressListener(p_in.getName(), "Encrypt", p_in.length());
-      final GCMBlockCipher cipher = createSessionDataCipher(sessionKey, nonce, true);
-      try (final FileInputStream fin = new FileInputStream(p_in)) {
-        int lenIn;
-        while ( (lenIn = fin.read(inbuff, 0, inbuff.length)) >= 0) {
-          final int lenOut = cipher.processBytes(inbuff, 0, lenIn, outbuff, 0);
-          fout.write(outbuff, 0, lenOut);
-          listener.addBytesProcessed(lenIn);
+    if (getFileVersionToWrite() == 1) {
+      return createHeader((short) 1, nonce, wrappedSessionKey, 0, (short) 0);
+    } else {
+      SegmentCompressor compressor = getCompressor(p_in, p_offset, p_length);
+      return createHeader((short) 2, nonce, wrappedSessionKey, getSegmentSizeToWrite(), compressor == null ? 0 : FLAG_DEFLATE);
+    }
+  }
+
+  /**
+   * Encrypt file version 1.
+   * <p>
+   * The file is read ahead on one thread and the ciphertext written behind on another, so the cipher
+   * (on the calling thread) never waits on the disk.
+   */
+  private void encryptV1(File p_in, long p_offset, long p_length, OutputStream p_out, KeyParameter sessionKey, byte[] nonce, byte[] header,
+      Digest p_plaintextDigest) throws FileNotFoundException, IOException {
+    final BufferPool inPool  = getBufferPool(getIoBufferSize());
+    final BufferPool outPool = getBufferPool(getIoBufferSize() + 2 * AEAD_MAC_TAG_SIZE_BYTES); // Room for any data the cipher held back, plus the tag.
+    final AeadCipher cipher = createSessionDataCipher(sessionKey, nonce, true);
+    CryptoProgressListener listener = new CryptoProgressListener(p_in.getName(), "Encrypt", p_length);
+    try (final FileRangeChannel fin = new FileRangeChannel(p_in, p_offset, p_length);
+         final ReadAheadReader reader = new ReadAheadReader(fin, inPool, getIoDepth(), p_in.getName());
+         final WriteBehindWriter writer = new WriteBehindWriter(Channels.newChannel(p_out), getIoDepth(), p_in.getName())) {
+      writer.write(ByteBuffer.wrap(header), null);
+
+      ByteBuffer inbuff;
+      while ( (inbuff = reader.next()) != null) {
+        final int lenIn = inbuff.remaining();
+        final ByteBuffer outbuff = outPool.acquire();
+        updateDigest(p_plaintextDigest, inbuff);
+        cipher.processBytes(inbuff, outbuff);
+        inPool.release(inbuff);
+        outbuff.flip();
+        writer.write(outbuff, outPool);
+        listener.addBytesProcessed(lenIn);
+      }
+
+      final ByteBuffer outbuff = outPool.acquire();
+      cipher.doFinal(outbuff);
+      outbuff.flip();
+      writer.write(outbuff, outPool);
+    } catch (InvalidCipherTextException e) {
+      throw new IllegalStateException("InvalidCipherTextException is not expected while encrypting!", e);
+    }
+    listener.done();
+  }
+
+  /**
+   * Encrypt file version 2.
+   * <p>
+   * Segments are read ahead on one thread, encrypted on the {@link #getCryptoPool() crypto pool}, and
+   * written back out in order on another.  At most a few segments per pool thread are held in memory at once.
+   */
+  private SegmentIndex encryptV2(File p_in, long p_offset, long p_length, OutputStream p_out, SegmentedHeader p_header, SegmentCompressor compressor,
+      Digest p_plaintextDigest) throws FileNotFoundException, IOException {
+    final KeyParameter sessionKey = p_header.sessionKey;
+    final byte[] nonce = p_header.nonce;
+    final int segmentSize = p_header.segmentSize;
+    final short flags = p_header.flags;
+    final byte[] header = p_header.header;
+    final SegmentIndex segments = new SegmentIndex(nonce, segmentSize, HEADER_SIZE);
+    long plaintextLength = 0;
+
+    // The compressor works on arrays, so compressed segments stay on the heap:
+    final BufferPool inPool  = compressor == null ? getBufferPool(segmentSize) : getBufferPool(segmentSize, false);
+    final BufferPool payloadPool = getBufferPool(segmentSize + 1, false);
+    final BufferPool outPool = getBufferPool(getEncryptedSegmentSize(segmentSize, flags));
+    final ForkJoinPool pool = getCryptoPool();
+    final int window = pool.getParallelism() * 2;
+    final Deque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+    CryptoProgressListener listener = new CryptoProgressListener(p_in.getName(), "Encrypt", p_length);
+    try (final FileRangeChannel fin = new FileRangeChannel(p_in, p_offset, p_length);
+         final ReadAheadReader reader = new ReadAheadReader(fin, inPool, getIoDepth(), p_in.getName());
+         final WriteBehindWriter writer = new WriteBehindWriter(Channels.newChannel(p_out), getIoDepth(), p_in.getName())) {
+      writer.write(ByteBuffer.wrap(header), null);
+
+      ByteBuffer segment = reader.next();
+      if (segment == null) {
+        segment = inPool.acquire(); // An empty file is still one (empty) segment.
+        segment.flip();
+      }
+      for (long index = 0; ; index++) {
+        // A segment is the last one if the file ends inside it, or right after it:
+        ByteBuffer next = null;
+        boolean last = segment.remaining() < segmentSize;
+        if (!last) {
+          next = reader.next();
+          last = next == null;
         }
+
+        final ByteBuffer plaintext = segment;
+        final int plaintextLen = plaintext.remaining();
+        updateDigest(p_plaintextDigest, plaintext); // Here, in order; the segments are encrypted in any order.
+        final long segmentIndex = index;
+        final boolean lastSegment = last;
+        pending.add(CompletableFuture.supplyAsync(() -> {
+          ByteBuffer ciphertext = outPool.acquire();
+          if (compressor == null) {
+            encryptSegment(sessionKey, nonce, header, segmentIndex, lastSegment, plaintext, ciphertext);
+          } else {
+            ByteBuffer payload = payloadPool.acquire();
+            compressor.compress(plaintext, payload);
+            ciphertext.position(Integer.BYTES);
+            encryptSegment(sessionKey, nonce, header, segmentIndex, lastSegment, payload, ciphertext);
+            ciphertext.putInt(0, ciphertext.limit() - Integer.BYTES);
+            payloadPool.release(payload);
+          }
+          inPool.release(plaintext);
+          return ciphertext;
+        }, pool));
+        listener.addBytesProcessed(plaintextLen);
+        plaintextLength += plaintextLen;
+
+        while (pending.size() >= window) {
+          writeSegment(writer, segments, outPool, joinSegment(pending.poll()));
+        }
+
+        if (last) {
+          break;
+        }
+        segment = next;
       }
 
-      final int lenFinal = cipher.doFinal(outbuff, 0);
-      fout.write(outbuff, 0, lenFinal);
-      listener.done();
+      while (!pending.isEmpty()) {
+        writeSegment(writer, segments, outPool, joinSegment(pending.poll()));
+      }
+    } catch (InvalidCipherTextException e) {
+      throw new IllegalStateException("InvalidCipherTextException is not expected while encrypting!", e);
+    } finally {
+      pending.forEach(f -> f.cancel(true));
+    }
+    listener.done();
+    segments.setPlaintextLength(plaintextLength);
+    return segments;
+  }
+
+  private static void writeSegment(WriteBehindWriter p_writer, SegmentIndex p_index, BufferPool p_pool, ByteBuffer p_segment) throws IOException {
+    p_index.addSegment(p_segment.remaining());
+    p_writer.write(p_segment, p_pool);
+  }
+
+  /**
+   * Encrypt one segment of a version 2 file.
+   * @param plaintext The segment's plaintext, from its position to its limit
+   * @param ciphertext Receives the ciphertext, including the auth tag; flipped, ready to write.
+   */
+  private void encryptSegment(KeyParameter key, byte[] nonce, byte[] header, long index, boolean last, ByteBuffer plaintext, ByteBuffer ciphertext) {
+    AeadCipher cipher = createSessionDataCipher(key, deriveSegmentNonce(nonce, index, last), true);
+    cipher.processAADBytes(header, 0, header.length);
+    cipher.processBytes(plaintext, ciphertext);
+    try {
+      cipher.doFinal(ciphertext);
     } catch (InvalidCipherTextException e) {
       throw new IllegalStateException("InvalidCipherTextException is not expected while encrypting!", e);
     }
+    ciphertext.flip();
+  }
+
+  /**
+   * Decrypt and verify one segment of a version 2 file, and decompress it if need be.
+   * @param ciphertext The segment as stored (including its length, if compressed)
+   * @return Plaintext
+   * @throws InvalidCipherTextException if the segment fails its integrity check
+   */
+  protected byte[] decryptSegment(SegmentedHeader header, long index, boolean last, byte[] ciphertext) throws InvalidCipherTextException {
+    ByteBuffer bbCiphertext = ByteBuffer.wrap(ciphertext);
+    if (header.isCompressed()) {
+      if (ciphertext.length < Integer.BYTES || ciphertext.length > header.getEncryptedSegmentSize()
+          || bbCiphertext.getInt() != ciphertext.length - Integer.BYTES) {
+        throw new InvalidCipherTextException("Segment length is corrupt");
+      }
+    }
+
+    ByteBuffer payload = ByteBuffer.allocate(Math.max(0, bbCiphertext.remaining() - AEAD_MAC_TAG_SIZE_BYTES));
+    decryptSegment(header, index, last, bbCiphertext, payload);
+    if (!header.isCompressed()) {
+      return payload.array();
+    }
+
+    ByteBuffer plaintext = ByteBuffer.allocate(header.getSegmentSize());
+    decompressSegment(header, last, payload, plaintext);
+    return Arrays.copyOf(plaintext.array(), plaintext.limit());
+  }
+
+  /**
+   * Decrypt and verify one segment of a version 2 file.
+   * @param ciphertext The segment as stored, including its auth tag, from its position to its limit
+   * @param plaintext Receives the plaintext; flipped, ready to write.
+   * @throws InvalidCipherTextException if the segment fails its integrity check
+   */
+  private void decryptSegment(SegmentedHeader header, long index, boolean last, ByteBuffer ciphertext, ByteBuffer plaintext) throws InvalidCipherTextException {
+    AeadCipher cipher = createSessionDataCipher(header.sessionKey, deriveSegmentNonce(header.nonce, index, last), false);
+    cipher.processAADBytes(header.header, 0, header.header.length);
+    cipher.processBytes(ciphertext, plaintext);
+    cipher.doFinal(plaintext); // <-- checks the auth tag -- VERY IMPORTANT!
+    plaintext.flip();
+  }
+
+  /**
+   * Decompress one (already verified) segment of a compressed version 2 file.
+   * @param plaintext Receives the segment; flipped, ready to write.
+   * @throws InvalidCipherTextException if the segment won't decompress, or decompresses to the wrong size
+   */
+  private static void decompressSegment(SegmentedHeader header, boolean last, ByteBuffer payload, ByteBuffer plaintext) throws InvalidCipherTextException {
+    try {
+      SegmentCompressor.decompress(payload, plaintext);
+    } catch (DataFormatException e) {
+      throw new InvalidCipherTextException("Segment failed to decompress", e);
+    }
+    if (!last && plaintext.remaining() != header.getSegmentSize()) {
+      throw new InvalidCipherTextException("Segment decompressed to " + plaintext.remaining() + " bytes; expected " + header.getSegmentSize());
+    }
+  }
+
+  /**
+   * Derive the nonce for one segment of a version 2 file.
+   * <p>
+   * The segment index is XORed into bytes 7-10 of the file's nonce, and the final-segment flag into byte 11.
+   * Every segment of a file gets a distinct nonce, and since each file has its own random session key,
+   * a nonce is never re-used with the same key.
+   *
+   * @param nonce The file's nonce, from the header
+   * @param index Index of the segment in the file (the first is zero)
+   * @param last Whether this is the final segment of the file
+   */
+  static byte[] deriveSegmentNonce(byte[] nonce, long index, boolean last) {
+    if (index < 0 || index > MAX_SEGMENT_INDEX) {
+      throw new JobFailedException("Too many segments in file (segment index " + index + ")");
+    }
+
+    byte[] segmentNonce = nonce.clone();
+    segmentNonce[7]  ^= (byte) (index >>> 24);
+    segmentNonce[8]  ^= (byte) (index >>> 16);
+    segmentNonce[9]  ^= (byte) (index >>> 8);
+    segmentNonce[10] ^= (byte) index;
+    segmentNonce[11] ^= (byte) (last ? 1 : 0);
+    return segmentNonce;
+  }
+
+  /**
+   * Wait for a segment (or chunk) to finish encrypting/decrypting.
+   * @throws InvalidCipherTextException if the segment failed its integrity check
+   */
+  static <T> T joinSegment(CompletableFuture<T> p_segment) throws InterruptedIOException, InvalidCipherTextException {
+    try {
+      return p_segment.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for crypto");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof InvalidCipherTextException) {
+        throw (InvalidCipherTextException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * @return The shared pool that encrypts and decrypts segments.  Shared across all volumes, so
+   *   parallel volumes don't oversubscribe the CPUs.
+   */
+  private static synchronized ForkJoinPool getCryptoPool() {
+    if (cryptoPool == null) {
+      cryptoPool = new ForkJoinPool(Integer.getInteger("encryption.threads", Runtime.getRuntime().availableProcessors()));
+    }
+    return cryptoPool;
+  }
+
+  /**
+   * @return Size of the I/O buffers for version 1 files.  (Version 2 files are read and written a segment at a time.)
+   */
+  private static int getIoBufferSize() {
+    return Integer.getInteger("io.bufferSizeKB", 256) * 1024;
+  }
+
+  /**
+   * @return How many buffers to read ahead of, and write behind, the cipher.
+   */
+  private static int getIoDepth() {
+    return Integer.getInteger("io.bufferPoolDepth", 4);
+  }
+
+  /**
+   * @return The shared pool of buffers of the given size.  Direct (off-heap) if {@code io.directBuffers} is set.
+   */
+  private static BufferPool getBufferPool(int p_size) {
+    return getBufferPool(p_size, Boolean.getBoolean("io.directBuffers"));
+  }
+
+  /**
+   * @return The shared pool of direct or heap buffers of the given size.
+   */
+  private static synchronized BufferPool getBufferPool(int p_size, boolean p_direct) {
+    return bufferPools.computeIfAbsent(p_direct ? -p_size : p_size, key -> new BufferPool(p_size, p_direct,
+        2 * (getIoDepth() + getCryptoPool().getParallelism() * 2)));
+  }
+
+  /**
+   * Pick the compressor for a file about to be encrypted, per the {@code compression} setting.
+   * <p>
+   * Volumes full of already-compressed (or encrypted) data would only burn CPU, so the start of the data is
+   * trial-compressed first, and the data left uncompressed if the sample doesn't shrink enough.
+   *
+   * @param p_offset Start of the data to be encrypted
+   * @param p_length Length of the data to be encrypted
+   * @return The compressor, or null to leave the file uncompressed
+   */
+  private static SegmentCompressor getCompressor(File p_in, long p_offset, long p_length) throws IOException {
+    String mode = System.getProperty("compression", "none");
+    if ("none".equals(mode)) {
+      return null;
+    } else if (!"deflate".equals(mode)) {
+      throw new JobFailedException("Unsupported compression setting '" + mode + "'; expected none or deflate");
+    }
+
+    SegmentCompressor compressor;
+    try {
+      compressor = SegmentCompressor.forLevel(Integer.getInteger("compression.level", 1));
+    } catch (IllegalArgumentException e) {
+      throw new JobFailedException("compression.level must be between 1 and 9");
+    }
+
+    byte[] sample = new byte[(int) Math.min(COMPRESSION_SAMPLE_SIZE, p_length)];
+    int len;
+    try (InputStream fin = Channels.newInputStream(new FileRangeChannel(p_in, p_offset, sample.length))) {
+      len = readFully(fin, sample);
+    }
+    if (len == 0) {
+      return null;
+    }
+
+    double ratio = compressor.getRatio(sample, len);
+    if (ratio > COMPRESSION_MAX_RATIO) {
+      System.out.println("Not compressing " + p_in.getName() + "; a sample only compressed to " + Math.round(ratio * 100) + "% of its size");
+      return null;
+    }
+    return compressor;
+  }
+
+  private static short getFileVersionToWrite() {
+    return Integer.getInteger("encryption.fileVersion", FILE_VERSION).shortValue();
+  }
+
+  private static int getSegmentSizeToWrite() {
+    int segmentSize = Integer.getInteger("encryption.segmentSizeKB", DEFAULT_SEGMENT_SIZE / 1024) * 1024;
+    if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+      throw new JobFailedException("encryption.segmentSizeKB must be between 1 and " + (MAX_SEGMENT_SIZE / 1024));
+    }
+    return segmentSize;
+  }
+
+  /**
+   * @param p_plaintextLength Length of a file to be encrypted
+   * @return Length of the file after {@link #encrypt(File, File)}, if it's not compressed
+   */
+  protected long getEncryptedLength(long p_plaintextLength) {
+    if (getFileVersionToWrite() == 1) {
+      return HEADER_SIZE + p_plaintextLength + AEAD_MAC_TAG_SIZE_BYTES;
+    }
+
+    int segmentSize = getSegmentSizeToWrite();
+    long segments = Math.max(1, (p_plaintextLength + segmentSize - 1) / segmentSize);
+    return HEADER_SIZE + p_plaintextLength + segments * AEAD_MAC_TAG_SIZE_BYTES;
+  }
+
+  /**
+   * @return Most bytes a full segment can take up in a version 2 file: the auth tag, and for compressed
+   *   files, the length and compression marker too.
+   */
+  private static int getEncryptedSegmentSize(int segmentSize, short flags) {
+    int overhead = AEAD_MAC_TAG_SIZE_BYTES;
+    if ((flags & FLAG_DEFLATE) != 0) {
+      overhead += Integer.BYTES + 1;
+    }
+    return segmentSize + overhead;
   }
 
   /**
    * Assemble the header to be written to the file.
-   * This is always for the current file format version.
    */
-  private byte[] createHeader(byte[] nonce, byte[] wrappedSessionKey) {
+  private byte[] createHeader(short version, byte[] nonce, byte[] wrappedSessionKey, int segmentSize, short flags) {
     ByteBuffer bbHeader = ByteBuffer.allocate(HEADER_SIZE);
     bbHeader.put(MAGIC);
-    bbHeader.putShort(FILE_VERSION);
+    bbHeader.putShort(version);
     bbHeader.put(wrappedSessionKey);
     bbHeader.put(nonce);
+    if (version >= 2) {
+      bbHeader.putInt(segmentSize);
+      bbHeader.putShort(flags);
+    }
     return bbHeader.array();
   }
 
@@ -317,61 +975,235 @@ public abstract class Job {
     }
 
     try (FileInputStream fin = new FileInputStream(p_in)) {
-      ByteBuffer bbHeader = ByteBuffer.allocate(HEADER_SIZE);
-      fin.read(bbHeader.array());
+      decryptFromStream(p_in.getName(), p_in.length(), fin, p_out);
+    }
+  }
 
-      byte[] magic = new byte[MAGIC.length];
-      bbHeader.get(magic);
-      if (!Arrays.equals(magic, MAGIC)) {
-        throw new JobFailedException(p_in.getName() + " doesn't appear to be an encrypted backup file (wrong magic at file start)");
-      }
+  /**
+   * Decrypt an encrypted file, reading the ciphertext from a stream.
+   * <p>
+   * The stream is read to its end, but not closed.
+   *
+   * @param caption Name of the file, for error and progress messages
+   * @param length Expected length of the encrypted data (for progress reporting only)
+   * @param p_in Encrypted file content, starting with the header
+   * @param p_out Decrypted output file.  Deleted if the content fails its integrity check.
+   * @see #encrypt(File, File)
+   */
+  protected void decryptFromStream(String caption, long length, InputStream p_in, File p_out) throws FileNotFoundException, IOException {
+    ByteBuffer bbHeader = ByteBuffer.allocate(HEADER_SIZE);
+    if (readFully(p_in, bbHeader.array()) < HEADER_SIZE) {
+      throw new JobFailedException(caption + " is too short to be an encrypted backup file!");
+    }
 
-      short version = bbHeader.getShort();
-      switch (version) {
-      case 1:
-        decryptV1(p_in.getName(), p_in.length(), fin, p_out, bbHeader);
-        break;
-      default:
-        throw new JobFailedException(p_in.getName() + " uses unsupported file format version " + version);
-      }
+    byte[] magic = new byte[MAGIC.length];
+    bbHeader.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new JobFailedException(caption + " doesn't appear to be an encrypted backup file (wrong magic at file start)");
+    }
+
+    short version = bbHeader.getShort();
+    switch (version) {
+    case 1:
+      decryptV1(caption, length, p_in, p_out, bbHeader);
+      break;
+    case 2:
+      decryptV2(caption, length, p_in, p_out, bbHeader);
+      break;
+    default:
+      throw new JobFailedException(caption + " uses unsupported file format version " + version);
     }
   }
 
   /**
-   * Decrypt file version 1.
+   * Read from a stream until the buffer is full, or the stream ends.
+   * @return Number of bytes read
    */
-  private void decryptV1(String caption, long length, FileInputStream p_fin, File p_out, ByteBuffer p_bbHeader) throws FileNotFoundException, IOException {
-    byte[] wrappedSessionKey = new byte[WRAPPED_AES_KEY_SIZE_BYTES];
-    p_bbHeader.get(wrappedSessionKey);
-    KeyParameter sessionKey;
-    try {
-      sessionKey = unwrapKey(wrappedSessionKey);
-    } catch (InvalidCipherTextException e) {
-      throw new IntegrityCheckFailedException("Failed to unwrap session key (check that your " + PROP_ENCRYPTION_KEY + " setting matches what this file was encrypted with!)", e);
+  protected static int readFully(InputStream p_in, byte[] p_buff) throws IOException {
+    int len = 0;
+    int n;
+    while (len < p_buff.length && (n = p_in.read(p_buff, len, p_buff.length - len)) >= 0) {
+      len += n;
     }
+    return len;
+  }
+
+  /**
+   * Decrypt file version 1.
+   * <p>
+   * As with {@link #encryptV1(File, long, long, OutputStream, KeyParameter, byte[], byte[], Digest)},
+   * reads and writes happen on their own threads.
+   */
+  private void decryptV1(String caption, long length, InputStream p_fin, File p_out, ByteBuffer p_bbHeader) throws FileNotFoundException, IOException {
+    KeyParameter sessionKey = unwrapSessionKey(p_bbHeader);
 
     byte[] nonce = new byte[AES_GCM_NONCE_SIZE_BYTES];
     p_bbHeader.get(nonce);
 
-    final byte[] inbuff  = new byte[64 * 1024];
-    final byte[] outbuff = new byte[64 * 1024];
-    final GCMBlockCipher cipher = createSessionDataCipher(sessionKey, nonce, false);
+    final BufferPool inPool  = getBufferPool(getIoBufferSize());
+    final BufferPool outPool = getBufferPool(getIoBufferSize() + 2 * AEAD_MAC_TAG_SIZE_BYTES);
+    final AeadCipher cipher = createSessionDataCipher(getStreamingEngine(), sessionKey, nonce, false);
     CryptoProgressListener listener = new CryptoProgressListener(caption, "Decrypt", length);
-    try (FileOutputStream fout = new FileOutputStream(p_out, false)) {
-      int lenIn;
-      while ( (lenIn = p_fin.read(inbuff, 0, inbuff.length)) >= 0) {
-        final int lenOut = cipher.processBytes(inbuff, 0, lenIn, outbuff, 0);
-        fout.write(outbuff, 0, lenOut);
+    try (final FileOutputStream fout = new FileOutputStream(p_out, false);
+         final WriteBehindWriter writer = new WriteBehindWriter(fout.getChannel(), getIoDepth(), caption);
+         final ReadAheadReader reader = new ReadAheadReader(Channels.newChannel(p_fin), inPool, getIoDepth(), caption)) {
+      ByteBuffer inbuff;
+      while ( (inbuff = reader.next()) != null) {
+        final int lenIn = inbuff.remaining();
+        final ByteBuffer outbuff = outPool.acquire();
+        cipher.processBytes(inbuff, outbuff);
+        inPool.release(inbuff);
+        outbuff.flip();
+        writer.write(outbuff, outPool);
         listener.addBytesProcessed(lenIn);
       }
 
-      int lenFinal = cipher.doFinal(outbuff, 0);
-      fout.write(outbuff, 0, lenFinal);
-      listener.done();
+      final ByteBuffer outbuff = outPool.acquire();
+      cipher.doFinal(outbuff);
+      outbuff.flip();
+      writer.write(outbuff, outPool);
     } catch (InvalidCipherTextException e) {
       p_out.delete(); // <-- IMPORTANT: Decrypted contents fail auth check; DON'T leave them lying about!
       throw new IntegrityCheckFailedException(p_out.getName() + " failed integrity check!", e);
     }
+    listener.done();
+  }
+
+  /**
+   * Decrypt file version 2.
+   * <p>
+   * Segments are read ahead on one thread, decrypted and verified on the {@link #getCryptoPool() crypto pool},
+   * and written out in order on another.
+   */
+  private void decryptV2(String caption, long length, InputStream p_fin, File p_out, ByteBuffer p_bbHeader) throws FileNotFoundException, IOException {
+    final SegmentedHeader header = readSegmentedHeader(caption, p_bbHeader);
+    final boolean compressed = header.isCompressed();
+    final int encryptedSegmentSize = header.getEncryptedSegmentSize();
+
+    // Compressed segments are read a record at a time, without their length; see encrypt(File, File).
+    final BufferPool inPool  = getBufferPool(compressed ? encryptedSegmentSize - Integer.BYTES : encryptedSegmentSize);
+    final BufferPool payloadPool = getBufferPool(header.getSegmentSize() + 1, false);
+    final BufferPool outPool = compressed ? getBufferPool(header.getSegmentSize(), false) : getBufferPool(header.getSegmentSize());
+    final ForkJoinPool pool = getCryptoPool();
+    final int window = pool.getParallelism() * 2;
+    final Deque<CompletableFuture<ByteBuffer>> pending = new ArrayDeque<>();
+    CryptoProgressListener listener = new CryptoProgressListener(caption, "Decrypt", length);
+    try (final FileOutputStream fout = new FileOutputStream(p_out, false);
+         final WriteBehindWriter writer = new WriteBehindWriter(fout.getChannel(), getIoDepth(), caption);
+         final ReadAheadReader reader = new ReadAheadReader(Channels.newChannel(p_fin), inPool, getIoDepth(), caption, compressed)) {
+      ByteBuffer segment = reader.next();
+      for (long index = 0; ; index++) {
+        if (segment == null || segment.remaining() < AEAD_MAC_TAG_SIZE_BYTES) {
+          throw new InvalidCipherTextException("File is truncated");
+        }
+        // Compressed segments vary in length, so only the end of the file marks the last one:
+        ByteBuffer next = null;
+        boolean last = !compressed && segment.remaining() < encryptedSegmentSize;
+        if (!last) {
+          next = reader.next();
+          last = next == null;
+        }
+
+        final ByteBuffer ciphertext = segment;
+        final int ciphertextLen = ciphertext.remaining();
+        final long segmentIndex = index;
+        final boolean lastSegment = last;
+        pending.add(CompletableFuture.supplyAsync(() -> {
+          ByteBuffer plaintext = outPool.acquire();
+          try {
+            if (!compressed) {
+              decryptSegment(header, segmentIndex, lastSegment, ciphertext, plaintext);
+            } else {
+              ByteBuffer payload = payloadPool.acquire();
+              decryptSegment(header, segmentIndex, lastSegment, ciphertext, payload);
+              decompressSegment(header, lastSegment, payload, plaintext);
+              payloadPool.release(payload);
+            }
+          } catch (InvalidCipherTextException e) {
+            throw new CompletionException(e);
+          }
+          inPool.release(ciphertext);
+          return plaintext;
+        }, pool));
+        listener.addBytesProcessed(ciphertextLen);
+
+        while (pending.size() >= window) {
+          writer.write(joinSegment(pending.poll()), outPool);
+        }
+
+        if (last) {
+          break;
+        }
+        segment = next;
+      }
+
+      while (!pending.isEmpty()) {
+        writer.write(joinSegment(pending.poll()), outPool);
+      }
+    } catch (InvalidCipherTextException e) {
+      p_out.delete(); // <-- IMPORTANT: Decrypted contents fail auth check; DON'T leave them lying about!
+      throw new IntegrityCheckFailedException(p_out.getName() + " failed integrity check!", e);
+    } finally {
+      pending.forEach(f -> f.cancel(true));
+    }
+    listener.done();
+  }
+
+  /**
+   * Parse the header of a version 2 file, and unwrap its session key.
+   *
+   * @param caption Name of the file, for error messages
+   * @param p_header The first {@value #HEADER_SIZE} bytes of the file
+   * @throws JobFailedException if this isn't a version 2 file
+   */
+  protected SegmentedHeader parseSegmentedHeader(String caption, byte[] p_header) {
+    if (p_header.length < HEADER_SIZE) {
+      throw new JobFailedException(caption + " is too short to be an encrypted backup file!");
+    }
+
+    ByteBuffer bbHeader = ByteBuffer.wrap(Arrays.copyOf(p_header, HEADER_SIZE));
+    byte[] magic = new byte[MAGIC.length];
+    bbHeader.get(magic);
+    if (!Arrays.equals(magic, MAGIC)) {
+      throw new JobFailedException(caption + " doesn't appear to be an encrypted backup file (wrong magic at file start)");
+    }
+
+    short version = bbHeader.getShort();
+    if (version != 2) {
+      throw new JobFailedException(caption + " uses file format version " + version + ", which can only be restored in full");
+    }
+    return readSegmentedHeader(caption, bbHeader);
+  }
+
+  /**
+   * Read the rest of a version 2 header, after the magic and version.
+   */
+  private SegmentedHeader readSegmentedHeader(String caption, ByteBuffer p_bbHeader) {
+    KeyParameter sessionKey = unwrapSessionKey(p_bbHeader);
+    byte[] nonce = new byte[AES_GCM_NONCE_SIZE_BYTES];
+    p_bbHeader.get(nonce);
+    int segmentSize = p_bbHeader.getInt();
+    short flags = p_bbHeader.getShort();
+    if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+      throw new IntegrityCheckFailedException(caption + " has a corrupt header (segment size " + segmentSize + ")", null);
+    }
+    if ((flags & ~KNOWN_FLAGS) != 0) {
+      throw new JobFailedException(caption + " uses unsupported file format flags " + flags);
+    }
+    return new SegmentedHeader(p_bbHeader.array(), sessionKey, nonce, segmentSize, flags);
+  }
+
+  /**
+   * Read the wrapped session key from the header, and unwrap it.
+   */
+  private KeyParameter unwrapSessionKey(ByteBuffer p_bbHeader) {
+    byte[] wrappedSessionKey = new byte[WRAPPED_AES_KEY_SIZE_BYTES];
+    p_bbHeader.get(wrappedSessionKey);
+    try {
+      return unwrapKey(wrappedSessionKey);
+    } catch (InvalidCipherTextException e) {
+      throw new IntegrityCheckFailedException("Failed to unwrap session key (check that your " + PROP_ENCRYPTION_KEY + " setting matches what this file was encrypted with!)", e);
+    }
   }
 
   /**
@@ -390,4 +1222,153 @@ public abstract class Job {
     return kek;
   }
 
+  /**
+   * @return How to retry our own S3 requests (multipart parts, ranged GETs, chunks): {@code transfer.retries}
+   *   attempts each, with exponential backoff between them.
+   */
+  protected Retrier getRetrier() {
+    return new Retrier(Integer.getInteger("transfer.retries", 5), Integer.getInteger("transfer.retryBaseMillis", 200),
+        Integer.getInteger("transfer.retryMaxMillis", 20_000), getRequestLimiter());
+  }
+
+  private static synchronized AimdLimiter getRequestLimiter() {
+    if (requestLimiter == null) {
+      requestLimiter = new AimdLimiter(Integer.getInteger("transfer.maxRequests", 64));
+    }
+    return requestLimiter;
+  }
+
+  /**
+   * @return The cap on bytes per second to and from S3, from {@code transfer.maxBytesPerSecond} and
+   *   {@code transfer.bandwidthSchedule}; or null if there's no cap.
+   */
+  private static synchronized BandwidthLimiter getBandwidthLimiter() {
+    if (!bandwidthLimiterLoaded) {
+      try {
+        bandwidthLimiter = BandwidthLimiter.parse(System.getProperty("transfer.maxBytesPerSecond"), System.getProperty("transfer.bandwidthSchedule"));
+      } catch (IllegalArgumentException e) {
+        throw new JobFailedException("Bad transfer.maxBytesPerSecond or transfer.bandwidthSchedule setting: " + e.getMessage());
+      }
+      bandwidthLimiterLoaded = true;
+    }
+    return bandwidthLimiter;
+  }
+
+  /**
+   * @return What keeps track of the disk space reserved for volumes in flight; leaving at least
+   *   {@code staging.minFreeMB} free on each disk.
+   */
+  protected static synchronized DiskSpace getDiskSpace() {
+    if (diskSpace == null) {
+      diskSpace = new DiskSpace(Integer.getInteger("staging.minFreeMB", 0) * 1024L * 1024);
+    }
+    return diskSpace;
+  }
+
+  /**
+   * @return The store for deduplicated volumes, with chunk keys derived from this job's {@code encryption.key}.
+   */
+  synchronized ChunkStore getChunkStore() {
+    if (chunkStore == null) {
+      chunkStore = new ChunkStore(this, getKeyEncryptionKey());
+    }
+    return chunkStore;
+  }
+
+  /**
+   * Key a digest of a volume's plaintext, so that it can be stored next to the ciphertext without letting
+   * anyone confirm a guess at what's in the volume.
+   *
+   * @return The keyed digest, in hex
+   */
+  String macVolumeDigest(byte[] p_digest) {
+    byte[] macKey = hmac(getKeyEncryptionKey(), "volume-digest".getBytes(Charset.forName("ASCII")));
+    return Hex.toHexString(hmac(macKey, p_digest));
+  }
+
+  /**
+   * @return true if objects of the storage class have to be restored from Amazon Glacier before they can be read
+   */
+  static boolean isArchived(String p_storageClass) {
+    return StorageClass.Glacier.toString().equals(p_storageClass) || STORAGE_CLASS_DEEP_ARCHIVE.equals(p_storageClass);
+  }
+
+  /**
+   * @return The keyed digest of the whole volume, as stored in {@value #META_VOLUME_DIGEST}
+   */
+  String digestVolume(File p_volume) throws IOException {
+    long length = p_volume.length();
+    return macVolumeDigest(AppendState.digest(p_volume, length, length)[1]);
+  }
+
+  /**
+   * Update the digest with the buffer's remaining bytes, leaving its position where it was.
+   */
+  private static void updateDigest(Digest p_digest, ByteBuffer p_buff) {
+    if (p_digest == null) {
+      return;
+    }
+    ByteBuffer buff = p_buff.duplicate();
+    if (buff.hasArray()) {
+      p_digest.update(buff.array(), buff.arrayOffset() + buff.position(), buff.remaining());
+      return;
+    }
+    byte[] chunk = new byte[Math.min(buff.remaining(), 64 * 1024)];
+    while (buff.hasRemaining()) {
+      int n = Math.min(chunk.length, buff.remaining());
+      buff.get(chunk, 0, n);
+      p_digest.update(chunk, 0, n);
+    }
+  }
+
+  /**
+   * @return HMAC-SHA256 of the data
+   */
+  static byte[] hmac(byte[] p_key, byte[] p_data) {
+    HMac mac = new HMac(new SHA256Digest());
+    mac.init(new KeyParameter(p_key));
+    mac.update(p_data, 0, p_data.length);
+    byte[] out = new byte[mac.getMacSize()];
+    mac.doFinal(out, 0);
+    return out;
+  }
+
+  /**
+   * The header of a version 2 file, with its session key unwrapped: everything needed to decrypt any one segment.
+   */
+  protected static final class SegmentedHeader {
+    private final byte[] header;
+    private final KeyParameter sessionKey;
+    private final byte[] nonce;
+    private final int segmentSize;
+    private final short flags;
+
+    private SegmentedHeader(byte[] p_header, KeyParameter p_sessionKey, byte[] p_nonce, int p_segmentSize, short p_flags) {
+      header = p_header;
+      sessionKey = p_sessionKey;
+      nonce = p_nonce;
+      segmentSize = p_segmentSize;
+      flags = p_flags;
+    }
+
+    public byte[] getNonce() {
+      return nonce.clone();
+    }
+
+    /** @return Bytes of plaintext per segment */
+    public int getSegmentSize() {
+      return segmentSize;
+    }
+
+    /** @return Bytes per full segment in the file, including the auth tag; or for compressed files, the most a segment can take */
+    public int getEncryptedSegmentSize() {
+      return Job.getEncryptedSegmentSize(segmentSize, flags);
+    }
+
+    /** @return true if the segments are compressed, and vary in length */
+    public boolean isCompressed() {
+      return (flags & FLAG_DEFLATE) != 0;
+    }
+  }
+
 }
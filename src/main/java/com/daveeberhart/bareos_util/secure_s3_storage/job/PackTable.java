@@ -0,0 +1,162 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * The offset table of a pack: an object holding several small volumes from the same job, uploaded with
+ * {@code backup.pack} (as {@code bb-<jobId>-pack-<time>-<n>.pak}).
+ * <p>
+ * A pack is each of its volumes, encrypted just as if it were uploaded on its own, one after another; then this
+ * table, encrypted the same way.  The table's offset is in the object's {@value #META_TABLE_OFFSET} metadata, so
+ * a restore can find it with a HEAD request and one ranged GET, then fetch each volume with a ranged GET of its own.
+ * <p>
+ * Serialized format (before encryption):
+ * <ul>
+ * <li>{@link #MAGIC}</li>
+ * <li>A 16-bit integer (table format version number)</li>
+ * <li>A 32-bit integer: the number of volumes</li>
+ * <li>For each volume: its name (modified UTF-8, as written by {@link DataOutputStream#writeUTF(String)}); 64-bit
+ *   integers for the offset and length of its encrypted copy in the pack, and the volume's own length; then its
+ *   keyed digest (as for {@value Job#META_VOLUME_DIGEST})</li>
+ * </ul>
+ *
+ * @author deberhar
+ */
+public class PackTable {
+  /** User metadata: offset of the (encrypted) table in the pack; it runs to the end of the object. */
+  static final String META_TABLE_OFFSET = "pack-table-offset";
+
+  /** The magic bytes "{@code BAREOS-S3-PAK}".  Used to ID our pack tables. */
+  private static final byte[] MAGIC = "BAREOS-S3-PAK".getBytes(Charset.forName("ASCII"));
+  private static final short TABLE_VERSION = 1;
+
+  private final List<Member> members = new ArrayList<>();
+
+  /**
+   * Add the next volume in the pack.
+   */
+  void add(Member p_member) {
+    members.add(p_member);
+  }
+
+  public List<Member> getMembers() {
+    return Collections.unmodifiableList(members);
+  }
+
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.write(MAGIC);
+      out.writeShort(TABLE_VERSION);
+      out.writeInt(members.size());
+      for (Member member : members) {
+        out.writeUTF(member.volumeName);
+        out.writeLong(member.offset);
+        out.writeLong(member.length);
+        out.writeLong(member.volumeLength);
+        out.writeUTF(member.volumeDigest);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Parse a table written by {@link #toBytes()}.
+   * @param p_caption Name of the pack, for error messages
+   * @param p_bytes The serialized (decrypted) table
+   * @param p_tableOffset Where the table starts in the pack; every volume must end before it
+   */
+  static PackTable fromBytes(String p_caption, byte[] p_bytes, long p_tableOffset) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(p_bytes))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new JobFailedException(p_caption + " doesn't appear to be a pack (wrong magic at table start)");
+      }
+      short version = in.readShort();
+      if (version != TABLE_VERSION) {
+        throw new JobFailedException(p_caption + " uses unsupported pack table format version " + version);
+      }
+
+      int count = in.readInt();
+      if (count < 0 || count > p_bytes.length) {
+        throw new JobFailedException(p_caption + " is corrupt (volume count " + count + ")");
+      }
+
+      PackTable table = new PackTable();
+      for (int i = 0; i < count; i++) {
+        Member member = new Member(in.readUTF(), in.readLong(), in.readLong(), in.readLong(), in.readUTF());
+        if (member.offset < 0 || member.length <= 0 || member.offset + member.length > p_tableOffset || member.volumeLength < 0) {
+          throw new JobFailedException(p_caption + " is corrupt (volume " + member.volumeName + " is out of bounds)");
+        }
+        table.add(member);
+      }
+      return table;
+    } catch (IOException e) {
+      throw new JobFailedException(p_caption + " has a truncated table", e);
+    }
+  }
+
+  /**
+   * One volume in a pack: where to find it, and what it should look like once decrypted.
+   */
+  public static final class Member {
+    private final String volumeName;
+    private final long offset;
+    private final long length;
+    private final long volumeLength;
+    private final String volumeDigest;
+
+    Member(String p_volumeName, long p_offset, long p_length, long p_volumeLength, String p_volumeDigest) {
+      volumeName = p_volumeName;
+      offset = p_offset;
+      length = p_length;
+      volumeLength = p_volumeLength;
+      volumeDigest = p_volumeDigest;
+    }
+
+    public String getVolumeName() {
+      return volumeName;
+    }
+
+    /** @return Where the volume's encrypted copy starts in the pack */
+    public long getOffset() {
+      return offset;
+    }
+
+    /** @return Bytes of the pack the encrypted copy takes up */
+    public long getLength() {
+      return length;
+    }
+
+    /** @return Length of the volume itself */
+    public long getVolumeLength() {
+      return volumeLength;
+    }
+
+    /** @return Keyed digest of the volume; see {@link Job#macVolumeDigest(byte[])} */
+    public String getVolumeDigest() {
+      return volumeDigest;
+    }
+
+    @Override
+    public String toString() {
+      return volumeName + " @" + offset;
+    }
+  }
+
+}
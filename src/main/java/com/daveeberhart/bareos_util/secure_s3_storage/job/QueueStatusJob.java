@@ -0,0 +1,59 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
+
+/**
+ * Show what's waiting in the spool queue ({@code backup.enqueue}): how many backups and volumes, and how many
+ * bytes of them are still to upload; then each backup, with any failed attempts.
+ *
+ * @author deberhar
+ */
+public class QueueStatusJob extends Job {
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#setRemainingArgs(java.util.List)
+   */
+  @Override
+  public void setRemainingArgs(List<String> p_args) {
+    if (!p_args.isEmpty()) {
+      throw new BadArgsException("queue-status takes no arguments besides the scratch dir");
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#prepare()
+   */
+  @Override
+  public void prepare() {
+    // Only reads the queue; no S3 clients needed.
+  }
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#run()
+   */
+  @Override
+  public void run() {
+    SpoolQueue queue = new SpoolQueue(scratchDir);
+    List<SpoolQueue.Entry> entries = queue.list();
+    long now = System.currentTimeMillis();
+    int volumes = entries.stream().mapToInt(e -> e.getVolumes().size()).sum();
+    long bytes = entries.stream().mapToLong(e -> e.getBacklogBytes(scratchDir)).sum();
+    System.out.println("Spool queue in " + queue.getDir() + ": " + entries.size() + " backups, " + volumes + " volumes, " + bytes + " bytes waiting");
+    for (SpoolQueue.Entry entry : entries) {
+      StringBuilder line = new StringBuilder("  job ").append(entry.getJobId())
+          .append(": ").append(entry.getVolumes().size()).append(" volumes, ").append(entry.getBacklogBytes(scratchDir)).append(" bytes")
+          .append(", queued ").append(Instant.ofEpochMilli(entry.getQueuedTime()))
+          .append(" (").append(TimeUnit.MILLISECONDS.toMinutes(now - entry.getQueuedTime())).append(" min ago)");
+      if (entry.getAttempts() > 0) {
+        line.append("; ").append(entry.getAttempts()).append(" failed attempts, next at ").append(Instant.ofEpochMilli(entry.getNextAttemptTime()))
+            .append("; last error: ").append(entry.getLastError());
+      }
+      System.out.println(line);
+    }
+  }
+
+}
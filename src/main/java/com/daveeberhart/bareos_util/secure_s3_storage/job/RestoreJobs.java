@@ -1,18 +1,17 @@
 package com.daveeberhart.bareos_util.secure_s3_storage.job;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Map.Entry;
 
-import com.amazonaws.services.s3.model.ObjectListing;
-import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.JobNotFoundException;
 
 /**
- * Restore all volumes uploaded as part of a list of jobIds.
+ * Restore all volumes uploaded as part of a list of jobIds.  The jobs are listed concurrently, and the listings
+ * are all most volumes need; see {@link AbstractRestoreJob#restore(Map, java.util.Set)}.
  *
  * @author deberhar
  */
@@ -24,9 +23,9 @@ public class RestoreJobs extends AbstractRestoreJob {
    */
   @Override
   public void setRemainingArgs(List<String> p_args) {
-    jobIds = p_args;
+    jobIds = parseOptions(p_args);
 
-    for (String jobId : p_args) {
+    for (String jobId : jobIds) {
       if (!jobId.matches("[0-9]+")) {
         throw new BadArgsException("Malformed jobId (should be numeric): " + jobId);
       }
@@ -39,31 +38,20 @@ public class RestoreJobs extends AbstractRestoreJob {
   @Override
   public void run() {
     System.out.println("Now searching for S3 objects for job(s): " + jobIds);
-    List<String> keys = new ArrayList<>();
-    for (String jobId : jobIds) {
-      ObjectListing listing = s3.listObjects(bucket, "bb-" + jobId + "-");
-      if (listing.getObjectSummaries().isEmpty() && !listing.isTruncated()) {
-        throw new JobNotFoundException("Could not find any volumes for job " + jobId);
-      }
-
-      listing.getObjectSummaries().stream().map(S3ObjectSummary::getKey).forEach(keys::add);
-      while (listing.isTruncated()) {
-        listing = s3.listNextBatchOfObjects(listing);
-        listing.getObjectSummaries().stream().map(S3ObjectSummary::getKey).forEach(keys::add);
+    Map<String, S3ObjectSummary> objects = new LinkedHashMap<>();
+    for (Entry<String, List<S3ObjectSummary>> listing : inParallel(jobIds, this::listJob).entrySet()) {
+      if (listing.getValue().isEmpty()) {
+        throw new JobNotFoundException("Could not find any volumes for job " + listing.getKey());
       }
+      listing.getValue().forEach(summary -> objects.put(summary.getKey(), summary));
     }
 
-    System.out.println("Found the following " + keys.size() + " objects to be restored:");
-    for (String key : keys) {
+    System.out.println("Found the following " + objects.size() + " objects to be restored:");
+    for (String key : objects.keySet()) {
       System.out.println("  " + key);
     }
     System.out.println();
 
-    System.out.println("Checking statuses of the objects...");
-    Map<String, ObjectMetadata> objects = keys.parallelStream().collect(Collectors.toMap(
-        key -> key,
-        key -> s3.getObjectMetadata(bucket, key)
-    ));
     restore(objects);
   }
 
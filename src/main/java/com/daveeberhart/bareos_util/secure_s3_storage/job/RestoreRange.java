@@ -0,0 +1,239 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.util.IOUtils;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.VolumeMissingException;
+
+/**
+ * Restore a byte range from a single volume, downloading only the segments that cover it.
+ * <p>
+ * Takes a jobId-VOLNAME pair, a byte offset into the (decrypted) volume, and a length.  The range is
+ * written to {@code VOLNAME.range-OFFSET-LENGTH} in the scratch dir.
+ * <p>
+ * Only works for volumes written in file format version 2 (the default); older volumes are a single
+ * AES-GCM message, which can't be verified without reading the whole thing.
+ * <p>
+ * For volumes uploaded with {@code backup.appendable}, the range is fetched from whichever object holds it;
+ * a range that crosses from one object into the next has to be restored in two parts.
+ *
+ * @author deberhar
+ */
+public class RestoreRange extends Job {
+  private static final Pattern ARG_PATTERN = Pattern.compile("([0-9]+)-(.+)");
+
+  private String jobDashVolumeName;
+  private String volumeName;
+  private long offset;
+  private long length;
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#setRemainingArgs(java.util.List)
+   */
+  @Override
+  public void setRemainingArgs(List<String> p_args) {
+    if (p_args.size() != 3) {
+      throw new BadArgsException("Expected a jobId-VOLNAME pair, a byte offset and a length");
+    }
+
+    jobDashVolumeName = p_args.get(0);
+    Matcher m = ARG_PATTERN.matcher(jobDashVolumeName);
+    if (!m.matches()) {
+      throw new BadArgsException("Expected jobId-VOLNAME; was " + jobDashVolumeName);
+    }
+    volumeName = m.group(2);
+
+    try {
+      offset = Long.parseLong(p_args.get(1));
+      length = Long.parseLong(p_args.get(2));
+    } catch (NumberFormatException e) {
+      throw new BadArgsException("Offset and length must be numeric; were " + p_args.get(1) + " and " + p_args.get(2));
+    }
+    if (offset < 0 || length <= 0) {
+      throw new BadArgsException("Offset must not be negative, and length must be positive");
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see com.daveeberhart.bareos_util.secure_s3_storage.job.Job#run()
+   */
+  @Override
+  public void run() {
+    String key = "bb-" + jobDashVolumeName + ".enc";
+    ObjectMetadata mdata = getObjectMetadata(key);
+
+    // Find the object holding the start of the range, if the volume was appended to:
+    long pieceStart = getAppendOffset(key, mdata);
+    long pieceEnd = Long.MAX_VALUE;
+    for (int i = 0; offset < pieceStart; i++) {
+      if (i > AppendState.MAX_CHAIN) {
+        throw new JobFailedException("Volume " + volumeName + " is appended to itself in a loop (at " + key + ")?!");
+      }
+      key = mdata.getUserMetaDataOf(AppendState.META_APPEND_TO);
+      mdata = getObjectMetadata(key);
+      pieceEnd = pieceStart;
+      pieceStart = getAppendOffset(key, mdata);
+    }
+    long pieceOffset = offset - pieceStart;
+
+    if (isArchived(mdata.getStorageClass()) && mdata.getRestoreExpirationTime() == null) {
+      throw new JobFailedException("Object " + key + " is in Amazon Glacier.  Bring it back into S3 with restore-volumes first.");
+    }
+    long objectLength = mdata.getContentLength();
+
+    SegmentedHeader header = parseSegmentedHeader(key, fetchHeader(key));
+    SegmentIndex index = loadIndex(key, header, objectLength);
+    if (pieceEnd != Long.MAX_VALUE && pieceStart + index.getPlaintextLength() != pieceEnd) {
+      throw new IntegrityCheckFailedException(key + " holds " + index.getPlaintextLength() + " bytes of " + volumeName + ", but the next piece starts at "
+          + pieceEnd, null);
+    }
+    if (pieceOffset >= index.getPlaintextLength()) {
+      throw new JobFailedException("Volume " + volumeName + " is only " + (pieceStart + index.getPlaintextLength()) + " bytes long");
+    }
+    if (pieceOffset + length > index.getPlaintextLength() && pieceEnd != Long.MAX_VALUE) {
+      throw new JobFailedException("Range crosses from " + key + " into the next piece of " + volumeName + " at offset " + pieceEnd
+          + "; restore it in two parts.");
+    }
+
+    long end = Math.min(pieceOffset + length, index.getPlaintextLength());
+    int first = (int) (pieceOffset / header.getSegmentSize());
+    int last = (int) ((end - 1) / header.getSegmentSize());
+    if (end < pieceOffset + length && last != index.getSegmentCount() - 1) {
+      // Only the final segment can prove where the volume ends; don't let a bad index silently cut the range short.
+      throw new IntegrityCheckFailedException(SegmentIndex.getIndexKey(key) + " is corrupt (plaintext length doesn't match its segments)", null);
+    }
+    long rangeStart = index.getSegmentOffset(first);
+    long rangeEnd = index.getSegmentOffset(last + 1);
+    File output = new File(scratchDir, volumeName + ".range-" + offset + "-" + (end - pieceOffset));
+
+    System.out.println("Downloading and decrypting " + (rangeEnd - rangeStart) + " of " + objectLength + " bytes of " + key);
+    String objectKey = key;
+    int[] next = { first };
+    try (FileOutputStream fout = new FileOutputStream(output, false)) {
+      // A dropped connection only costs the segment it dropped in; the retry picks up from there:
+      getRetrier().call("bytes " + index.getSegmentOffset(next[0]) + "-" + (rangeEnd - 1) + " of " + key, () -> {
+        GetObjectRequest req = new GetObjectRequest(bucket, objectKey).withRange(index.getSegmentOffset(next[0]), rangeEnd - 1);
+        try (S3Object obj = s3.getObject(req);
+             InputStream in = obj.getObjectContent()) {
+          for (; next[0] <= last; next[0]++) {
+            int i = next[0];
+            byte[] ciphertext = new byte[index.getEncryptedSegmentLength(i)];
+            if (readFully(in, ciphertext) < ciphertext.length) {
+              throw new IOException("Download of " + objectKey + " ended early");
+            }
+            byte[] plaintext;
+            try {
+              plaintext = decryptSegment(header, i, i == index.getSegmentCount() - 1, ciphertext);
+            } catch (InvalidCipherTextException e) {
+              throw new IntegrityCheckFailedException(output.getName() + " failed integrity check!", e);
+            }
+
+            long segmentStart = (long) i * header.getSegmentSize();
+            int from = (int) Math.max(0, pieceOffset - segmentStart);
+            int to = (int) Math.min(plaintext.length, end - segmentStart);
+            fout.write(plaintext, from, to - from);
+          }
+        }
+        return null;
+      });
+    } catch (IOException e) {
+      output.delete();
+      throw new UncheckedIOException(e);
+    } catch (RuntimeException e) {
+      output.delete(); // <-- IMPORTANT: Decrypted contents that failed their auth check; DON'T leave them lying about!
+      throw e;
+    }
+
+    System.out.println("[OK] Restored " + (end - pieceOffset) + " bytes of " + volumeName + " to " + output);
+  }
+
+  /**
+   * @return Offset into the volume where the object's content starts; 0 unless it's an appended tail.
+   */
+  private static long getAppendOffset(String key, ObjectMetadata mdata) {
+    String appendOffset = mdata.getUserMetaDataOf(AppendState.META_APPEND_OFFSET);
+    if (mdata.getUserMetaDataOf(AppendState.META_APPEND_TO) == null || appendOffset == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(appendOffset);
+    } catch (NumberFormatException e) {
+      throw new JobFailedException("Object " + key + " has a corrupt " + AppendState.META_APPEND_OFFSET + " in its metadata");
+    }
+  }
+
+  private ObjectMetadata getObjectMetadata(String key) {
+    try {
+      return s3.getObjectMetadata(bucket, key);
+    } catch (AmazonS3Exception e) {
+      if (e.getMessage() != null && e.getMessage().startsWith("Not Found")) {
+        throw new VolumeMissingException("Could not find S3 object " + key + "; check for typos in the jobId-VOLNAME pair.");
+      }
+      throw e;
+    }
+  }
+
+  private byte[] fetchHeader(String key) {
+    byte[] header = new byte[HEADER_SIZE];
+    try {
+      getRetrier().call("header of " + key, () -> {
+        GetObjectRequest req = new GetObjectRequest(bucket, key).withRange(0, HEADER_SIZE - 1);
+        try (S3Object obj = s3.getObject(req);
+             InputStream in = obj.getObjectContent()) {
+          if (readFully(in, header) < HEADER_SIZE) {
+            throw new JobFailedException(key + " is too short to be an encrypted backup file!");
+          }
+        }
+        return null;
+      });
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return header;
+  }
+
+  /**
+   * Fetch the volume's segment index.  Uncompressed volumes without an index (or with a stale one) have segments
+   * that are all the same size, so the index can be worked out from the volume's length instead.
+   */
+  private SegmentIndex loadIndex(String key, SegmentedHeader header, long objectLength) {
+    String indexKey = SegmentIndex.getIndexKey(key);
+    try (S3Object obj = s3.getObject(bucket, indexKey);
+         InputStream in = obj.getObjectContent()) {
+      SegmentIndex index = SegmentIndex.fromBytes(indexKey, IOUtils.toByteArray(in), AES_GCM_NONCE_SIZE_BYTES);
+      if (index.matches(header.getNonce(), header.getSegmentSize()) && index.getSegmentOffset(index.getSegmentCount()) == objectLength) {
+        return index;
+      }
+      System.err.println("Warning: ignoring " + indexKey + "; it doesn't match the current " + key);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() != 404) {
+        throw e;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    if (header.isCompressed()) {
+      // Compressed segments vary in length, so there's no working out where they are:
+      throw new JobFailedException(key + " is compressed, and has no usable index; restore the whole volume instead.");
+    }
+    return SegmentIndex.forUniformSegments(header.getNonce(), header.getSegmentSize(), header.getEncryptedSegmentSize(), HEADER_SIZE, objectLength);
+  }
+
+}
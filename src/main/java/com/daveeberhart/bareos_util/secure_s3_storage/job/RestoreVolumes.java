@@ -1,17 +1,25 @@
 package com.daveeberhart.bareos_util.secure_s3_storage.job;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
-import com.amazonaws.services.s3.model.AmazonS3Exception;
-import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.VolumeMissingException;
 
 /**
- * Restore a list of jobId-VOLNAME tuples.
+ * Restore a list of jobId-VOLNAME tuples.  Their jobs are listed (concurrently), rather than each volume
+ * HEADed in turn.  Volumes that were packed with others ({@code backup.pack}) are found by reading the tables of
+ * their job's packs.
  *
  * @author deberhar
  */
@@ -23,7 +31,7 @@ public class RestoreVolumes extends AbstractRestoreJob {
    */
   @Override
   public void setRemainingArgs(List<String> p_args) {
-    jobDashVolumeNames = p_args;
+    jobDashVolumeNames = parseOptions(p_args);
   }
 
   /* (non-Javadoc)
@@ -32,19 +40,41 @@ public class RestoreVolumes extends AbstractRestoreJob {
   @Override
   public void run() {
     List<String> notFound = new ArrayList<>();
-    Map<String,ObjectMetadata> objectsToRestore = new LinkedHashMap<>();
+    Map<String,S3ObjectSummary> objectsToRestore = new LinkedHashMap<>();
+    Set<String> packMembers = new HashSet<>();
 
     System.out.println("Now checking status of S3 objects: " + jobDashVolumeNames);
+    Set<String> jobIds = jobDashVolumeNames.stream().map(RestoreVolumes::getJobId).filter(Objects::nonNull).collect(Collectors.toCollection(LinkedHashSet::new));
+    Map<String, S3ObjectSummary> listed = new HashMap<>();
+    Map<String, List<String>> packKeysByJob = new HashMap<>();
+    for (Entry<String, List<S3ObjectSummary>> listing : inParallel(jobIds, this::listJob).entrySet()) {
+      List<String> packKeys = new ArrayList<>();
+      for (S3ObjectSummary summary : listing.getValue()) {
+        listed.put(summary.getKey(), summary);
+        if (summary.getKey().startsWith("bb-" + listing.getKey() + "-pack-") && summary.getKey().endsWith(PACK_SUFFIX)) {
+          packKeys.add(summary.getKey());
+        }
+      }
+      packKeysByJob.put(listing.getKey(), packKeys);
+    }
+
     for (String volume : jobDashVolumeNames) {
       String key = "bb-" + volume + ".enc";
-      try {
-        ObjectMetadata mdata = s3.getObjectMetadata(bucket, key);
-        objectsToRestore.put(key, mdata);
-      } catch (AmazonS3Exception e) {
-        if (e.getMessage() != null && e.getMessage().startsWith("Not Found")) {
+      String recipeKey = "bb-" + volume + ".rcp"; // Maybe it was uploaded with backup.dedup
+      if (listed.containsKey(key)) {
+        objectsToRestore.put(key, listed.get(key));
+      } else if (listed.containsKey(recipeKey)) {
+        objectsToRestore.put(recipeKey, listed.get(recipeKey));
+      } else {
+        // Or packed with other volumes from its job, with backup.pack:
+        List<String> packKeys = packKeysByJob.getOrDefault(getJobId(volume), Collections.emptyList());
+        if (packKeys.isEmpty()) {
           notFound.add(key);
         } else {
-          throw e;
+          packMembers.add(volume);
+          for (String packKey : packKeys) {
+            objectsToRestore.putIfAbsent(packKey, listed.get(packKey));
+          }
         }
       }
     }
@@ -60,7 +90,16 @@ public class RestoreVolumes extends AbstractRestoreJob {
       );
     }
 
-    restore(objectsToRestore);
+    restore(objectsToRestore, packMembers);
+  }
+
+  /**
+   * @return The jobId part of jobId-VOLNAME; or null if there isn't one
+   */
+  private static String getJobId(String p_jobDashVolumeName) {
+    int dash = p_jobDashVolumeName.indexOf('-');
+    String jobId = dash > 0 ? p_jobDashVolumeName.substring(0, dash) : null;
+    return jobId != null && jobId.matches("[0-9]+") ? jobId : null;
   }
 
 
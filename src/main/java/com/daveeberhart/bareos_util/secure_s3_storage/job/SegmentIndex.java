@@ -0,0 +1,203 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * Where each segment of a version 2 file starts, so that a byte range can be restored without
+ * downloading the whole object.
+ * <p>
+ * The index is uploaded next to each object, under the key {@link #getIndexKey(String)}.  It holds no
+ * secrets: every segment is still authenticated when it's decrypted, so a corrupt or stale index can
+ * only make a range restore fail, never return the wrong data.
+ * <p>
+ * Serialized format:
+ * <ul>
+ * <li>{@link #MAGIC}</li>
+ * <li>A 16-bit integer (index format version number)</li>
+ * <li>The nonce from the header of the object this indexes, to detect a stale index</li>
+ * <li>A 32-bit integer: the segment size</li>
+ * <li>A 64-bit integer: the plaintext length</li>
+ * <li>A 32-bit integer: the number of segments</li>
+ * <li>One 64-bit offset per segment, plus the offset of the end of the object</li>
+ * </ul>
+ *
+ * @author deberhar
+ */
+public class SegmentIndex {
+  /** The magic bytes "{@code BAREOS-S3-IDX}".  Used to ID our index files. */
+  private static final byte[] MAGIC = "BAREOS-S3-IDX".getBytes(Charset.forName("ASCII"));
+  private static final short INDEX_VERSION = 1;
+  private static final String KEY_PREFIX = "index/";
+
+  private final byte[] nonce;
+  private final int segmentSize;
+  private long plaintextLength;
+  private long[] offsets;
+  private int segmentCount;
+
+  /**
+   * Start an empty index.
+   * @param p_nonce Nonce from the header of the indexed file
+   * @param p_segmentSize Segment size from the header of the indexed file
+   * @param p_firstOffset Offset of the first segment (i.e. the header size)
+   */
+  SegmentIndex(byte[] p_nonce, int p_segmentSize, long p_firstOffset) {
+    nonce = p_nonce.clone();
+    segmentSize = p_segmentSize;
+    offsets = new long[64];
+    offsets[0] = p_firstOffset;
+  }
+
+  /**
+   * Build the index of a file whose segments are all the same size on disk, from the file's length.
+   * @param p_nonce Nonce from the header of the file
+   * @param p_segmentSize Segment size from the header of the file
+   * @param p_encryptedSegmentSize Size of a full segment, including its auth tag
+   * @param p_headerSize Size of the file's header
+   * @param p_objectLength Length of the whole file
+   */
+  static SegmentIndex forUniformSegments(byte[] p_nonce, int p_segmentSize, int p_encryptedSegmentSize, int p_headerSize, long p_objectLength) {
+    int tagSize = p_encryptedSegmentSize - p_segmentSize;
+    long body = p_objectLength - p_headerSize;
+    if (body < tagSize) {
+      throw new JobFailedException("Encrypted file is truncated (" + p_objectLength + " bytes)");
+    }
+
+    SegmentIndex index = new SegmentIndex(p_nonce, p_segmentSize, p_headerSize);
+    long segments = Math.max(1, (body + p_encryptedSegmentSize - 1) / p_encryptedSegmentSize);
+    for (long i = 0; i < segments - 1; i++) {
+      index.addSegment(p_encryptedSegmentSize);
+    }
+    index.addSegment((int) (body - (segments - 1) * p_encryptedSegmentSize));
+    index.setPlaintextLength(body - segments * tagSize);
+    return index;
+  }
+
+  /**
+   * @param p_objectKey Key of an encrypted volume in S3
+   * @return Key of that volume's index
+   */
+  public static String getIndexKey(String p_objectKey) {
+    return KEY_PREFIX + p_objectKey;
+  }
+
+  /**
+   * Record the next segment.
+   * @param p_encryptedLength Length of the segment on disk, including its auth tag
+   */
+  void addSegment(int p_encryptedLength) {
+    if (segmentCount + 1 == offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+    offsets[segmentCount + 1] = offsets[segmentCount] + p_encryptedLength;
+    segmentCount++;
+  }
+
+  void setPlaintextLength(long p_plaintextLength) {
+    plaintextLength = p_plaintextLength;
+  }
+
+  /**
+   * @return true if this index belongs to the file with the given nonce and segment size
+   */
+  boolean matches(byte[] p_nonce, int p_segmentSize) {
+    return Arrays.equals(nonce, p_nonce) && segmentSize == p_segmentSize;
+  }
+
+  public int getSegmentSize() {
+    return segmentSize;
+  }
+
+  public long getPlaintextLength() {
+    return plaintextLength;
+  }
+
+  public int getSegmentCount() {
+    return segmentCount;
+  }
+
+  /**
+   * @return Offset in the file of the start of a segment.  Passing the segment count gives the end of the last segment.
+   */
+  public long getSegmentOffset(int p_segment) {
+    if (p_segment < 0 || p_segment > segmentCount) {
+      throw new IndexOutOfBoundsException("Segment " + p_segment + " of " + segmentCount);
+    }
+    return offsets[p_segment];
+  }
+
+  /**
+   * @return Length of a segment in the file, including its auth tag
+   */
+  public int getEncryptedSegmentLength(int p_segment) {
+    return (int) (getSegmentOffset(p_segment + 1) - getSegmentOffset(p_segment));
+  }
+
+  public byte[] toBytes() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 8 * (segmentCount + 1));
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.write(MAGIC);
+      out.writeShort(INDEX_VERSION);
+      out.write(nonce);
+      out.writeInt(segmentSize);
+      out.writeLong(plaintextLength);
+      out.writeInt(segmentCount);
+      for (int i = 0; i <= segmentCount; i++) {
+        out.writeLong(offsets[i]);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Parse an index written by {@link #toBytes()}.
+   * @param p_caption Name of the index, for error messages
+   * @param p_bytes The serialized index
+   * @param p_nonceSize Size of the nonce in the index
+   */
+  static SegmentIndex fromBytes(String p_caption, byte[] p_bytes, int p_nonceSize) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(p_bytes))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new JobFailedException(p_caption + " doesn't appear to be a segment index (wrong magic at file start)");
+      }
+      short version = in.readShort();
+      if (version != INDEX_VERSION) {
+        throw new JobFailedException(p_caption + " uses unsupported index format version " + version);
+      }
+
+      byte[] nonce = new byte[p_nonceSize];
+      in.readFully(nonce);
+      SegmentIndex index = new SegmentIndex(nonce, in.readInt(), 0);
+      index.setPlaintextLength(in.readLong());
+      int count = in.readInt();
+      if (count <= 0 || count > (p_bytes.length / 8)) {
+        throw new JobFailedException(p_caption + " is corrupt (segment count " + count + ")");
+      }
+      index.offsets = new long[count + 1];
+      for (int i = 0; i <= count; i++) {
+        index.offsets[i] = in.readLong();
+        if (i > 0 && index.offsets[i] < index.offsets[i - 1]) {
+          throw new JobFailedException(p_caption + " is corrupt (segment offsets out of order)");
+        }
+      }
+      index.segmentCount = count;
+      return index;
+    } catch (IOException e) {
+      throw new JobFailedException(p_caption + " is truncated", e);
+    }
+  }
+
+}
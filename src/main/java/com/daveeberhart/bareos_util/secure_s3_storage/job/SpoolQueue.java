@@ -0,0 +1,212 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backups waiting to be uploaded, with {@code backup.enqueue}: so that Bareos' post-run script returns as soon as
+ * the volumes are recorded, rather than holding the job open for the whole upload.  The {@code drain} action
+ * ({@link DrainJob}) uploads them later.
+ * <p>
+ * Kept in {@code <scratchDir>/.s3-spool/}, one {@code <time>-<jobId>-<n>.job} properties file per backup: the job
+ * ID, its volumes, and how many attempts to upload them have failed.  Each file is written to a temp file and
+ * synced first, so a crash never loses a queued backup, nor leaves a half-written one.  Backups are uploaded in the
+ * order they were queued.
+ *
+ * @author deberhar
+ */
+class SpoolQueue {
+  static final String SPOOL_DIR = ".s3-spool";
+  private static final String SUFFIX = ".job";
+  private static final String LOCK_FILE = ".lock";
+  /** Longest wait before retrying a failed backup, however often it's failed. */
+  private static final long MAX_RETRY_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+  private final File dir;
+
+  SpoolQueue(File p_scratchDir) {
+    dir = new File(p_scratchDir, SPOOL_DIR);
+  }
+
+  /**
+   * Queue a backup's volumes for upload.
+   */
+  Entry enqueue(String p_jobId, List<String> p_volumes) throws IOException {
+    Files.createDirectories(dir.toPath());
+    String name = String.format("%013d-%s-%04d", System.currentTimeMillis(), p_jobId, ThreadLocalRandom.current().nextInt(10000));
+    Entry entry = new Entry(new File(dir, name + SUFFIX));
+    entry.jobId = p_jobId;
+    entry.volumes = new ArrayList<>(p_volumes);
+    entry.queuedTime = System.currentTimeMillis();
+    entry.save();
+    return entry;
+  }
+
+  /**
+   * @return Every queued backup, oldest first
+   */
+  List<Entry> list() {
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+    if (files == null) {
+      return Collections.emptyList();
+    }
+    Arrays.sort(files);
+    List<Entry> entries = new ArrayList<>();
+    for (File file : files) {
+      try {
+        entries.add(Entry.load(file));
+      } catch (IOException | RuntimeException e) {
+        System.err.println("Warning: skipping unreadable queue entry " + file + " (" + e.getMessage() + ")");
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Make sure only one process drains the queue at a time.
+   *
+   * @return The lock, to be closed once done; or null if another process holds it already
+   */
+  FileLock tryLock() throws IOException {
+    Files.createDirectories(dir.toPath());
+    FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock lock = channel.tryLock();
+    if (lock == null) {
+      channel.close();
+    }
+    return lock;
+  }
+
+  File getDir() {
+    return dir;
+  }
+
+  /**
+   * One queued backup.
+   */
+  static final class Entry {
+    private final File file;
+    private String jobId;
+    private List<String> volumes;
+    private long queuedTime;
+    private int attempts;
+    private long nextAttemptTime;
+    private String lastError;
+
+    private Entry(File p_file) {
+      file = p_file;
+    }
+
+    private static Entry load(File p_file) throws IOException {
+      Properties props = new Properties();
+      try (InputStream in = new FileInputStream(p_file)) {
+        props.load(in);
+      }
+      Entry entry = new Entry(p_file);
+      entry.jobId = props.getProperty("jobId");
+      if (entry.jobId == null || !entry.jobId.matches("[0-9]+")) {
+        throw new IllegalArgumentException("bad jobId " + entry.jobId);
+      }
+      entry.volumes = new ArrayList<>(Arrays.asList(props.getProperty("volumes", "").split("\\|")));
+      entry.volumes.removeIf(String::isEmpty);
+      entry.queuedTime = Long.parseLong(props.getProperty("queuedTime", "0"));
+      entry.attempts = Integer.parseInt(props.getProperty("attempts", "0"));
+      entry.nextAttemptTime = Long.parseLong(props.getProperty("nextAttemptTime", "0"));
+      entry.lastError = props.getProperty("lastError");
+      return entry;
+    }
+
+    private void save() throws IOException {
+      Properties props = new Properties();
+      props.setProperty("jobId", jobId);
+      props.setProperty("volumes", String.join("|", volumes));
+      props.setProperty("queuedTime", Long.toString(queuedTime));
+      props.setProperty("attempts", Integer.toString(attempts));
+      props.setProperty("nextAttemptTime", Long.toString(nextAttemptTime));
+      if (lastError != null) {
+        props.setProperty("lastError", lastError);
+      }
+
+      File fTmp = new File(file.getParentFile(), file.getName() + ".tmp");
+      try (FileOutputStream out = new FileOutputStream(fTmp, false)) {
+        props.store(out, "Backup waiting to be uploaded; see backup.enqueue");
+        out.getFD().sync();
+      }
+      Files.move(fTmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    String getJobId() {
+      return jobId;
+    }
+
+    List<String> getVolumes() {
+      return Collections.unmodifiableList(volumes);
+    }
+
+    long getQueuedTime() {
+      return queuedTime;
+    }
+
+    int getAttempts() {
+      return attempts;
+    }
+
+    long getNextAttemptTime() {
+      return nextAttemptTime;
+    }
+
+    String getLastError() {
+      return lastError;
+    }
+
+    /**
+     * @return Bytes of the volumes still on disk, waiting to be uploaded
+     */
+    long getBacklogBytes(File p_scratchDir) {
+      return volumes.stream().mapToLong(v -> new File(p_scratchDir, v).length()).sum();
+    }
+
+    /**
+     * The backup's been uploaded; take it off the queue.
+     */
+    void done() throws IOException {
+      Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * Some of the volumes couldn't be uploaded; keep just those, and wait a while before trying again, twice as
+     * long after each failure.
+     *
+     * @param p_volumes The volumes still to upload
+     * @param p_retryMillis Wait after the first failure
+     */
+    void failed(List<String> p_volumes, Exception p_error, long p_retryMillis) throws IOException {
+      volumes = new ArrayList<>(p_volumes);
+      attempts++;
+      nextAttemptTime = System.currentTimeMillis() + Math.min(MAX_RETRY_MILLIS, p_retryMillis << Math.min(attempts - 1, 20));
+      lastError = p_error.getMessage() != null ? p_error.getMessage() : p_error.getClass().getSimpleName();
+      save();
+    }
+
+    @Override
+    public String toString() {
+      return "job " + jobId + " " + volumes;
+    }
+  }
+
+}
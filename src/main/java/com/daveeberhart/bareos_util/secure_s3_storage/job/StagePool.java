@@ -0,0 +1,67 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of threads for one stage of the backup pipeline (encrypting, or uploading), which picks the
+ * smallest waiting volume next, rather than the one that's waited longest.  Shortest-job-first gets the most
+ * volumes done, soonest; volumes of the same size go in the order they were submitted.
+ *
+ * @author deberhar
+ */
+final class StagePool {
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong sequence = new AtomicLong();
+
+  /**
+   * @param p_name Thread name
+   * @param p_threads Number of threads
+   */
+  StagePool(String p_name, int p_threads) {
+    executor = new ThreadPoolExecutor(p_threads, p_threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(), r -> {
+      Thread t = new Thread(r, p_name);
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Run the task once a thread is free, and no smaller task is waiting.
+   *
+   * @param p_size The task's size (e.g. the volume's length)
+   */
+  void submit(long p_size, Runnable p_task) {
+    executor.execute(new Task(p_size, sequence.getAndIncrement(), p_task));
+  }
+
+  void shutdownNow() {
+    executor.shutdownNow();
+  }
+
+  private static final class Task implements Runnable, Comparable<Task> {
+    private final long size;
+    private final long sequence;
+    private final Runnable task;
+
+    Task(long p_size, long p_sequence, Runnable p_task) {
+      size = p_size;
+      sequence = p_sequence;
+      task = p_task;
+    }
+
+    @Override
+    public void run() {
+      task.run();
+    }
+
+    @Override
+    public int compareTo(Task p_other) {
+      int cmp = Long.compare(size, p_other.size);
+      return cmp != 0 ? cmp : Long.compare(sequence, p_other.sequence);
+    }
+  }
+
+}
@@ -0,0 +1,299 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.util.encoders.Hex;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.io.FileRangeChannel;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.MultipartUploadOutputStream.CompletedPart;
+
+/**
+ * How far an upload got, so that a backup that failed or was killed can carry on where it left off
+ * ({@code backup.resumable}).
+ * <p>
+ * Kept in {@code <scratchDir>/.s3-upload/<key>.properties}, along with the length and modification time of the
+ * volume (and the range of it being uploaded), so that a volume that's changed since starts over.  Length and
+ * modification time can't tell apart two versions of a volume written within the same second, so a keyed digest
+ * of the plaintext encrypted so far is kept too, and checked before carrying on.  Then either:
+ * <ul>
+ * <li>For streaming uploads: the file header, which holds the (wrapped) session key and nonce; the multipart
+ *   upload ID and part size; and the length, MD5 and ETag of each part uploaded so far.  Encrypting the volume
+ *   again under the same header gives the same ciphertext, so parts with matching MD5s needn't be uploaded again.</li>
+ * <li>For uploads via a scratch file: the length, segment index, expected ETag and part size of the encrypted
+ *   copy, which is kept; and once the TransferManager has started a multipart upload, its serialized
+ *   {@link com.amazonaws.services.s3.transfer.PersistableUpload PersistableUpload}.  If the volume's uploaded
+ *   whole, its keyed digest is kept too.</li>
+ * </ul>
+ *
+ * @author deberhar
+ */
+class UploadState {
+  private static final String STATE_DIR = ".s3-upload";
+
+  private final File file;
+  private final Properties props = new Properties();
+
+  private UploadState(File p_file) {
+    file = p_file;
+  }
+
+  /**
+   * @return The state of the upload; empty if there's no record of an earlier attempt.
+   */
+  static UploadState load(File p_scratchDir, String p_key) throws IOException {
+    UploadState state = new UploadState(new File(new File(p_scratchDir, STATE_DIR), p_key + ".properties"));
+    if (state.file.exists()) {
+      try (InputStream in = new FileInputStream(state.file)) {
+        state.props.load(in);
+      }
+    }
+    return state;
+  }
+
+  /**
+   * @return true if this is the state of an upload of the same range of the volume, as it is now
+   */
+  synchronized boolean matches(File p_volume, long p_offset, long p_length) {
+    return describe(p_volume, p_offset, p_length).entrySet().stream()
+        .allMatch(e -> e.getValue().equals(props.get(e.getKey())));
+  }
+
+  /**
+   * Forget any earlier attempt, and start recording a new upload of the range of the volume.  Not saved until
+   * {@link #save()}.
+   */
+  synchronized void reset(File p_volume, long p_offset, long p_length) {
+    props.clear();
+    props.putAll(describe(p_volume, p_offset, p_length));
+  }
+
+  private static Properties describe(File p_volume, long p_offset, long p_length) {
+    Properties source = new Properties();
+    source.setProperty("volumeLength", Long.toString(p_volume.length()));
+    source.setProperty("volumeModified", Long.toString(p_volume.lastModified()));
+    source.setProperty("offset", Long.toString(p_offset));
+    source.setProperty("length", Long.toString(p_length));
+    return source;
+  }
+
+  /** @return How much of the range the earlier attempt had encrypted, per {@link #getPlaintextDigest()}; or -1 */
+  synchronized long getPlaintextLength() {
+    return Long.parseLong(props.getProperty("plaintextLength", "-1"));
+  }
+
+  /** @return Keyed digest of the first {@link #getPlaintextLength()} bytes of the range; or null */
+  synchronized String getPlaintextDigest() {
+    return props.getProperty("plaintextDigest");
+  }
+
+  /**
+   * Record how much of the range has been encrypted, and a keyed digest of it.
+   */
+  synchronized void setPlaintext(long p_length, String p_digest) {
+    props.setProperty("plaintextLength", Long.toString(p_length));
+    props.setProperty("plaintextDigest", p_digest);
+  }
+
+  /**
+   * SHA-256 a range of a file, for comparing with {@link #getPlaintextDigest()} (once keyed).
+   */
+  static byte[] digest(File p_file, long p_offset, long p_length) throws IOException {
+    SHA256Digest sha = new SHA256Digest();
+    byte[] buff = new byte[64 * 1024];
+    try (InputStream in = Channels.newInputStream(new FileRangeChannel(p_file, p_offset, p_length))) {
+      int n;
+      while ((n = in.read(buff)) > 0) {
+        sha.update(buff, 0, n);
+      }
+    }
+    byte[] out = new byte[sha.getDigestSize()];
+    sha.doFinal(out, 0);
+    return out;
+  }
+
+  /** @return The header the volume is being encrypted under, for streaming uploads; or null */
+  synchronized byte[] getHeader() {
+    String header = props.getProperty("header");
+    return header == null ? null : Hex.decode(header);
+  }
+
+  /** @return ID of the multipart upload, for streaming uploads; or null */
+  synchronized String getUploadId() {
+    return props.getProperty("uploadId");
+  }
+
+  /** @return Size of each part of the multipart upload (or that the encrypted copy's ETag assumes); or 0 */
+  synchronized int getPartSize() {
+    return Integer.parseInt(props.getProperty("partSize", "0"));
+  }
+
+  /**
+   * Record a new streaming upload.
+   */
+  synchronized void setMultipartUpload(byte[] p_header, String p_uploadId, int p_partSize) {
+    props.setProperty("header", Hex.toHexString(p_header));
+    props.setProperty("uploadId", p_uploadId);
+    props.setProperty("partSize", Integer.toString(p_partSize));
+  }
+
+  /** @return Parts of the streaming upload that were uploaded already */
+  synchronized List<CompletedPart> getParts() {
+    List<CompletedPart> parts = new ArrayList<>();
+    for (String name : props.stringPropertyNames()) {
+      if (name.startsWith("part.")) {
+        String[] fields = props.getProperty(name).split(",");
+        if (fields.length == 3) {
+          parts.add(new CompletedPart(Integer.parseInt(name.substring(5)), Long.parseLong(fields[0]), fields[1], fields[2]));
+        }
+      }
+    }
+    return parts;
+  }
+
+  synchronized void addPart(CompletedPart p_part) {
+    props.setProperty("part." + p_part.getPartNumber(), p_part.getSize() + "," + p_part.getMd5() + "," + p_part.getETag());
+  }
+
+  /** @return Length of the encrypted copy in the scratch dir; or -1 if there isn't one */
+  synchronized long getEncryptedLength() {
+    return Long.parseLong(props.getProperty("encryptedLength", "-1"));
+  }
+
+  /** @return Segment index of the encrypted copy in the scratch dir; or null (e.g. for version 1 files) */
+  synchronized SegmentIndex getIndex() {
+    String index = props.getProperty("index");
+    return index == null ? null : SegmentIndex.fromBytes(file.getName(), Hex.decode(index), Job.AES_GCM_NONCE_SIZE_BYTES);
+  }
+
+  /** @return The ETag S3 should give the encrypted copy in the scratch dir; or null */
+  synchronized String getETag() {
+    return props.getProperty("etag");
+  }
+
+  /**
+   * Record the encrypted copy written to the scratch dir.
+   *
+   * @param p_etag The ETag S3 should give it, if uploaded in parts of {@code p_partSize}
+   */
+  synchronized void setEncrypted(long p_length, SegmentIndex p_index, String p_etag, long p_partSize) {
+    props.setProperty("encryptedLength", Long.toString(p_length));
+    props.setProperty("etag", p_etag);
+    props.setProperty("partSize", Long.toString(p_partSize));
+    if (p_index != null) {
+      props.setProperty("index", Hex.toHexString(p_index.toBytes()));
+    }
+  }
+
+  /** @return Keyed digest of the volume the encrypted copy was made from; or null */
+  synchronized String getVolumeDigest() {
+    return props.getProperty("volumeDigest");
+  }
+
+  synchronized void setVolumeDigest(String p_digest) {
+    props.setProperty("volumeDigest", p_digest);
+  }
+
+  /** @return The serialized PersistableUpload for the encrypted copy; or null */
+  synchronized String getPersistableUpload() {
+    return props.getProperty("persistableUpload");
+  }
+
+  /**
+   * @param p_persistableUpload The serialized PersistableUpload for the encrypted copy; or null to start over
+   */
+  synchronized void setPersistableUpload(String p_persistableUpload) {
+    if (p_persistableUpload == null) {
+      props.remove("persistableUpload");
+    } else {
+      props.setProperty("persistableUpload", p_persistableUpload);
+    }
+  }
+
+  /**
+   * Written to a temp file first, so a crash never leaves a half-written state.
+   */
+  synchronized void save() throws IOException {
+    file.getParentFile().mkdirs();
+    File fTmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try (FileOutputStream out = new FileOutputStream(fTmp, false)) {
+      props.store(out, "Upload in progress");
+    }
+    Files.move(fTmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Forget the upload, once it's done.
+   */
+  synchronized void delete() {
+    file.delete();
+    props.clear();
+  }
+
+  /**
+   * SHA-256 of the plaintext as it's encrypted, which upload threads can {@link #snapshot()} part-way through,
+   * to record how far encryption got.
+   */
+  static final class PlaintextDigest implements Digest {
+    private final SHA256Digest sha = new SHA256Digest();
+    private long length;
+
+    @Override
+    public String getAlgorithmName() {
+      return sha.getAlgorithmName();
+    }
+
+    @Override
+    public int getDigestSize() {
+      return sha.getDigestSize();
+    }
+
+    @Override
+    public synchronized void update(byte p_in) {
+      sha.update(p_in);
+      length++;
+    }
+
+    @Override
+    public synchronized void update(byte[] p_in, int p_off, int p_len) {
+      sha.update(p_in, p_off, p_len);
+      length += p_len;
+    }
+
+    @Override
+    public synchronized int doFinal(byte[] p_out, int p_off) {
+      length = 0;
+      return sha.doFinal(p_out, p_off);
+    }
+
+    @Override
+    public synchronized void reset() {
+      sha.reset();
+      length = 0;
+    }
+
+    /** @return Number of bytes digested so far */
+    synchronized long getLength() {
+      return length;
+    }
+
+    /** @return Digest of the bytes so far, leaving this one to carry on */
+    synchronized byte[] snapshot() {
+      byte[] out = new byte[sha.getDigestSize()];
+      new SHA256Digest(sha).doFinal(out, 0);
+      return out;
+    }
+  }
+
+}
@@ -1,5 +1,7 @@
 package com.daveeberhart.bareos_util.secure_s3_storage.progress;
 
+import java.util.function.Consumer;
+
 import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.services.s3.transfer.PersistableTransfer;
 import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
@@ -11,17 +13,27 @@ public class AwsProgressListener extends BaseProgressListener implements S3Progr
   /** 200MB */
   private static final long REPORT_INTERVAL = 200 * 1024 * 1024;
 
+  private final Consumer<PersistableTransfer> persister;
   private long totalBytesProcessed;
 
   public AwsProgressListener(String caption, long totalBytes) {
+    this(caption, totalBytes, null);
+  }
+
+  /**
+   * @param p_persister Told when the transfer can be paused and resumed later (i.e. once the TransferManager
+   *   has started a multipart upload); may be null
+   */
+  public AwsProgressListener(String caption, long totalBytes, Consumer<PersistableTransfer> p_persister) {
     super(caption, "Upload", totalBytes, REPORT_INTERVAL);
+    persister = p_persister;
   }
 
   /* (non-Javadoc)
    * @see com.amazonaws.event.ProgressListener#progressChanged(com.amazonaws.event.ProgressEvent)
    */
   @Override
-  public void progressChanged(ProgressEvent p_progressEvent) {
+  public synchronized void progressChanged(ProgressEvent p_progressEvent) {
     totalBytesProcessed += p_progressEvent.getBytesTransferred();
     reportProgress(totalBytesProcessed);
   }
@@ -31,7 +43,9 @@ public class AwsProgressListener extends BaseProgressListener implements S3Progr
    */
   @Override
   public void onPersistableTransfer(PersistableTransfer p_persistableTransfer) {
-    // Nop.
+    if (persister != null) {
+      persister.accept(p_persistableTransfer);
+    }
   }
 
 
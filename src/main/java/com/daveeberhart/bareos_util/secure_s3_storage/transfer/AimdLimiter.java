@@ -0,0 +1,63 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+/**
+ * Limits how many requests are sent to S3 at once, backing off when S3 asks us to slow down: the limit halves
+ * on each throttling error (503 SlowDown and friends), then creeps back up by about one for each limit's-worth
+ * of successful requests.  That's additive-increase/multiplicative-decrease, as TCP does, and for the same reason:
+ * everyone sharing the bucket's request rate converges on a fair share of it, without hammering it meanwhile.
+ * <p>
+ * A burst of throttling errors from requests that were all in flight at once only halves the limit once.
+ *
+ * @author deberhar
+ */
+public class AimdLimiter {
+  private final int max;
+  private double limit;
+  private int inFlight;
+  /** Bumped each time the limit is cut; requests sent before that don't cut it again. */
+  private long generation;
+
+  /**
+   * @param p_max Most requests in flight at once; also where the limit starts
+   */
+  public AimdLimiter(int p_max) {
+    max = Math.max(1, p_max);
+    limit = max;
+  }
+
+  /**
+   * Wait until there's room for another request.
+   *
+   * @return Ticket to hand back to {@link #release(long, boolean)} once the request is done
+   */
+  public synchronized long acquire() throws InterruptedException {
+    while (inFlight >= (int) limit) {
+      wait();
+    }
+    inFlight++;
+    return generation;
+  }
+
+  /**
+   * @param p_ticket From {@link #acquire()}
+   * @param p_throttled true if S3 told us to slow down
+   */
+  public synchronized void release(long p_ticket, boolean p_throttled) {
+    inFlight--;
+    if (p_throttled) {
+      if (p_ticket == generation) {
+        limit = Math.max(1, limit / 2);
+        generation++;
+      }
+    } else if (limit < max) {
+      limit = Math.min(max, limit + 1 / limit);
+    }
+    notifyAll();
+  }
+
+  /** @return Most requests allowed in flight at once, right now */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+}
@@ -0,0 +1,241 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpResponse;
+
+/**
+ * Caps the bytes per second sent to and received from S3, across every transfer in the JVM: a token bucket
+ * holding up to a second's worth of bytes, which each read from a request or response body draws from.
+ * <p>
+ * The cap can vary by time of day, e.g. to leave room on the link during business hours and use all of it at
+ * night.  A schedule is a comma-separated list of {@code HH:mm-HH:mm=rate} windows (which may wrap past
+ * midnight); the first window the time falls in sets the rate, and outside them all, the default rate applies.
+ * Rates are bytes per second, with an optional {@code K}, {@code M} or {@code G} suffix (powers of 1024); 0 or
+ * {@code unlimited} means no cap.  The schedule is checked as bytes flow, so a transfer that runs into a new
+ * window changes speed.
+ * <p>
+ * Install it in the S3 client with {@link #asRequestHandler()}, to cover the TransferManager's uploads and
+ * downloads along with our own.
+ *
+ * @author deberhar
+ */
+public class BandwidthLimiter {
+  private final long defaultRate;
+  private final List<Window> schedule;
+  private final Clock clock;
+
+  /** Bytes that may be sent right away; negative if callers are already waiting for more. */
+  private double tokens;
+  private long lastRefillNanos = System.nanoTime();
+
+  /**
+   * @param p_defaultRate Bytes per second outside the schedule; 0 for no cap
+   * @param p_schedule Windows with their own rates
+   * @param p_clock Tells the time of day
+   */
+  BandwidthLimiter(long p_defaultRate, List<Window> p_schedule, Clock p_clock) {
+    defaultRate = p_defaultRate;
+    schedule = p_schedule;
+    clock = p_clock;
+  }
+
+  /**
+   * @param p_rate Default rate (e.g. {@code 2M}); may be null or empty for no cap
+   * @param p_schedule Time-of-day windows (e.g. {@code 08:00-18:00=1M,18:00-22:00=4M}); may be null or empty
+   * @return The limiter; or null if nothing's capped at any time of day
+   * @throws IllegalArgumentException if either setting can't be parsed
+   */
+  public static BandwidthLimiter parse(String p_rate, String p_schedule) {
+    long defaultRate = p_rate == null || p_rate.trim().isEmpty() ? 0 : parseRate(p_rate);
+    List<Window> schedule = new ArrayList<>();
+    if (p_schedule != null) {
+      for (String entry : p_schedule.split(",")) {
+        if (!entry.trim().isEmpty()) {
+          schedule.add(Window.parse(entry.trim()));
+        }
+      }
+    }
+
+    if (defaultRate == 0 && schedule.stream().allMatch(w -> w.rate == 0)) {
+      return null;
+    }
+    return new BandwidthLimiter(defaultRate, schedule, Clock.systemDefaultZone());
+  }
+
+  /**
+   * @return Bytes per second in e.g. {@code 512K}; 0 for {@code unlimited}
+   */
+  static long parseRate(String p_rate) {
+    String rate = p_rate.trim().toUpperCase(Locale.ROOT);
+    if ("UNLIMITED".equals(rate)) {
+      return 0;
+    }
+    // K, M or G: 1024 to the power of 1, 2 or 3
+    int power = rate.isEmpty() ? 0 : "KMG".indexOf(rate.charAt(rate.length() - 1)) + 1;
+    long multiplier = 1L << (10 * power);
+    if (power > 0) {
+      rate = rate.substring(0, rate.length() - 1).trim();
+    }
+    try {
+      long bytes = Long.parseLong(rate) * multiplier;
+      if (bytes < 0) {
+        throw new IllegalArgumentException("Rate must not be negative: " + p_rate);
+      }
+      return bytes;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a rate: " + p_rate + "; expected bytes per second, e.g. 500K or 2M");
+    }
+  }
+
+  /**
+   * @return Bytes per second allowed right now; 0 for no cap
+   */
+  public long getRate() {
+    LocalTime now = LocalTime.now(clock);
+    for (Window window : schedule) {
+      if (window.contains(now)) {
+        return window.rate;
+      }
+    }
+    return defaultRate;
+  }
+
+  /**
+   * Wait until the bytes may be sent (or received).  Callers queue up: each one that finds the bucket empty
+   * waits for what's owed ahead of it, too.
+   */
+  public void acquire(long p_bytes) throws InterruptedIOException {
+    long waitNanos;
+    synchronized (this) {
+      long rate = getRate();
+      long now = System.nanoTime();
+      if (rate <= 0) {
+        tokens = 0;
+        lastRefillNanos = now;
+        return;
+      }
+      tokens = Math.min(rate, tokens + (now - lastRefillNanos) * (rate / 1e9));
+      lastRefillNanos = now;
+      tokens -= p_bytes;
+      waitNanos = tokens < 0 ? (long) (-tokens * (1e9 / rate)) : 0;
+    }
+
+    if (waitNanos > 0) {
+      try {
+        Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+      }
+    }
+  }
+
+  /**
+   * @return The stream, with each read drawing on this limiter
+   */
+  public InputStream throttle(InputStream p_in) {
+    return new ThrottledInputStream(p_in);
+  }
+
+  /**
+   * @return A handler for the S3 client, which throttles every request body sent, and every response body
+   *   received
+   */
+  public RequestHandler2 asRequestHandler() {
+    return new RequestHandler2() {
+      @Override
+      public void beforeRequest(Request<?> p_request) {
+        if (p_request.getContent() != null) {
+          p_request.setContent(throttle(p_request.getContent()));
+        }
+      }
+
+      @Override
+      public HttpResponse beforeUnmarshalling(Request<?> p_request, HttpResponse p_response) {
+        if (p_response.getContent() != null) {
+          p_response.setContent(throttle(p_response.getContent()));
+        }
+        return p_response;
+      }
+    };
+  }
+
+  /**
+   * A time of day window with its own rate.
+   */
+  static final class Window {
+    private final LocalTime start;
+    private final LocalTime end;
+    private final long rate;
+
+    Window(LocalTime p_start, LocalTime p_end, long p_rate) {
+      start = p_start;
+      end = p_end;
+      rate = p_rate;
+    }
+
+    /**
+     * @param p_entry e.g. {@code 22:00-06:00=unlimited}
+     */
+    static Window parse(String p_entry) {
+      int eq = p_entry.indexOf('=');
+      int dash = p_entry.indexOf('-');
+      if (eq < 0 || dash < 0 || dash > eq) {
+        throw new IllegalArgumentException("Not a schedule window: " + p_entry + "; expected e.g. 08:00-18:00=1M");
+      }
+      try {
+        return new Window(LocalTime.parse(p_entry.substring(0, dash).trim()), LocalTime.parse(p_entry.substring(dash + 1, eq).trim()),
+            parseRate(p_entry.substring(eq + 1)));
+      } catch (DateTimeParseException e) {
+        throw new IllegalArgumentException("Not a schedule window: " + p_entry + "; times must be HH:mm");
+      }
+    }
+
+    boolean contains(LocalTime p_time) {
+      if (start.isBefore(end)) {
+        return !p_time.isBefore(start) && p_time.isBefore(end);
+      }
+      return !p_time.isBefore(start) || p_time.isBefore(end); // Wraps past midnight.
+    }
+  }
+
+  /**
+   * Draws on the limiter for each byte read; marks and resets pass through, so the SDK can still retry.
+   */
+  private final class ThrottledInputStream extends FilterInputStream {
+    ThrottledInputStream(InputStream p_in) {
+      super(p_in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        acquire(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] p_buff, int p_off, int p_len) throws IOException {
+      int n = super.read(p_buff, p_off, p_len);
+      if (n > 0) {
+        acquire(n);
+      }
+      return n;
+    }
+  }
+
+}
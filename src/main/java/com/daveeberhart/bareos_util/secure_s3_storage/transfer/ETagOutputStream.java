@@ -0,0 +1,108 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * Works out the ETag S3 will give an object, from the bytes written through it on their way to disk: so the
+ * upload can be checked without reading the file again.
+ * <p>
+ * An object uploaded in one piece gets the MD5 of its content as its ETag.  A multipart upload gets the MD5 of
+ * the concatenated MD5s of its parts, then {@code -} and the number of parts; so the part size has to be known
+ * up front, and has to be the one the upload really uses.  (Objects encrypted with SSE-KMS or SSE-C get other
+ * ETags, which can't be checked this way.)
+ *
+ * @author deberhar
+ */
+public class ETagOutputStream extends FilterOutputStream {
+  private final long partSize;
+  private final List<byte[]> partMd5s = new ArrayList<>();
+  private final MessageDigest md5 = newMd5();
+  private long partLength;
+  private long length;
+
+  /**
+   * @param p_out Where the bytes go
+   * @param p_partSize Part size the upload will use; an object no bigger than this is uploaded in one piece
+   */
+  public ETagOutputStream(OutputStream p_out, long p_partSize) {
+    super(p_out);
+    partSize = p_partSize;
+  }
+
+  @Override
+  public void write(int p_b) throws IOException {
+    write(new byte[] { (byte) p_b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] p_buff, int p_off, int p_len) throws IOException {
+    out.write(p_buff, p_off, p_len);
+
+    while (p_len > 0) {
+      int n = (int) Math.min(p_len, partSize - partLength);
+      md5.update(p_buff, p_off, n);
+      partLength += n;
+      length += n;
+      p_off += n;
+      p_len -= n;
+      if (partLength == partSize) {
+        partMd5s.add(md5.digest());
+        partLength = 0;
+      }
+    }
+  }
+
+  /** @return Bytes written so far */
+  public long getLength() {
+    return length;
+  }
+
+  /** @return MD5s of the parts written so far, including the last, partial one */
+  public List<byte[]> getPartMd5s() {
+    if (partLength > 0) {
+      partMd5s.add(md5.digest());
+      partLength = 0;
+    }
+    return partMd5s;
+  }
+
+  /**
+   * @return The ETag S3 should give the object, once everything's been written
+   */
+  public String getETag() {
+    List<byte[]> parts = getPartMd5s();
+    if (length <= partSize) {
+      return Hex.toHexString(parts.isEmpty() ? md5.digest() : parts.get(0));
+    }
+    return forParts(parts);
+  }
+
+  /**
+   * @param p_partMd5s MD5 of each part, in order
+   * @return ETag of a multipart upload of those parts
+   */
+  public static String forParts(List<byte[]> p_partMd5s) {
+    MessageDigest md = newMd5();
+    for (byte[] partMd5 : p_partMd5s) {
+      md.update(partMd5);
+    }
+    return Hex.toHexString(md.digest()) + "-" + p_partMd5s.size();
+  }
+
+  private static MessageDigest newMd5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is a required JCA algorithm", e);
+    }
+  }
+
+}
@@ -0,0 +1,476 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.daveeberhart.bareos_util.secure_s3_storage.progress.AwsProgressListener;
+
+/**
+ * Stream data straight into an S3 object using the multipart upload API.
+ * <p>
+ * Bytes written to the stream are collected into part-sized buffers in memory.  Each full buffer
+ * is handed to an executor for upload, and writing continues into the next free buffer.  There
+ * are only ever {@code partsInFlight + 1} buffers, so a slow uplink blocks the writer instead of
+ * growing the heap: memory use is bounded by {@code (partsInFlight + 1) * partSize}, regardless of
+ * the size of the object.
+ * <p>
+ * Call {@link #close()} to upload the final part and complete the upload.  If anything goes
+ * wrong, call {@link #abort()} so that S3 discards the parts already uploaded; or {@link #cancel()}
+ * to keep them, and carry on later by writing the same data to a stream made with
+ * {@link #MultipartUploadOutputStream(AmazonS3, String, String, String, Collection, int, int, ExecutorService, AwsProgressListener)}.
+ * <p>
+ * Each part is sent with its MD5, so S3 rejects any part that arrives damaged; and the ETag the completed object
+ * should have is worked out from them, for checking against the one S3 gives it (see {@link #getExpectedETag()}).
+ *
+ * @author deberhar
+ */
+public class MultipartUploadOutputStream extends OutputStream {
+  /** S3 rejects parts smaller than this (except for the final part). */
+  public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+  private final AmazonS3 s3;
+  private final String bucket;
+  private final String key;
+  private final ExecutorService executor;
+  private final AwsProgressListener progress;
+  private final BlockingQueue<byte[]> freeBuffers;
+  private final List<Future<PartETag>> parts = new ArrayList<>();
+  private final Map<Integer, CompletedPart> completedParts = new HashMap<>();
+  private final Set<Integer> unrecordedParts = new TreeSet<>();
+  private final Map<Integer, String> partMd5s = new ConcurrentHashMap<>();
+  private final AtomicInteger partsSkipped = new AtomicInteger();
+  private final String uploadId;
+  private final int partSize;
+  private final int maxBuffers;
+
+  private int buffersAllocated;
+  private byte[] buffer;
+  private int bufferLen;
+  private boolean closed;
+  private boolean aborted;
+  private CompleteMultipartUploadResult result;
+  private String expectedETag;
+  private volatile Exception failure;
+  private volatile PartListener partListener;
+  private volatile Retrier retrier = new Retrier(1, 0, 0, null);
+  private volatile TransferTuner tuner;
+
+  /**
+   * Start a new multipart upload.
+   *
+   * @param p_s3 S3 client to upload with
+   * @param p_bucket Bucket to upload into
+   * @param p_key Key of the object to create
+   * @param p_storageClass Storage class for the new object
+   * @param p_partSize Size of each part (except the last); at least {@link #MIN_PART_SIZE}
+   * @param p_partsInFlight Max number of parts to upload concurrently
+   * @param p_executor Executor that uploads the parts
+   * @param p_progress Progress listener for the upload
+   */
+  public MultipartUploadOutputStream(AmazonS3 p_s3, String p_bucket, String p_key, StorageClass p_storageClass,
+      int p_partSize, int p_partsInFlight, ExecutorService p_executor, AwsProgressListener p_progress) {
+    this(p_s3, p_bucket, p_key, p_storageClass, null, p_partSize, p_partsInFlight, p_executor, p_progress);
+  }
+
+  /**
+   * Start a new multipart upload, with metadata for the new object.
+   *
+   * @param p_s3 S3 client to upload with
+   * @param p_bucket Bucket to upload into
+   * @param p_key Key of the object to create
+   * @param p_storageClass Storage class for the new object
+   * @param p_metadata Metadata for the new object; may be null
+   * @param p_partSize Size of each part (except the last); at least {@link #MIN_PART_SIZE}
+   * @param p_partsInFlight Max number of parts to upload concurrently
+   * @param p_executor Executor that uploads the parts
+   * @param p_progress Progress listener for the upload
+   */
+  public MultipartUploadOutputStream(AmazonS3 p_s3, String p_bucket, String p_key, StorageClass p_storageClass, ObjectMetadata p_metadata,
+      int p_partSize, int p_partsInFlight, ExecutorService p_executor, AwsProgressListener p_progress) {
+    this(p_s3, p_bucket, p_key, p_s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(p_bucket, p_key, p_metadata)
+        .withStorageClass(p_storageClass)).getUploadId(), p_partSize, p_partsInFlight, p_executor, p_progress);
+  }
+
+  /**
+   * Carry on with a multipart upload that was {@link #cancel() cancelled} (or whose process died), by writing
+   * the same data again.  Parts that were uploaded already, and whose content is still the same (by MD5), aren't
+   * uploaded again.
+   *
+   * @param p_s3 S3 client to upload with
+   * @param p_bucket Bucket to upload into
+   * @param p_key Key of the object to create
+   * @param p_uploadId The upload to carry on with; see {@link #getUploadId()}
+   * @param p_completedParts Parts already uploaded, as reported to the {@link PartListener}; any that S3 no
+   *   longer has are uploaded again, and any others S3 has are {@link #getUnrecordedParts() unrecorded}
+   * @param p_partSize Size of each part (except the last); must be the same as for the original stream
+   * @param p_partsInFlight Max number of parts to upload concurrently
+   * @param p_executor Executor that uploads the parts
+   * @param p_progress Progress listener for the upload
+   * @throws AmazonS3Exception with a 404 status, if the upload has since been completed or aborted
+   */
+  public MultipartUploadOutputStream(AmazonS3 p_s3, String p_bucket, String p_key, String p_uploadId, Collection<CompletedPart> p_completedParts,
+      int p_partSize, int p_partsInFlight, ExecutorService p_executor, AwsProgressListener p_progress) {
+    this(p_s3, p_bucket, p_key, p_uploadId, p_partSize, p_partsInFlight, p_executor, p_progress);
+
+    Map<Integer, String> etags = new HashMap<>();
+    ListPartsRequest req = new ListPartsRequest(bucket, key, uploadId);
+    PartListing listing;
+    do {
+      listing = s3.listParts(req);
+      for (PartSummary part : listing.getParts()) {
+        etags.put(part.getPartNumber(), unquote(part.getETag()));
+      }
+      req.setPartNumberMarker(listing.getNextPartNumberMarker());
+    } while (listing.isTruncated());
+
+    for (CompletedPart part : p_completedParts) {
+      if (unquote(part.getETag()).equals(etags.get(part.getPartNumber()))) {
+        completedParts.put(part.getPartNumber(), part);
+      }
+    }
+    unrecordedParts.addAll(etags.keySet());
+    unrecordedParts.removeAll(completedParts.keySet());
+  }
+
+  private MultipartUploadOutputStream(AmazonS3 p_s3, String p_bucket, String p_key, String p_uploadId,
+      int p_partSize, int p_partsInFlight, ExecutorService p_executor, AwsProgressListener p_progress) {
+    if (p_partSize < MIN_PART_SIZE) {
+      throw new IllegalArgumentException("Part size must be at least " + MIN_PART_SIZE + " bytes; was " + p_partSize);
+    }
+
+    s3 = p_s3;
+    bucket = p_bucket;
+    key = p_key;
+    uploadId = p_uploadId;
+    executor = p_executor;
+    progress = p_progress;
+
+    partSize = p_partSize;
+    maxBuffers = Math.max(1, p_partsInFlight) + 1;
+    freeBuffers = new ArrayBlockingQueue<>(maxBuffers);
+  }
+
+  /**
+   * Retry parts that fail to upload, rather than failing the whole stream.  Set this before writing anything.
+   */
+  public void setRetrier(Retrier p_retrier) {
+    retrier = p_retrier;
+  }
+
+  /**
+   * Report how long each part takes to upload, to learn better settings.  Set this before writing anything.
+   */
+  public void setTuner(TransferTuner p_tuner) {
+    tuner = p_tuner;
+  }
+
+  /**
+   * @return The part size and parts in flight this stream uploads with
+   */
+  public TransferTuner.Settings getSettings() {
+    return new TransferTuner.Settings(partSize, maxBuffers - 1);
+  }
+
+  /**
+   * Be told about each part once it's uploaded, e.g. to record how far the upload got.  Set this before
+   * writing anything.
+   */
+  public void setPartListener(PartListener p_listener) {
+    partListener = p_listener;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+
+    while (len > 0) {
+      if (buffer == null) {
+        buffer = takeBuffer();
+        bufferLen = 0;
+      }
+
+      int n = Math.min(len, buffer.length - bufferLen);
+      System.arraycopy(b, off, buffer, bufferLen, n);
+      bufferLen += n;
+      off += n;
+      len -= n;
+
+      if (bufferLen == buffer.length) {
+        submitPart(false);
+      }
+    }
+  }
+
+  /**
+   * Upload the final part, wait for all parts to finish, and complete the multipart upload.
+   * <p>
+   * If any part failed to upload, the other parts are {@link #cancel() cancelled} and an {@link IOException}
+   * is thrown; {@link #abort()} the upload, unless you mean to carry on with it later.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+
+    // S3 needs at least one part, even for an empty object:
+    if (bufferLen > 0 || parts.isEmpty()) {
+      if (buffer == null) {
+        buffer = takeBuffer();
+        bufferLen = 0;
+      }
+      submitPart(true);
+    }
+    closed = true;
+
+    List<PartETag> etags = new ArrayList<>(parts.size());
+    try {
+      for (Future<PartETag> part : parts) {
+        etags.add(part.get());
+      }
+    } catch (InterruptedException e) {
+      cancel();
+      throw new InterruptedIOException("Interrupted while waiting for upload of " + key);
+    } catch (ExecutionException e) {
+      cancel();
+      throw new IOException("Failed to upload part of " + key, e.getCause());
+    }
+
+    List<byte[]> md5s = new ArrayList<>(parts.size());
+    for (int partNumber = 1; partNumber <= parts.size(); partNumber++) {
+      md5s.add(Hex.decode(partMd5s.get(partNumber)));
+    }
+    expectedETag = ETagOutputStream.forParts(md5s);
+    result = s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+  }
+
+  /**
+   * Discard the upload; S3 deletes any parts that were already uploaded.
+   */
+  public void abort() {
+    cancel();
+    if (aborted) {
+      return;
+    }
+    aborted = true;
+    s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+  }
+
+  /**
+   * Stop uploading, but leave the upload (and the parts uploaded so far) in S3, to carry on with later.
+   */
+  public void cancel() {
+    closed = true;
+    for (Future<PartETag> part : parts) {
+      part.cancel(true);
+    }
+  }
+
+  /**
+   * @return ID of the multipart upload, for carrying on with it later
+   */
+  public String getUploadId() {
+    return uploadId;
+  }
+
+  /**
+   * @return Numbers of the parts S3 has for a carried-on upload that weren't among the completed parts it was
+   *   made with (say, because the process died between a part finishing and it being recorded); so what's in
+   *   them isn't known.  Empty for a new upload.
+   */
+  public Set<Integer> getUnrecordedParts() {
+    return Collections.unmodifiableSet(unrecordedParts);
+  }
+
+  /**
+   * @return Number of parts that didn't need uploading, because an earlier attempt uploaded them already
+   */
+  public int getPartsSkipped() {
+    return partsSkipped.get();
+  }
+
+  /**
+   * @return Result of the completed upload, or null if {@link #close()} hasn't finished successfully.
+   */
+  public CompleteMultipartUploadResult getResult() {
+    return result;
+  }
+
+  /**
+   * @return The ETag the completed object should have, from the MD5s of the parts written; or null if
+   *   {@link #close()} hasn't finished successfully.  Parts uploaded by an earlier attempt count too, since
+   *   their MD5s had to match to be skipped.
+   */
+  public String getExpectedETag() {
+    return result == null ? null : expectedETag;
+  }
+
+  private byte[] takeBuffer() throws IOException {
+    failFast();
+    if (freeBuffers.isEmpty() && buffersAllocated < maxBuffers) {
+      // Allocate lazily, so small volumes don't pay for the full set of buffers:
+      buffersAllocated++;
+      return new byte[partSize];
+    }
+
+    try {
+      return freeBuffers.take();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for a free upload buffer");
+    }
+  }
+
+  /** Report a failed part as soon as we notice, rather than encrypting the rest of the volume for nothing. */
+  private void failFast() throws IOException {
+    if (failure != null) {
+      throw new IOException("Failed to upload part of " + key, failure);
+    }
+  }
+
+  private void submitPart(boolean lastPart) {
+    final byte[] partData = buffer;
+    final int partLen = bufferLen;
+    final int partNumber = parts.size() + 1;
+    final CompletedPart earlier = completedParts.get(partNumber);
+    buffer = null;
+    bufferLen = 0;
+
+    parts.add(executor.submit(() -> {
+      try {
+        String md5 = md5(partData, partLen);
+        partMd5s.put(partNumber, md5);
+        if (earlier != null && earlier.getSize() == partLen && earlier.getMd5().equals(md5)) {
+          partsSkipped.incrementAndGet();
+          return new PartETag(partNumber, earlier.getETag());
+        }
+
+        long start = System.nanoTime();
+        PartETag etag = retrier.call("part " + partNumber + " of " + key, () -> {
+          UploadPartRequest req = new UploadPartRequest()
+              .withBucketName(bucket)
+              .withKey(key)
+              .withUploadId(uploadId)
+              .withPartNumber(partNumber)
+              .withPartSize(partLen)
+              .withLastPart(lastPart)
+              .withMD5Digest(Base64.getEncoder().encodeToString(Hex.decode(md5)))
+              .withInputStream(new ByteArrayInputStream(partData, 0, partLen));
+          req.setGeneralProgressListener(progress);
+          return s3.uploadPart(req).getPartETag();
+        });
+        TransferTuner t = tuner;
+        if (t != null) {
+          t.recordPart(getSettings(), partLen, start);
+        }
+        PartListener listener = partListener;
+        if (listener != null) {
+          listener.partUploaded(new CompletedPart(partNumber, partLen, md5, etag.getETag()));
+        }
+        return etag;
+      } catch (Exception e) {
+        failure = e;
+        throw e;
+      } finally {
+        freeBuffers.add(partData);
+      }
+    }));
+  }
+
+  private static String md5(byte[] p_data, int p_len) {
+    try {
+      MessageDigest md = MessageDigest.getInstance("MD5");
+      md.update(p_data, 0, p_len);
+      return Hex.toHexString(md.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is a required JCA algorithm", e);
+    }
+  }
+
+  private static String unquote(String p_etag) {
+    return p_etag == null ? "" : p_etag.replace("\"", "");
+  }
+
+  /**
+   * Told about each part once it's uploaded.  Called on the upload threads.
+   */
+  @FunctionalInterface
+  public interface PartListener {
+    void partUploaded(CompletedPart p_part);
+  }
+
+  /**
+   * A part that's been uploaded: its number, length, the MD5 of its content (in hex), and the ETag S3 gave it.
+   */
+  public static final class CompletedPart {
+    private final int partNumber;
+    private final long size;
+    private final String md5;
+    private final String etag;
+
+    public CompletedPart(int p_partNumber, long p_size, String p_md5, String p_etag) {
+      partNumber = p_partNumber;
+      size = p_size;
+      md5 = p_md5;
+      etag = p_etag;
+    }
+
+    public int getPartNumber() {
+      return partNumber;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public String getMd5() {
+      return md5;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+  }
+
+}
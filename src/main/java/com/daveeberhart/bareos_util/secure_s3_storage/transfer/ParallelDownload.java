@@ -0,0 +1,372 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.daveeberhart.bareos_util.secure_s3_storage.progress.AwsProgressListener;
+
+/**
+ * Download one S3 object over several connections at once: split it into byte ranges, fetch up to
+ * {@code threads} of them concurrently with ranged GETs, and write each straight into place in the output file
+ * with positional writes.  A single connection rarely gets anywhere near the bandwidth S3 can serve one object at.
+ * <p>
+ * A range whose connection drops is retried (see {@link Retrier}) from where it got to, not from its start.
+ * <p>
+ * What's been downloaded so far is recorded in a {@value #PROGRESS_SUFFIX} file next to the output, along with
+ * the object's ETag; so if the download fails (or the process is killed), downloading to the same file again
+ * picks up where it left off.  Every GET after the first is conditional on the ETag, so an object that's changed
+ * in the meantime is downloaded again from scratch, rather than stitched together from two versions.
+ *
+ * @author deberhar
+ */
+public class ParallelDownload {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  public static final String PROGRESS_SUFFIX = ".progress";
+
+  private final AmazonS3 s3;
+  private final String bucket;
+  private final String key;
+  private final long length;
+  private final long rangeSize;
+  private final int threads;
+  private final AwsProgressListener progress;
+  private volatile Retrier retrier = new Retrier(1, 0, 0, null);
+  private volatile ObjectMetadata metadata;
+  private volatile String eTag;
+  private volatile Predicate<ObjectMetadata> metadataCheck;
+  /** Whether the metadata passed the check; completed with the first response. */
+  private volatile CompletableFuture<Boolean> checked;
+
+  /**
+   * @param p_s3 S3 client to download with
+   * @param p_bucket Bucket holding the object
+   * @param p_key Key of the object
+   * @param p_length Length of the object
+   * @param p_rangeSize Bytes per ranged GET
+   * @param p_threads Max number of ranges to download at once
+   * @param p_progress Progress listener for the download; may be null
+   */
+  public ParallelDownload(AmazonS3 p_s3, String p_bucket, String p_key, long p_length, long p_rangeSize, int p_threads,
+      AwsProgressListener p_progress) {
+    if (p_rangeSize <= 0) {
+      throw new IllegalArgumentException("Range size must be positive; was " + p_rangeSize);
+    }
+    s3 = p_s3;
+    bucket = p_bucket;
+    key = p_key;
+    length = p_length;
+    rangeSize = p_rangeSize;
+    threads = Math.max(1, p_threads);
+    progress = p_progress;
+  }
+
+  /**
+   * Retry ranges that fail to download, rather than failing the whole download.  Set this before downloading.
+   */
+  public void setRetrier(Retrier p_retrier) {
+    retrier = p_retrier;
+  }
+
+  /**
+   * Look at the object's metadata, as it comes with the first response, before downloading anything; and don't
+   * download it after all, if the check fails.  Only one range is requested until then.  Set this before
+   * downloading.
+   *
+   * @param p_check Returns false to stop the download
+   */
+  public void setMetadataCheck(Predicate<ObjectMetadata> p_check) {
+    metadataCheck = p_check;
+  }
+
+  /**
+   * @return The object's metadata, as it came with the first range to arrive; or null, before downloading
+   */
+  public ObjectMetadata getObjectMetadata() {
+    return metadata;
+  }
+
+  /**
+   * @return The file recording the progress of a download to the output file
+   */
+  public static File getProgressFile(File p_output) {
+    return new File(p_output.getPath() + PROGRESS_SUFFIX);
+  }
+
+  /**
+   * Download the object into the file; resuming an earlier download into it, if there's a record of one.  If
+   * the download fails, the file is left partly written, for the next attempt to resume; it's up to the caller
+   * to delete it (and its {@link #getProgressFile(File) progress file}) if it won't be resumed.
+   *
+   * @return false if the object's metadata failed the {@link #setMetadataCheck(Predicate) check}, so it wasn't
+   *   downloaded
+   */
+  public boolean downloadTo(File p_output) throws IOException {
+    File fProgress = getProgressFile(p_output);
+    List<long[]> done = readProgress(p_output, fProgress);
+    boolean downloaded;
+    try {
+      downloaded = download(p_output, fProgress, done);
+    } catch (ObjectChangedException e) {
+      System.out.println(key + " has changed since it was partly downloaded; downloading it again from the start");
+      eTag = null;
+      metadata = null;
+      downloaded = download(p_output, fProgress, new ArrayList<>());
+    }
+    fProgress.delete();
+    return downloaded;
+  }
+
+  /**
+   * @param p_done Byte ranges already downloaded into the output; if none, it's started afresh
+   * @return false if the metadata failed the check
+   */
+  private boolean download(File p_output, File fProgress, List<long[]> p_done) throws IOException {
+    boolean resuming = !p_done.isEmpty();
+    checked = new CompletableFuture<>();
+    if (!resuming) {
+      Files.write(fProgress.toPath(), ("key " + key + "\nlength " + length + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+      Thread t = new Thread(r, "range-download");
+      t.setDaemon(true);
+      return t;
+    });
+    try (FileChannel channel = resuming
+        ? FileChannel.open(p_output.toPath(), StandardOpenOption.WRITE)
+        : FileChannel.open(p_output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      List<long[]> toDownload = new ArrayList<>();
+      long skipped = 0;
+      for (long start = 0; start < length; start += rangeSize) {
+        long rangeEnd = Math.min(length, start + rangeSize);
+        long rangeStart = getDoneUpTo(p_done, start, rangeEnd);
+        skipped += rangeStart - start;
+        if (rangeStart < rangeEnd) {
+          toDownload.add(new long[] { rangeStart, rangeEnd });
+        }
+      }
+      if (resuming) {
+        System.out.println("Resuming download of " + key + "; " + skipped + " of " + length + " bytes were downloaded already");
+        if (progress != null) {
+          progress.progressChanged(new ProgressEvent(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT, skipped));
+        }
+      }
+
+      List<CompletableFuture<Void>> ranges = new ArrayList<>();
+      if (metadataCheck != null && !toDownload.isEmpty()) {
+        // Nothing else until the first response says whether to carry on:
+        ranges.add(startRange(executor, channel, fProgress, toDownload.remove(0)));
+        CompletableFuture.anyOf(checked, ranges.get(0)).get();
+        if (!checked.getNow(true)) {
+          return false;
+        }
+      }
+      for (long[] range : toDownload) {
+        ranges.add(startRange(executor, channel, fProgress, range));
+      }
+      for (CompletableFuture<Void> range : ranges) {
+        range.get();
+      }
+      if (channel.size() != length) {
+        throw new IOException("Downloaded " + channel.size() + " bytes of " + key + ", but it's " + length + " bytes long");
+      }
+      if (metadata == null) {
+        // All downloaded last time; but check that it's still the same object, and get its metadata for the caller:
+        ObjectMetadata mdata = s3.getObjectMetadata(bucket, key);
+        if (eTag != null && !eTag.equals(mdata.getETag())) {
+          throw new ObjectChangedException();
+        }
+        metadata = mdata;
+        if (metadataCheck != null && !metadataCheck.test(mdata)) {
+          return false;
+        }
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while downloading " + key);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      } else if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Failed to download " + key, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private CompletableFuture<Void> startRange(ExecutorService p_executor, FileChannel p_channel, File fProgress, long[] p_range) {
+    return CompletableFuture.runAsync(() -> {
+      try {
+        downloadRange(p_channel, fProgress, p_range[0], p_range[1]);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    }, p_executor);
+  }
+
+  /**
+   * Download bytes {@code p_start} (inclusive) to {@code p_end} (exclusive) into the same place in the file, and
+   * record however much of that was downloaded, even if not all of it.
+   */
+  private void downloadRange(FileChannel p_channel, File fProgress, long p_start, long p_end) throws IOException {
+    long[] next = { p_start };
+    byte[] buff = new byte[BUFFER_SIZE];
+    try {
+      retrier.call("bytes " + p_start + "-" + (p_end - 1) + " of " + key, () -> {
+        // A dropped connection only costs what hadn't arrived yet; the retry picks up from there:
+        GetObjectRequest req = new GetObjectRequest(bucket, key).withRange(next[0], p_end - 1);
+        String expectedETag = eTag;
+        if (expectedETag != null) {
+          req.withMatchingETagConstraint(expectedETag);
+        }
+        S3Object obj = s3.getObject(req);
+        if (obj == null) {
+          throw new ObjectChangedException(); // i.e. the ETag didn't match.
+        }
+        try (InputStream in = obj.getObjectContent()) {
+          if (metadata == null) {
+            metadata = obj.getObjectMetadata();
+            boolean passed = metadataCheck == null || metadataCheck.test(metadata);
+            checked.complete(passed);
+            if (!passed) {
+              obj.getObjectContent().abort(); // Don't bother reading any of it.
+              return null;
+            }
+          }
+          if (expectedETag == null && obj.getObjectMetadata() != null) {
+            learnETag(fProgress, obj.getObjectMetadata().getETag());
+          }
+          int n;
+          while (next[0] < p_end && (n = in.read(buff, 0, (int) Math.min(buff.length, p_end - next[0]))) > 0) {
+            ByteBuffer buf = ByteBuffer.wrap(buff, 0, n);
+            while (buf.hasRemaining()) {
+              next[0] += p_channel.write(buf, next[0]);
+            }
+            if (progress != null) {
+              progress.progressChanged(new ProgressEvent(ProgressEventType.RESPONSE_BYTE_TRANSFER_EVENT, n));
+            }
+          }
+        }
+        if (next[0] < p_end) {
+          throw new IOException("Download of bytes " + p_start + "-" + (p_end - 1) + " of " + key + " ended early");
+        }
+        return null;
+      });
+    } finally {
+      if (next[0] > p_start) {
+        recordRange(p_channel, fProgress, p_start, next[0]);
+      }
+    }
+  }
+
+  private synchronized void learnETag(File fProgress, String p_eTag) throws IOException {
+    if (eTag == null && p_eTag != null) {
+      eTag = p_eTag;
+      Files.write(fProgress.toPath(), ("etag " + p_eTag + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+  }
+
+  /**
+   * Record that bytes {@code p_start} (inclusive) to {@code p_end} (exclusive) are in the file; once they're
+   * safely on disk, so that the record never claims more than the file holds.
+   */
+  private synchronized void recordRange(FileChannel p_channel, File fProgress, long p_start, long p_end) throws IOException {
+    p_channel.force(false);
+    Files.write(fProgress.toPath(), ("range " + p_start + " " + p_end + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Read the record of an earlier download into the output, if it was of this object.
+   *
+   * @return The byte ranges (start inclusive, end exclusive) downloaded already; none, if there's nothing to resume
+   */
+  private List<long[]> readProgress(File p_output, File fProgress) throws IOException {
+    List<long[]> done = new ArrayList<>();
+    if (!fProgress.exists() || !p_output.exists()) {
+      return done;
+    }
+    String recordedKey = null;
+    long recordedLength = -1;
+    String recordedETag = null;
+    for (String line : Files.readAllLines(fProgress.toPath(), StandardCharsets.UTF_8)) {
+      String[] fields = line.split(" ", 2);
+      if (fields.length < 2) {
+        continue; // e.g. cut short when the process was killed.
+      }
+      try {
+        switch (fields[0]) {
+        case "key":
+          recordedKey = fields[1];
+          break;
+        case "length":
+          recordedLength = Long.parseLong(fields[1]);
+          break;
+        case "etag":
+          recordedETag = fields[1];
+          break;
+        case "range":
+          String[] range = fields[1].split(" ");
+          done.add(new long[] { Long.parseLong(range[0]), Long.parseLong(range[1]) });
+          break;
+        default:
+        }
+      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        // Ignore a line that was cut short.
+      }
+    }
+    if (!key.equals(recordedKey) || recordedLength != length || recordedETag == null) {
+      done.clear(); // Not this object; or nothing came of it.
+    }
+    eTag = done.isEmpty() ? null : recordedETag;
+    return done;
+  }
+
+  /**
+   * @return How far from {@code p_start} towards {@code p_end} has been downloaded already, without any gaps
+   */
+  private static long getDoneUpTo(List<long[]> p_done, long p_start, long p_end) {
+    long pos = p_start;
+    boolean extended = true;
+    while (extended && pos < p_end) {
+      extended = false;
+      for (long[] range : p_done) {
+        if (range[0] <= pos && range[1] > pos) {
+          pos = Math.min(p_end, range[1]);
+          extended = true;
+        }
+      }
+    }
+    return pos;
+  }
+
+  /**
+   * The object's ETag isn't what it was when its download started.
+   */
+  private static class ObjectChangedException extends RuntimeException {
+  }
+
+}
@@ -0,0 +1,125 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.retry.RetryUtils;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * Retry a single S3 request (one part of an upload, one range of a download) when it fails for a reason
+ * that might go away: a dropped connection, a 5xx error, or throttling.  Anything else (a missing object,
+ * bad credentials, a failed integrity check) fails straight away.
+ * <p>
+ * Each retry waits a random time between zero and an exponentially growing cap ("full jitter"), so that
+ * requests that failed together don't all come back together.  Requests also go through an
+ * {@link AimdLimiter}, if there is one, which is told about throttling errors.
+ *
+ * @author deberhar
+ */
+public class Retrier {
+  private final int maxAttempts;
+  private final long baseDelayMillis;
+  private final long maxDelayMillis;
+  private final AimdLimiter limiter;
+
+  /**
+   * @param p_maxAttempts Attempts per request, including the first
+   * @param p_baseDelayMillis Most time to wait before the first retry; doubles for each retry after that
+   * @param p_maxDelayMillis Most time to wait before any retry
+   * @param p_limiter Limits requests in flight; may be null
+   */
+  public Retrier(int p_maxAttempts, long p_baseDelayMillis, long p_maxDelayMillis, AimdLimiter p_limiter) {
+    maxAttempts = Math.max(1, p_maxAttempts);
+    baseDelayMillis = p_baseDelayMillis;
+    maxDelayMillis = p_maxDelayMillis;
+    limiter = p_limiter;
+  }
+
+  /**
+   * Make the request, retrying it if need be.
+   *
+   * @param p_what What the request is, for messages
+   * @return Whatever the request returned
+   * @throws E The request's last failure, once it's not worth retrying
+   */
+  public <T, E extends Exception> T call(String p_what, Request<T, E> p_request) throws E {
+    for (int attempt = 1; ; attempt++) {
+      long ticket = acquire(p_what);
+      try {
+        T result = p_request.call();
+        release(ticket, false);
+        return result;
+      } catch (Exception e) {
+        boolean throttled = isThrottling(e);
+        release(ticket, throttled);
+        if (attempt >= maxAttempts || !isRetryable(e)) {
+          throw e;
+        }
+
+        long delay = ThreadLocalRandom.current().nextLong(Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30)) + 1);
+        System.out.println("Got " + e.getClass().getSimpleName() + (e.getMessage() != null ? " (" + e.getMessage() + ")" : "") + " from " + p_what
+            + (throttled && limiter != null ? "; slowing down to " + limiter.getLimit() + " requests at once" : "")
+            + "; retrying in " + delay + "ms...");
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException e1) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  private long acquire(String p_what) {
+    if (limiter == null) {
+      return 0;
+    }
+    try {
+      return limiter.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new JobFailedException("Thread interrupted while waiting to send " + p_what, e);
+    }
+  }
+
+  private void release(long p_ticket, boolean p_throttled) {
+    if (limiter != null) {
+      limiter.release(p_ticket, p_throttled);
+    }
+  }
+
+  /**
+   * @return true if S3 is asking us to slow down
+   */
+  static boolean isThrottling(Exception e) {
+    return e instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException) e);
+  }
+
+  /**
+   * @return true if the request might work next time
+   */
+  static boolean isRetryable(Exception e) {
+    if (e instanceof AmazonServiceException) {
+      SdkBaseException ase = (SdkBaseException) e;
+      return RetryUtils.isRetryableServiceException(ase) || RetryUtils.isThrottlingException(ase) || RetryUtils.isClockSkewError(ase);
+    } else if (e instanceof SdkClientException) {
+      return ((SdkClientException) e).isRetryable(); // Connection trouble, mostly; not interruptions.
+    } else {
+      return e instanceof IOException && !(e instanceof InterruptedIOException);
+    }
+  }
+
+  /**
+   * A request to S3.
+   */
+  @FunctionalInterface
+  public interface Request<T, E extends Exception> {
+    T call() throws E;
+  }
+
+}
@@ -0,0 +1,304 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Learns which multipart part size, and how many parts in flight per upload, move data into S3 fastest over
+ * this link ({@code transfer.autotune}).
+ * <p>
+ * Uploads report each part (or whole upload) as it finishes, along with the settings it was made with.  Once
+ * {@value #WINDOW_PARTS} parts' worth of data have gone up with the settings being measured, their aggregate
+ * throughput is compared with the best settings so far:
+ * <ul>
+ * <li>If a neighbouring setting (double or half the part size, or parts in flight) does at least
+ *   {@value #MIN_GAIN_PERCENT}% better, it becomes the new best, and the next step goes the same way.</li>
+ * <li>Otherwise it's dropped; the next step goes the other way, or tries the other setting.</li>
+ * </ul>
+ * Trials alternate with measuring the best settings again, so a link that changes speed doesn't leave the
+ * comparison stale.  Parts that finish within a second or two spend much of their time on per-request overhead,
+ * so the first part size tried is bigger; slow parts make each retry costly, so it's smaller.
+ * <p>
+ * New settings apply to uploads that start afterwards; an upload keeps the part size it started with.  The best
+ * settings so far, and where the search got to, are saved in a small properties file, so the next run starts
+ * from there.
+ *
+ * @author deberhar
+ */
+public class TransferTuner {
+  private static final int MIN_PART_SIZE_MB = MultipartUploadOutputStream.MIN_PART_SIZE / (1024 * 1024);
+  private static final int MAX_PART_SIZE_MB = 512;
+  private static final int MAX_PARTS_IN_FLIGHT = 32;
+  /** Parts' worth of data to measure each setting over. */
+  private static final int WINDOW_PARTS = 8;
+  /** How much faster a trial must go to be kept; anything less is noise. */
+  private static final int MIN_GAIN_PERCENT = 5;
+  /** Parts quicker than this are mostly request overhead; try bigger ones first. */
+  private static final double QUICK_PART_SECONDS = 2;
+
+  private enum Knob { PART_SIZE, PARTS_IN_FLIGHT }
+
+  private final File historyFile;
+  private final long maxBufferBytes;
+
+  private Settings best;
+  /** Bytes per second with the best settings; 0 until measured. */
+  private double bestRate;
+  /** Settings being tried instead of the best; or null while measuring the best. */
+  private Settings trial;
+  private Knob knob = Knob.PARTS_IN_FLIGHT;
+  /** 1 for bigger, -1 for smaller; or 0 to let the part times decide. */
+  private int direction = 1;
+  /** Trials dropped since one was last kept. */
+  private int dropped;
+
+  private long windowBytes;
+  private long windowStart;
+  private long windowEnd;
+  private long partBytes;
+  private long partNanos;
+  /** Average seconds per part, over the last window that had any; or 0. */
+  private double partSeconds;
+
+  /**
+   * @param p_historyFile Where to load the learned settings from, and save them to
+   * @param p_defaults Settings to start with, if there's no history yet
+   * @param p_maxBufferBytes Most memory an upload may buffer ({@code (partsInFlight + 1) * partSize}); settings
+   *   that need more aren't tried
+   */
+  public TransferTuner(File p_historyFile, Settings p_defaults, long p_maxBufferBytes) {
+    historyFile = p_historyFile;
+    maxBufferBytes = p_maxBufferBytes;
+    best = p_defaults;
+    load();
+  }
+
+  /**
+   * @return Settings for an upload that's starting now
+   */
+  public synchronized Settings current() {
+    return trial != null ? trial : best;
+  }
+
+  /**
+   * A part finished uploading.
+   *
+   * @param p_settings Settings of the upload it belongs to
+   * @param p_bytes Size of the part
+   * @param p_startNanos {@link System#nanoTime()} when it started
+   */
+  public synchronized void recordPart(Settings p_settings, long p_bytes, long p_startNanos) {
+    long now = System.nanoTime();
+    if (record(p_settings, p_bytes, p_startNanos, now)) {
+      partBytes += p_bytes;
+      partNanos += now - p_startNanos;
+      adjustIfDue();
+    }
+  }
+
+  /**
+   * A whole upload finished, whose parts weren't reported one at a time (e.g. the TransferManager's).
+   *
+   * @param p_settings Settings it was made with
+   * @param p_bytes Size of the upload
+   * @param p_startNanos {@link System#nanoTime()} when it started
+   */
+  public synchronized void recordUpload(Settings p_settings, long p_bytes, long p_startNanos) {
+    if (record(p_settings, p_bytes, p_startNanos, System.nanoTime())) {
+      adjustIfDue();
+    }
+  }
+
+  /**
+   * @return true if the data counts towards measuring the current settings
+   */
+  private boolean record(Settings p_settings, long p_bytes, long p_startNanos, long p_endNanos) {
+    if (!p_settings.equals(current()) || p_bytes <= 0) {
+      return false; // Started before the settings last changed; says nothing about these ones.
+    }
+    if (windowBytes == 0) {
+      windowStart = p_startNanos;
+      windowEnd = p_endNanos;
+    }
+    windowBytes += p_bytes;
+    windowStart = Math.min(windowStart, p_startNanos);
+    windowEnd = Math.max(windowEnd, p_endNanos);
+    return true;
+  }
+
+  private void adjustIfDue() {
+    if (windowBytes < (long) WINDOW_PARTS * current().getPartSize() || windowEnd <= windowStart) {
+      return;
+    }
+    double rate = windowBytes * 1e9 / (windowEnd - windowStart);
+    if (partNanos > 0) {
+      partSeconds = partNanos / 1e9 / (partBytes / (double) current().getPartSize());
+    }
+    windowBytes = 0;
+    partBytes = 0;
+    partNanos = 0;
+
+    if (trial == null) {
+      bestRate = rate;
+      trial = propose();
+    } else if (rate > bestRate * (100 + MIN_GAIN_PERCENT) / 100) {
+      System.out.println(String.format("Uploads are faster with %s than %s (%.1f vs. %.1f MB/s); keeping it", trial, best, rate / 1e6, bestRate / 1e6));
+      best = trial;
+      bestRate = rate;
+      dropped = 0;
+      trial = propose();
+    } else {
+      drop();
+      trial = null; // Measure the best settings again, in case the link itself has changed.
+    }
+    save();
+  }
+
+  /**
+   * @return A neighbour of the best settings to try next; or null if there's nowhere to go
+   */
+  private Settings propose() {
+    for (int i = 0; i < 4; i++) {
+      if (direction == 0) {
+        direction = partSeconds > QUICK_PART_SECONDS ? -1 : 1;
+      }
+      Settings next;
+      if (knob == Knob.PART_SIZE) {
+        int sizeMB = best.getPartSize() / (1024 * 1024);
+        next = new Settings(clamp(direction > 0 ? sizeMB * 2 : sizeMB / 2, MIN_PART_SIZE_MB, MAX_PART_SIZE_MB) * 1024 * 1024, best.getPartsInFlight());
+      } else {
+        int inFlight = best.getPartsInFlight();
+        next = new Settings(best.getPartSize(), clamp(direction > 0 ? inFlight * 2 : inFlight / 2, 1, MAX_PARTS_IN_FLIGHT));
+      }
+      if (!next.equals(best) && (long) (next.getPartsInFlight() + 1) * next.getPartSize() <= maxBufferBytes) {
+        return next;
+      }
+      drop(); // Already at the limit that way.
+    }
+    return null;
+  }
+
+  /**
+   * The last step didn't help: next time, go the other way, or once both ways have failed, try the other setting.
+   */
+  private void drop() {
+    dropped++;
+    if (dropped % 2 == 1) {
+      direction = -direction;
+    } else {
+      knob = knob == Knob.PART_SIZE ? Knob.PARTS_IN_FLIGHT : Knob.PART_SIZE;
+      direction = knob == Knob.PART_SIZE ? 0 : 1;
+    }
+  }
+
+  private static int clamp(int p_value, int p_min, int p_max) {
+    return Math.max(p_min, Math.min(p_max, p_value));
+  }
+
+  /** @return Bytes per second with the best settings so far; or 0 if not measured yet */
+  public synchronized double getBestRate() {
+    return bestRate;
+  }
+
+  private void load() {
+    if (!historyFile.exists()) {
+      return;
+    }
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(historyFile)) {
+      props.load(in);
+      best = new Settings(clamp(Integer.parseInt(props.getProperty("partSizeMB")), MIN_PART_SIZE_MB, MAX_PART_SIZE_MB) * 1024 * 1024,
+          clamp(Integer.parseInt(props.getProperty("partsInFlight")), 1, MAX_PARTS_IN_FLIGHT));
+      bestRate = Double.parseDouble(props.getProperty("bytesPerSecond", "0"));
+      knob = Knob.valueOf(props.getProperty("knob", knob.name()));
+      direction = Integer.signum(Integer.parseInt(props.getProperty("direction", "1")));
+      dropped = Integer.parseInt(props.getProperty("dropped", "0"));
+      partSeconds = Double.parseDouble(props.getProperty("partSeconds", "0"));
+    } catch (IOException | RuntimeException e) {
+      System.err.println("Warning: ignoring unreadable transfer history " + historyFile + " (" + e.getMessage() + ")");
+      return;
+    }
+
+    // Pick up where the last run left off; it measured the best settings already, so start with the next trial:
+    if (bestRate > 0) {
+      trial = propose();
+    }
+  }
+
+  /**
+   * Written to a temp file first, so a crash never leaves a half-written history.  The uploads carry on
+   * regardless, so a failure here is only a warning.
+   */
+  public synchronized void save() {
+    Properties props = new Properties();
+    props.setProperty("partSizeMB", Integer.toString(best.getPartSize() / (1024 * 1024)));
+    props.setProperty("partsInFlight", Integer.toString(best.getPartsInFlight()));
+    props.setProperty("bytesPerSecond", Long.toString((long) bestRate));
+    props.setProperty("knob", knob.name());
+    props.setProperty("direction", Integer.toString(direction));
+    props.setProperty("dropped", Integer.toString(dropped));
+    props.setProperty("partSeconds", Double.toString(partSeconds));
+    try {
+      File fTmp = new File(historyFile.getParentFile(), historyFile.getName() + ".tmp");
+      try (FileOutputStream out = new FileOutputStream(fTmp, false)) {
+        props.store(out, "Learned upload settings; see transfer.autotune");
+      }
+      Files.move(fTmp.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Warning: could not save transfer history to " + historyFile + " (" + e.getMessage() + ")");
+    }
+  }
+
+  /**
+   * Part size and parts in flight for one upload.
+   */
+  public static final class Settings {
+    private final int partSize;
+    private final int partsInFlight;
+
+    /**
+     * @param p_partSize Size of each part, in bytes
+     * @param p_partsInFlight Max number of parts to upload concurrently
+     */
+    public Settings(int p_partSize, int p_partsInFlight) {
+      partSize = p_partSize;
+      partsInFlight = p_partsInFlight;
+    }
+
+    /** @return Size of each part, in bytes */
+    public int getPartSize() {
+      return partSize;
+    }
+
+    /** @return Max number of parts to upload concurrently */
+    public int getPartsInFlight() {
+      return partsInFlight;
+    }
+
+    @Override
+    public boolean equals(Object p_other) {
+      if (!(p_other instanceof Settings)) {
+        return false;
+      }
+      Settings other = (Settings) p_other;
+      return partSize == other.partSize && partsInFlight == other.partsInFlight;
+    }
+
+    @Override
+    public int hashCode() {
+      return partSize * 31 + partsInFlight;
+    }
+
+    @Override
+    public String toString() {
+      return (partSize / (1024 * 1024)) + "MB parts, " + partsInFlight + " in flight";
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.crypto;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
+
+/**
+ * Tests for the pluggable AES-GCM engines.
+ *
+ * @author deberhar
+ */
+public class CipherEngineTest {
+  private static final byte[] KEY = new byte[16];
+  private static final byte[] NONCE = new byte[12];
+  private static final byte[] AAD = "header".getBytes(Charset.forName("ASCII"));
+
+  static {
+    new Random(1).nextBytes(KEY);
+    new Random(2).nextBytes(NONCE);
+  }
+
+  @Test
+  public void testEnginesProduceIdenticalOutput() throws InvalidCipherTextException {
+    byte[] plaintext = new byte[100_000];
+    new Random(3).nextBytes(plaintext);
+
+    byte[] expected = encrypt(CipherEngine.BC, plaintext);
+    for (CipherEngine engine : CipherEngine.values()) {
+      Assert.assertArrayEquals(engine.getConfigName(), expected, encrypt(engine, plaintext));
+    }
+  }
+
+  @Test
+  public void testEnginesCrossDecrypt() throws InvalidCipherTextException {
+    byte[] plaintext = "The first cold shower".getBytes(Charset.forName("ASCII"));
+
+    for (CipherEngine encEngine : CipherEngine.values()) {
+      byte[] ciphertext = encrypt(encEngine, plaintext);
+      for (CipherEngine decEngine : CipherEngine.values()) {
+        Assert.assertArrayEquals(encEngine + " -> " + decEngine, plaintext, decrypt(decEngine, ciphertext));
+      }
+    }
+  }
+
+  @Test
+  public void testEnginesDetectTampering() throws InvalidCipherTextException {
+    byte[] ciphertext = encrypt(CipherEngine.BC, "Tamper with me".getBytes(Charset.forName("ASCII")));
+    ciphertext[3] ^= 42;
+
+    for (CipherEngine engine : CipherEngine.values()) {
+      try {
+        decrypt(engine, ciphertext);
+        Assert.fail(engine + " should have failed the auth check");
+      } catch (InvalidCipherTextException e) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void testForConfigName() {
+    Assert.assertSame(CipherEngine.BC, CipherEngine.forConfigName("bc"));
+    Assert.assertSame(CipherEngine.BC_64K, CipherEngine.forConfigName("BC-64k"));
+    Assert.assertSame(CipherEngine.JCA, CipherEngine.forConfigName("jca"));
+  }
+
+  @Test(expected=BadArgsException.class)
+  public void testBadConfigName() {
+    CipherEngine.forConfigName("rot13");
+  }
+
+  @Test
+  public void testSelectFastest() {
+    Assert.assertNotNull(CipherEngine.selectFastest());
+  }
+
+  private static byte[] encrypt(CipherEngine engine, byte[] plaintext) throws InvalidCipherTextException {
+    AeadCipher cipher = engine.newCipher(true, KEY, NONCE);
+    cipher.processAADBytes(AAD, 0, AAD.length);
+    byte[] out = new byte[cipher.getOutputSize(plaintext.length)];
+    int len = cipher.processBytes(plaintext, 0, plaintext.length, out, 0);
+    len += cipher.doFinal(out, len);
+    return Arrays.copyOf(out, len);
+  }
+
+  private static byte[] decrypt(CipherEngine engine, byte[] ciphertext) throws InvalidCipherTextException {
+    AeadCipher cipher = engine.newCipher(false, KEY, NONCE);
+    cipher.processAADBytes(AAD, 0, AAD.length);
+    byte[] out = new byte[cipher.getOutputSize(ciphertext.length)];
+    int len = cipher.processBytes(ciphertext, 0, ciphertext.length, out, 0);
+    len += cipher.doFinal(out, len);
+    return Arrays.copyOf(out, len);
+  }
+
+}
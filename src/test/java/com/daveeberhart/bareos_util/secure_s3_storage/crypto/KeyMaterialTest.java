@@ -0,0 +1,51 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.crypto;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class KeyMaterialTest {
+
+  @Test
+  public void testNoRepeatsAcrossThreads() throws InterruptedException {
+    Set<String> seen = ConcurrentHashMap.newKeySet();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> IntStream.range(0, 1000).forEach(i -> {
+        byte[] key = new byte[16];
+        KeyMaterial.nextBytes(key);
+        Assert.assertTrue(seen.add(Hex.toHexString(key)));
+      }));
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    Assert.assertEquals(4000, seen.size());
+  }
+
+  @Test
+  public void testStats() throws InterruptedException {
+    KeyMaterial.Stats before = KeyMaterial.getStats();
+    Thread thread = new Thread(() -> {
+      KeyMaterial.nextBytes(new byte[16]);
+      KeyMaterial.nextBytes(new byte[12]);
+    });
+    thread.start();
+    thread.join();
+
+    KeyMaterial.Stats stats = KeyMaterial.getStats().since(before);
+    Assert.assertEquals(1, stats.getInstances()); // A new thread gets its own DRBG
+    Assert.assertEquals(2, stats.getRequests());
+    Assert.assertTrue(stats.getSeedNanos() > 0);
+    Assert.assertTrue(stats.toString().contains("(28 bytes)"));
+  }
+
+}
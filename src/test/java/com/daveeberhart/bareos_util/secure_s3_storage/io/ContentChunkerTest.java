@@ -0,0 +1,73 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class ContentChunkerTest {
+  private static final int TARGET = 4096;
+
+  @Test
+  public void testChunksCoverInput() throws IOException {
+    byte[] data = randomBytes(200_000);
+    List<byte[]> chunks = chunk(data);
+
+    ByteArrayOutputStream joined = new ByteArrayOutputStream();
+    for (int i = 0; i < chunks.size(); i++) {
+      byte[] chunk = chunks.get(i);
+      Assert.assertTrue("chunk too big", chunk.length <= TARGET * 4);
+      Assert.assertTrue("chunk too small", chunk.length >= TARGET / 4 || i == chunks.size() - 1);
+      joined.write(chunk);
+    }
+    Assert.assertArrayEquals(data, joined.toByteArray());
+    Assert.assertTrue("too few chunks: " + chunks.size(), chunks.size() > 200_000 / (TARGET * 2));
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    Assert.assertTrue(chunk(new byte[0]).isEmpty());
+  }
+
+  @Test
+  public void testInsertionOnlyChangesNearbyChunks() throws IOException {
+    byte[] data = randomBytes(200_000);
+    byte[] edited = new byte[data.length + 10];
+    System.arraycopy(data, 0, edited, 0, 50_000);
+    System.arraycopy(data, 50_000, edited, 50_010, data.length - 50_000);
+
+    Set<String> before = new HashSet<>();
+    chunk(data).forEach(c -> before.add(Hex.toHexString(c)));
+    List<byte[]> after = chunk(edited);
+    long changed = after.stream().filter(c -> !before.contains(Hex.toHexString(c))).count();
+    Assert.assertTrue("changed " + changed + " of " + after.size(), changed <= 3);
+  }
+
+  private static List<byte[]> chunk(byte[] p_data) throws IOException {
+    ContentChunker chunker = new ContentChunker(new ByteArrayInputStream(p_data), TARGET);
+    List<byte[]> chunks = new ArrayList<>();
+    byte[] chunk;
+    while ((chunk = chunker.next()) != null) {
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private static byte[] randomBytes(int len) {
+    byte[] buff = new byte[len];
+    new Random(len).nextBytes(buff);
+    return buff;
+  }
+
+}
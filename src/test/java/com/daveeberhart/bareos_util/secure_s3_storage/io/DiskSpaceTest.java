@@ -0,0 +1,83 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.InsufficientSpaceException;
+
+/**
+ * @author deberhar
+ */
+public class DiskSpaceTest {
+  private final File fDir = new File(System.getProperty("java.io.tmpdir"));
+
+  @Test
+  public void testReserveAndRelease() throws IOException {
+    DiskSpace space = new DiskSpace(10, dir -> 100);
+    DiskSpace.Reservation first = space.reserve("first", fDir, 60);
+    try {
+      Assert.assertEquals(60, space.getReserved(fDir));
+      DiskSpace.Reservation second = space.reserve("second", fDir, 30);
+      try {
+        Assert.assertEquals(90, space.getReserved(fDir));
+      } finally {
+        second.close();
+      }
+      Assert.assertEquals(60, space.getReserved(fDir));
+    } finally {
+      first.close();
+    }
+    Assert.assertEquals(0, space.getReserved(fDir));
+  }
+
+  @Test
+  public void testWaitsForRelease() throws Exception {
+    DiskSpace space = new DiskSpace(10, dir -> 100);
+    DiskSpace.Reservation first = space.reserve("first", fDir, 60);
+    CompletableFuture<DiskSpace.Reservation> second;
+    try {
+      second = CompletableFuture.supplyAsync(() -> {
+        try {
+          return space.reserve("second", fDir, 60);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      });
+      try {
+        second.get(200, TimeUnit.MILLISECONDS);
+        Assert.fail("Should have waited for the first reservation");
+      } catch (TimeoutException e) {
+        // Expected
+      }
+    } finally {
+      first.close();
+    }
+
+    DiskSpace.Reservation reservation = second.get(5, TimeUnit.SECONDS);
+    try {
+      Assert.assertEquals(60, space.getReserved(fDir));
+    } finally {
+      reservation.close();
+    }
+    Assert.assertEquals(0, space.getReserved(fDir));
+  }
+
+  @Test
+  public void testNeverFits() throws IOException {
+    DiskSpace space = new DiskSpace(10, dir -> 100);
+    try {
+      space.reserve("huge", fDir, 95).close();
+      Assert.fail("Should have thrown an exception");
+    } catch (InsufficientSpaceException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("huge"));
+    }
+    Assert.assertEquals(0, space.getReserved(fDir));
+  }
+
+}
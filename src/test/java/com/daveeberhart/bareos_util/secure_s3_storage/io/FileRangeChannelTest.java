@@ -0,0 +1,64 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class FileRangeChannelTest {
+  private File fTest;
+  private byte[] data;
+
+  @Before
+  public void setUp() throws IOException {
+    fTest = File.createTempFile("range", ".bin");
+    data = new byte[100_000];
+    new Random(7).nextBytes(data);
+    Files.write(fTest.toPath(), data);
+  }
+
+  @After
+  public void tearDown() {
+    fTest.delete();
+  }
+
+  @Test
+  public void testMiddle() throws IOException {
+    Assert.assertArrayEquals(Arrays.copyOfRange(data, 1234, 51234), read(1234, 50_000));
+  }
+
+  @Test
+  public void testIgnoresAppendedData() throws IOException {
+    Assert.assertArrayEquals(Arrays.copyOf(data, 60_000), read(0, 60_000));
+  }
+
+  @Test
+  public void testEmptyRange() throws IOException {
+    Assert.assertEquals(0, read(data.length, 0).length);
+  }
+
+  @Test(expected = EOFException.class)
+  public void testShortFile() throws IOException {
+    read(90_000, 20_000);
+  }
+
+  private byte[] read(long p_offset, long p_length) throws IOException {
+    try (InputStream in = Channels.newInputStream(new FileRangeChannel(fTest, p_offset, p_length))) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+}
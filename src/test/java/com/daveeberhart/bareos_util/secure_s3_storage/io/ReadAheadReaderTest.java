@@ -0,0 +1,87 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class ReadAheadReaderTest {
+
+  @Test
+  public void testFullBuffers() throws IOException {
+    byte[] data = new byte[10_000];
+    new Random(42).nextBytes(data);
+    BufferPool pool = new BufferPool(1024, false, 4);
+
+    // Dribble the data out a few bytes at a time; every buffer but the last should still come back full.
+    InputStream dribble = new FilterInputStream(new ByteArrayInputStream(data)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, 7));
+      }
+    };
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ReadAheadReader reader = new ReadAheadReader(Channels.newChannel(dribble), pool, 2, "test")) {
+      ByteBuffer buf;
+      while ((buf = reader.next()) != null) {
+        if (out.size() + 1024 <= data.length) {
+          Assert.assertEquals(1024, buf.remaining());
+        }
+        byte[] chunk = new byte[buf.remaining()];
+        buf.get(chunk);
+        out.write(chunk);
+        pool.release(buf);
+      }
+      Assert.assertNull(reader.next());
+    }
+
+    Assert.assertArrayEquals(data, out.toByteArray());
+    Assert.assertTrue(pool.getIdleCount() > 0);
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    BufferPool pool = new BufferPool(1024, true, 4);
+    try (ReadAheadReader reader = new ReadAheadReader(Channels.newChannel(new ByteArrayInputStream(new byte[0])), pool, 2, "test")) {
+      Assert.assertNull(reader.next());
+    }
+  }
+
+  @Test
+  public void testReadFailure() {
+    InputStream broken = new InputStream() {
+      @Override
+      public int read() throws IOException {
+        throw new IOException("kaBOOM");
+      }
+    };
+
+    try (ReadAheadReader reader = new ReadAheadReader(Channels.newChannel(broken), new BufferPool(1024, false, 4), 2, "test")) {
+      reader.next();
+      Assert.fail("Should have thrown an exception");
+    } catch (IOException e) {
+      Assert.assertEquals("kaBOOM", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void testCloseEarly() throws IOException {
+    BufferPool pool = new BufferPool(16, false, 4);
+    try (ReadAheadReader reader = new ReadAheadReader(Channels.newChannel(new ByteArrayInputStream(new byte[10_000])), pool, 2, "test")) {
+      Assert.assertEquals(16, reader.next().remaining());
+      // Closing mid-stream mustn't hang.
+    }
+  }
+
+}
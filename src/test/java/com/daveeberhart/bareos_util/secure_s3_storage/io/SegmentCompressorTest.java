@@ -0,0 +1,90 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class SegmentCompressorTest {
+  private final SegmentCompressor compressor = SegmentCompressor.forLevel(1);
+
+  @Test
+  public void testCompressible() throws DataFormatException {
+    byte[] segment = new byte[4096];
+    Arrays.fill(segment, (byte) 'x');
+
+    ByteBuffer compressed = compress(segment);
+    Assert.assertEquals(SegmentCompressor.DEFLATED, compressed.get(0));
+    Assert.assertTrue(compressed.remaining() < segment.length);
+    Assert.assertArrayEquals(segment, decompress(compressed, segment.length));
+  }
+
+  @Test
+  public void testIncompressibleStored() throws DataFormatException {
+    byte[] segment = new byte[4096];
+    new Random(42).nextBytes(segment);
+
+    ByteBuffer compressed = compress(segment);
+    Assert.assertEquals(SegmentCompressor.STORED, compressed.get(0));
+    Assert.assertEquals(segment.length + 1, compressed.remaining());
+    Assert.assertArrayEquals(segment, decompress(compressed, segment.length));
+  }
+
+  @Test
+  public void testEmpty() throws DataFormatException {
+    ByteBuffer compressed = compress(new byte[0]);
+    Assert.assertEquals(1, compressed.remaining());
+    Assert.assertEquals(0, decompress(compressed, 10).length);
+  }
+
+  @Test(expected=DataFormatException.class)
+  public void testTooBig() throws DataFormatException {
+    byte[] segment = new byte[4096];
+    decompress(compress(segment), segment.length - 1);
+  }
+
+  @Test(expected=DataFormatException.class)
+  public void testTruncated() throws DataFormatException {
+    byte[] segment = new byte[4096];
+    ByteBuffer compressed = compress(segment);
+    compressed.limit(compressed.limit() - 2);
+    decompress(compressed, segment.length);
+  }
+
+  @Test(expected=DataFormatException.class)
+  public void testUnknownMarker() throws DataFormatException {
+    decompress(ByteBuffer.wrap(new byte[] { 7, 1, 2, 3 }), 10);
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testBadLevel() {
+    SegmentCompressor.forLevel(0);
+  }
+
+  @Test
+  public void testRatio() {
+    byte[] sample = new byte[10_000];
+    Assert.assertTrue(compressor.getRatio(sample, sample.length) < 0.1);
+    new Random(42).nextBytes(sample);
+    Assert.assertTrue(compressor.getRatio(sample, sample.length) > 0.9);
+  }
+
+  private ByteBuffer compress(byte[] p_segment) {
+    ByteBuffer out = ByteBuffer.allocate(p_segment.length + 1);
+    compressor.compress(ByteBuffer.wrap(p_segment), out);
+    return out;
+  }
+
+  private static byte[] decompress(ByteBuffer p_compressed, int p_maxLen) throws DataFormatException {
+    ByteBuffer out = ByteBuffer.allocate(p_maxLen);
+    SegmentCompressor.decompress(p_compressed, out);
+    return Arrays.copyOf(out.array(), out.limit());
+  }
+
+}
@@ -0,0 +1,60 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class WriteBehindWriterTest {
+
+  @Test
+  public void testWritesInOrder() throws IOException {
+    BufferPool pool = new BufferPool(4, false, 100);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (WriteBehindWriter writer = new WriteBehindWriter(Channels.newChannel(out), 2, "test")) {
+      writer.write(ByteBuffer.wrap("head".getBytes()), null);
+      for (int i = 0; i < 50; i++) {
+        ByteBuffer buf = pool.acquire();
+        buf.put((byte) ('a' + (i % 26)));
+        buf.flip();
+        writer.write(buf, pool);
+      }
+    }
+
+    StringBuilder expected = new StringBuilder("head");
+    for (int i = 0; i < 50; i++) {
+      expected.append((char) ('a' + (i % 26)));
+    }
+    Assert.assertEquals(expected.toString(), out.toString());
+    Assert.assertTrue(pool.getIdleCount() > 0);
+  }
+
+  @Test
+  public void testWriteFailure() throws IOException {
+    OutputStream broken = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("kaBOOM");
+      }
+    };
+
+    WriteBehindWriter writer = new WriteBehindWriter(Channels.newChannel(broken), 2, "test");
+    try {
+      for (int i = 0; i < 10; i++) {
+        writer.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), null);
+      }
+      writer.close();
+      Assert.fail("Should have thrown an exception");
+    } catch (IOException e) {
+      Assert.assertEquals("kaBOOM", e.getCause().getMessage());
+    }
+  }
+
+}
@@ -0,0 +1,319 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+
+/**
+ * Tests for appendable volumes ({@code backup.appendable}), against an in-memory bucket.
+ *
+ * @author deberhar
+ */
+public class AppendTest {
+  private final File fTestDir = new File(new File(System.getProperty("java.io.tmpdir")), UUID.randomUUID().toString());
+  private final AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+  private final TransferManager tm = Mockito.mock(TransferManager.class);
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+  private final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> bytesRead = new ConcurrentHashMap<>();
+  private byte[] volume;
+
+  @Before
+  public void setUp() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.appendable", "true");
+    System.setProperty("restore.streaming", "true");
+
+    volume = new byte[300_000];
+    new Random(42).nextBytes(volume);
+
+    Mockito.when(s3.getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> {
+      String key = inv.getArgument(1);
+      byte[] content = get(key);
+      ObjectMetadata md = metadata.get(key).clone();
+      md.setContentLength(content.length);
+      return md;
+    });
+    Mockito.when(s3.putObject(ArgumentMatchers.any(PutObjectRequest.class))).then(inv -> {
+      PutObjectRequest req = inv.getArgument(0);
+      objects.put(req.getKey(), IOUtils.toByteArray(req.getInputStream()));
+      metadata.put(req.getKey(), new ObjectMetadata());
+      return null;
+    });
+    Mockito.when(tm.upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class))).then(inv -> {
+      PutObjectRequest req = inv.getArgument(0);
+      objects.put(req.getKey(), Files.readAllBytes(req.getFile().toPath()));
+      metadata.put(req.getKey(), req.getMetadata() != null ? req.getMetadata() : new ObjectMetadata());
+      UploadResult res = new UploadResult();
+      res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(objects.get(req.getKey()))));
+      Upload upload = Mockito.mock(Upload.class);
+      Mockito.when(upload.waitForUploadResult()).thenReturn(res);
+      return upload;
+    });
+    Mockito.when(s3.listObjects(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> {
+      String prefix = inv.getArgument(1);
+      ObjectListing listing = new ObjectListing();
+      objects.keySet().stream().filter(k -> k.startsWith(prefix)).sorted().forEach(k -> {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(k);
+        summary.setSize(objects.get(k).length);
+        summary.setStorageClass(StorageClass.Standard.toString());
+        listing.getObjectSummaries().add(summary);
+      });
+      return listing;
+    });
+    Mockito.when(s3.getObject(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> object(new GetObjectRequest(inv.getArgument(0), inv.getArgument(1))));
+    Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).then(inv -> object(inv.getArgument(0)));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    System.clearProperty("backup.appendable");
+    System.clearProperty("restore.streaming");
+    FileUtils.deleteDirectory(fTestDir);
+  }
+
+  @Test
+  public void testOnlyTailUploaded() throws IOException {
+    backup("100", Arrays.copyOf(volume, 200_000));
+    Assert.assertNull(metadata.get("bb-100-TESTVOL-0001.enc").getUserMetaDataOf(AppendState.META_APPEND_TO));
+
+    backup("101", volume);
+    ObjectMetadata tail = metadata.get("bb-101-TESTVOL-0001.enc");
+    Assert.assertEquals("bb-100-TESTVOL-0001.enc", tail.getUserMetaDataOf(AppendState.META_APPEND_TO));
+    Assert.assertEquals("200000", tail.getUserMetaDataOf(AppendState.META_APPEND_OFFSET));
+    Assert.assertTrue(objects.get("bb-101-TESTVOL-0001.enc").length < 110_000);
+
+    Assert.assertArrayEquals(Arrays.copyOf(volume, 200_000), restore("100"));
+    Assert.assertArrayEquals(volume, restore("101"));
+  }
+
+  @Test
+  public void testTailDownloadedOnce() throws IOException {
+    backup("100", Arrays.copyOf(volume, 200_000));
+    backup("101", volume);
+    System.clearProperty("restore.streaming");
+
+    Assert.assertArrayEquals(volume, restore("101"));
+    // Its first response said it was a tail, so that was cut off before reading any of it:
+    Assert.assertEquals(objects.get("bb-101-TESTVOL-0001.enc").length, bytesRead.get("bb-101-TESTVOL-0001.enc").get());
+    Assert.assertEquals(objects.get("bb-100-TESTVOL-0001.enc").length, bytesRead.get("bb-100-TESTVOL-0001.enc").get());
+  }
+
+  @Test
+  public void testUnchangedVolumeNotUploaded() throws IOException {
+    backup("100", volume);
+    backup("101", volume);
+    Assert.assertFalse(objects.containsKey("bb-101-TESTVOL-0001.enc"));
+
+    // The digest of the whole volume goes with it, for restores to check a local copy against:
+    Assert.assertEquals(Integer.toString(volume.length), metadata.get("bb-100-TESTVOL-0001.enc").getUserMetaDataOf(Job.META_VOLUME_LENGTH));
+    Assert.assertNotNull(metadata.get("bb-100-TESTVOL-0001.enc").getUserMetaDataOf(Job.META_VOLUME_DIGEST));
+  }
+
+  @Test
+  public void testLongChain() throws IOException {
+    for (int i = 1; i <= 3; i++) {
+      backup(Integer.toString(100 + i), Arrays.copyOf(volume, i * 100_000));
+    }
+    Assert.assertArrayEquals(volume, restore("103"));
+  }
+
+  @Test
+  public void testRecycledVolumeUploadedWhole() throws IOException {
+    backup("100", Arrays.copyOf(volume, 200_000));
+
+    byte[] recycled = volume.clone();
+    recycled[10] ^= 1;
+    backup("101", recycled);
+    Assert.assertNull(metadata.get("bb-101-TESTVOL-0001.enc").getUserMetaDataOf(AppendState.META_APPEND_TO));
+    Assert.assertArrayEquals(recycled, restore("101"));
+  }
+
+  @Test
+  public void testMaxPieces() throws IOException {
+    System.setProperty("backup.appendable.maxPieces", "2");
+    try {
+      for (int i = 1; i <= 3; i++) {
+        backup(Integer.toString(100 + i), Arrays.copyOf(volume, i * 100_000));
+      }
+    } finally {
+      System.clearProperty("backup.appendable.maxPieces");
+    }
+    Assert.assertNotNull(metadata.get("bb-102-TESTVOL-0001.enc").getUserMetaDataOf(AppendState.META_APPEND_TO));
+    Assert.assertNull(metadata.get("bb-103-TESTVOL-0001.enc").getUserMetaDataOf(AppendState.META_APPEND_TO));
+  }
+
+  @Test
+  public void testSwappedBase() throws IOException {
+    backup("100", Arrays.copyOf(volume, 200_000));
+    backup("101", volume);
+
+    // Swap in a different volume that's the same length; the tail no longer belongs to it.
+    byte[] other = Arrays.copyOf(volume, 200_000);
+    other[10] ^= 1;
+    new File(fTestDir, ".s3-append/TESTVOL-0001.properties").delete();
+    backup("100", other);
+    try {
+      restore("101");
+      Assert.fail("Should have thrown an exception");
+    } catch (IntegrityCheckFailedException e) {
+      Assert.assertFalse(new File(fTestDir, "TESTVOL-0001").exists());
+    }
+  }
+
+  @Test
+  public void testMissingBase() throws IOException {
+    backup("100", Arrays.copyOf(volume, 200_000));
+    backup("101", volume);
+    objects.remove("bb-100-TESTVOL-0001.enc");
+
+    try {
+      restore("101");
+      Assert.fail("Should have thrown an exception");
+    } catch (JobFailedException e) {
+      Assert.assertFalse(new File(fTestDir, "TESTVOL-0001").exists());
+    }
+  }
+
+  @Test
+  public void testRestoreRange() throws IOException {
+    backup("100", Arrays.copyOf(volume, 200_000));
+    backup("101", volume);
+    new File(fTestDir, "TESTVOL-0001").delete();
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(volume, 1000, 2000), restoreRange(1000, 1000));
+    Assert.assertArrayEquals(Arrays.copyOfRange(volume, 250_000, 260_000), restoreRange(250_000, 10_000));
+    try {
+      restoreRange(199_000, 2000);
+      Assert.fail("Should have thrown an exception");
+    } catch (JobFailedException e) {
+      // Expected: crosses from the first piece into the second.
+    }
+  }
+
+  private void backup(String p_jobId, byte[] p_data) throws IOException {
+    Files.write(new File(fTestDir, "TESTVOL-0001").toPath(), p_data);
+
+    BackupJob job = new BackupJob() {
+      @Override
+      public void prepare() {
+        s3 = AppendTest.this.s3;
+        tm = AppendTest.this.tm;
+        encryptionKey = "secret key";
+        bucket = "bucket";
+      }
+    };
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList(p_jobId, "TESTVOL-0001"));
+    job.prepare();
+    try {
+      job.run();
+    } finally {
+      job.cleanup();
+    }
+    Assert.assertTrue(new File(fTestDir, "TESTVOL-0001").exists());
+  }
+
+  private byte[] restore(String p_jobId) throws IOException {
+    new File(fTestDir, "TESTVOL-0001").delete();
+
+    RestoreVolumes job = Mockito.spy(RestoreVolumes.class);
+    Mockito.doNothing().when(job).prepare();
+    job.s3 = s3;
+    job.bucket = "bucket";
+    job.encryptionKey = "secret key";
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList(p_jobId + "-TESTVOL-0001"));
+    job.run();
+
+    File fOut = new File(fTestDir, "TESTVOL-0001");
+    byte[] restored = Files.readAllBytes(fOut.toPath());
+    fOut.delete();
+    return restored;
+  }
+
+  private byte[] restoreRange(long p_offset, long p_length) throws IOException {
+    RestoreRange job = Mockito.spy(RestoreRange.class);
+    Mockito.doNothing().when(job).prepare();
+    job.s3 = s3;
+    job.bucket = "bucket";
+    job.encryptionKey = "secret key";
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList("101-TESTVOL-0001", Long.toString(p_offset), Long.toString(p_length)));
+    job.run();
+
+    File fOut = new File(fTestDir, "TESTVOL-0001.range-" + p_offset + "-" + p_length);
+    byte[] restored = Files.readAllBytes(fOut.toPath());
+    fOut.delete();
+    return restored;
+  }
+
+  private byte[] get(String key) {
+    byte[] content = objects.get(key);
+    if (content == null) {
+      AmazonS3Exception e = new AmazonS3Exception("Not Found");
+      e.setStatusCode(404);
+      throw e;
+    }
+    return content;
+  }
+
+  private S3Object object(GetObjectRequest p_req) {
+    byte[] content = get(p_req.getKey());
+    if (p_req.getRange() != null) {
+      content = Arrays.copyOfRange(content, (int) p_req.getRange()[0], (int) Math.min(content.length, p_req.getRange()[1] + 1));
+    }
+    AtomicLong read = bytesRead.computeIfAbsent(p_req.getKey(), k -> new AtomicLong());
+    InputStream in = new FilterInputStream(new ByteArrayInputStream(content)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        read.addAndGet(Math.max(0, n));
+        return n;
+      }
+    };
+    S3Object obj = new S3Object();
+    obj.setKey(p_req.getKey());
+    obj.setObjectContent(in);
+    obj.setObjectMetadata(metadata.get(p_req.getKey()).clone());
+    return obj;
+  }
+
+}
@@ -1,32 +1,60 @@
 package com.daveeberhart.bareos_util.secure_s3_storage.job;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.security.DigestInputStream;
 import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.bouncycastle.util.encoders.Hex;
 import org.hamcrest.CoreMatchers;
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
 import com.amazonaws.services.s3.transfer.model.UploadResult;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.VolumeMissingException;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.ETagOutputStream;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.MultipartUploadOutputStream.CompletedPart;
 
 /**
  * Test backup job class.
@@ -106,12 +134,78 @@ public class BackupJobTest {
       Assert.assertFalse(fTestVol001.exists());
 
       Mockito.verify(job.tm).upload(ArgumentMatchers.any(), ArgumentMatchers.any());
+      ArgumentCaptor<PutObjectRequest> indexReq = ArgumentCaptor.forClass(PutObjectRequest.class);
+      Mockito.verify(job.s3).putObject(indexReq.capture());
+      Assert.assertEquals("index/bb-123-TESTVOL-0001.enc", indexReq.getValue().getKey());
       Mockito.verifyNoMoreInteractions(job.s3);
     } finally {
       FileUtils.deleteDirectory(fTestDir);
     }
   }
 
+  @Test
+  public void testEncryptsIntoStagingDir() throws IOException {
+    fTestDir.mkdir();
+    File fStaging = new File(fTestDir, "staging");
+    System.setProperty("staging.dir", fStaging.getPath());
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      Files.write(fTestVol001.toPath(), Arrays.asList("It's a test!"), StandardOpenOption.CREATE);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+      Mockito.when(job.tm.upload(ArgumentMatchers.any(), ArgumentMatchers.any())).then(inv -> {
+        PutObjectRequest req = inv.getArgument(0);
+        Assert.assertEquals(new File(fStaging, "bb-123-TESTVOL-0001.enc"), req.getFile());
+        Assert.assertFalse(new File(fTestDir, "bb-123-TESTVOL-0001.enc").exists());
+        Assert.assertTrue(Job.getDiskSpace().getReserved(fStaging) >= req.getFile().length());
+
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenReturn(uploadResult(req.getFile()));
+        return upload;
+      });
+
+      job.run();
+
+      Assert.assertFalse(fTestVol001.exists());
+      Assert.assertFalse(new File(fStaging, "bb-123-TESTVOL-0001.enc").exists());
+      Assert.assertEquals(0, Job.getDiskSpace().getReserved(fStaging));
+    } finally {
+      System.clearProperty("staging.dir");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testFailedUploadDiscardsEncryptedCopy() throws IOException {
+    fTestDir.mkdir();
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      Files.write(fTestVol001.toPath(), Arrays.asList("It's a test!"), StandardOpenOption.CREATE);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+      Mockito.when(job.tm.upload(ArgumentMatchers.any(), ArgumentMatchers.any())).thenThrow(new AmazonS3Exception("kaBOOM"));
+
+      try {
+        job.run();
+        Assert.fail("Should have thrown an exception");
+      } catch (JobFailedException e) {
+        // Expected.
+      }
+
+      // Gone by the time run() returns, not just eventually:
+      Assert.assertTrue(fTestVol001.exists());
+      Assert.assertFalse(new File(fTestDir, "bb-123-TESTVOL-0001.enc").exists());
+    } finally {
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
   @Test
   public void testUploadTwoFile() throws IOException {
     fTestDir.mkdir();
@@ -152,12 +246,695 @@ public class BackupJobTest {
       Assert.assertFalse(fTestVol001.exists());
 
       Mockito.verify(job.tm, Mockito.times(2)).upload(ArgumentMatchers.any(), ArgumentMatchers.any());
+      Mockito.verify(job.s3, Mockito.times(2)).putObject(ArgumentMatchers.any(PutObjectRequest.class));
       Mockito.verifyNoMoreInteractions(job.s3, job.tm);
     } finally {
       FileUtils.deleteDirectory(fTestDir);
     }
   }
 
+  @Test
+  public void testStreamingUpload() throws IOException {
+    fTestDir.mkdir();
+    System.setProperty("backup.streaming", "true");
+    System.setProperty("backup.streaming.partSizeMB", "5");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      byte[] data = new byte[12 * 1024 * 1024];
+      new Random(42).nextBytes(data);
+      Files.write(fTestVol001.toPath(), data);
+      String origDigest1 = digest(fTestVol001);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+
+      Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+      Mockito.when(job.s3.initiateMultipartUpload(ArgumentMatchers.any())).then(inv -> {
+        InitiateMultipartUploadRequest req = inv.getArgument(0);
+        Assert.assertEquals("bb-123-TESTVOL-0001.enc", req.getKey());
+        InitiateMultipartUploadResult res = new InitiateMultipartUploadResult();
+        res.setUploadId("upload-1");
+        return res;
+      });
+      Mockito.when(job.s3.uploadPart(ArgumentMatchers.any())).then(inv -> {
+        UploadPartRequest req = inv.getArgument(0);
+        Assert.assertEquals("upload-1", req.getUploadId());
+        byte[] part = IOUtils.toByteArray(req.getInputStream());
+        parts.put(req.getPartNumber(), part);
+        UploadPartResult res = new UploadPartResult();
+        res.setPartNumber(req.getPartNumber());
+        res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(part)));
+        return res;
+      });
+      Mockito.when(job.s3.completeMultipartUpload(ArgumentMatchers.any())).then(inv -> {
+        CompleteMultipartUploadRequest req = inv.getArgument(0);
+        Assert.assertEquals(parts.size(), req.getPartETags().size());
+        return completeResult(req);
+      });
+
+      job.run();
+
+      Assert.assertFalse(fTestVol001.exists());
+      Assert.assertFalse(new File(fTestDir, "bb-123-TESTVOL-0001.enc").exists());
+      Assert.assertEquals(3, parts.size());
+
+      File fUploaded = new File(fTestDir, "uploaded.enc");
+      try (OutputStream out = new FileOutputStream(fUploaded)) {
+        for (byte[] part : parts.values()) {
+          out.write(part);
+        }
+      }
+      File fDecrypted = new File(fTestDir, "decrypted");
+      job.decrypt(fUploaded, fDecrypted);
+      Assert.assertEquals(origDigest1, digest(fDecrypted));
+
+      Mockito.verify(job.s3, Mockito.never()).abortMultipartUpload(ArgumentMatchers.any());
+      Mockito.verifyNoMoreInteractions(job.tm);
+    } finally {
+      System.clearProperty("backup.streaming");
+      System.clearProperty("backup.streaming.partSizeMB");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testSkipUnchanged() throws IOException {
+    fTestDir.mkdir();
+    System.setProperty("backup.skipUnchanged", "true");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      Files.write(fTestVol001.toPath(), Arrays.asList("It's a test!"), StandardOpenOption.CREATE);
+      byte[] data = Files.readAllBytes(fTestVol001.toPath());
+
+      // The first run uploads the volume, with its digest worked out while encrypting:
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+      Mockito.when(job.s3.getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).thenThrow(notFound());
+      ObjectMetadata[] uploaded = new ObjectMetadata[1];
+      Mockito.when(job.tm.upload(ArgumentMatchers.any(), ArgumentMatchers.any())).then(inv -> {
+        PutObjectRequest req = inv.getArgument(0);
+        uploaded[0] = req.getMetadata();
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenReturn(uploadResult(req.getFile()));
+        return upload;
+      });
+      job.run();
+      Assert.assertFalse(fTestVol001.exists());
+      Assert.assertEquals(Long.toString(data.length), uploaded[0].getUserMetaDataOf(Job.META_VOLUME_LENGTH));
+
+      // Run again with the same volume: it's in the bucket already, so it's only deleted:
+      Files.write(fTestVol001.toPath(), data);
+      BackupJob rerun = new TestableBackupJob();
+      rerun.setScratchDir(fTestDir);
+      rerun.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      rerun.prepare();
+      Mockito.when(rerun.s3.getObjectMetadata("test-bucket", "bb-123-TESTVOL-0001.enc")).thenReturn(uploaded[0]);
+      rerun.run();
+      Assert.assertFalse(fTestVol001.exists());
+      Mockito.verifyZeroInteractions(rerun.tm);
+
+      // ...but a volume that's changed is uploaded again:
+      data[0]++;
+      Files.write(fTestVol001.toPath(), data);
+      BackupJob changed = new TestableBackupJob();
+      changed.setScratchDir(fTestDir);
+      changed.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      changed.prepare();
+      Mockito.when(changed.s3.getObjectMetadata("test-bucket", "bb-123-TESTVOL-0001.enc")).thenReturn(uploaded[0]);
+      Mockito.when(changed.tm.upload(ArgumentMatchers.any(), ArgumentMatchers.any())).then(inv -> {
+        PutObjectRequest req = inv.getArgument(0);
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenReturn(uploadResult(req.getFile()));
+        return upload;
+      });
+      changed.run();
+      Mockito.verify(changed.tm).upload(ArgumentMatchers.any(), ArgumentMatchers.any());
+    } finally {
+      System.clearProperty("backup.skipUnchanged");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  private static AmazonS3Exception notFound() {
+    AmazonS3Exception e = new AmazonS3Exception("Not Found");
+    e.setStatusCode(404);
+    return e;
+  }
+
+  @Test
+  public void testETagMismatchKeepsVolume() throws IOException {
+    fTestDir.mkdir();
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      Files.write(fTestVol001.toPath(), Arrays.asList("It's a test!"), StandardOpenOption.CREATE);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+      Mockito.when(job.tm.upload(ArgumentMatchers.any(), ArgumentMatchers.any())).then(inv -> {
+        PutObjectRequest req = inv.getArgument(0);
+        Assert.assertEquals(digest(req.getFile()), Hex.toHexString(Base64.getDecoder().decode(req.getMetadata().getContentMD5())));
+        UploadResult res = new UploadResult();
+        res.setETag("\"" + digest(fTestVol001) + "\""); // Not what was encrypted.
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenReturn(res);
+        return upload;
+      });
+
+      try {
+        job.run();
+        Assert.fail("Should have thrown an exception");
+      } catch (JobFailedException e) {
+        Assert.assertThat(e.getCause().getMessage(), CoreMatchers.containsString("ETag"));
+      }
+
+      Assert.assertTrue(fTestVol001.exists());
+    } finally {
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testStreamingUploadFailureAborts() throws IOException {
+    fTestDir.mkdir();
+    System.setProperty("backup.streaming", "true");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      Files.write(fTestVol001.toPath(), Arrays.asList("It's a test!"), StandardOpenOption.CREATE);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+
+      InitiateMultipartUploadResult initRes = new InitiateMultipartUploadResult();
+      initRes.setUploadId("upload-1");
+      Mockito.when(job.s3.initiateMultipartUpload(ArgumentMatchers.any())).thenReturn(initRes);
+      Mockito.when(job.s3.uploadPart(ArgumentMatchers.any())).thenThrow(new AmazonS3Exception("kaBOOM"));
+
+      try {
+        job.run();
+        Assert.fail("Should have thrown an exception");
+      } catch (JobFailedException e) {
+        // Expected.
+      }
+
+      Assert.assertTrue(fTestVol001.exists());
+      Mockito.verify(job.s3, Mockito.atLeastOnce()).abortMultipartUpload(ArgumentMatchers.any());
+      Mockito.verify(job.s3, Mockito.never()).completeMultipartUpload(ArgumentMatchers.any());
+    } finally {
+      System.clearProperty("backup.streaming");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testSmallestVolumesFirst() throws IOException {
+    fTestDir.mkdir();
+    System.setProperty("backup.encryptThreads", "1");
+    System.setProperty("backup.uploadThreads", "1");
+    try {
+      Files.write(new File(fTestDir, "TESTVOL-0001").toPath(), new byte[300_000]);
+      Files.write(new File(fTestDir, "TESTVOL-0002").toPath(), new byte[100_000]);
+      Files.write(new File(fTestDir, "TESTVOL-0003").toPath(), new byte[200_000]);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001", "TESTVOL-0002", "TESTVOL-0003"));
+      job.prepare();
+      List<String> uploaded = Collections.synchronizedList(new ArrayList<>());
+      Mockito.when(job.tm.upload(ArgumentMatchers.any(), ArgumentMatchers.any())).then(inv -> {
+        PutObjectRequest req = inv.getArgument(0);
+        uploaded.add(req.getKey());
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenReturn(uploadResult(req.getFile()));
+        return upload;
+      });
+
+      job.run();
+
+      Assert.assertEquals(Arrays.asList("bb-123-TESTVOL-0002.enc", "bb-123-TESTVOL-0003.enc", "bb-123-TESTVOL-0001.enc"), uploaded);
+    } finally {
+      System.clearProperty("backup.encryptThreads");
+      System.clearProperty("backup.uploadThreads");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testEncryptsWhileUploading() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.encryptThreads", "1");
+    System.setProperty("backup.uploadThreads", "1");
+    try {
+      Files.write(new File(fTestDir, "TESTVOL-0001").toPath(), new byte[100_000]);
+      Files.write(new File(fTestDir, "TESTVOL-0002").toPath(), new byte[200_000]);
+      File fEncrypted2 = new File(fTestDir, "bb-123-TESTVOL-0002.enc");
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001", "TESTVOL-0002"));
+      job.prepare();
+      Mockito.when(job.tm.upload(ArgumentMatchers.any(), ArgumentMatchers.any())).then(inv -> {
+        PutObjectRequest req = inv.getArgument(0);
+        if (req.getKey().equals("bb-123-TESTVOL-0001.enc")) {
+          // The second volume should finish encrypting while the first one is still uploading:
+          for (int i = 0; i < 100 && fEncrypted2.length() < 200_000; i++) {
+            Thread.sleep(50);
+          }
+          Assert.assertTrue(fEncrypted2.length() >= 200_000);
+        }
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenReturn(uploadResult(req.getFile()));
+        return upload;
+      });
+
+      job.run();
+
+      Assert.assertFalse(fEncrypted2.exists());
+      Mockito.verify(job.tm, Mockito.times(2)).upload(ArgumentMatchers.any(), ArgumentMatchers.any());
+    } finally {
+      System.clearProperty("backup.encryptThreads");
+      System.clearProperty("backup.uploadThreads");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testResumeStreamingUpload() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.streaming", "true");
+    System.setProperty("backup.streaming.partSizeMB", "5");
+    System.setProperty("backup.resumable", "true");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      byte[] data = new byte[12 * 1024 * 1024];
+      new Random(42).nextBytes(data);
+      Files.write(fTestVol001.toPath(), data);
+      String origDigest1 = digest(fTestVol001);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+
+      InitiateMultipartUploadResult initRes = new InitiateMultipartUploadResult();
+      initRes.setUploadId("upload-1");
+      Mockito.when(job.s3.initiateMultipartUpload(ArgumentMatchers.any())).thenReturn(initRes);
+      Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+      Map<Integer, Integer> uploads = new ConcurrentSkipListMap<>();
+      Mockito.when(job.s3.uploadPart(ArgumentMatchers.any())).then(inv -> {
+        UploadPartRequest req = inv.getArgument(0);
+        byte[] part = IOUtils.toByteArray(req.getInputStream());
+        if (uploads.merge(req.getPartNumber(), 1, Integer::sum) == 1 && req.getPartNumber() == 2) {
+          for (int i = 0; i < 100 && !parts.containsKey(1); i++) {
+            Thread.sleep(50);
+          }
+          throw new AmazonS3Exception("kaBOOM");
+        }
+        parts.put(req.getPartNumber(), part);
+        UploadPartResult res = new UploadPartResult();
+        res.setPartNumber(req.getPartNumber());
+        res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(part)));
+        return res;
+      });
+      Mockito.when(job.s3.listParts(ArgumentMatchers.any())).then(inv -> {
+        PartListing listing = new PartListing();
+        for (Map.Entry<Integer, byte[]> part : parts.entrySet()) {
+          PartSummary summary = new PartSummary();
+          summary.setPartNumber(part.getKey());
+          summary.setETag("\"" + Hex.toHexString(MessageDigest.getInstance("MD5").digest(part.getValue())) + "\"");
+          listing.getParts().add(summary);
+        }
+        return listing;
+      });
+      Mockito.when(job.s3.completeMultipartUpload(ArgumentMatchers.any())).then(inv -> {
+        CompleteMultipartUploadRequest req = inv.getArgument(0);
+        Assert.assertEquals("upload-1", req.getUploadId());
+        Assert.assertEquals(3, req.getPartETags().size());
+        return completeResult(req);
+      });
+
+      job.run();
+
+      // The retry carried on with the same upload, and didn't upload the first part again:
+      Mockito.verify(job.s3).initiateMultipartUpload(ArgumentMatchers.any());
+      Mockito.verify(job.s3, Mockito.never()).abortMultipartUpload(ArgumentMatchers.any());
+      Assert.assertEquals(Integer.valueOf(1), uploads.get(1));
+      Assert.assertEquals(Integer.valueOf(2), uploads.get(2));
+
+      File fUploaded = new File(fTestDir, "uploaded.enc");
+      try (OutputStream out = new FileOutputStream(fUploaded)) {
+        for (byte[] part : parts.values()) {
+          out.write(part);
+        }
+      }
+      File fDecrypted = new File(fTestDir, "decrypted");
+      job.decrypt(fUploaded, fDecrypted);
+      Assert.assertEquals(origDigest1, digest(fDecrypted));
+      Assert.assertFalse(fTestVol001.exists());
+      Assert.assertFalse(new File(fTestDir, ".s3-upload/bb-123-TESTVOL-0001.enc.properties").exists());
+    } finally {
+      System.clearProperty("backup.streaming");
+      System.clearProperty("backup.streaming.partSizeMB");
+      System.clearProperty("backup.resumable");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testResumeStreamingUploadOfRewrittenVolume() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.streaming", "true");
+    System.setProperty("backup.streaming.partSizeMB", "5");
+    System.setProperty("backup.resumable", "true");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      byte[] data = new byte[12 * 1024 * 1024];
+      new Random(42).nextBytes(data);
+      Files.write(fTestVol001.toPath(), data);
+      long modified = fTestVol001.lastModified();
+      byte[] rewritten = new byte[data.length];
+      new Random(43).nextBytes(rewritten);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+
+      InitiateMultipartUploadResult initRes1 = new InitiateMultipartUploadResult();
+      initRes1.setUploadId("upload-1");
+      InitiateMultipartUploadResult initRes2 = new InitiateMultipartUploadResult();
+      initRes2.setUploadId("upload-2");
+      Mockito.when(job.s3.initiateMultipartUpload(ArgumentMatchers.any())).thenReturn(initRes1, initRes2);
+      Map<String, byte[]> parts = new ConcurrentSkipListMap<>();
+      Mockito.when(job.s3.uploadPart(ArgumentMatchers.any())).then(inv -> {
+        UploadPartRequest req = inv.getArgument(0);
+        byte[] part = IOUtils.toByteArray(req.getInputStream());
+        if (req.getUploadId().equals("upload-1") && req.getPartNumber() == 2) {
+          for (int i = 0; i < 100 && !parts.containsKey("upload-1/1"); i++) {
+            Thread.sleep(50);
+          }
+          // Rewritten in place, with nothing to show for it in the length or modification time:
+          Files.write(fTestVol001.toPath(), rewritten);
+          fTestVol001.setLastModified(modified);
+          throw new AmazonS3Exception("kaBOOM");
+        }
+        parts.put(req.getUploadId() + "/" + req.getPartNumber(), part);
+        UploadPartResult res = new UploadPartResult();
+        res.setPartNumber(req.getPartNumber());
+        res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(part)));
+        return res;
+      });
+      Mockito.when(job.s3.completeMultipartUpload(ArgumentMatchers.any())).then(inv -> completeResult(inv.getArgument(0)));
+
+      job.run();
+
+      // The retry started a new upload, under a new header, rather than reusing the session key and nonce:
+      Mockito.verify(job.s3, Mockito.times(2)).initiateMultipartUpload(ArgumentMatchers.any());
+      Mockito.verify(job.s3).abortMultipartUpload(ArgumentMatchers.argThat(req -> req.getUploadId().equals("upload-1")));
+      Mockito.verify(job.s3, Mockito.never()).listParts(ArgumentMatchers.any());
+      ArgumentCaptor<CompleteMultipartUploadRequest> completed = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+      Mockito.verify(job.s3).completeMultipartUpload(completed.capture());
+      Assert.assertEquals("upload-2", completed.getValue().getUploadId());
+      Assert.assertFalse(Arrays.equals(Arrays.copyOf(parts.get("upload-1/1"), Job.HEADER_SIZE), Arrays.copyOf(parts.get("upload-2/1"), Job.HEADER_SIZE)));
+
+      File fUploaded = new File(fTestDir, "uploaded.enc");
+      try (OutputStream out = new FileOutputStream(fUploaded)) {
+        for (int partNumber = 1; parts.containsKey("upload-2/" + partNumber); partNumber++) {
+          out.write(parts.get("upload-2/" + partNumber));
+        }
+      }
+      File fDecrypted = new File(fTestDir, "decrypted");
+      job.decrypt(fUploaded, fDecrypted);
+      Assert.assertArrayEquals(rewritten, Files.readAllBytes(fDecrypted.toPath()));
+    } finally {
+      System.clearProperty("backup.streaming");
+      System.clearProperty("backup.streaming.partSizeMB");
+      System.clearProperty("backup.resumable");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testResumeStreamingUploadWithUnrecordedPart() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.streaming", "true");
+    System.setProperty("backup.streaming.partSizeMB", "5");
+    System.setProperty("backup.resumable", "true");
+    try {
+      int partSize = 5 * 1024 * 1024;
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      byte[] data = new byte[12 * 1024 * 1024];
+      new Random(42).nextBytes(data);
+      Files.write(fTestVol001.toPath(), data);
+      long modified = fTestVol001.lastModified();
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+
+      // An earlier attempt got parts 1 and 2 into S3, but was killed before it recorded part 2:
+      byte[] header = job.newHeader(fTestVol001, 0, data.length);
+      ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+      job.encryptRangeToStream(fTestVol001, 0, data.length, header, encrypted);
+      Map<String, byte[]> parts = new ConcurrentSkipListMap<>();
+      parts.put("upload-1/1", Arrays.copyOfRange(encrypted.toByteArray(), 0, partSize));
+      parts.put("upload-1/2", Arrays.copyOfRange(encrypted.toByteArray(), partSize, 2 * partSize));
+      String md5 = Hex.toHexString(MessageDigest.getInstance("MD5").digest(parts.get("upload-1/1")));
+      UploadState state = UploadState.load(fTestDir, "bb-123-TESTVOL-0001.enc");
+      state.reset(fTestVol001, 0, data.length);
+      state.setMultipartUpload(header, "upload-1", partSize);
+      state.addPart(new CompletedPart(1, partSize, md5, md5));
+      state.setPlaintext(partSize, job.macVolumeDigest(UploadState.digest(fTestVol001, 0, partSize)));
+      state.save();
+
+      // Since rewritten past what was recorded, with nothing to show for it in the length or modification time:
+      byte[] rewritten = data.clone();
+      new Random(43).nextBytes(rewritten);
+      System.arraycopy(data, 0, rewritten, 0, partSize);
+      Files.write(fTestVol001.toPath(), rewritten);
+      fTestVol001.setLastModified(modified);
+
+      Mockito.when(job.s3.listParts(ArgumentMatchers.any())).then(inv -> {
+        PartListing listing = new PartListing();
+        for (int partNumber = 1; partNumber <= 2; partNumber++) {
+          PartSummary summary = new PartSummary();
+          summary.setPartNumber(partNumber);
+          summary.setETag("\"" + Hex.toHexString(MessageDigest.getInstance("MD5").digest(parts.get("upload-1/" + partNumber))) + "\"");
+          listing.getParts().add(summary);
+        }
+        return listing;
+      });
+      InitiateMultipartUploadResult initRes = new InitiateMultipartUploadResult();
+      initRes.setUploadId("upload-2");
+      Mockito.when(job.s3.initiateMultipartUpload(ArgumentMatchers.any())).thenReturn(initRes);
+      Mockito.when(job.s3.uploadPart(ArgumentMatchers.any())).then(inv -> {
+        UploadPartRequest req = inv.getArgument(0);
+        byte[] part = IOUtils.toByteArray(req.getInputStream());
+        parts.put(req.getUploadId() + "/" + req.getPartNumber(), part);
+        UploadPartResult res = new UploadPartResult();
+        res.setPartNumber(req.getPartNumber());
+        res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(part)));
+        return res;
+      });
+      Mockito.when(job.s3.completeMultipartUpload(ArgumentMatchers.any())).then(inv -> completeResult(inv.getArgument(0)));
+
+      job.run();
+
+      // Carrying on would have encrypted the new part 2 under the header of the old one; so it started over:
+      Mockito.verify(job.s3).abortMultipartUpload(ArgumentMatchers.argThat(req -> req.getUploadId().equals("upload-1")));
+      Mockito.verify(job.s3, Mockito.never()).uploadPart(ArgumentMatchers.argThat(req -> req.getUploadId().equals("upload-1")));
+      ArgumentCaptor<CompleteMultipartUploadRequest> completed = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+      Mockito.verify(job.s3).completeMultipartUpload(completed.capture());
+      Assert.assertEquals("upload-2", completed.getValue().getUploadId());
+      Assert.assertFalse(Arrays.equals(header, Arrays.copyOf(parts.get("upload-2/1"), Job.HEADER_SIZE)));
+
+      File fUploaded = new File(fTestDir, "uploaded.enc");
+      try (OutputStream out = new FileOutputStream(fUploaded)) {
+        for (int partNumber = 1; parts.containsKey("upload-2/" + partNumber); partNumber++) {
+          out.write(parts.get("upload-2/" + partNumber));
+        }
+      }
+      File fDecrypted = new File(fTestDir, "decrypted");
+      job.decrypt(fUploaded, fDecrypted);
+      Assert.assertArrayEquals(rewritten, Files.readAllBytes(fDecrypted.toPath()));
+    } finally {
+      System.clearProperty("backup.streaming");
+      System.clearProperty("backup.streaming.partSizeMB");
+      System.clearProperty("backup.resumable");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testRetryThrottledPart() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.streaming", "true");
+    System.setProperty("backup.streaming.partSizeMB", "5");
+    System.setProperty("transfer.retryBaseMillis", "1");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      byte[] data = new byte[12 * 1024 * 1024];
+      new Random(42).nextBytes(data);
+      Files.write(fTestVol001.toPath(), data);
+      String origDigest1 = digest(fTestVol001);
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+
+      InitiateMultipartUploadResult initRes = new InitiateMultipartUploadResult();
+      initRes.setUploadId("upload-1");
+      Mockito.when(job.s3.initiateMultipartUpload(ArgumentMatchers.any())).thenReturn(initRes);
+      Map<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+      Map<Integer, Integer> uploads = new ConcurrentSkipListMap<>();
+      Mockito.when(job.s3.uploadPart(ArgumentMatchers.any())).then(inv -> {
+        UploadPartRequest req = inv.getArgument(0);
+        byte[] part = IOUtils.toByteArray(req.getInputStream());
+        if (uploads.merge(req.getPartNumber(), 1, Integer::sum) == 1 && req.getPartNumber() == 2) {
+          AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+          e.setStatusCode(503);
+          e.setErrorCode("SlowDown");
+          throw e;
+        }
+        parts.put(req.getPartNumber(), part);
+        UploadPartResult res = new UploadPartResult();
+        res.setPartNumber(req.getPartNumber());
+        res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(part)));
+        return res;
+      });
+      Mockito.when(job.s3.completeMultipartUpload(ArgumentMatchers.any())).then(inv -> completeResult(inv.getArgument(0)));
+
+      job.run();
+
+      // Only the throttled part was sent again; the volume wasn't re-encrypted or re-uploaded:
+      Mockito.verify(job.s3).initiateMultipartUpload(ArgumentMatchers.any());
+      Mockito.verify(job.s3, Mockito.never()).abortMultipartUpload(ArgumentMatchers.any());
+      Assert.assertEquals(Integer.valueOf(1), uploads.get(1));
+      Assert.assertEquals(Integer.valueOf(2), uploads.get(2));
+      Assert.assertEquals(Integer.valueOf(1), uploads.get(3));
+
+      File fUploaded = new File(fTestDir, "uploaded.enc");
+      try (OutputStream out = new FileOutputStream(fUploaded)) {
+        for (byte[] part : parts.values()) {
+          out.write(part);
+        }
+      }
+      File fDecrypted = new File(fTestDir, "decrypted");
+      job.decrypt(fUploaded, fDecrypted);
+      Assert.assertEquals(origDigest1, digest(fDecrypted));
+    } finally {
+      System.clearProperty("backup.streaming");
+      System.clearProperty("backup.streaming.partSizeMB");
+      System.clearProperty("transfer.retryBaseMillis");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testAutotuneStartsFromHistory() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.streaming", "true");
+    System.setProperty("transfer.autotune", "true");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      byte[] data = new byte[12 * 1024 * 1024];
+      new Random(42).nextBytes(data);
+      Files.write(fTestVol001.toPath(), data);
+      File fHistory = new File(fTestDir, ".s3-transfer-tuning.properties");
+      Files.write(fHistory.toPath(), Arrays.asList("partSizeMB=5", "partsInFlight=2"));
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+
+      InitiateMultipartUploadResult initRes = new InitiateMultipartUploadResult();
+      initRes.setUploadId("upload-1");
+      Mockito.when(job.s3.initiateMultipartUpload(ArgumentMatchers.any())).thenReturn(initRes);
+      List<Long> partSizes = Collections.synchronizedList(new ArrayList<>());
+      Mockito.when(job.s3.uploadPart(ArgumentMatchers.any())).then(inv -> {
+        UploadPartRequest req = inv.getArgument(0);
+        partSizes.add(req.getPartSize());
+        UploadPartResult res = new UploadPartResult();
+        res.setPartNumber(req.getPartNumber());
+        res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(IOUtils.toByteArray(req.getInputStream()))));
+        return res;
+      });
+      Mockito.when(job.s3.completeMultipartUpload(ArgumentMatchers.any())).then(inv -> completeResult(inv.getArgument(0)));
+
+      job.run();
+
+      // Uploaded with the learned 5MB parts, not the 16MB default:
+      Assert.assertEquals(3, partSizes.size());
+      Assert.assertTrue(partSizes.contains(5L * 1024 * 1024));
+      Assert.assertTrue(fHistory.exists());
+    } finally {
+      System.clearProperty("backup.streaming");
+      System.clearProperty("transfer.autotune");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
+  @Test
+  public void testResumeUploadViaScratchFile() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.resumable", "true");
+    try {
+      File fTestVol001 = new File(fTestDir, "TESTVOL-0001");
+      Files.write(fTestVol001.toPath(), Arrays.asList("It's a test!"), StandardOpenOption.CREATE);
+      String origDigest1 = digest(fTestVol001);
+      File fEncrypted = new File(fTestDir, "bb-123-TESTVOL-0001.enc");
+
+      BackupJob job = new TestableBackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList("123", "TESTVOL-0001"));
+      job.prepare();
+      String[] encryptedDigest = new String[1];
+      Mockito.when(job.tm.upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class))).then(inv -> {
+        encryptedDigest[0] = digest(fEncrypted);
+        S3ProgressListener listener = inv.getArgument(1);
+        listener.onPersistableTransfer(new PersistableUpload("test-bucket", "bb-123-TESTVOL-0001.enc", fEncrypted.getPath(), "upload-9", 5 << 20, 16 << 20));
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenThrow(new AmazonClientException("Connection reset"));
+        return upload;
+      });
+      Mockito.when(job.tm.resumeUpload(ArgumentMatchers.any())).then(inv -> {
+        PersistableUpload persisted = inv.getArgument(0);
+        Assert.assertTrue(persisted.serialize().contains("upload-9"));
+
+        // Same ciphertext as the first attempt, i.e. not encrypted again:
+        Assert.assertEquals(encryptedDigest[0], digest(fEncrypted));
+        File fDecrypted = new File(fTestDir, "decrypted");
+        job.decrypt(fEncrypted, fDecrypted);
+        Assert.assertEquals(origDigest1, digest(fDecrypted));
+
+        Upload upload = Mockito.mock(Upload.class);
+        Mockito.when(upload.waitForUploadResult()).thenReturn(uploadResult(fEncrypted));
+        return upload;
+      });
+
+      job.run();
+
+      Mockito.verify(job.tm).upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class));
+      Mockito.verify(job.tm).resumeUpload(ArgumentMatchers.any());
+      Assert.assertFalse(fTestVol001.exists());
+      Assert.assertFalse(fEncrypted.exists());
+      Assert.assertFalse(new File(fTestDir, ".s3-upload/bb-123-TESTVOL-0001.enc.properties").exists());
+    } finally {
+      System.clearProperty("backup.resumable");
+      FileUtils.deleteDirectory(fTestDir);
+    }
+  }
+
   @Test
   public void testMissingFile() throws IOException {
     fTestDir.mkdir();
@@ -188,6 +965,24 @@ public class BackupJobTest {
     }
   }
 
+  /**
+   * @return What the TransferManager says on uploading the file in one piece: its MD5 as the ETag
+   */
+  private UploadResult uploadResult(File f) {
+    UploadResult res = new UploadResult();
+    res.setETag(digest(f));
+    return res;
+  }
+
+  /**
+   * @return What S3 says on completing a multipart upload: an ETag made from the parts' ETags (i.e. their MD5s)
+   */
+  private static CompleteMultipartUploadResult completeResult(CompleteMultipartUploadRequest p_req) {
+    CompleteMultipartUploadResult res = new CompleteMultipartUploadResult();
+    res.setETag("\"" + ETagOutputStream.forParts(p_req.getPartETags().stream().map(etag -> Hex.decode(etag.getETag())).collect(Collectors.toList())) + "\"");
+    return res;
+  }
+
   private String digest(File f) {
     try {
       MessageDigest md = MessageDigest.getInstance("MD5");
@@ -2,17 +2,23 @@ package com.daveeberhart.bareos_util.secure_s3_storage.job;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.bouncycastle.crypto.InvalidCipherTextException;
-import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.KeyParameter;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.daveeberhart.bareos_util.secure_s3_storage.crypto.AeadCipher;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+
 /**
  * Tests for crypto methods.
  *
@@ -57,12 +63,12 @@ public class CryptoTests {
 
     byte[] ciphertext = new byte[1024];
     byte[] inputText = "This is a very simple test message!".getBytes(Charset.defaultCharset());
-    GCMBlockCipher encrypt = kek1.createSessionDataCipher(kSess, nonce, true);
+    AeadCipher encrypt = kek1.createSessionDataCipher(kSess, nonce, true);
     int outOff = encrypt.processBytes(inputText, 0, inputText.length, ciphertext, 0);
     int ciphertextLen = outOff + encrypt.doFinal(ciphertext, outOff);
 
     byte[] buff = new byte[1024];
-    GCMBlockCipher decrypt = kek1.createSessionDataCipher(kSess, nonce, false);
+    AeadCipher decrypt = kek1.createSessionDataCipher(kSess, nonce, false);
     int plaintextLength = decrypt.processBytes(ciphertext, 0, ciphertextLen, buff, 0);
     plaintextLength += decrypt.doFinal(buff, plaintextLength); // <-- process any remaining data & check auth tag -- VERY IMPORTANT!
 
@@ -81,14 +87,14 @@ public class CryptoTests {
 
     byte[] ciphertext = new byte[1024];
     byte[] inputText = "This is a very simple test message!".getBytes(Charset.defaultCharset());
-    GCMBlockCipher encrypt = kek1.createSessionDataCipher(kSess, nonce, true);
+    AeadCipher encrypt = kek1.createSessionDataCipher(kSess, nonce, true);
     int outOff = encrypt.processBytes(inputText, 0, inputText.length, ciphertext, 0);
     int ciphertextLen = outOff + encrypt.doFinal(ciphertext, outOff);
 
     ciphertext[4] ^= 42;
 
     byte[] buff = new byte[1024];
-    GCMBlockCipher decrypt = kek1.createSessionDataCipher(kSess, nonce, false);
+    AeadCipher decrypt = kek1.createSessionDataCipher(kSess, nonce, false);
     int plaintextLength = decrypt.processBytes(ciphertext, 0, ciphertextLen, buff, 0);
     decrypt.doFinal(buff, plaintextLength); // <-- process any remaining data & check auth tag -- VERY IMPORTANT!
   }
@@ -103,14 +109,14 @@ public class CryptoTests {
 
     byte[] ciphertext = new byte[1024];
     byte[] inputText = "This is a very simple test message!".getBytes(Charset.defaultCharset());
-    GCMBlockCipher encrypt = kek1.createSessionDataCipher(kSess, nonce, true);
+    AeadCipher encrypt = kek1.createSessionDataCipher(kSess, nonce, true);
     int outOff = encrypt.processBytes(inputText, 0, inputText.length, ciphertext, 0);
     int ciphertextLen = outOff + encrypt.doFinal(ciphertext, outOff);
 
     nonce[4] ^= 42;
 
     byte[] buff = new byte[1024];
-    GCMBlockCipher decrypt = kek1.createSessionDataCipher(kSess, nonce, false);
+    AeadCipher decrypt = kek1.createSessionDataCipher(kSess, nonce, false);
     int plaintextLength = decrypt.processBytes(ciphertext, 0, ciphertextLen, buff, 0);
     decrypt.doFinal(buff, plaintextLength); // <-- process any remaining data & check auth tag -- VERY IMPORTANT!
   }
@@ -150,4 +156,214 @@ public class CryptoTests {
     }
   }
 
+  @Test
+  public void testSegmentedFileCrypto() throws IOException {
+    System.setProperty("encryption.segmentSizeKB", "1");
+    try {
+      // Empty, short, exact multiple of the segment size, and ragged:
+      for (int len : new int[] { 0, 100, 1024, 4096, 5000 }) {
+        byte[] plaintext = randomBytes(len);
+        byte[] ciphertext = encrypt(plaintext);
+        Assert.assertEquals(len + ": ciphertext length", new BackupJob().getEncryptedLength(len), ciphertext.length);
+        Assert.assertArrayEquals(len + ": roundtrip", plaintext, decrypt(ciphertext));
+      }
+    } finally {
+      System.clearProperty("encryption.segmentSizeKB");
+    }
+  }
+
+  @Test
+  public void testVersion1StillDecrypts() throws IOException {
+    byte[] plaintext = randomBytes(5000);
+    byte[] ciphertext;
+    System.setProperty("encryption.fileVersion", "1");
+    try {
+      ciphertext = encrypt(plaintext);
+    } finally {
+      System.clearProperty("encryption.fileVersion");
+    }
+
+    Assert.assertEquals(1, ciphertext[MAGIC_LENGTH + 1]);
+    Assert.assertArrayEquals(plaintext, decrypt(ciphertext));
+  }
+
+  @Test
+  public void testSegmentsReordered() throws IOException {
+    System.setProperty("encryption.segmentSizeKB", "1");
+    try {
+      byte[] ciphertext = encrypt(randomBytes(3000));
+      int segLen = 1024 + 16;
+      byte[] seg0 = Arrays.copyOfRange(ciphertext, 512, 512 + segLen);
+      System.arraycopy(ciphertext, 512 + segLen, ciphertext, 512, segLen);
+      System.arraycopy(seg0, 0, ciphertext, 512 + segLen, segLen);
+      assertTampered(ciphertext);
+    } finally {
+      System.clearProperty("encryption.segmentSizeKB");
+    }
+  }
+
+  @Test
+  public void testSegmentsTruncated() throws IOException {
+    System.setProperty("encryption.segmentSizeKB", "1");
+    try {
+      byte[] ciphertext = encrypt(randomBytes(3000));
+      assertTampered(Arrays.copyOf(ciphertext, 512 + 2 * (1024 + 16)));
+      assertTampered(Arrays.copyOf(ciphertext, 512));
+    } finally {
+      System.clearProperty("encryption.segmentSizeKB");
+    }
+  }
+
+  @Test
+  public void testSegmentedHeaderTampered() throws IOException {
+    byte[] ciphertext = encrypt(randomBytes(3000));
+    ciphertext[500] ^= 42; // Padding, but still covered by each segment's auth tag.
+    assertTampered(ciphertext);
+  }
+
+  @Test
+  public void testCompressedFileCrypto() throws IOException {
+    System.setProperty("encryption.segmentSizeKB", "1");
+    System.setProperty("compression", "deflate");
+    try {
+      for (int len : new int[] { 100, 1024, 4096, 5000 }) {
+        byte[] plaintext = compressibleBytes(len);
+        byte[] ciphertext = encrypt(plaintext);
+        Assert.assertEquals(len + ": compressed flag", 1, ciphertext[FLAGS_OFFSET + 1]);
+        Assert.assertTrue(len + ": ciphertext length", ciphertext.length < new BackupJob().getEncryptedLength(len));
+        Assert.assertArrayEquals(len + ": roundtrip", plaintext, decrypt(ciphertext));
+      }
+
+      // A random segment in the middle doesn't compress, so is stored as-is:
+      byte[] plaintext = compressibleBytes(5000);
+      System.arraycopy(randomBytes(1024), 0, plaintext, 2048, 1024);
+      Assert.assertArrayEquals(plaintext, decrypt(encrypt(plaintext)));
+    } finally {
+      System.clearProperty("encryption.segmentSizeKB");
+      System.clearProperty("compression");
+    }
+  }
+
+  @Test
+  public void testIncompressibleNotCompressed() throws IOException {
+    System.setProperty("compression", "deflate");
+    try {
+      byte[] plaintext = randomBytes(5000);
+      byte[] ciphertext = encrypt(plaintext);
+      Assert.assertEquals(0, ciphertext[FLAGS_OFFSET + 1]);
+      Assert.assertEquals(new BackupJob().getEncryptedLength(5000), ciphertext.length);
+      Assert.assertArrayEquals(plaintext, decrypt(ciphertext));
+    } finally {
+      System.clearProperty("compression");
+    }
+  }
+
+  @Test
+  public void testCompressedSegmentsTampered() throws IOException {
+    System.setProperty("encryption.segmentSizeKB", "1");
+    System.setProperty("compression", "deflate");
+    try {
+      byte[] ciphertext = encrypt(compressibleBytes(5000));
+      int firstRecord = 4 + ByteBuffer.wrap(ciphertext, 512, 4).getInt();
+
+      byte[] tampered = ciphertext.clone();
+      tampered[512 + 10] ^= 42;
+      assertTampered(tampered);
+
+      // Lengths aren't covered by the auth tags, but they can't shift the segments without failing them:
+      tampered = ciphertext.clone();
+      tampered[512 + 3] ^= 1;
+      assertTampered(tampered);
+      tampered = ciphertext.clone();
+      tampered[512] = 0x7f;
+      assertTampered(tampered);
+
+      assertTampered(Arrays.copyOf(ciphertext, 512 + firstRecord));
+      assertTampered(Arrays.copyOf(ciphertext, ciphertext.length - 1));
+    } finally {
+      System.clearProperty("encryption.segmentSizeKB");
+      System.clearProperty("compression");
+    }
+  }
+
+  @Test(expected=JobFailedException.class)
+  public void testUnknownCompression() throws IOException {
+    System.setProperty("compression", "lz4");
+    try {
+      encrypt(compressibleBytes(100));
+    } finally {
+      System.clearProperty("compression");
+    }
+  }
+
+  private static final int MAGIC_LENGTH = "BAREOS-S3-ENC".length();
+  /** Offset of the flags in a version 2 header: after the magic, version, wrapped key, nonce and segment size. */
+  private static final int FLAGS_OFFSET = MAGIC_LENGTH + 2 + Job.WRAPPED_AES_KEY_SIZE_BYTES + Job.AES_GCM_NONCE_SIZE_BYTES + 4;
+
+  private static byte[] randomBytes(int len) {
+    byte[] buff = new byte[len];
+    new Random(len).nextBytes(buff);
+    return buff;
+  }
+
+  /** @return Random text from a small alphabet, which compresses well. */
+  static byte[] compressibleBytes(int len) {
+    byte[] buff = new byte[len];
+    Random random = new Random(len);
+    for (int i = 0; i < len; i++) {
+      buff[i] = (byte) ('a' + random.nextInt(4));
+    }
+    return buff;
+  }
+
+  private static byte[] encrypt(byte[] plaintext) throws IOException {
+    BackupJob backup = new BackupJob();
+    backup.encryptionKey = "test key";
+
+    File fTempIn = File.createTempFile("junit", ".tmp");
+    File fTempEnc = new File(fTempIn.getParentFile(), fTempIn.getName() + ".enc");
+    try {
+      Files.write(fTempIn.toPath(), plaintext);
+      backup.encrypt(fTempIn, fTempEnc);
+      return Files.readAllBytes(fTempEnc.toPath());
+    } finally {
+      fTempIn.delete();
+      fTempEnc.delete();
+    }
+  }
+
+  private static byte[] decrypt(byte[] ciphertext) throws IOException {
+    RestoreJobs restore = new RestoreJobs();
+    restore.encryptionKey = "test key";
+
+    File fTempEnc = File.createTempFile("junit", ".enc");
+    File fTempDec = new File(fTempEnc.getParentFile(), fTempEnc.getName() + ".dec");
+    try {
+      Files.write(fTempEnc.toPath(), ciphertext);
+      restore.decrypt(fTempEnc, fTempDec);
+      return Files.readAllBytes(fTempDec.toPath());
+    } finally {
+      fTempEnc.delete();
+      fTempDec.delete();
+    }
+  }
+
+  private static void assertTampered(byte[] ciphertext) throws IOException {
+    RestoreJobs restore = new RestoreJobs();
+    restore.encryptionKey = "test key";
+
+    File fTempEnc = File.createTempFile("junit", ".enc");
+    File fTempDec = new File(fTempEnc.getParentFile(), fTempEnc.getName() + ".dec");
+    try {
+      Files.write(fTempEnc.toPath(), ciphertext);
+      restore.decrypt(fTempEnc, fTempDec);
+      Assert.fail("Should have failed integrity check");
+    } catch (IntegrityCheckFailedException e) {
+      Assert.assertFalse("Output left behind", fTempDec.exists());
+    } finally {
+      fTempEnc.delete();
+      fTempDec.delete();
+    }
+  }
+
 }
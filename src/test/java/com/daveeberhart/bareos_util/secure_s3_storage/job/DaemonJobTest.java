@@ -0,0 +1,181 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * @author deberhar
+ */
+public class DaemonJobTest {
+  private final File fTestDir = new File(new File(System.getProperty("java.io.tmpdir")), UUID.randomUUID().toString());
+  private final AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+  private final TransferManager tm = Mockito.mock(TransferManager.class);
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+  private DaemonJob daemon;
+  private Thread daemonThread;
+
+  @Before
+  public void setUp() throws Exception {
+    fTestDir.mkdir();
+    daemon = new DaemonJob() {
+      @Override
+      public void prepare() {
+        s3 = DaemonJobTest.this.s3;
+        tm = DaemonJobTest.this.tm;
+        encryptionKey = "secret key";
+        bucket = "bucket";
+      }
+    };
+    daemon.setScratchDir(fTestDir);
+    daemon.setRemainingArgs(Collections.emptyList());
+    daemon.prepare();
+    daemonThread = new Thread(daemon::run);
+    daemonThread.start();
+
+    File tokenFile = new File(fTestDir, DaemonJob.TOKEN_FILE_NAME);
+    for (int i = 0; i < 100 && !tokenFile.exists(); i++) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(tokenFile.exists());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    daemon.cleanup();
+    daemonThread.join(5000);
+    Assert.assertFalse(daemonThread.isAlive());
+    FileUtils.deleteDirectory(fTestDir);
+  }
+
+  @Test
+  public void testBackupViaDaemon() throws Exception {
+    Files.write(new File(fTestDir, "TESTVOL-0001").toPath(), new byte[10_000]);
+    Mockito.when(tm.upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class))).then(inv -> {
+      PutObjectRequest req = inv.getArgument(0);
+      UploadResult res = new UploadResult();
+      res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(Files.readAllBytes(req.getFile().toPath()))));
+      Upload upload = Mockito.mock(Upload.class);
+      Mockito.when(upload.waitForUploadResult()).thenReturn(res);
+      return upload;
+    });
+
+    Assert.assertEquals(Integer.valueOf(0), send("backup", fTestDir.getPath(), "123", "TESTVOL-0001"));
+    Assert.assertFalse(new File(fTestDir, "TESTVOL-0001").exists());
+    Assert.assertTrue(out.toString(), out.toString().contains("Job execution completed normally."));
+    Mockito.verify(tm).upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class));
+    Mockito.verify(tm, Mockito.never()).shutdownNow();
+    Mockito.verify(s3, Mockito.never()).shutdown();
+  }
+
+  @Test
+  public void testBusyDaemonSendsJobBack() throws Exception {
+    Files.write(new File(fTestDir, "TESTVOL-0001").toPath(), new byte[10_000]);
+    CountDownLatch uploading = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    Mockito.when(tm.upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class))).then(inv -> {
+      PutObjectRequest req = inv.getArgument(0);
+      UploadResult res = new UploadResult();
+      res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(Files.readAllBytes(req.getFile().toPath()))));
+      Upload upload = Mockito.mock(Upload.class);
+      Mockito.when(upload.waitForUploadResult()).then(w -> {
+        uploading.countDown();
+        finish.await();
+        return res;
+      });
+      return upload;
+    });
+
+    ExecutorService exec = Executors.newSingleThreadExecutor();
+    try {
+      Future<Integer> first = exec.submit(() -> send("backup", fTestDir.getPath(), "123", "TESTVOL-0001"));
+      Assert.assertTrue(uploading.await(10, TimeUnit.SECONDS));
+
+      // The daemon doesn't queue the second job behind the first; the client gets it back to run itself.
+      ByteArrayOutputStream busyOut = new ByteArrayOutputStream();
+      ByteArrayOutputStream busyErr = new ByteArrayOutputStream();
+      Assert.assertNull(new DaemonClient(new PrintStream(busyOut, true), new PrintStream(busyErr, true)).send(new String[] { "backup", fTestDir.getPath(), "124", "TESTVOL-0002" }));
+      Assert.assertEquals(0, busyOut.size());
+      Assert.assertEquals(0, busyErr.size());
+
+      finish.countDown();
+      Assert.assertEquals(Integer.valueOf(0), first.get(10, TimeUnit.SECONDS));
+      Assert.assertTrue(out.toString(), out.toString().contains("Job execution completed normally."));
+    } finally {
+      finish.countDown();
+      exec.shutdownNow();
+    }
+
+    // Once the first job is done, the daemon takes jobs again.
+    Assert.assertEquals(Integer.valueOf(1), send("backup", fTestDir.getPath()));
+  }
+
+  @Test
+  public void testBadArgsViaDaemon() throws Exception {
+    Assert.assertEquals(Integer.valueOf(1), send("backup", fTestDir.getPath()));
+    Assert.assertTrue(err.toString(), err.toString().contains("Missing required Job ID"));
+  }
+
+  @Test
+  public void testNoNestedDaemon() throws Exception {
+    Assert.assertEquals(Integer.valueOf(1), send("daemon", fTestDir.getPath()));
+  }
+
+  @Test(expected = JobFailedException.class)
+  public void testWrongToken() throws Exception {
+    File tokenFile = new File(fTestDir, DaemonJob.TOKEN_FILE_NAME);
+    Properties props = new Properties();
+    try (InputStream in = Files.newInputStream(tokenFile.toPath())) {
+      props.load(in);
+    }
+    props.setProperty("token", "0000");
+    try (OutputStream fout = Files.newOutputStream(tokenFile.toPath())) {
+      props.store(fout, null);
+    }
+
+    send("backup", fTestDir.getPath(), "123", "TESTVOL-0001");
+  }
+
+  @Test
+  public void testNoDaemon() throws Exception {
+    File other = new File(fTestDir, "other");
+    other.mkdir();
+    Assert.assertNull(send("backup", other.getPath(), "123", "TESTVOL-0001"));
+  }
+
+  private Integer send(String... p_args) throws IOException {
+    return new DaemonClient(new PrintStream(out, true), new PrintStream(err, true)).send(p_args);
+  }
+
+}
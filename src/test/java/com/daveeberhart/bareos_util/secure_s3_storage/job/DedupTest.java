@@ -0,0 +1,275 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.StorageClass;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+
+/**
+ * Tests for deduplicated backups and restores, against an in-memory bucket.
+ *
+ * @author deberhar
+ */
+public class DedupTest {
+  private final File fTestDir = new File(new File(System.getProperty("java.io.tmpdir")), UUID.randomUUID().toString());
+  private final AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+  private final Map<String, Date> lastModified = new ConcurrentHashMap<>();
+  private final Map<String, String> storageClasses = new ConcurrentHashMap<>();
+  private final AtomicInteger chunkPuts = new AtomicInteger();
+  private final AtomicInteger chunkHeads = new AtomicInteger();
+  /** Prefixes of keys whose next request gets throttled. */
+  private final Set<String> throttleOnce = ConcurrentHashMap.newKeySet();
+  private byte[] volume;
+
+  @Before
+  public void setUp() {
+    fTestDir.mkdir();
+    System.setProperty("backup.dedup", "true");
+    System.setProperty("backup.dedup.chunkSizeKB", "16");
+
+    volume = new byte[500_000];
+    new Random(42).nextBytes(volume);
+
+    Mockito.when(s3.getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> {
+      String key = inv.getArgument(1);
+      if (key.startsWith("chunks/")) {
+        chunkHeads.incrementAndGet();
+      }
+      throttle(key);
+      byte[] content = get(key);
+      ObjectMetadata md = new ObjectMetadata();
+      md.setContentLength(content.length);
+      md.setLastModified(lastModified.get(key));
+      if (storageClasses.containsKey(key)) {
+        md.setHeader(Headers.STORAGE_CLASS, storageClasses.get(key));
+      }
+      return md;
+    });
+    Mockito.when(s3.putObject(ArgumentMatchers.any(PutObjectRequest.class))).then(inv -> {
+      PutObjectRequest req = inv.getArgument(0);
+      throttle(req.getKey());
+      byte[] content;
+      if (req.getFile() != null) {
+        content = Files.readAllBytes(req.getFile().toPath());
+      } else {
+        content = IOUtils.toByteArray(req.getInputStream());
+      }
+      objects.put(req.getKey(), content);
+      lastModified.put(req.getKey(), new Date());
+      storageClasses.remove(req.getKey());
+      if (req.getKey().startsWith("chunks/")) {
+        chunkPuts.incrementAndGet();
+      }
+      return null;
+    });
+    Mockito.when(s3.listObjects(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> {
+      String prefix = inv.getArgument(1);
+      ObjectListing listing = new ObjectListing();
+      objects.keySet().stream().filter(k -> k.startsWith(prefix)).sorted().forEach(k -> {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(k);
+        summary.setSize(objects.get(k).length);
+        summary.setStorageClass(StorageClass.Standard.toString());
+        listing.getObjectSummaries().add(summary);
+      });
+      return listing;
+    });
+    Mockito.when(s3.getObject(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> object(inv.getArgument(1)));
+    Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).then(inv -> object(((GetObjectRequest) inv.getArgument(0)).getKey()));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    System.clearProperty("transfer.retryBaseMillis");
+    System.clearProperty("backup.dedup");
+    System.clearProperty("backup.dedup.chunkSizeKB");
+    FileUtils.deleteDirectory(fTestDir);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    backup("TESTVOL-0001", volume);
+    Assert.assertTrue(objects.containsKey("bb-123-TESTVOL-0001.rcp"));
+    Assert.assertFalse(objects.containsKey("bb-123-TESTVOL-0001.enc"));
+    Assert.assertTrue(chunkPuts.get() > 10);
+
+    Assert.assertArrayEquals(volume, restore("TESTVOL-0001"));
+  }
+
+  @Test
+  public void testUnchangedChunksNotUploaded() throws IOException {
+    backup("TESTVOL-0001", volume);
+    int firstPuts = chunkPuts.getAndSet(0);
+
+    byte[] edited = new byte[volume.length + 100];
+    System.arraycopy(volume, 0, edited, 0, 100_000);
+    System.arraycopy(volume, 100_000, edited, 100_100, volume.length - 100_000);
+    backup("TESTVOL-0002", edited);
+    Assert.assertTrue("uploaded " + chunkPuts.get() + " of " + firstPuts, chunkPuts.get() <= 3);
+
+    Assert.assertArrayEquals(edited, restore("TESTVOL-0002"));
+  }
+
+  @Test
+  public void testStaleChunksUploadedAgain() throws IOException {
+    backup("TESTVOL-0001", volume);
+    int firstPuts = chunkPuts.getAndSet(0);
+    lastModified.replaceAll((key, date) -> new Date(date.getTime() - TimeUnit.DAYS.toMillis(60)));
+
+    backup("TESTVOL-0002", volume);
+    Assert.assertEquals(firstPuts, chunkPuts.get());
+  }
+
+  @Test
+  public void testDeepArchivedChunksUploadedAgain() throws IOException {
+    backup("TESTVOL-0001", volume);
+    int firstPuts = chunkPuts.getAndSet(0);
+    objects.keySet().forEach(key -> storageClasses.put(key, "DEEP_ARCHIVE"));
+
+    backup("TESTVOL-0002", volume);
+    Assert.assertEquals(firstPuts, chunkPuts.get());
+  }
+
+  @Test
+  public void testThrottledRequestsRetried() throws IOException {
+    System.setProperty("transfer.retryBaseMillis", "1");
+    throttleOnce.add("chunks/");
+    throttleOnce.add("bb-123-TESTVOL-0001.rcp");
+
+    backup("TESTVOL-0001", volume);
+
+    // Each throttled request was sent again, rather than failing (and retrying) the whole volume:
+    Assert.assertTrue(throttleOnce.isEmpty());
+    Assert.assertEquals(chunkPuts.get() + 1, chunkHeads.get());
+    Assert.assertArrayEquals(volume, restore("TESTVOL-0001"));
+  }
+
+  @Test
+  public void testTamperedChunk() throws IOException {
+    backup("TESTVOL-0001", volume);
+    String chunkKey = objects.keySet().stream().filter(key -> key.startsWith("chunks/")).findFirst().get();
+    objects.get(chunkKey)[100] ^= 1;
+
+    try {
+      restore("TESTVOL-0001");
+      Assert.fail("Should have thrown an exception");
+    } catch (IntegrityCheckFailedException e) {
+      Assert.assertFalse(new File(fTestDir, "TESTVOL-0001").exists());
+    }
+  }
+
+  @Test
+  public void testMissingChunk() throws IOException {
+    backup("TESTVOL-0001", volume);
+    String chunkKey = objects.keySet().stream().filter(key -> key.startsWith("chunks/")).findFirst().get();
+    objects.remove(chunkKey);
+
+    try {
+      restore("TESTVOL-0001");
+      Assert.fail("Should have thrown an exception");
+    } catch (JobFailedException e) {
+      Assert.assertFalse(new File(fTestDir, "TESTVOL-0001").exists());
+    }
+  }
+
+  private void backup(String p_volume, byte[] p_data) throws IOException {
+    Files.write(new File(fTestDir, p_volume).toPath(), p_data);
+
+    BackupJob job = new BackupJob() {
+      @Override
+      public void prepare() {
+        s3 = DedupTest.this.s3;
+        tm = Mockito.mock(TransferManager.class);
+        encryptionKey = "secret key";
+        bucket = "bucket";
+      }
+    };
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList("123", p_volume));
+    job.prepare();
+    try {
+      job.run();
+    } finally {
+      job.cleanup();
+    }
+    Assert.assertFalse(new File(fTestDir, p_volume).exists());
+  }
+
+  private byte[] restore(String p_volume) throws IOException {
+    RestoreVolumes job = Mockito.spy(RestoreVolumes.class);
+    Mockito.doNothing().when(job).prepare();
+    job.s3 = s3;
+    job.bucket = "bucket";
+    job.encryptionKey = "secret key";
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList("123-" + p_volume));
+    job.run();
+
+    File fOut = new File(fTestDir, p_volume);
+    byte[] restored = Files.readAllBytes(fOut.toPath());
+    fOut.delete();
+    return restored;
+  }
+
+  private void throttle(String key) {
+    if (throttleOnce.removeIf(key::startsWith)) {
+      AmazonS3Exception e = new AmazonS3Exception("Please reduce your request rate.");
+      e.setStatusCode(503);
+      e.setErrorCode("SlowDown");
+      throw e;
+    }
+  }
+
+  private byte[] get(String key) {
+    byte[] content = objects.get(key);
+    if (content == null) {
+      AmazonS3Exception e = new AmazonS3Exception("Not Found");
+      e.setStatusCode(404);
+      throw e;
+    }
+    return content;
+  }
+
+  private S3Object object(String key) {
+    InputStream in = new ByteArrayInputStream(get(key));
+    S3Object obj = new S3Object();
+    obj.setKey(key);
+    obj.setObjectContent(in);
+    return obj;
+  }
+
+}
@@ -0,0 +1,164 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+
+/**
+ * Tests for queueing backups ({@code backup.enqueue}), and uploading them later with {@link DrainJob}.
+ *
+ * @author deberhar
+ */
+public class DrainJobTest {
+  private final File fTestDir = new File(new File(System.getProperty("java.io.tmpdir")), UUID.randomUUID().toString());
+  private final AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+  private final TransferManager tm = Mockito.mock(TransferManager.class);
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+  private volatile String failKey;
+
+  @Before
+  public void setUp() throws Exception {
+    fTestDir.mkdir();
+    Files.write(new File(fTestDir, "TESTVOL-0001").toPath(), "First volume".getBytes());
+    Files.write(new File(fTestDir, "TESTVOL-0002").toPath(), "Second volume".getBytes());
+
+    Mockito.when(tm.upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class))).then(inv -> {
+      PutObjectRequest req = inv.getArgument(0);
+      if (req.getKey().equals(failKey)) {
+        throw new SdkClientException("Unable to execute HTTP request");
+      }
+      objects.put(req.getKey(), Files.readAllBytes(req.getFile().toPath()));
+      UploadResult res = new UploadResult();
+      res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(objects.get(req.getKey()))));
+      Upload upload = Mockito.mock(Upload.class);
+      Mockito.when(upload.waitForUploadResult()).thenReturn(res);
+      return upload;
+    });
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    System.clearProperty("spool.retrySeconds");
+    FileUtils.deleteDirectory(fTestDir);
+  }
+
+  @Test
+  public void testEnqueueThenDrain() {
+    enqueue("123", "TESTVOL-0001|TESTVOL-0002");
+    Mockito.verifyZeroInteractions(s3, tm);
+    Assert.assertTrue(new File(fTestDir, "TESTVOL-0001").exists());
+
+    List<SpoolQueue.Entry> entries = new SpoolQueue(fTestDir).list();
+    Assert.assertEquals(1, entries.size());
+    Assert.assertEquals("123", entries.get(0).getJobId());
+    Assert.assertEquals(Arrays.asList("TESTVOL-0001", "TESTVOL-0002"), entries.get(0).getVolumes());
+    Assert.assertEquals(25, entries.get(0).getBacklogBytes(fTestDir));
+
+    drain();
+    Assert.assertTrue(objects.containsKey("bb-123-TESTVOL-0001.enc"));
+    Assert.assertTrue(objects.containsKey("bb-123-TESTVOL-0002.enc"));
+    Assert.assertFalse(new File(fTestDir, "TESTVOL-0001").exists());
+    Assert.assertTrue(new SpoolQueue(fTestDir).list().isEmpty());
+  }
+
+  @Test
+  public void testFailedVolumeStaysQueued() {
+    enqueue("123", "TESTVOL-0001|TESTVOL-0002");
+    failKey = "bb-123-TESTVOL-0002.enc";
+    try {
+      drain();
+      Assert.fail("Should have thrown an exception");
+    } catch (JobFailedException e) {
+      // Expected
+    }
+
+    List<SpoolQueue.Entry> entries = new SpoolQueue(fTestDir).list();
+    Assert.assertEquals(1, entries.size());
+    Assert.assertEquals(Arrays.asList("TESTVOL-0002"), entries.get(0).getVolumes());
+    Assert.assertEquals(1, entries.get(0).getAttempts());
+    Assert.assertTrue(entries.get(0).getNextAttemptTime() > System.currentTimeMillis());
+    Assert.assertNotNull(entries.get(0).getLastError());
+
+    // Not due yet, so left alone:
+    failKey = null;
+    drain();
+    Assert.assertFalse(objects.containsKey("bb-123-TESTVOL-0002.enc"));
+    Assert.assertEquals(1, new SpoolQueue(fTestDir).list().size());
+  }
+
+  @Test
+  public void testRetryOnceDue() {
+    System.setProperty("spool.retrySeconds", "0");
+    enqueue("123", "TESTVOL-0002");
+    failKey = "bb-123-TESTVOL-0002.enc";
+    try {
+      drain();
+      Assert.fail("Should have thrown an exception");
+    } catch (JobFailedException e) {
+      // Expected
+    }
+
+    failKey = null;
+    drain();
+    Assert.assertTrue(objects.containsKey("bb-123-TESTVOL-0002.enc"));
+    Assert.assertTrue(new SpoolQueue(fTestDir).list().isEmpty());
+  }
+
+  private void enqueue(String p_jobId, String p_volumes) {
+    System.setProperty("backup.enqueue", "true");
+    try {
+      BackupJob job = new BackupJob();
+      job.setScratchDir(fTestDir);
+      job.setRemainingArgs(Arrays.asList(p_jobId, p_volumes));
+      job.prepare();
+      job.run();
+    } finally {
+      System.clearProperty("backup.enqueue");
+    }
+  }
+
+  private void drain() {
+    DrainJob job = new DrainJob() {
+      @Override
+      public void prepare() {
+        s3 = DrainJobTest.this.s3;
+        tm = DrainJobTest.this.tm;
+        encryptionKey = "secret key";
+        bucket = "bucket";
+      }
+    };
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList("--once"));
+    job.prepare();
+    try {
+      job.run();
+    } finally {
+      job.cleanup();
+    }
+  }
+
+}
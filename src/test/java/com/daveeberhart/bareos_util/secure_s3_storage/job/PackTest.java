@@ -0,0 +1,253 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.VolumeMissingException;
+
+/**
+ * Tests for packing small volumes into one object ({@code backup.pack}), against an in-memory bucket.
+ *
+ * @author deberhar
+ */
+public class PackTest {
+  private static final List<String> SMALL = Arrays.asList("TESTVOL-0001", "TESTVOL-0002", "TESTVOL-0003");
+  private static final String BIG = "TESTVOL-0004";
+
+  private final File fTestDir = new File(new File(System.getProperty("java.io.tmpdir")), UUID.randomUUID().toString());
+  private final AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+  private final TransferManager tm = Mockito.mock(TransferManager.class);
+  private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+  private final Map<String, ObjectMetadata> metadata = new ConcurrentHashMap<>();
+  private final Map<String, byte[]> volumes = new TreeMap<>(); // Sorted, so the small volumes are packed in order.
+
+  @Before
+  public void setUp() throws Exception {
+    fTestDir.mkdir();
+    System.setProperty("backup.pack", "true");
+    System.setProperty("backup.pack.maxVolumeMB", "1");
+
+    Random random = new Random(42);
+    for (String volume : SMALL) {
+      volumes.put(volume, new byte[50_000]);
+    }
+    volumes.put(BIG, new byte[1_100_000]);
+    volumes.values().forEach(random::nextBytes);
+
+    Mockito.when(s3.getObjectMetadata(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> {
+      String key = inv.getArgument(1);
+      byte[] content = get(key);
+      ObjectMetadata md = metadata.get(key).clone();
+      md.setContentLength(content.length);
+      return md;
+    });
+    Mockito.when(s3.listObjects(ArgumentMatchers.anyString(), ArgumentMatchers.anyString())).then(inv -> {
+      String prefix = inv.getArgument(1);
+      ObjectListing listing = new ObjectListing();
+      objects.keySet().stream().filter(k -> k.startsWith(prefix)).sorted().forEach(k -> {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(k);
+        listing.getObjectSummaries().add(summary);
+      });
+      return listing;
+    });
+    Mockito.when(tm.upload(ArgumentMatchers.any(PutObjectRequest.class), ArgumentMatchers.any(S3ProgressListener.class))).then(inv -> {
+      PutObjectRequest req = inv.getArgument(0);
+      objects.put(req.getKey(), Files.readAllBytes(req.getFile().toPath()));
+      metadata.put(req.getKey(), req.getMetadata() != null ? req.getMetadata() : new ObjectMetadata());
+      UploadResult res = new UploadResult();
+      res.setETag(Hex.toHexString(MessageDigest.getInstance("MD5").digest(objects.get(req.getKey()))));
+      Upload upload = Mockito.mock(Upload.class);
+      Mockito.when(upload.waitForUploadResult()).thenReturn(res);
+      return upload;
+    });
+    Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).then(inv -> object(inv.getArgument(0)));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    System.clearProperty("backup.pack");
+    System.clearProperty("backup.pack.maxVolumeMB");
+    FileUtils.deleteDirectory(fTestDir);
+  }
+
+  @Test
+  public void testSmallVolumesPacked() throws IOException {
+    backup();
+
+    List<String> packs = packKeys();
+    Assert.assertEquals(1, packs.size());
+    Assert.assertTrue(objects.containsKey("bb-100-" + BIG + ".enc"));
+    for (String volume : SMALL) {
+      Assert.assertFalse(objects.containsKey("bb-100-" + volume + ".enc"));
+    }
+    for (String volume : volumes.keySet()) {
+      Assert.assertFalse(new File(fTestDir, volume).exists());
+    }
+
+    // Only the volume asked for comes back, with ranged GETs of the pack:
+    Assert.assertArrayEquals(volumes.get("TESTVOL-0002"), restoreVolume("TESTVOL-0002"));
+    Assert.assertFalse(new File(fTestDir, "TESTVOL-0001").exists());
+    Mockito.verify(s3, Mockito.never()).getObject(new GetObjectRequest("bucket", packs.get(0)));
+  }
+
+  @Test
+  public void testRestoreJob() throws IOException {
+    backup();
+
+    RestoreJobs job = Mockito.spy(RestoreJobs.class);
+    Mockito.doNothing().when(job).prepare();
+    job.s3 = s3;
+    job.tm = tm;
+    job.bucket = "bucket";
+    job.encryptionKey = "secret key";
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList("100"));
+    System.setProperty("restore.streaming", "true");
+    try {
+      job.run();
+    } finally {
+      System.clearProperty("restore.streaming");
+    }
+
+    for (Map.Entry<String, byte[]> volume : volumes.entrySet()) {
+      Assert.assertArrayEquals(volume.getValue(), Files.readAllBytes(new File(fTestDir, volume.getKey()).toPath()));
+    }
+  }
+
+  @Test
+  public void testMissingFromPack() throws IOException {
+    backup();
+    try {
+      restoreVolume("TESTVOL-0009");
+      Assert.fail("Should have thrown an exception");
+    } catch (VolumeMissingException e) {
+      Assert.assertTrue(e.getMessage().contains("100-TESTVOL-0009"));
+    }
+  }
+
+  @Test
+  public void testSwappedMembers() throws IOException {
+    backup();
+
+    // The small volumes are all the same size, so swapping the first two leaves each one decrypting fine; but
+    // not as the volume the table says is there:
+    String pack = packKeys().get(0);
+    byte[] content = objects.get(pack);
+    int length = Integer.parseInt(metadata.get(pack).getUserMetaDataOf(PackTable.META_TABLE_OFFSET)) / SMALL.size();
+    byte[] first = Arrays.copyOfRange(content, 0, length);
+    System.arraycopy(content, length, content, 0, length);
+    System.arraycopy(first, 0, content, length, length);
+    for (String volume : SMALL.subList(0, 2)) {
+      try {
+        restoreVolume(volume);
+        Assert.fail("Should have thrown an exception");
+      } catch (IntegrityCheckFailedException e) {
+        Assert.assertTrue(e.getMessage().contains("does not match the digest"));
+        Assert.assertFalse(new File(fTestDir, volume).exists());
+      }
+    }
+    Assert.assertArrayEquals(volumes.get("TESTVOL-0003"), restoreVolume("TESTVOL-0003"));
+  }
+
+  private void backup() throws IOException {
+    for (Map.Entry<String, byte[]> volume : volumes.entrySet()) {
+      Files.write(new File(fTestDir, volume.getKey()).toPath(), volume.getValue());
+    }
+
+    BackupJob job = new BackupJob() {
+      @Override
+      public void prepare() {
+        s3 = PackTest.this.s3;
+        tm = PackTest.this.tm;
+        encryptionKey = "secret key";
+        bucket = "bucket";
+      }
+    };
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList("100", String.join("|", volumes.keySet())));
+    job.prepare();
+    try {
+      job.run();
+    } finally {
+      job.cleanup();
+    }
+  }
+
+  private byte[] restoreVolume(String p_volume) throws IOException {
+    RestoreVolumes job = Mockito.spy(RestoreVolumes.class);
+    Mockito.doNothing().when(job).prepare();
+    job.s3 = s3;
+    job.bucket = "bucket";
+    job.encryptionKey = "secret key";
+    job.setScratchDir(fTestDir);
+    job.setRemainingArgs(Arrays.asList("100-" + p_volume));
+    job.run();
+
+    File fOut = new File(fTestDir, p_volume);
+    byte[] restored = Files.readAllBytes(fOut.toPath());
+    fOut.delete();
+    return restored;
+  }
+
+  private List<String> packKeys() {
+    return objects.keySet().stream().filter(k -> k.endsWith(".pak")).collect(Collectors.toList());
+  }
+
+  private byte[] get(String key) {
+    byte[] content = objects.get(key);
+    if (content == null) {
+      AmazonS3Exception e = new AmazonS3Exception("Not Found");
+      e.setStatusCode(404);
+      throw e;
+    }
+    return content;
+  }
+
+  private S3Object object(GetObjectRequest p_req) {
+    byte[] content = get(p_req.getKey());
+    if (p_req.getRange() != null) {
+      content = Arrays.copyOfRange(content, (int) p_req.getRange()[0], (int) Math.min(content.length, p_req.getRange()[1] + 1));
+    }
+    InputStream in = new ByteArrayInputStream(content);
+    S3Object obj = new S3Object();
+    obj.setKey(p_req.getKey());
+    obj.setObjectContent(in);
+    return obj;
+  }
+
+}
@@ -1,9 +1,11 @@
 package com.daveeberhart.bareos_util.secure_s3_storage.job;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -18,9 +20,10 @@ import com.amazonaws.services.s3.Headers;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.RestoreObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.model.StorageClass;
-import com.amazonaws.services.s3.transfer.Download;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
 import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.GlacierRestoreInProgressException;
@@ -82,6 +85,7 @@ public class RestoreJobsTest {
       ObjectListing res = new ObjectListing();
       S3ObjectSummary summary = new S3ObjectSummary();
       summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
       res.getObjectSummaries().add(summary);
       return res;
     });
@@ -100,8 +104,7 @@ public class RestoreJobsTest {
     rj.run();
 
     Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
-    Mockito.verify(rj.s3).getObjectMetadata(rj.bucket, "bb-123-TESTVOL-0001.enc");
-    Mockito.verify(rj.tm).download(Mockito.any(GetObjectRequest.class), Mockito.any(), Mockito.any());
+    Mockito.verify(rj.s3).getObject(Mockito.any(GetObjectRequest.class));
     Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
   }
 
@@ -116,6 +119,8 @@ public class RestoreJobsTest {
       ObjectListing res = new ObjectListing();
       S3ObjectSummary summary = new S3ObjectSummary();
       summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      summary.setStorageClass(StorageClass.OneZoneInfrequentAccess.toString());
       res.getObjectSummaries().add(summary);
       return res;
     });
@@ -135,8 +140,7 @@ public class RestoreJobsTest {
     rj.run();
 
     Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
-    Mockito.verify(rj.s3).getObjectMetadata(rj.bucket, "bb-123-TESTVOL-0001.enc");
-    Mockito.verify(rj.tm).download(Mockito.any(GetObjectRequest.class), Mockito.any(), Mockito.any());
+    Mockito.verify(rj.s3).getObject(Mockito.any(GetObjectRequest.class));
     Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
   }
 
@@ -151,6 +155,7 @@ public class RestoreJobsTest {
       ObjectListing res = new ObjectListing();
       S3ObjectSummary summary = new S3ObjectSummary();
       summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
       res.getObjectSummaries().add(summary);
       return res;
     });
@@ -171,6 +176,60 @@ public class RestoreJobsTest {
     Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
   }
 
+  @Test
+  public void testFileOnDiskMatchesDigest() throws IOException {
+    fTestDir.mkdir();
+    File fVolume = new File(rj.getScratchDir(), "TESTVOL-0001");
+    Files.write(fVolume.toPath(), "bb-123-TESTVOL-0001.enc".getBytes());
+    mockVolumeWithDigest(rj.digestVolume(fVolume), fVolume.length());
+    mockResult(rj);
+
+    rj.setRemainingArgs(Arrays.asList("123"));
+    rj.prepare();
+    rj.run();
+
+    // Checked against the digest in the metadata; nothing downloaded:
+    Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
+    Mockito.verify(rj.s3).getObjectMetadata(rj.bucket, "bb-123-TESTVOL-0001.enc");
+    Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
+  }
+
+  @Test
+  public void testFileOnDiskDoesNotMatchDigest() throws IOException {
+    fTestDir.mkdir();
+    File fVolume = new File(rj.getScratchDir(), "TESTVOL-0001");
+    Files.write(fVolume.toPath(), "bb-123-TESTVOL-0001.enc".getBytes());
+    String digest = rj.digestVolume(fVolume);
+    Files.write(fVolume.toPath(), "bb-123-TESTVOL-0001.ENC".getBytes()); // Same length, different content.
+    mockVolumeWithDigest(digest, fVolume.length());
+    mockResult(rj);
+
+    rj.setRemainingArgs(Arrays.asList("123"));
+    rj.prepare();
+    rj.run();
+
+    Mockito.verify(rj.s3).getObject(Mockito.any(GetObjectRequest.class));
+    Assert.assertEquals("bb-123-TESTVOL-0001.enc", new String(Files.readAllBytes(fVolume.toPath())));
+  }
+
+  private void mockVolumeWithDigest(String p_digest, long p_length) {
+    Mockito.when(rj.s3.listObjects(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      ObjectListing res = new ObjectListing();
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      res.getObjectSummaries().add(summary);
+      return res;
+    });
+    Mockito.when(rj.s3.getObjectMetadata(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      ObjectMetadata md = new ObjectMetadata();
+      md.setOngoingRestore(false);
+      md.addUserMetadata(Job.META_VOLUME_DIGEST, p_digest);
+      md.addUserMetadata(Job.META_VOLUME_LENGTH, Long.toString(p_length));
+      return md;
+    });
+  }
+
   @Test(expected=GlacierRestoreInProgressException.class)
   public void testGlacierRestoreNeeded() throws IOException {
     fTestDir.mkdir();
@@ -182,6 +241,8 @@ public class RestoreJobsTest {
       ObjectListing res = new ObjectListing();
       S3ObjectSummary summary = new S3ObjectSummary();
       summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      summary.setStorageClass(StorageClass.Glacier.toString());
       res.getObjectSummaries().add(summary);
       return res;
     });
@@ -209,6 +270,8 @@ public class RestoreJobsTest {
       ObjectListing res = new ObjectListing();
       S3ObjectSummary summary = new S3ObjectSummary();
       summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      summary.setStorageClass(StorageClass.Glacier.toString());
       res.getObjectSummaries().add(summary);
       return res;
     });
@@ -225,6 +288,90 @@ public class RestoreJobsTest {
     rj.run();
   }
 
+  @Test
+  public void testGlacierAlreadyRestored() {
+    fTestDir.mkdir();
+
+    Mockito.when(rj.s3.listObjects(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      ObjectListing res = new ObjectListing();
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      summary.setStorageClass(StorageClass.Glacier.toString());
+      res.getObjectSummaries().add(summary);
+      return res;
+    });
+    Mockito.when(rj.s3.getObjectMetadata(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      ObjectMetadata md = new ObjectMetadata();
+      md.setOngoingRestore(false);
+      md.setRestoreExpirationTime(new Date(System.currentTimeMillis() + 86400000L));
+      md.setHeader(Headers.STORAGE_CLASS, StorageClass.Glacier.toString());
+      return md;
+    });
+    mockResult(rj);
+
+    rj.setRemainingArgs(Arrays.asList("123"));
+    rj.prepare();
+    rj.run();
+
+    // Downloaded straight away, without asking for another restore:
+    Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
+    Mockito.verify(rj.s3).getObjectMetadata(rj.bucket, "bb-123-TESTVOL-0001.enc");
+    Mockito.verify(rj.s3).getObject(Mockito.any(GetObjectRequest.class));
+    Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
+  }
+
+  @Test
+  public void testGlacierWait() {
+    fTestDir.mkdir();
+    System.setProperty("restore.wait.pollSeconds", "0");
+
+    Mockito.when(rj.s3.listObjects(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      ObjectListing res = new ObjectListing();
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      res.getObjectSummaries().add(summary);
+      summary = new S3ObjectSummary();
+      summary.setKey("bb-123-TESTVOL-0002.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      summary.setStorageClass(StorageClass.Glacier.toString());
+      res.getObjectSummaries().add(summary);
+      return res;
+    });
+    // Not restored; then underway; then back in S3:
+    AtomicInteger heads = new AtomicInteger();
+    Mockito.when(rj.s3.getObjectMetadata(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      Assert.assertEquals("bb-123-TESTVOL-0002.enc", inv.getArgument(1));
+      ObjectMetadata md = new ObjectMetadata();
+      md.setHeader(Headers.STORAGE_CLASS, StorageClass.Glacier.toString());
+      switch (heads.getAndIncrement()) {
+      case 0:
+        break;
+      case 1:
+        md.setOngoingRestore(true);
+        break;
+      default:
+        md.setOngoingRestore(false);
+        md.setRestoreExpirationTime(new Date(System.currentTimeMillis() + 86400000L));
+      }
+      return md;
+    });
+    mockResult(rj);
+
+    rj.setRemainingArgs(Arrays.asList("--wait", "123"));
+    rj.prepare();
+    rj.run();
+
+    Assert.assertTrue(new File(fTestDir, "TESTVOL-0001").exists());
+    Assert.assertTrue(new File(fTestDir, "TESTVOL-0002").exists());
+    Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
+    Mockito.verify(rj.s3, Mockito.times(3)).getObjectMetadata(rj.bucket, "bb-123-TESTVOL-0002.enc");
+    Mockito.verify(rj.s3).restoreObjectV2(Mockito.any(RestoreObjectRequest.class));
+    Mockito.verify(rj.s3, Mockito.times(2)).getObject(Mockito.any(GetObjectRequest.class));
+    Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
+  }
+
   @Test
   public void testPagedResults() {
     fTestDir.mkdir();
@@ -238,6 +385,7 @@ public class RestoreJobsTest {
       for (int i = 0; i < 3; i++) {
         S3ObjectSummary summary = new S3ObjectSummary();
         summary.setKey("bb-123-TESTVOL-000" + ctr.incrementAndGet() + ".enc");
+        summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
         res.getObjectSummaries().add(summary);
       }
       res.setTruncated(true);
@@ -248,6 +396,7 @@ public class RestoreJobsTest {
       for (int i = 0; i < 3; i++) {
         S3ObjectSummary summary = new S3ObjectSummary();
         summary.setKey("bb-123-TESTVOL-000" + ctr.incrementAndGet() + ".enc");
+        summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
         res.getObjectSummaries().add(summary);
       }
       res.setTruncated(ctr.get() < 8);
@@ -268,10 +417,7 @@ public class RestoreJobsTest {
 
     Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
     Mockito.verify(rj.s3, Mockito.times(2)).listNextBatchOfObjects(Mockito.any(ObjectListing.class));
-    for (int i = 1; i <= 9; i++) {
-      Mockito.verify(rj.s3).getObjectMetadata(rj.bucket, "bb-123-TESTVOL-000" + i + ".enc");
-    }
-    Mockito.verify(rj.tm, Mockito.times(9)).download(Mockito.any(GetObjectRequest.class), Mockito.any(), Mockito.any());
+    Mockito.verify(rj.s3, Mockito.times(9)).getObject(Mockito.any(GetObjectRequest.class));
     Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
   }
 
@@ -286,6 +432,7 @@ public class RestoreJobsTest {
       ObjectListing res = new ObjectListing();
       S3ObjectSummary summary = new S3ObjectSummary();
       summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
       res.getObjectSummaries().add(summary);
       return res;
     });
@@ -300,7 +447,7 @@ public class RestoreJobsTest {
 
     BackupJob bj = new BackupJob();
     bj.encryptionKey = "nope";
-    bj.tm = rj.tm;
+    bj.s3 = rj.s3;
     bj.setScratchDir(rj.getScratchDir());
     mockResult(bj);
 
@@ -309,28 +456,105 @@ public class RestoreJobsTest {
     rj.run();
 
     Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
-    Mockito.verify(rj.s3).getObjectMetadata(rj.bucket, "bb-123-TESTVOL-0001.enc");
-    Mockito.verify(rj.tm).download(Mockito.any(GetObjectRequest.class), Mockito.any(), Mockito.any());
+    Mockito.verify(rj.s3).getObject(Mockito.any(GetObjectRequest.class));
     Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
   }
 
+  @Test
+  public void testStreamingRestore() throws IOException {
+    fTestDir.mkdir();
+    System.setProperty("restore.streaming", "true");
+    try {
+      mockOneObject();
+      mockResult(rj);
+
+      rj.setRemainingArgs(Arrays.asList("123"));
+      rj.prepare();
+      rj.run();
+
+      File fOut = new File(rj.getScratchDir(), "TESTVOL-0001");
+      Assert.assertArrayEquals("bb-123-TESTVOL-0001.enc".getBytes(), Files.readAllBytes(fOut.toPath()));
+      Assert.assertFalse(new File(rj.getScratchDir(), "TESTVOL-0001.enc").exists());
+
+      Mockito.verify(rj.s3).listObjects(rj.bucket, "bb-123-");
+      Mockito.verify(rj.s3).getObject(Mockito.any(GetObjectRequest.class));
+      Mockito.verifyNoMoreInteractions(rj.s3, rj.tm);
+    } finally {
+      System.clearProperty("restore.streaming");
+    }
+  }
+
+  @Test
+  public void testStreamingTampered() throws IOException {
+    fTestDir.mkdir();
+    System.setProperty("restore.streaming", "true");
+    try {
+      mockOneObject();
+
+      BackupJob bj = new BackupJob();
+      bj.encryptionKey = "nope";
+      bj.s3 = rj.s3;
+      bj.setScratchDir(rj.getScratchDir());
+      mockResult(bj);
+
+      rj.setRemainingArgs(Arrays.asList("123"));
+      rj.prepare();
+      rj.run();
+      Assert.fail("Should have thrown an exception");
+    } catch (IntegrityCheckFailedException e) {
+      Assert.assertFalse(new File(rj.getScratchDir(), "TESTVOL-0001").exists());
+    } finally {
+      System.clearProperty("restore.streaming");
+    }
+  }
+
+  private void mockOneObject() {
+    Mockito.when(rj.s3.listObjects(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      ObjectListing res = new ObjectListing();
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setKey("bb-123-TESTVOL-0001.enc");
+      summary.setSize(rj.getEncryptedLength(summary.getKey().length()));
+      res.getObjectSummaries().add(summary);
+      return res;
+    });
+    Mockito.when(rj.s3.getObjectMetadata(Mockito.anyString(), Mockito.anyString())).then(inv -> {
+      ObjectMetadata md = new ObjectMetadata();
+      md.setOngoingRestore(false);
+      return md;
+    });
+  }
+
+  /**
+   * Serve each object (or the range of it asked for) as its key, encrypted by the job.
+   */
   private static void mockResult(Job p_rj) {
-    Mockito.when(p_rj.tm.download((GetObjectRequest)Mockito.any(), Mockito.any(), Mockito.any())).then(inv -> {
+    Mockito.when(p_rj.s3.getObject(Mockito.any(GetObjectRequest.class))).then(inv -> {
       GetObjectRequest req = inv.getArgument(0);
       String key = req.getKey();
 
       String rnd = UUID.randomUUID().toString();
       File fDummyPlain = new File(p_rj.getScratchDir(), "utest-plain." + key + "." + rnd);
+      File fDummyEnc = new File(p_rj.getScratchDir(), "utest-enc." + key + "." + rnd);
       Files.write(fDummyPlain.toPath(), key.getBytes());
-      p_rj.encrypt(fDummyPlain, inv.getArgument(1));
+      p_rj.encrypt(fDummyPlain, fDummyEnc);
+      byte[] content = Files.readAllBytes(fDummyEnc.toPath());
       fDummyPlain.delete();
+      fDummyEnc.delete();
 
-      return Mockito.mock(Download.class);
+      long[] range = req.getRange();
+      if (range != null) {
+        content = Arrays.copyOfRange(content, (int) range[0], (int) Math.min(content.length, range[1] + 1));
+      }
+      S3Object obj = new S3Object();
+      obj.setKey(key);
+      obj.setObjectContent(new ByteArrayInputStream(content));
+      return obj;
     });
   }
 
   @After
   public void checkMocks() throws IOException {
+    System.clearProperty("restore.wait.pollSeconds");
     FileUtils.deleteDirectory(fTestDir);
   }
 
@@ -0,0 +1,246 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.hamcrest.CoreMatchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.BadArgsException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException;
+import com.daveeberhart.bareos_util.secure_s3_storage.error.JobFailedException.IntegrityCheckFailedException;
+
+/**
+ * @author deberhar
+ */
+public class RestoreRangeTest {
+  private static final String KEY = "bb-123-TESTVOL-0001.enc";
+  private static final int SEGMENT_SIZE = 4096;
+
+  private final File fTestDir = new File(new File(System.getProperty("java.io.tmpdir")), UUID.randomUUID().toString());
+  private final RestoreRange rr = Mockito.spy(RestoreRange.class);
+  private final List<long[]> ranges = new ArrayList<>();
+  private byte[] plaintext;
+  private byte[] encrypted;
+  private byte[] index;
+  /** Bytes into the next segment download at which to drop the connection; or -1 */
+  private int dropAfter = -1;
+  private String storageClass;
+
+  @Before
+  public void setUp() throws IOException {
+    fTestDir.mkdir();
+    System.setProperty("encryption.segmentSizeKB", Integer.toString(SEGMENT_SIZE / 1024));
+
+    Mockito.doNothing().when(rr).prepare();
+    rr.bucket = "bucket";
+    rr.encryptionKey = "secret key";
+    rr.s3 = Mockito.mock(AmazonS3.class);
+    rr.setScratchDir(fTestDir);
+
+    plaintext = new byte[50_000];
+    new Random(42).nextBytes(plaintext);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    System.clearProperty("encryption.segmentSizeKB");
+    System.clearProperty("encryption.fileVersion");
+    System.clearProperty("compression");
+    System.clearProperty("transfer.retryBaseMillis");
+    FileUtils.deleteDirectory(fTestDir);
+  }
+
+  @Test(expected=BadArgsException.class)
+  public void testBadArgs() {
+    rr.setRemainingArgs(Arrays.asList("TESTVOL-0001", "0", "10"));
+  }
+
+  @Test(expected=BadArgsException.class)
+  public void testNonNumericRange() {
+    rr.setRemainingArgs(Arrays.asList("123-TESTVOL-0001", "start", "10"));
+  }
+
+  @Test
+  public void testRangeWithIndex() throws IOException {
+    encryptAndMock(true);
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(plaintext, 10_000, 15_000), restore(10_000, 5_000));
+
+    // Only the two segments covering the range should have been downloaded, besides the header:
+    Assert.assertEquals(2, ranges.size());
+    Assert.assertEquals(Job.HEADER_SIZE, ranges.get(0)[1] - ranges.get(0)[0] + 1);
+    Assert.assertEquals(2 * (SEGMENT_SIZE + 16), ranges.get(1)[1] - ranges.get(1)[0] + 1);
+    Mockito.verify(rr.s3).getObject(rr.bucket, "index/" + KEY);
+  }
+
+  @Test
+  public void testRangeWithoutIndex() throws IOException {
+    encryptAndMock(false);
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(plaintext, 4096, 4097), restore(4096, 1));
+    Assert.assertEquals(SEGMENT_SIZE + 16, ranges.get(1)[1] - ranges.get(1)[0] + 1);
+  }
+
+  @Test
+  public void testRangePastEnd() throws IOException {
+    encryptAndMock(true);
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(plaintext, 49_000, plaintext.length), restore(49_000, 10_000));
+  }
+
+  @Test(expected=JobFailedException.class)
+  public void testOffsetPastEnd() throws IOException {
+    encryptAndMock(false);
+    restore(plaintext.length, 1);
+  }
+
+  @Test
+  public void testTampered() throws IOException {
+    encryptAndMock(true);
+    encrypted[Job.HEADER_SIZE + 3 * (SEGMENT_SIZE + 16) + 5] ^= 1;
+
+    try {
+      restore(13_000, 10);
+      Assert.fail("Should have thrown an exception");
+    } catch (IntegrityCheckFailedException e) {
+      Assert.assertEquals(0, fTestDir.list((dir, name) -> name.startsWith("TESTVOL-0001.range")).length);
+    }
+  }
+
+  @Test
+  public void testDroppedConnection() throws IOException {
+    System.setProperty("transfer.retryBaseMillis", "1");
+    encryptAndMock(true);
+    dropAfter = 2 * (SEGMENT_SIZE + 16) + 100;
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(plaintext, 1_000, 30_000), restore(1_000, 29_000));
+
+    // The retry picked up at the segment the connection dropped in:
+    Assert.assertEquals(3, ranges.size());
+    Assert.assertEquals(ranges.get(1)[0] + 2 * (SEGMENT_SIZE + 16), ranges.get(2)[0]);
+    Assert.assertEquals(ranges.get(1)[1], ranges.get(2)[1]);
+  }
+
+  @Test
+  public void testDeepArchiveNeedsRestoreFirst() throws IOException {
+    encryptAndMock(true);
+    storageClass = "DEEP_ARCHIVE";
+    try {
+      restore(0, 10);
+      Assert.fail("Should have thrown an exception");
+    } catch (JobFailedException e) {
+      Assert.assertThat(e.getMessage(), CoreMatchers.containsString("restore-volumes first"));
+    }
+    Assert.assertTrue(ranges.isEmpty());
+  }
+
+  @Test(expected=JobFailedException.class)
+  public void testVersion1NotSeekable() throws IOException {
+    System.setProperty("encryption.fileVersion", "1");
+    encryptAndMock(false);
+    restore(0, 10);
+  }
+
+  @Test
+  public void testCompressedRange() throws IOException {
+    System.setProperty("compression", "deflate");
+    plaintext = CryptoTests.compressibleBytes(50_000);
+    encryptAndMock(true);
+    Assert.assertTrue(encrypted.length < plaintext.length);
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(plaintext, 10_000, 15_000), restore(10_000, 5_000));
+    Assert.assertArrayEquals(Arrays.copyOfRange(plaintext, 49_000, plaintext.length), restore(49_000, 10_000));
+  }
+
+  @Test(expected=JobFailedException.class)
+  public void testCompressedNeedsIndex() throws IOException {
+    System.setProperty("compression", "deflate");
+    plaintext = CryptoTests.compressibleBytes(50_000);
+    encryptAndMock(false);
+    restore(10_000, 5_000);
+  }
+
+  private byte[] restore(long p_offset, long p_length) throws IOException {
+    rr.setRemainingArgs(Arrays.asList("123-TESTVOL-0001", Long.toString(p_offset), Long.toString(p_length)));
+    rr.prepare();
+    rr.run();
+
+    File[] outputs = fTestDir.listFiles((dir, name) -> name.startsWith("TESTVOL-0001.range-" + p_offset + "-"));
+    Assert.assertEquals(1, outputs.length);
+    return Files.readAllBytes(outputs[0].toPath());
+  }
+
+  private void encryptAndMock(boolean p_withIndex) throws IOException {
+    File fPlain = new File(fTestDir, "plain");
+    File fEnc = new File(fTestDir, "enc");
+    Files.write(fPlain.toPath(), plaintext);
+    SegmentIndex segments = rr.encrypt(fPlain, fEnc);
+    encrypted = Files.readAllBytes(fEnc.toPath());
+    index = p_withIndex ? segments.toBytes() : null;
+    fPlain.delete();
+    fEnc.delete();
+
+    Mockito.when(rr.s3.getObjectMetadata(rr.bucket, KEY)).then(inv -> {
+      ObjectMetadata md = new ObjectMetadata();
+      md.setContentLength(encrypted.length);
+      if (storageClass != null) {
+        md.setHeader(Headers.STORAGE_CLASS, storageClass);
+      }
+      return md;
+    });
+    Mockito.when(rr.s3.getObject(Mockito.any(GetObjectRequest.class))).then(inv -> {
+      GetObjectRequest req = inv.getArgument(0);
+      Assert.assertEquals(KEY, req.getKey());
+      long[] range = req.getRange();
+      ranges.add(range);
+
+      S3Object obj = new S3Object();
+      InputStream in = new ByteArrayInputStream(Arrays.copyOfRange(encrypted, (int) range[0], (int) range[1] + 1));
+      if (range[0] > 0 && dropAfter >= 0) {
+        in = new SequenceInputStream(new ByteArrayInputStream(IOUtils.toByteArray(in, dropAfter)), new InputStream() {
+          @Override
+          public int read() throws IOException {
+            throw new SocketException("Connection reset");
+          }
+        });
+        dropAfter = -1;
+      }
+      obj.setObjectContent(in);
+      return obj;
+    });
+    Mockito.when(rr.s3.getObject(rr.bucket, "index/" + KEY)).then(inv -> {
+      if (index == null) {
+        AmazonS3Exception e = new AmazonS3Exception("Not Found");
+        e.setStatusCode(404);
+        throw e;
+      }
+      S3Object obj = new S3Object();
+      obj.setObjectContent(new ByteArrayInputStream(index));
+      return obj;
+    });
+  }
+
+}
@@ -0,0 +1,74 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class AimdLimiterTest {
+
+  @Test
+  public void testHalvesOncePerBurst() throws InterruptedException {
+    AimdLimiter limiter = new AimdLimiter(8);
+    long[] tickets = new long[8];
+    for (int i = 0; i < tickets.length; i++) {
+      tickets[i] = limiter.acquire();
+    }
+
+    // Every request in flight was throttled, but that's one signal, not eight:
+    for (long ticket : tickets) {
+      limiter.release(ticket, true);
+    }
+    Assert.assertEquals(4, limiter.getLimit());
+
+    // A request sent after the cut that's throttled too cuts it again:
+    limiter.release(limiter.acquire(), true);
+    Assert.assertEquals(2, limiter.getLimit());
+    for (int i = 0; i < 10; i++) {
+      limiter.release(limiter.acquire(), true);
+    }
+    Assert.assertEquals(1, limiter.getLimit());
+  }
+
+  @Test
+  public void testRecoversAdditively() throws InterruptedException {
+    AimdLimiter limiter = new AimdLimiter(8);
+    limiter.release(limiter.acquire(), true);
+    limiter.release(limiter.acquire(), true);
+    Assert.assertEquals(2, limiter.getLimit());
+
+    // About one more for each limit's-worth of successes:
+    for (int i = 0; i < 2; i++) {
+      limiter.release(limiter.acquire(), false);
+    }
+    Assert.assertEquals(2, limiter.getLimit());
+    limiter.release(limiter.acquire(), false);
+    Assert.assertEquals(3, limiter.getLimit());
+    for (int i = 0; i < 100; i++) {
+      limiter.release(limiter.acquire(), false);
+    }
+    Assert.assertEquals(8, limiter.getLimit());
+  }
+
+  @Test(timeout=5000)
+  public void testBlocksAtLimit() throws InterruptedException {
+    AimdLimiter limiter = new AimdLimiter(1);
+    long ticket = limiter.acquire();
+
+    Thread waiter = new Thread(() -> {
+      try {
+        limiter.release(limiter.acquire(), false);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    waiter.start();
+    waiter.join(200);
+    Assert.assertTrue("Second request should wait for the first", waiter.isAlive());
+
+    limiter.release(ticket, false);
+    waiter.join();
+  }
+
+}
@@ -0,0 +1,108 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.BandwidthLimiter.Window;
+
+/**
+ * @author deberhar
+ */
+public class BandwidthLimiterTest {
+
+  @Test
+  public void testParseRate() {
+    Assert.assertEquals(1000, BandwidthLimiter.parseRate("1000"));
+    Assert.assertEquals(512 * 1024, BandwidthLimiter.parseRate("512K"));
+    Assert.assertEquals(2 * 1024 * 1024, BandwidthLimiter.parseRate(" 2m "));
+    Assert.assertEquals(1024L * 1024 * 1024, BandwidthLimiter.parseRate("1G"));
+    Assert.assertEquals(0, BandwidthLimiter.parseRate("unlimited"));
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testBadRate() {
+    BandwidthLimiter.parseRate("fast");
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void testBadSchedule() {
+    BandwidthLimiter.parse(null, "business hours=1M");
+  }
+
+  @Test
+  public void testNothingCapped() {
+    Assert.assertNull(BandwidthLimiter.parse(null, null));
+    Assert.assertNull(BandwidthLimiter.parse("", "22:00-06:00=unlimited"));
+    Assert.assertNotNull(BandwidthLimiter.parse(null, "08:00-18:00=1M"));
+  }
+
+  @Test
+  public void testSchedule() {
+    Window day = Window.parse("08:00-18:00=1M");
+    Window night = Window.parse("22:00-06:00=unlimited");
+
+    Assert.assertEquals(1024 * 1024, at(12, 0, day, night).getRate());
+    Assert.assertEquals(0, at(23, 30, day, night).getRate());
+    Assert.assertEquals(0, at(5, 59, day, night).getRate());
+    Assert.assertEquals(4096, at(18, 0, day, night).getRate()); // The end of a window isn't in it.
+    Assert.assertEquals(4096, at(7, 0, day, night).getRate());
+  }
+
+  @Test
+  public void testThrottles() throws IOException {
+    BandwidthLimiter limiter = new BandwidthLimiter(4 * 1024 * 1024, Collections.emptyList(), Clock.systemDefaultZone());
+    byte[] data = new byte[1024 * 1024];
+
+    long start = System.nanoTime();
+    try (InputStream in = limiter.throttle(new ByteArrayInputStream(data))) {
+      Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+    }
+    long millis = (System.nanoTime() - start) / 1_000_000;
+    Assert.assertTrue("1MB at 4MB/s took " + millis + "ms", millis >= 200);
+  }
+
+  @Test
+  public void testUnlimitedDoesntWait() throws IOException {
+    BandwidthLimiter limiter = at(23, 0, Window.parse("22:00-06:00=unlimited"));
+    long start = System.nanoTime();
+    for (int i = 0; i < 1000; i++) {
+      limiter.acquire(1024 * 1024 * 1024);
+    }
+    Assert.assertTrue((System.nanoTime() - start) / 1_000_000 < 1000);
+  }
+
+  @Test
+  public void testRequestHandlerThrottlesBody() throws IOException {
+    BandwidthLimiter limiter = new BandwidthLimiter(4 * 1024 * 1024, Collections.emptyList(), Clock.systemDefaultZone());
+    Request<?> req = new DefaultRequest<>("S3");
+    byte[] data = new byte[1024 * 1024];
+    req.setContent(new ByteArrayInputStream(data));
+
+    limiter.asRequestHandler().beforeRequest(req);
+
+    long start = System.nanoTime();
+    Assert.assertArrayEquals(data, IOUtils.toByteArray(req.getContent()));
+    Assert.assertTrue((System.nanoTime() - start) / 1_000_000 >= 200);
+  }
+
+  /**
+   * @return A limiter with a default rate of 4K, at the given time of day
+   */
+  private static BandwidthLimiter at(int p_hour, int p_minute, Window... p_schedule) {
+    Clock clock = Clock.fixed(LocalDateTime.of(2024, 1, 1, p_hour, p_minute).toInstant(ZoneOffset.UTC), ZoneOffset.UTC);
+    return new BandwidthLimiter(4096, Arrays.asList(p_schedule), clock);
+  }
+
+}
@@ -0,0 +1,91 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author deberhar
+ */
+public class ETagOutputStreamTest {
+  private static final int PART_SIZE = 1000;
+
+  @Test
+  public void testSinglePart() throws Exception {
+    byte[] data = randomBytes(PART_SIZE);
+    ETagOutputStream out = write(data);
+    Assert.assertEquals(Hex.toHexString(MessageDigest.getInstance("MD5").digest(data)), out.getETag());
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    ETagOutputStream out = write(new byte[0]);
+    Assert.assertEquals("d41d8cd98f00b204e9800998ecf8427e", out.getETag());
+  }
+
+  @Test
+  public void testMultipart() throws Exception {
+    byte[] data = randomBytes(2 * PART_SIZE + 1);
+    ETagOutputStream out = write(data);
+    Assert.assertEquals(data.length, out.getLength());
+    Assert.assertEquals(expected(data), out.getETag());
+    Assert.assertTrue(out.getETag().endsWith("-3"));
+  }
+
+  @Test
+  public void testExactMultipleOfPartSize() throws Exception {
+    // No empty part on the end:
+    byte[] data = randomBytes(3 * PART_SIZE);
+    String etag = write(data).getETag();
+    Assert.assertEquals(expected(data), etag);
+    Assert.assertTrue(etag.endsWith("-3"));
+  }
+
+  /**
+   * Write the data in odd-sized pieces, which don't line up with the parts.
+   */
+  private static ETagOutputStream write(byte[] p_data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ETagOutputStream out = new ETagOutputStream(bytes, PART_SIZE);
+    int off = 0;
+    for (int len = 1; off < p_data.length; len = len * 3 + 1) {
+      int n = Math.min(len, p_data.length - off);
+      if (n == 1) {
+        out.write(p_data[off]);
+      } else {
+        out.write(p_data, off, n);
+      }
+      off += n;
+    }
+    Assert.assertArrayEquals(p_data, bytes.toByteArray());
+    return out;
+  }
+
+  /** @return The multipart ETag, worked out the slow way */
+  private static String expected(byte[] p_data) throws Exception {
+    List<byte[]> md5s = new ArrayList<>();
+    for (int off = 0; off < p_data.length; off += PART_SIZE) {
+      md5s.add(MessageDigest.getInstance("MD5").digest(Arrays.copyOfRange(p_data, off, Math.min(p_data.length, off + PART_SIZE))));
+    }
+    ByteArrayOutputStream concat = new ByteArrayOutputStream();
+    for (byte[] md5 : md5s) {
+      concat.write(md5);
+    }
+    return Hex.toHexString(MessageDigest.getInstance("MD5").digest(concat.toByteArray())) + "-" + md5s.size();
+  }
+
+  private static byte[] randomBytes(int p_length) {
+    byte[] data = new byte[p_length];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+}
@@ -0,0 +1,176 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+
+/**
+ * @author deberhar
+ */
+public class ParallelDownloadTest {
+  private final byte[] content = new byte[1000];
+  private final AmazonS3 s3 = Mockito.mock(AmazonS3.class);
+  private final List<long[]> ranges = new CopyOnWriteArrayList<>();
+  private volatile String eTag = "etag-1";
+
+  public ParallelDownloadTest() {
+    new Random(42).nextBytes(content);
+  }
+
+  @Test
+  public void testDownloadsRangesInPlace() throws IOException {
+    Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).then(inv -> object(inv.getArgument(0), Integer.MAX_VALUE));
+
+    File fOut = download();
+    try {
+      Assert.assertArrayEquals(content, Files.readAllBytes(fOut.toPath()));
+      Assert.assertEquals(4, ranges.size());
+      Assert.assertTrue(ranges.stream().anyMatch(r -> r[0] == 750 && r[1] == 999));
+    } finally {
+      fOut.delete();
+    }
+  }
+
+  @Test
+  public void testResumesDroppedRange() throws IOException {
+    AtomicBoolean dropped = new AtomicBoolean();
+    Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).then(inv -> {
+      GetObjectRequest req = inv.getArgument(0);
+      boolean drop = req.getRange()[0] == 250 && dropped.compareAndSet(false, true);
+      return object(req, drop ? 100 : Integer.MAX_VALUE);
+    });
+
+    File fOut = download();
+    try {
+      Assert.assertArrayEquals(content, Files.readAllBytes(fOut.toPath()));
+      // Picked up where the dropped connection left off:
+      Assert.assertTrue(ranges.stream().anyMatch(r -> r[0] == 350 && r[1] == 499));
+      Assert.assertEquals(5, ranges.size());
+    } finally {
+      fOut.delete();
+    }
+  }
+
+  @Test
+  public void testMetadataCheckStopsDownload() throws IOException {
+    Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).then(inv -> object(inv.getArgument(0), Integer.MAX_VALUE));
+
+    File fOut = File.createTempFile("download", ".enc");
+    try {
+      ParallelDownload download = new ParallelDownload(s3, "bucket", "key", content.length, 250, 3, null);
+      download.setMetadataCheck(mdata -> !"etag-1".equals(mdata.getETag()));
+      Assert.assertFalse(download.downloadTo(fOut));
+      // Only the first range was asked for, and none of it was written:
+      Assert.assertEquals(1, ranges.size());
+      Assert.assertEquals(0, fOut.length());
+      Assert.assertFalse(ParallelDownload.getProgressFile(fOut).exists());
+    } finally {
+      fOut.delete();
+    }
+  }
+
+  @Test
+  public void testResumesAfterFailure() throws IOException {
+    File fOut = failPartWay();
+    try {
+      ranges.clear();
+      download(fOut);
+      Assert.assertArrayEquals(content, Files.readAllBytes(fOut.toPath()));
+      // Only the range that failed, and only if it's still the same object:
+      Assert.assertEquals(1, ranges.size());
+      Assert.assertArrayEquals(new long[] { 750, 999 }, ranges.get(0));
+      Assert.assertFalse(ParallelDownload.getProgressFile(fOut).exists());
+    } finally {
+      fOut.delete();
+    }
+  }
+
+  @Test
+  public void testStartsAgainIfObjectChanged() throws IOException {
+    File fOut = failPartWay();
+    try {
+      new Random(43).nextBytes(content);
+      eTag = "etag-2";
+      ranges.clear();
+      download(fOut);
+      Assert.assertArrayEquals(content, Files.readAllBytes(fOut.toPath()));
+      Assert.assertEquals(5, ranges.size()); // The failed ETag check, then all four again.
+    } finally {
+      fOut.delete();
+    }
+  }
+
+  /**
+   * @return A download that failed on its last range, bytes 750-999
+   */
+  private File failPartWay() throws IOException {
+    AtomicBoolean failed = new AtomicBoolean();
+    Mockito.when(s3.getObject(ArgumentMatchers.any(GetObjectRequest.class))).then(inv -> {
+      GetObjectRequest req = inv.getArgument(0);
+      if (!req.getMatchingETagConstraints().isEmpty() && !req.getMatchingETagConstraints().contains(eTag)) {
+        ranges.add(req.getRange());
+        return null;
+      } else if (req.getRange()[0] == 750 && failed.compareAndSet(false, true)) {
+        throw new SdkClientException("Unable to execute HTTP request");
+      }
+      return object(req, Integer.MAX_VALUE);
+    });
+
+    File fOut = File.createTempFile("download", ".enc");
+    try {
+      ParallelDownload download = new ParallelDownload(s3, "bucket", "key", content.length, 250, 1, null);
+      download.downloadTo(fOut);
+      Assert.fail("Should have thrown an exception");
+    } catch (SdkClientException e) {
+      // Expected
+    }
+    Assert.assertTrue(ParallelDownload.getProgressFile(fOut).exists());
+    return fOut;
+  }
+
+  private File download() throws IOException {
+    File fOut = File.createTempFile("download", ".enc");
+    download(fOut);
+    return fOut;
+  }
+
+  private void download(File fOut) throws IOException {
+    ParallelDownload download = new ParallelDownload(s3, "bucket", "key", content.length, 250, 3, null);
+    download.setRetrier(new Retrier(3, 1, 1, null));
+    download.downloadTo(fOut);
+  }
+
+  /**
+   * @param p_cutOff Bytes to send before the connection "drops"
+   */
+  private S3Object object(GetObjectRequest p_req, int p_cutOff) {
+    long[] range = p_req.getRange();
+    ranges.add(range);
+    byte[] body = Arrays.copyOfRange(content, (int) range[0], (int) Math.min(range[0] + p_cutOff, range[1] + 1));
+    InputStream in = new ByteArrayInputStream(body);
+    S3Object obj = new S3Object();
+    obj.setKey(p_req.getKey());
+    obj.setObjectContent(in);
+    obj.getObjectMetadata().setHeader(Headers.ETAG, eTag);
+    return obj;
+  }
+
+}
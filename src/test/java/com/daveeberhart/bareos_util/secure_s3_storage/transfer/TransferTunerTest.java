@@ -0,0 +1,131 @@
+package com.daveeberhart.bareos_util.secure_s3_storage.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.daveeberhart.bareos_util.secure_s3_storage.transfer.TransferTuner.Settings;
+
+/**
+ * @author deberhar
+ */
+public class TransferTunerTest {
+  private static final int MB = 1024 * 1024;
+  private static final long SECOND = 1_000_000_000L;
+
+  private final File fTestDir = new File(new File(System.getProperty("java.io.tmpdir")), UUID.randomUUID().toString());
+  private final File fHistory = new File(fTestDir, "history.properties");
+
+  @Before
+  public void setUp() {
+    fTestDir.mkdir();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtils.deleteDirectory(fTestDir);
+  }
+
+  @Test
+  public void testKeepsFasterSettings() {
+    TransferTuner tuner = new TransferTuner(fHistory, new Settings(16 * MB, 4), Long.MAX_VALUE);
+    Assert.assertEquals(new Settings(16 * MB, 4), tuner.current());
+
+    // Measure the defaults, then try more parts in flight:
+    window(tuner, 2 * SECOND);
+    Assert.assertEquals(new Settings(16 * MB, 8), tuner.current());
+
+    // Faster, so keep it, and go further the same way:
+    window(tuner, SECOND);
+    Assert.assertEquals(new Settings(16 * MB, 16), tuner.current());
+    Assert.assertTrue(fHistory.exists());
+  }
+
+  @Test
+  public void testDropsSlowerSettings() {
+    TransferTuner tuner = new TransferTuner(fHistory, new Settings(16 * MB, 4), Long.MAX_VALUE);
+    window(tuner, SECOND);
+    Assert.assertEquals(new Settings(16 * MB, 8), tuner.current());
+
+    // Slower: go back to the defaults and measure them again, then try the other way:
+    window(tuner, 2 * SECOND);
+    Assert.assertEquals(new Settings(16 * MB, 4), tuner.current());
+    window(tuner, SECOND);
+    Assert.assertEquals(new Settings(16 * MB, 2), tuner.current());
+
+    // Slower that way too; so after measuring the defaults again, try the part size instead (bigger, since
+    // parts only take a second):
+    window(tuner, 2 * SECOND);
+    window(tuner, SECOND);
+    Assert.assertEquals(new Settings(32 * MB, 4), tuner.current());
+  }
+
+  @Test
+  public void testSlowPartsTrySmallerFirst() {
+    // Same as above, but parts take long enough that a smaller part size is tried first:
+    TransferTuner tuner = new TransferTuner(fHistory, new Settings(16 * MB, 4), Long.MAX_VALUE);
+    window(tuner, 10 * SECOND);
+    window(tuner, 20 * SECOND);
+    window(tuner, 10 * SECOND);
+    window(tuner, 20 * SECOND);
+    window(tuner, 10 * SECOND);
+    Assert.assertEquals(new Settings(8 * MB, 4), tuner.current());
+  }
+
+  @Test
+  public void testIgnoresOtherSettings() {
+    TransferTuner tuner = new TransferTuner(fHistory, new Settings(16 * MB, 4), Long.MAX_VALUE);
+    for (int i = 0; i < 100; i++) {
+      tuner.recordPart(new Settings(8 * MB, 4), 8 * MB, System.nanoTime() - SECOND);
+    }
+    Assert.assertEquals(new Settings(16 * MB, 4), tuner.current());
+    Assert.assertEquals(0, tuner.getBestRate(), 0);
+  }
+
+  @Test
+  public void testStaysWithinMemory() {
+    TransferTuner tuner = new TransferTuner(fHistory, new Settings(16 * MB, 4), 5 * 16 * MB);
+    window(tuner, 2 * SECOND);
+    Assert.assertEquals(new Settings(16 * MB, 2), tuner.current());
+  }
+
+  @Test
+  public void testResumesFromHistory() {
+    TransferTuner tuner = new TransferTuner(fHistory, new Settings(16 * MB, 4), Long.MAX_VALUE);
+    window(tuner, 2 * SECOND);
+    window(tuner, SECOND);
+    double rate = tuner.getBestRate();
+
+    // The next run starts with the best settings learned, and carries on with the next trial:
+    TransferTuner next = new TransferTuner(fHistory, new Settings(16 * MB, 4), Long.MAX_VALUE);
+    Assert.assertEquals(new Settings(16 * MB, 16), next.current());
+    Assert.assertEquals(rate, next.getBestRate(), 1);
+  }
+
+  @Test
+  public void testCorruptHistory() throws IOException {
+    Files.write(fHistory.toPath(), Arrays.asList("partSizeMB=lots"));
+    TransferTuner tuner = new TransferTuner(fHistory, new Settings(16 * MB, 4), Long.MAX_VALUE);
+    Assert.assertEquals(new Settings(16 * MB, 4), tuner.current());
+  }
+
+  /**
+   * Upload a window's worth of parts with the current settings, all at once, taking about the given time.
+   */
+  private static void window(TransferTuner p_tuner, long p_nanos) {
+    Settings settings = p_tuner.current();
+    long start = System.nanoTime() - p_nanos;
+    for (int i = 0; i < 8; i++) {
+      p_tuner.recordPart(settings, settings.getPartSize(), start);
+    }
+  }
+
+}